@@ -27,6 +27,7 @@ package me.lucko.spark.api;
 
 import me.lucko.spark.api.gc.GarbageCollector;
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
+import me.lucko.spark.api.statistic.misc.TickTimeline;
 import me.lucko.spark.api.statistic.types.DoubleStatistic;
 import me.lucko.spark.api.statistic.types.GenericStatistic;
 
@@ -77,6 +78,15 @@ public interface Spark {
      */
     @Nullable GenericStatistic<DoubleAverageInfo, MillisPerTick> mspt();
 
+    /**
+     * Gets the duration of each tick over the last 20 minutes.
+     *
+     * <p>Returns {@code null} if the statistic is not supported.</p>
+     *
+     * @return a snapshot of the recent tick durations
+     */
+    @Nullable TickTimeline tickTimeline();
+
     /**
      * Gets the garbage collector statistics.
      *
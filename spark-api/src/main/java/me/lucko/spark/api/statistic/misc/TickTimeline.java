@@ -0,0 +1,58 @@
+/*
+ * This file is part of spark, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.spark.api.statistic.misc;
+
+/**
+ * The duration of each of the most recent ticks, oldest first.
+ *
+ * <p>A timeline is a snapshot, and won't change once it has been obtained.</p>
+ */
+public interface TickTimeline {
+
+    /**
+     * Gets the number of ticks in the timeline.
+     *
+     * @return the number of ticks
+     */
+    int size();
+
+    /**
+     * Gets the duration of a tick, in milliseconds.
+     *
+     * @param index the index of the tick, where 0 is the oldest
+     * @return the duration
+     */
+    double duration(int index);
+
+    /**
+     * Gets the (wall-clock) time when a tick ended, in unix millis.
+     *
+     * @param index the index of the tick, where 0 is the oldest
+     * @return the end time
+     */
+    long endTime(int index);
+
+}
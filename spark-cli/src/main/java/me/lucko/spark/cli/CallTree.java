@@ -0,0 +1,443 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.cli;
+
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkSamplerProtos.StackTraceNode;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.DoubleConsumer;
+
+/**
+ * A call tree read from one or more profiles, with the total time of each node kept per window.
+ *
+ * <p>Trees are built by a single thread, and then merged together once they are complete.</p>
+ */
+public final class CallTree {
+
+    /** The class name used by async-profiler for native frames */
+    public static final String NATIVE_CALL = "native";
+
+    private static final double[] NO_TIMES = new double[0];
+
+    /** The index of the earliest input in the tree, used to decide which metadata is kept when merging */
+    private int origin;
+
+    /** The metadata of the earliest input */
+    private SamplerMetadata metadata;
+
+    /** The mode of the profiles in the tree */
+    private final SamplerMetadata.SamplerMode mode;
+
+    /** The size of each window, in seconds */
+    private final int windowSize;
+
+    /** The time range covered by the tree, in unix-millis */
+    private long startTime;
+    private long endTime;
+
+    /** The number of ticks covered by the tree, or 0 if unknown */
+    private int numberOfTicks;
+
+    /** The windows in the tree, in the order their columns were allocated */
+    private int[] windows = new int[16];
+    private int[] widths = new int[16];
+    private int windowCount = 0;
+    private final Map<Integer, Integer> columns = new HashMap<>();
+    private final Map<Integer, WindowStatistics> statistics = new HashMap<>();
+
+    /** Source mappings carried over from the inputs */
+    private final Map<String, String> classSources = new HashMap<>();
+    private final Map<String, String> methodSources = new HashMap<>();
+    private final Map<String, String> lineSources = new HashMap<>();
+
+    /** The root node of each thread */
+    private final Map<String, Node> threads = new LinkedHashMap<>();
+
+    public CallTree(int origin, SamplerMetadata metadata) {
+        this.origin = origin;
+        this.metadata = metadata;
+        this.mode = metadata.getSamplerMode();
+        this.windowSize = metadata.getWindowSize() == 0 ? 60 : metadata.getWindowSize();
+        this.startTime = metadata.getStartTime();
+        this.endTime = metadata.getEndTime();
+        this.numberOfTicks = metadata.getNumberOfTicks();
+    }
+
+    public SamplerMetadata.SamplerMode getMode() {
+        return this.mode;
+    }
+
+    public int getWindowSize() {
+        return this.windowSize;
+    }
+
+    public void setTimeRange(long startTime, long endTime) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    public void setNumberOfTicks(int numberOfTicks) {
+        this.numberOfTicks = numberOfTicks;
+    }
+
+    public void addSources(SamplerData data) {
+        this.classSources.putAll(data.getClassSourcesMap());
+        this.methodSources.putAll(data.getMethodSourcesMap());
+        this.lineSources.putAll(data.getLineSourcesMap());
+    }
+
+    /**
+     * Gets the column used to hold the times of a window, allocating one if necessary.
+     *
+     * @param window the window
+     * @param width the width of the window, in multiples of the window size
+     * @return the column
+     */
+    public int column(int window, int width) {
+        Integer column = this.columns.get(window);
+        if (column != null) {
+            this.widths[column] = Math.max(this.widths[column], width);
+            return column;
+        }
+
+        if (this.windowCount == this.windows.length) {
+            this.windows = Arrays.copyOf(this.windows, this.windowCount * 2);
+            this.widths = Arrays.copyOf(this.widths, this.windowCount * 2);
+        }
+        this.windows[this.windowCount] = window;
+        this.widths[this.windowCount] = width;
+        this.columns.put(window, this.windowCount);
+        return this.windowCount++;
+    }
+
+    public void addStatistics(int window, WindowStatistics statistics) {
+        this.statistics.putIfAbsent(window, statistics);
+    }
+
+    /**
+     * Gets the root node of a thread, adding it if necessary.
+     *
+     * @param name the name of the thread
+     * @return the root node
+     */
+    public Node thread(String name) {
+        return this.threads.computeIfAbsent(name, n -> new Node(null));
+    }
+
+    /**
+     * Gets the total time of all threads in the tree.
+     *
+     * @return the total time
+     */
+    public double getTotal() {
+        double total = 0;
+        for (Node thread : this.threads.values()) {
+            total += thread.getTotal();
+        }
+        return total;
+    }
+
+    /**
+     * Merges another tree into this one.
+     *
+     * @param other the other tree
+     * @throws IllegalArgumentException if the trees were recorded in different modes or with different window sizes
+     */
+    public void merge(CallTree other) {
+        if (other.mode != this.mode) {
+            throw new IllegalArgumentException("Can't merge an " + name(other.mode) + " profile with an " + name(this.mode) + " profile");
+        }
+        if (other.windowSize != this.windowSize) {
+            throw new IllegalArgumentException("Can't merge profiles with different window sizes (" + this.windowSize + "s and " + other.windowSize + "s)");
+        }
+
+        if (other.origin < this.origin) {
+            this.origin = other.origin;
+            this.metadata = other.metadata;
+        }
+        this.startTime = Math.min(this.startTime, other.startTime);
+        this.endTime = Math.max(this.endTime, other.endTime);
+        this.numberOfTicks = this.numberOfTicks == 0 || other.numberOfTicks == 0 ? 0 : this.numberOfTicks + other.numberOfTicks;
+
+        int[] remap = new int[other.windowCount];
+        for (int i = 0; i < other.windowCount; i++) {
+            remap[i] = column(other.windows[i], other.widths[i]);
+        }
+        other.statistics.forEach(this.statistics::putIfAbsent);
+
+        this.classSources.putAll(other.classSources);
+        this.methodSources.putAll(other.methodSources);
+        this.lineSources.putAll(other.lineSources);
+
+        Deque<Node[]> stack = new ArrayDeque<>();
+        for (Map.Entry<String, Node> thread : other.threads.entrySet()) {
+            stack.push(new Node[]{thread(thread.getKey()), thread.getValue()});
+        }
+        while (!stack.isEmpty()) {
+            Node[] entry = stack.pop();
+            Node target = entry[0];
+            Node source = entry[1];
+
+            for (int i = 0; i < source.times.length; i++) {
+                if (source.times[i] != 0) {
+                    target.add(remap[i], source.times[i]);
+                }
+            }
+            for (Node child : source.children.values()) {
+                stack.push(new Node[]{target.child(child.frame), child});
+            }
+        }
+    }
+
+    /**
+     * Sums the self time of each method in the tree, regardless of where it was called from.
+     *
+     * @return the self time of each method, keyed by {@link Frame#getName()}
+     */
+    public Map<String, Double> getSelfTimes() {
+        Map<String, Double> selfTimes = new HashMap<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        for (Node thread : this.threads.values()) {
+            stack.addAll(thread.children.values());
+        }
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            double selfTime = node.getSelfTime();
+            if (selfTime > 0) {
+                selfTimes.merge(node.frame.getName(), selfTime, Double::sum);
+            }
+            stack.addAll(node.children.values());
+        }
+        return selfTimes;
+    }
+
+    /**
+     * Writes the tree in the "collapsed" format used by flamegraph tools - one line per unique
+     * stack, with the frames separated by semicolons, followed by the self time of the stack.
+     *
+     * @param out the output
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeCollapsed(Appendable out) throws IOException {
+        Deque<Object[]> stack = new ArrayDeque<>();
+        for (Map.Entry<String, Node> thread : this.threads.entrySet()) {
+            stack.push(new Object[]{thread.getValue(), thread.getKey().replace(';', ':')});
+        }
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.pop();
+            Node node = (Node) entry[0];
+            String path = (String) entry[1];
+
+            long selfTime = Math.round(node.getSelfTime());
+            if (selfTime > 0) {
+                out.append(path).append(' ').append(Long.toString(selfTime)).append('\n');
+            }
+            for (Node child : node.children.values()) {
+                stack.push(new Object[]{child, path + ';' + child.frame.getName()});
+            }
+        }
+    }
+
+    /**
+     * Converts the tree to a {@link SamplerData} proto, which can be opened in the viewer.
+     *
+     * @return the proto
+     */
+    public SamplerData toProto() {
+        Integer[] order = new Integer[this.windowCount];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(this.windows[a], this.windows[b]));
+
+        SamplerData.Builder proto = SamplerData.newBuilder()
+                .setMetadata(this.metadata.toBuilder()
+                        .setStartTime(this.startTime)
+                        .setEndTime(this.endTime)
+                        .setNumberOfTicks(this.numberOfTicks)
+                        .setWindowSize(this.windowSize)
+                        .build()
+                )
+                .putAllClassSources(this.classSources)
+                .putAllMethodSources(this.methodSources)
+                .putAllLineSources(this.lineSources);
+
+        for (int column : order) {
+            int window = this.windows[column];
+            proto.addTimeWindows(window);
+            proto.addTimeWindowWidths(this.widths[column]);
+            WindowStatistics statistics = this.statistics.get(window);
+            if (statistics != null) {
+                proto.putTimeWindowStatistics(window, statistics);
+            }
+        }
+
+        for (Map.Entry<String, Node> thread : this.threads.entrySet()) {
+            Node root = thread.getValue();
+            ThreadNode.Builder threadProto = ThreadNode.newBuilder()
+                    .setName(thread.getKey());
+            root.writeTimes(order, threadProto::addTimes);
+
+            // flatten the tree breadth-first, so each node is added in the same order its index was allocated
+            Deque<Node> queue = new ArrayDeque<>();
+            int index = 0;
+            for (Node child : root.children.values()) {
+                threadProto.addChildrenRefs(index++);
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                Frame frame = node.frame;
+                StackTraceNode.Builder nodeProto = StackTraceNode.newBuilder()
+                        .setClassName(frame.className)
+                        .setMethodName(frame.methodName)
+                        .setLineNumber(frame.lineNumber)
+                        .setParentLineNumber(frame.parentLineNumber);
+                if (frame.methodDesc != null) {
+                    nodeProto.setMethodDesc(frame.methodDesc);
+                }
+                node.writeTimes(order, nodeProto::addTimes);
+                for (Node child : node.children.values()) {
+                    nodeProto.addChildrenRefs(index++);
+                    queue.add(child);
+                }
+                threadProto.addChildren(nodeProto);
+            }
+
+            proto.addThreads(threadProto);
+        }
+
+        return proto.build();
+    }
+
+    private static String name(SamplerMetadata.SamplerMode mode) {
+        return mode.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A node in the tree.
+     */
+    public static final class Node {
+        /** The frame, or null if the node is the root of a thread */
+        private final Frame frame;
+        private final Map<Frame, Node> children = new LinkedHashMap<>();
+        /** The total time of the node, indexed by column */
+        private double[] times = NO_TIMES;
+
+        private Node(Frame frame) {
+            this.frame = frame;
+        }
+
+        public Node child(Frame frame) {
+            return this.children.computeIfAbsent(frame, Node::new);
+        }
+
+        public void add(int column, double time) {
+            if (column >= this.times.length) {
+                this.times = Arrays.copyOf(this.times, Math.max(column + 1, this.times.length * 2));
+            }
+            this.times[column] += time;
+        }
+
+        public double getTotal() {
+            double total = 0;
+            for (double time : this.times) {
+                total += time;
+            }
+            return total;
+        }
+
+        public double getSelfTime() {
+            double selfTime = getTotal();
+            for (Node child : this.children.values()) {
+                selfTime -= child.getTotal();
+            }
+            return Math.max(0, selfTime);
+        }
+
+        private void writeTimes(Integer[] order, DoubleConsumer consumer) {
+            for (int column : order) {
+                consumer.accept(column < this.times.length ? this.times[column] : 0);
+            }
+        }
+    }
+
+    /**
+     * A stack frame.
+     */
+    public static final class Frame {
+        private final String className;
+        private final String methodName;
+        /** The method descriptor, or null if unknown */
+        private final String methodDesc;
+        private final int lineNumber;
+        private final int parentLineNumber;
+        private final int hash;
+
+        public Frame(String className, String methodName, String methodDesc, int lineNumber, int parentLineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+            this.lineNumber = lineNumber;
+            this.parentLineNumber = parentLineNumber;
+            this.hash = Objects.hash(className, methodName, methodDesc, lineNumber, parentLineNumber);
+        }
+
+        /**
+         * Gets the name of the method, which doesn't distinguish between overloads.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return this.className.equals(NATIVE_CALL) ? this.methodName : this.className + '.' + this.methodName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Frame frame = (Frame) o;
+            return this.lineNumber == frame.lineNumber &&
+                    this.parentLineNumber == frame.parentLineNumber &&
+                    this.className.equals(frame.className) &&
+                    this.methodName.equals(frame.methodName) &&
+                    Objects.equals(this.methodDesc, frame.methodDesc);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+}
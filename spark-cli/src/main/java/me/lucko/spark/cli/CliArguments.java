@@ -0,0 +1,133 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.cli;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The parsed arguments of a command line invocation.
+ *
+ * <p>Arguments starting with {@code --} are flags, and everything else is positional. Flags take
+ * a value unless they are listed as boolean flags, and may be repeated.</p>
+ */
+public final class CliArguments {
+
+    private static final Set<String> BOOLEAN_FLAGS = new HashSet<>(Arrays.asList("alloc", "help"));
+
+    private final List<String> positional = new ArrayList<>();
+    private final Map<String, List<String>> flags = new HashMap<>();
+
+    public CliArguments(List<String> args) throws ParseException {
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                this.positional.add(arg);
+                continue;
+            }
+
+            String flag = arg.substring(2);
+            String value = null;
+            int equals = flag.indexOf('=');
+            if (equals != -1) {
+                value = flag.substring(equals + 1);
+                flag = flag.substring(0, equals);
+            } else if (!BOOLEAN_FLAGS.contains(flag)) {
+                if (i + 1 >= args.size()) {
+                    throw new ParseException("Missing value for --" + flag);
+                }
+                value = args.get(++i);
+            }
+            this.flags.computeIfAbsent(flag, f -> new ArrayList<>()).add(value);
+        }
+    }
+
+    public List<String> positional() {
+        return this.positional;
+    }
+
+    public boolean boolFlag(String key) {
+        return this.flags.containsKey(key);
+    }
+
+    public List<String> stringFlags(String key) {
+        return this.flags.getOrDefault(key, Collections.emptyList());
+    }
+
+    public String stringFlag(String key) {
+        List<String> values = stringFlags(key);
+        return values.isEmpty() ? null : values.get(values.size() - 1);
+    }
+
+    public int intFlag(String key, int def) throws ParseException {
+        String value = stringFlag(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid number for --" + key + ": " + value);
+        }
+    }
+
+    /**
+     * Parses a time flag, given either in unix-millis or as an ISO-8601 instant.
+     *
+     * @param key the flag
+     * @param def the default value
+     * @return the time in unix-millis
+     * @throws ParseException if the value is not a valid time
+     */
+    public long timeFlag(String key, long def) throws ParseException {
+        String value = stringFlag(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // try iso-8601
+        }
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new ParseException("Invalid time for --" + key + ": " + value + " (expected unix millis or e.g. 2023-01-01T12:00:00Z)");
+        }
+    }
+
+    public static final class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(String message) {
+            super(message);
+        }
+    }
+
+}
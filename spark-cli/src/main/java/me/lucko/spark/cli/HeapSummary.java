@@ -0,0 +1,123 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.cli;
+
+import me.lucko.spark.proto.SparkHeapProtos.HeapData;
+import me.lucko.spark.proto.SparkHeapProtos.HeapEntry;
+import me.lucko.spark.proto.SparkHeapProtos.HeapMetadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The instance counts & sizes of each type, read from one or more heap summaries.
+ */
+public final class HeapSummary {
+
+    /** The index of the earliest input in the summary, used to decide which metadata is kept when merging */
+    private int origin;
+
+    /** The metadata of the earliest input */
+    private HeapMetadata metadata;
+
+    /** The instance count & total size of each type */
+    private final Map<String, long[]> types = new HashMap<>();
+
+    public HeapSummary(int origin, HeapData data) {
+        this.origin = origin;
+        this.metadata = data.getMetadata();
+        for (HeapEntry entry : data.getEntriesList()) {
+            add(entry.getType(), entry.getInstances(), entry.getSize());
+        }
+    }
+
+    private void add(String type, long instances, long size) {
+        long[] totals = this.types.computeIfAbsent(type, t -> new long[2]);
+        totals[0] += instances;
+        totals[1] += size;
+    }
+
+    public void merge(HeapSummary other) {
+        if (other.origin < this.origin) {
+            this.origin = other.origin;
+            this.metadata = other.metadata;
+        }
+        other.types.forEach((type, totals) -> add(type, totals[0], totals[1]));
+    }
+
+    /**
+     * Gets the total size of each type.
+     *
+     * @return the size of each type, in bytes
+     */
+    public Map<String, Double> getSizes() {
+        Map<String, Double> sizes = new HashMap<>();
+        this.types.forEach((type, totals) -> sizes.put(type, (double) totals[1]));
+        return sizes;
+    }
+
+    public long getTotalSize() {
+        long total = 0;
+        for (long[] totals : this.types.values()) {
+            total += totals[1];
+        }
+        return total;
+    }
+
+    private List<Map.Entry<String, long[]>> sorted() {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(this.types.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[1]).reversed());
+        return entries;
+    }
+
+    /**
+     * Writes the summary in the "collapsed" format used by flamegraph tools - one line per type,
+     * followed by its total size.
+     *
+     * @param out the output
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeCollapsed(Appendable out) throws IOException {
+        for (Map.Entry<String, long[]> entry : sorted()) {
+            out.append(entry.getKey().replace(';', ':')).append(' ').append(Long.toString(entry.getValue()[1])).append('\n');
+        }
+    }
+
+    public HeapData toProto() {
+        HeapData.Builder proto = HeapData.newBuilder().setMetadata(this.metadata);
+        int order = 1;
+        for (Map.Entry<String, long[]> entry : sorted()) {
+            proto.addEntries(HeapEntry.newBuilder()
+                    .setOrder(order++)
+                    .setInstances((int) Math.min(Integer.MAX_VALUE, entry.getValue()[0]))
+                    .setSize(entry.getValue()[1])
+                    .setType(entry.getKey())
+                    .build()
+            );
+        }
+        return proto.build();
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.cli;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Restricts the threads and time range read from a profile.
+ */
+public final class ProfileFilter {
+
+    /** A filter which includes everything */
+    public static final ProfileFilter NONE = new ProfileFilter(null, Long.MIN_VALUE, Long.MAX_VALUE);
+
+    /** The patterns matched against thread names, or null to include all threads */
+    private final List<Pattern> threads;
+
+    /** The start of the time range, in unix-millis */
+    private final long from;
+
+    /** The end of the time range, in unix-millis */
+    private final long to;
+
+    public ProfileFilter(List<String> threads, long from, long to) {
+        this.threads = threads == null || threads.isEmpty() ? null : threads.stream()
+                .map(regex -> Pattern.compile(regex, Pattern.CASE_INSENSITIVE))
+                .collect(Collectors.toList());
+        this.from = from;
+        this.to = to;
+    }
+
+    public boolean isEmpty() {
+        return this.threads == null && this.from == Long.MIN_VALUE && this.to == Long.MAX_VALUE;
+    }
+
+    public boolean includesThread(String name) {
+        if (this.threads == null) {
+            return true;
+        }
+        for (Pattern pattern : this.threads) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests if a period of time overlaps the time range of the filter.
+     *
+     * @param start the start of the period, in unix-millis
+     * @param end the end of the period (exclusive), in unix-millis
+     * @return true if the period should be included
+     */
+    public boolean includesPeriod(long start, long end) {
+        return end > this.from && start <= this.to;
+    }
+
+    public boolean includesTime(long time) {
+        return time >= this.from && time <= this.to;
+    }
+
+}
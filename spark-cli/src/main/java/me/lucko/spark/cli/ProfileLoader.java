@@ -0,0 +1,150 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+
+/**
+ * Reads and merges many inputs in parallel.
+ *
+ * <p>Each worker merges the files it reads into its own accumulator as it goes, so at most one
+ * unmerged input per worker is held in memory at any time. The accumulators are merged together
+ * once every file has been read.</p>
+ */
+public final class ProfileLoader implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final ProfileFilter filter;
+    private final boolean allocation;
+    private final int jfrInterval;
+
+    public ProfileLoader(int threads, ProfileFilter filter, boolean allocation, int jfrInterval) {
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "spark-cli-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.filter = filter;
+        this.allocation = allocation;
+        this.jfrInterval = jfrInterval;
+    }
+
+    /**
+     * Reads the given profiles (or JFR files) and merges them into one call tree.
+     *
+     * @param files the files
+     * @return the merged tree
+     * @throws IOException if a file can't be read
+     */
+    public CallTree loadProfiles(List<Path> files) throws IOException {
+        return load(files, (file, origin) -> {
+            if (ProfileReader.Type.of(file) == ProfileReader.Type.JFR) {
+                return ProfileReader.readJfr(file, origin, this.filter, this.allocation, this.jfrInterval);
+            }
+            return ProfileReader.readProfile(file, origin, this.filter);
+        }, (a, b) -> {
+            a.merge(b);
+            return a;
+        });
+    }
+
+    /**
+     * Reads the given heap summaries and merges them into one.
+     *
+     * @param files the files
+     * @return the merged summary
+     * @throws IOException if a file can't be read
+     */
+    public HeapSummary loadHeapSummaries(List<Path> files) throws IOException {
+        return load(files, ProfileReader::readHeapSummary, (a, b) -> {
+            a.merge(b);
+            return a;
+        });
+    }
+
+    private <T> T load(List<Path> files, Reader<T> reader, BinaryOperator<T> merger) throws IOException {
+        AtomicInteger next = new AtomicInteger();
+        List<Future<T>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(this.threads, files.size()); i++) {
+            futures.add(this.executor.submit(() -> {
+                T result = null;
+                for (int index; (index = next.getAndIncrement()) < files.size(); ) {
+                    Path file = files.get(index);
+                    T data;
+                    try {
+                        data = reader.read(file, index);
+                    } catch (IOException | RuntimeException e) {
+                        throw new IOException("Unable to read " + file + ": " + e, e);
+                    }
+                    result = result == null ? data : merger.apply(result, data);
+                }
+                return result;
+            }));
+        }
+
+        T result = null;
+        for (Future<T> future : futures) {
+            T data;
+            try {
+                data = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                // stop the other workers picking up any more files
+                next.set(files.size());
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+            if (data != null) {
+                result = result == null ? data : merger.apply(result, data);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    @FunctionalInterface
+    private interface Reader<T> {
+        T read(Path file, int origin) throws IOException;
+    }
+
+}
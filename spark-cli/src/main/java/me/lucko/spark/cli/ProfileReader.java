@@ -0,0 +1,300 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.cli;
+
+import me.lucko.spark.common.sampler.async.jfr.JfrReader;
+import me.lucko.spark.proto.SparkHeapProtos.HeapData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkSamplerProtos.StackTraceNode;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the files supported by the command line tools.
+ */
+public enum ProfileReader {
+    ;
+
+    /** The interval assumed for execution samples in JFR files which don't record one, in microseconds */
+    private static final int DEFAULT_JFR_INTERVAL = 10000;
+
+    /** The window size used for JFR files, in seconds */
+    private static final int JFR_WINDOW_SIZE = 60;
+
+    /**
+     * The types of file which can be read.
+     */
+    public enum Type {
+        PROFILE, HEAP_SUMMARY, JFR;
+
+        public static Type of(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".sparkheap")) {
+                return HEAP_SUMMARY;
+            }
+            if (name.endsWith(".jfr")) {
+                return JFR;
+            }
+            return PROFILE;
+        }
+
+        public static boolean isSupported(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            return name.endsWith(".sparkprofile") || name.endsWith(".sparkheap") || name.endsWith(".jfr");
+        }
+    }
+
+    /**
+     * Reads a saved profile.
+     *
+     * @param file the file
+     * @param origin the index of the file in the inputs
+     * @param filter the filter
+     * @return the call tree
+     * @throws IOException if an I/O error occurs
+     */
+    public static CallTree readProfile(Path file, int origin, ProfileFilter filter) throws IOException {
+        SamplerData data;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            data = SamplerData.parseFrom(in);
+        }
+
+        CallTree tree = new CallTree(origin, data.getMetadata());
+        tree.addSources(data);
+
+        // work out which windows are included, and the columns they're stored in
+        long windowMillis = tree.getWindowSize() * 1000L;
+        int[] columns = new int[data.getTimeWindowsCount()];
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (int i = 0; i < columns.length; i++) {
+            int window = data.getTimeWindows(i);
+            int width = i < data.getTimeWindowWidthsCount() ? Math.max(1, data.getTimeWindowWidths(i)) : 1;
+            long windowStart = window * windowMillis;
+            long windowEnd = windowStart + width * windowMillis;
+
+            if (filter.includesPeriod(windowStart, windowEnd)) {
+                columns[i] = tree.column(window, width);
+                start = Math.min(start, windowStart);
+                end = Math.max(end, windowEnd);
+                if (data.containsTimeWindowStatistics(window)) {
+                    tree.addStatistics(window, data.getTimeWindowStatisticsOrThrow(window));
+                }
+            } else {
+                columns[i] = -1;
+            }
+        }
+
+        if (!filter.isEmpty()) {
+            // the tick count can't be attributed to individual windows or threads
+            tree.setNumberOfTicks(0);
+            if (start <= end) {
+                tree.setTimeRange(Math.max(start, data.getMetadata().getStartTime()), Math.min(end, data.getMetadata().getEndTime()));
+            }
+        }
+
+        Deque<Object[]> stack = new ArrayDeque<>();
+        for (ThreadNode thread : data.getThreadsList()) {
+            if (!filter.includesThread(thread.getName())) {
+                continue;
+            }
+
+            CallTree.Node root = tree.thread(thread.getName());
+            addTimes(root, columns, thread.getTimesList());
+
+            for (int ref : thread.getChildrenRefsList()) {
+                stack.push(new Object[]{ref, root});
+            }
+            while (!stack.isEmpty()) {
+                Object[] entry = stack.pop();
+                StackTraceNode node = thread.getChildren((Integer) entry[0]);
+
+                CallTree.Frame frame = new CallTree.Frame(
+                        node.getClassName(),
+                        node.getMethodName(),
+                        node.getMethodDesc().isEmpty() ? null : node.getMethodDesc(),
+                        node.getLineNumber(),
+                        node.getParentLineNumber()
+                );
+                CallTree.Node treeNode = ((CallTree.Node) entry[1]).child(frame);
+                addTimes(treeNode, columns, node.getTimesList());
+
+                for (int ref : node.getChildrenRefsList()) {
+                    stack.push(new Object[]{ref, treeNode});
+                }
+            }
+        }
+
+        return tree;
+    }
+
+    private static void addTimes(CallTree.Node node, int[] columns, List<Double> times) {
+        for (int i = 0; i < times.size() && i < columns.length; i++) {
+            if (columns[i] != -1) {
+                node.add(columns[i], times.get(i));
+            }
+        }
+    }
+
+    /**
+     * Reads the execution or allocation samples from a JFR file, such as one produced by async-profiler.
+     *
+     * @param file the file
+     * @param origin the index of the file in the inputs
+     * @param filter the filter
+     * @param allocation if allocation samples should be read instead of execution samples
+     * @param interval the sampling interval in microseconds, or 0 to use the interval recorded in the file
+     * @return the call tree
+     * @throws IOException if an I/O error occurs
+     */
+    public static CallTree readJfr(Path file, int origin, ProfileFilter filter, boolean allocation, int interval) throws IOException {
+        try (JfrReader reader = new JfrReader(file)) {
+            Class<? extends JfrReader.Event> eventClass = allocation ? JfrReader.AllocationSample.class : JfrReader.ExecutionSample.class;
+
+            // active settings (such as the interval) are stored as events, so read up to the first sample
+            JfrReader.Event event = reader.readEvent(eventClass);
+
+            SamplerMetadata metadata = SamplerMetadata.newBuilder()
+                    .setStartTime(reader.startNanos / 1000000L)
+                    .setEndTime(reader.endNanos / 1000000L)
+                    .setInterval(allocation ? 0 : (interval > 0 ? interval : recordedInterval(reader)))
+                    .setSamplerMode(allocation ? SamplerMetadata.SamplerMode.ALLOCATION : SamplerMetadata.SamplerMode.EXECUTION)
+                    .setWindowSize(JFR_WINDOW_SIZE)
+                    .setThreadDumper(SamplerMetadata.ThreadDumper.newBuilder().setType(SamplerMetadata.ThreadDumper.Type.ALL))
+                    .setDataAggregator(SamplerMetadata.DataAggregator.newBuilder()
+                            .setType(SamplerMetadata.DataAggregator.Type.SIMPLE)
+                            .setThreadGrouper(SamplerMetadata.DataAggregator.ThreadGrouper.BY_NAME)
+                    )
+                    .build();
+
+            CallTree tree = new CallTree(origin, metadata);
+            double scale = allocation ? 1 : metadata.getInterval() / 1000d; // execution times are in milliseconds
+            long windowMillis = JFR_WINDOW_SIZE * 1000L;
+            Map<Long, CallTree.Frame> frames = new HashMap<>();
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+
+            for (; event != null; event = reader.readEvent(eventClass)) {
+                String threadName = reader.threads.get((long) event.tid);
+                if (threadName == null || !filter.includesThread(threadName)) {
+                    continue;
+                }
+
+                long time = (reader.startNanos / 1000000L) + (long) ((event.time - reader.startTicks) * 1000d / reader.ticksPerSec);
+                if (!filter.includesTime(time)) {
+                    continue;
+                }
+                start = Math.min(start, time);
+                end = Math.max(end, time);
+
+                JfrReader.StackTrace stackTrace = reader.stackTraces.get(event.stackTraceId);
+                if (stackTrace == null) {
+                    continue;
+                }
+
+                int column = tree.column((int) (time / windowMillis), 1);
+                double value = event.value() * scale;
+
+                CallTree.Node node = tree.thread(threadName);
+                node.add(column, value);
+
+                // async-profiler records stacks leaf first
+                for (int i = stackTrace.methods.length - 1; i >= 0; i--) {
+                    node = node.child(frames.computeIfAbsent(stackTrace.methods[i], id -> frame(reader, id)));
+                    node.add(column, value);
+                }
+            }
+
+            if (filter.isEmpty() || start > end) {
+                // the end time is only known once every chunk has been read
+                tree.setTimeRange(reader.startNanos / 1000000L, reader.endNanos / 1000000L);
+            } else {
+                tree.setTimeRange(start, end);
+            }
+            return tree;
+        }
+    }
+
+    private static int recordedInterval(JfrReader reader) {
+        // async-profiler records the interval in nanoseconds
+        String interval = reader.settings.get("interval");
+        if (interval != null) {
+            try {
+                long nanos = Long.parseLong(interval);
+                if (nanos >= 1000) {
+                    return (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+                }
+            } catch (NumberFormatException e) {
+                // ignore
+            }
+        }
+        return DEFAULT_JFR_INTERVAL;
+    }
+
+    private static CallTree.Frame frame(JfrReader reader, long methodId) {
+        JfrReader.MethodRef method = reader.methods.get(methodId);
+        JfrReader.ClassRef cls = reader.classes.get(method.cls);
+
+        byte[] className = reader.symbols.get(cls.name);
+        String methodName = new String(reader.symbols.get(method.name), StandardCharsets.UTF_8);
+
+        if (className == null || className.length == 0) {
+            return new CallTree.Frame(CallTree.NATIVE_CALL, methodName, null, 0, 0);
+        }
+
+        byte[] methodDesc = reader.symbols.get(method.sig);
+        return new CallTree.Frame(
+                new String(className, StandardCharsets.UTF_8).replace('/', '.'),
+                methodName,
+                methodDesc == null ? null : new String(methodDesc, StandardCharsets.UTF_8),
+                0,
+                0
+        );
+    }
+
+    /**
+     * Reads a saved heap summary.
+     *
+     * @param file the file
+     * @param origin the index of the file in the inputs
+     * @return the summary
+     * @throws IOException if an I/O error occurs
+     */
+    public static HeapSummary readHeapSummary(Path file, int origin) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return new HeapSummary(origin, HeapData.parseFrom(in));
+        }
+    }
+
+}
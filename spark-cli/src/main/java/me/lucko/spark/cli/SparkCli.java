@@ -0,0 +1,354 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.cli;
+
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command line tools for working with saved profiles & heap summaries offline.
+ */
+public final class SparkCli {
+
+    private static final String USAGE = String.join("\n",
+            "usage: spark-cli <command> [options] <files or directories...>",
+            "",
+            "commands:",
+            "  merge       merge profiles (or heap summaries) into one file    --output <file>",
+            "  filter      filter profiles by thread and/or time range         --output <file>",
+            "  collapsed   write collapsed stacks for flamegraph tools         [--output <file>]",
+            "  top         list the methods (or types) using the most time     [--limit <n>]",
+            "  diff        compare a baseline with a current profile           <baseline> <current> [--limit <n>]",
+            "",
+            "options:",
+            "  --thread <regex>   only include threads matching the pattern (can be repeated)",
+            "  --from <time>      only include data after the time (unix millis or ISO-8601)",
+            "  --to <time>        only include data before the time (unix millis or ISO-8601)",
+            "  --alloc            read allocation samples instead of execution samples from JFR files",
+            "  --interval <us>    the sampling interval of execution samples in JFR files",
+            "  --threads <n>      the number of files to read in parallel",
+            "",
+            "Directories are expanded to the .sparkprofile, .sparkheap and .jfr files they contain."
+    );
+
+    public static void main(String[] args) {
+        int exitCode;
+        try {
+            exitCode = run(Arrays.asList(args));
+        } catch (CliArguments.ParseException e) {
+            System.err.println("error: " + e.getMessage());
+            System.err.println();
+            System.err.println(USAGE);
+            exitCode = 2;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+
+    private static int run(List<String> args) throws CliArguments.ParseException, IOException {
+        if (args.isEmpty()) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        String command = args.get(0);
+        CliArguments arguments = new CliArguments(args.subList(1, args.size()));
+        if (arguments.boolFlag("help") || command.equals("help")) {
+            System.out.println(USAGE);
+            return 0;
+        }
+
+        ProfileFilter filter = new ProfileFilter(
+                arguments.stringFlags("thread"),
+                arguments.timeFlag("from", Long.MIN_VALUE),
+                arguments.timeFlag("to", Long.MAX_VALUE)
+        );
+        int threads = arguments.intFlag("threads", Runtime.getRuntime().availableProcessors());
+        if (threads < 1) {
+            throw new CliArguments.ParseException("--threads must be at least 1");
+        }
+
+        try (ProfileLoader loader = new ProfileLoader(threads, filter, arguments.boolFlag("alloc"), arguments.intFlag("interval", 0))) {
+            switch (command) {
+                case "merge":
+                    merge(loader, arguments, filter);
+                    return 0;
+                case "filter":
+                    if (filter.isEmpty()) {
+                        throw new CliArguments.ParseException("filter requires at least one of --thread, --from or --to");
+                    }
+                    merge(loader, arguments, filter);
+                    return 0;
+                case "collapsed":
+                    collapsed(loader, arguments, filter);
+                    return 0;
+                case "top":
+                    top(loader, arguments, filter);
+                    return 0;
+                case "diff":
+                    diff(loader, arguments, filter);
+                    return 0;
+                default:
+                    throw new CliArguments.ParseException("Unknown command '" + command + "'");
+            }
+        }
+    }
+
+    private static void merge(ProfileLoader loader, CliArguments arguments, ProfileFilter filter) throws CliArguments.ParseException, IOException {
+        Path output = requireOutput(arguments);
+        List<Path> inputs = inputs(arguments.positional());
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            if (isHeapSummaries(inputs, filter)) {
+                loader.loadHeapSummaries(inputs).toProto().writeTo(out);
+            } else {
+                loader.loadProfiles(inputs).toProto().writeTo(out);
+            }
+        }
+        System.err.println("Wrote " + inputs.size() + " input(s) to " + output);
+    }
+
+    private static void collapsed(ProfileLoader loader, CliArguments arguments, ProfileFilter filter) throws CliArguments.ParseException, IOException {
+        List<Path> inputs = inputs(arguments.positional());
+        boolean heap = isHeapSummaries(inputs, filter);
+
+        String output = arguments.stringFlag("output");
+        OutputStream stream = output == null ? System.out : Files.newOutputStream(Paths.get(output));
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            if (heap) {
+                loader.loadHeapSummaries(inputs).writeCollapsed(writer);
+            } else {
+                loader.loadProfiles(inputs).writeCollapsed(writer);
+            }
+        }
+    }
+
+    private static void top(ProfileLoader loader, CliArguments arguments, ProfileFilter filter) throws CliArguments.ParseException, IOException {
+        List<Path> inputs = inputs(arguments.positional());
+        int limit = arguments.intFlag("limit", 20);
+
+        Map<String, Double> values;
+        double total;
+        Unit unit;
+        if (isHeapSummaries(inputs, filter)) {
+            HeapSummary summary = loader.loadHeapSummaries(inputs);
+            values = summary.getSizes();
+            total = summary.getTotalSize();
+            unit = Unit.BYTES;
+        } else {
+            CallTree tree = loader.loadProfiles(inputs);
+            values = tree.getSelfTimes();
+            total = tree.getTotal();
+            unit = Unit.of(tree.getMode());
+        }
+
+        List<Map.Entry<String, Double>> entries = values.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+
+        for (Map.Entry<String, Double> entry : entries) {
+            double share = total == 0 ? 0 : entry.getValue() * 100d / total;
+            System.out.println(String.format("%7.2f%%  %12s  %s", share, unit.format(entry.getValue()), entry.getKey()));
+        }
+    }
+
+    private static void diff(ProfileLoader loader, CliArguments arguments, ProfileFilter filter) throws CliArguments.ParseException, IOException {
+        if (arguments.positional().size() != 2) {
+            throw new CliArguments.ParseException("diff requires a baseline and a current file or directory");
+        }
+        List<Path> baselineInputs = inputs(arguments.positional().subList(0, 1));
+        List<Path> currentInputs = inputs(arguments.positional().subList(1, 2));
+        int limit = arguments.intFlag("limit", 10);
+
+        // the inputs are normalised to a share of their total, so profiles of different lengths can be compared
+        Map<String, Double> baseline;
+        Map<String, Double> current;
+        boolean heap = isHeapSummaries(baselineInputs, filter);
+        if (heap != isHeapSummaries(currentInputs, filter)) {
+            throw new IllegalArgumentException("Can't compare a heap summary with a profile");
+        }
+        if (heap) {
+            HeapSummary baselineSummary = loader.loadHeapSummaries(baselineInputs);
+            HeapSummary currentSummary = loader.loadHeapSummaries(currentInputs);
+            baseline = shares(baselineSummary.getSizes(), baselineSummary.getTotalSize());
+            current = shares(currentSummary.getSizes(), currentSummary.getTotalSize());
+        } else {
+            CallTree baselineTree = loader.loadProfiles(baselineInputs);
+            CallTree currentTree = loader.loadProfiles(currentInputs);
+            if (baselineTree.getMode() != currentTree.getMode()) {
+                throw new IllegalArgumentException("Can't compare profiles recorded in different modes");
+            }
+            baseline = shares(baselineTree.getSelfTimes(), baselineTree.getTotal());
+            current = shares(currentTree.getSelfTimes(), currentTree.getTotal());
+        }
+
+        Set<String> keys = new HashSet<>(baseline.keySet());
+        keys.addAll(current.keySet());
+        List<Delta> deltas = new ArrayList<>();
+        for (String key : keys) {
+            deltas.add(new Delta(key, baseline.getOrDefault(key, 0d), current.getOrDefault(key, 0d)));
+        }
+
+        System.out.println("Regressions (share of total " + (heap ? "size" : "self time") + "):");
+        printDeltas(deltas.stream()
+                .filter(d -> d.delta() > 0)
+                .sorted(Comparator.comparingDouble(Delta::delta).reversed()), limit);
+
+        System.out.println();
+        System.out.println("Improvements:");
+        printDeltas(deltas.stream()
+                .filter(d -> d.delta() < 0)
+                .sorted(Comparator.comparingDouble(Delta::delta)), limit);
+    }
+
+    private static void printDeltas(Stream<Delta> deltas, int limit) {
+        List<Delta> list = deltas.limit(limit).collect(Collectors.toList());
+        if (list.isEmpty()) {
+            System.out.println("  (none)");
+        }
+        for (Delta delta : list) {
+            System.out.println(String.format("  %+7.2f%%  (%.2f%% -> %.2f%%)  %s", delta.delta(), delta.baseline, delta.current, delta.key));
+        }
+    }
+
+    private static Map<String, Double> shares(Map<String, Double> values, double total) {
+        values.replaceAll((key, value) -> total == 0 ? 0 : value * 100d / total);
+        return values;
+    }
+
+    private static Path requireOutput(CliArguments arguments) throws CliArguments.ParseException {
+        String output = arguments.stringFlag("output");
+        if (output == null) {
+            throw new CliArguments.ParseException("--output is required");
+        }
+        return Paths.get(output);
+    }
+
+    private static boolean isHeapSummaries(List<Path> inputs, ProfileFilter filter) {
+        long heapSummaries = inputs.stream().filter(file -> ProfileReader.Type.of(file) == ProfileReader.Type.HEAP_SUMMARY).count();
+        if (heapSummaries == 0) {
+            return false;
+        }
+        if (heapSummaries != inputs.size()) {
+            throw new IllegalArgumentException("Can't mix heap summaries with profiles");
+        }
+        if (!filter.isEmpty()) {
+            throw new IllegalArgumentException("Heap summaries can't be filtered by thread or time");
+        }
+        return true;
+    }
+
+    /**
+     * Expands the input arguments - directories are replaced with the supported files they contain.
+     *
+     * @param args the arguments
+     * @return the input files
+     * @throws IOException if a directory can't be listed
+     * @throws CliArguments.ParseException if there are no inputs
+     */
+    private static List<Path> inputs(List<String> args) throws IOException, CliArguments.ParseException {
+        List<Path> inputs = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    files.filter(file -> Files.isRegularFile(file) && ProfileReader.Type.isSupported(file))
+                            .sorted()
+                            .forEach(inputs::add);
+                }
+            } else if (Files.isRegularFile(path)) {
+                inputs.add(path);
+            } else {
+                throw new IOException("No such file or directory: " + arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new CliArguments.ParseException("No input files");
+        }
+        return inputs;
+    }
+
+    private enum Unit {
+        MILLIS {
+            @Override
+            String format(double value) {
+                return String.format("%.1fms", value);
+            }
+        },
+        BYTES {
+            @Override
+            String format(double value) {
+                String[] units = {"B", "KB", "MB", "GB", "TB"};
+                int unit = 0;
+                while (Math.abs(value) >= 1024 && unit < units.length - 1) {
+                    value /= 1024;
+                    unit++;
+                }
+                return String.format("%.1f%s", value, units[unit]);
+            }
+        };
+
+        abstract String format(double value);
+
+        static Unit of(SamplerMetadata.SamplerMode mode) {
+            return mode == SamplerMetadata.SamplerMode.ALLOCATION ? BYTES : MILLIS;
+        }
+    }
+
+    private static final class Delta {
+        private final String key;
+        private final double baseline;
+        private final double current;
+
+        Delta(String key, double baseline, double current) {
+            this.key = key;
+            this.baseline = baseline;
+            this.current = current;
+        }
+
+        double delta() {
+            return this.current - this.baseline;
+        }
+    }
+
+}
@@ -44,14 +44,21 @@ import me.lucko.spark.common.command.tabcomplete.CompletionSupplier;
 import me.lucko.spark.common.command.tabcomplete.TabCompleter;
 import me.lucko.spark.common.monitor.cpu.CpuMonitor;
 import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
+import me.lucko.spark.common.monitor.memory.GcJournal;
+import me.lucko.spark.common.monitor.memory.MemoryPoolMonitor;
+import me.lucko.spark.common.monitor.memory.ThreadAllocationMonitor;
 import me.lucko.spark.common.monitor.net.NetworkMonitor;
 import me.lucko.spark.common.monitor.ping.PingStatistics;
 import me.lucko.spark.common.monitor.ping.PlayerPingProvider;
 import me.lucko.spark.common.monitor.tick.SparkTickStatistics;
+import me.lucko.spark.common.monitor.tick.StallWatchdog;
 import me.lucko.spark.common.monitor.tick.TickStatistics;
+import me.lucko.spark.common.platform.PlatformInfo;
 import me.lucko.spark.common.platform.PlatformStatisticsProvider;
 import me.lucko.spark.common.sampler.BackgroundSamplerManager;
 import me.lucko.spark.common.sampler.SamplerContainer;
+import me.lucko.spark.common.sampler.history.WindowHistory;
+import me.lucko.spark.common.sampler.node.FrameFolder;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.tick.TickReporter;
@@ -107,16 +114,22 @@ public class SparkPlatform {
     //TODO:Fix sockets
     //private final TrustedKeyStore trustedKeyStore;
     private final boolean disableResponseBroadcast;
+    private final FrameFolder frameFolder;
     private final List<CommandModule> commandModules;
     private final List<Command> commands;
     private final ReentrantLock commandExecuteLock = new ReentrantLock(true);
     private final ActivityLog activityLog;
+    private final WindowHistory windowHistory;
     private final SamplerContainer samplerContainer;
     private final BackgroundSamplerManager backgroundSamplerManager;
     private final TickHook tickHook;
     private final TickReporter tickReporter;
     private final TickStatistics tickStatistics;
+    private final StallWatchdog stallWatchdog;
     private final PingStatistics pingStatistics;
+    private final GcJournal gcJournal;
+    private final MemoryPoolMonitor memoryPoolMonitor;
+    private final ThreadAllocationMonitor threadAllocationMonitor;
     private final PlatformStatisticsProvider statisticsProvider;
     private Map<String, GarbageCollectorStatistics> startupGcStatistics = ImmutableMap.of();
     private long serverNormalOperationStartTime;
@@ -141,6 +154,12 @@ public class SparkPlatform {
 
         this.disableResponseBroadcast = this.configuration.getOrSaveBoolean("disableResponseBroadcast", false);
 
+        this.frameFolder = FrameFolder.parse(
+                this.configuration.getOrSaveStringList("frameFoldingRules", FrameFolder.DEFAULT_RULES),
+                this.configuration.getOrSaveBoolean("frameFoldingCompressRecursion", true),
+                error -> this.plugin.log(Level.WARNING, error)
+        );
+
         this.commandModules = ImmutableList.of(
                 new SamplerModule(),
                 new HealthModule(),
@@ -159,6 +178,11 @@ public class SparkPlatform {
         this.activityLog = new ActivityLog(plugin.getPluginDirectory().resolve("activity.json"));
         this.activityLog.load();
 
+        int historyDays = this.configuration.getOrSaveInteger("profilerHistoryDays", 7);
+        this.windowHistory = historyDays > 0
+                ? new WindowHistory(plugin.getPluginDirectory().resolve("history").resolve("windows.dat"), WindowHistory.capacityForDays(historyDays))
+                : null;
+
         this.samplerContainer = new SamplerContainer();
         this.backgroundSamplerManager = new BackgroundSamplerManager(this, this.configuration);
 
@@ -170,8 +194,23 @@ public class SparkPlatform {
         }
         this.tickStatistics = tickStatistics;
 
+        boolean stallWatchdog = this.configuration.getOrSaveBoolean("stallWatchdog", plugin.getPlatformInfo().getType() == PlatformInfo.Type.SERVER);
+        if (stallWatchdog && this.tickHook != null && this.tickStatistics instanceof SparkTickStatistics) {
+            this.stallWatchdog = new StallWatchdog(
+                    this,
+                    plugin.getPluginDirectory().resolve("stalls"),
+                    this.configuration.getOrSaveInteger("stallWatchdogBudgetMillis", 10_000),
+                    this.configuration.getOrSaveInteger("stallWatchdogReportsToKeep", 10)
+            );
+        } else {
+            this.stallWatchdog = null;
+        }
+
         PlayerPingProvider pingProvider = plugin.createPlayerPingProvider();
         this.pingStatistics = pingProvider != null ? new PingStatistics(pingProvider) : null;
+        this.gcJournal = new GcJournal(GcJournal.DEFAULT_CAPACITY);
+        this.memoryPoolMonitor = new MemoryPoolMonitor();
+        this.threadAllocationMonitor = new ThreadAllocationMonitor();
 
         this.statisticsProvider = new PlatformStatisticsProvider(this);
     }
@@ -183,6 +222,10 @@ public class SparkPlatform {
 
         if (this.tickHook != null && this.tickStatistics instanceof SparkTickStatistics) {
             this.tickHook.addCallback((TickHook.Callback) this.tickStatistics);
+            if (this.stallWatchdog != null) {
+                this.tickHook.addCallback(this.stallWatchdog);
+                this.stallWatchdog.start();
+            }
             this.tickHook.start();
         }
         if (this.tickReporter != null&& this.tickStatistics instanceof SparkTickStatistics) {
@@ -192,6 +235,8 @@ public class SparkPlatform {
         if (this.pingStatistics != null) {
             this.pingStatistics.start();
         }
+        this.memoryPoolMonitor.start();
+        this.threadAllocationMonitor.start();
         CpuMonitor.ensureMonitoring();
         NetworkMonitor.ensureMonitoring();
 
@@ -209,6 +254,9 @@ public class SparkPlatform {
     }
 
     public void disable() {
+        if (this.stallWatchdog != null) {
+            this.stallWatchdog.close();
+        }
         if (this.tickHook != null) {
             this.tickHook.close();
         }
@@ -218,12 +266,20 @@ public class SparkPlatform {
         if (this.pingStatistics != null) {
             this.pingStatistics.close();
         }
+        this.gcJournal.close();
+        this.memoryPoolMonitor.close();
+        this.threadAllocationMonitor.close();
 
         for (CommandModule module : this.commandModules) {
             module.close();
         }
 
         this.samplerContainer.close();
+        this.backgroundSamplerManager.close();
+
+        if (this.windowHistory != null) {
+            this.windowHistory.close();
+        }
 
         SparkApi.unregister();
 
@@ -242,6 +298,19 @@ public class SparkPlatform {
         return this.configuration;
     }
 
+    /**
+     * Gets the store of summaries for profiling windows which have been pruned.
+     *
+     * @return the window history, or null if disabled
+     */
+    public WindowHistory getWindowHistory() {
+        return this.windowHistory;
+    }
+
+    public FrameFolder getFrameFolder() {
+        return this.frameFolder;
+    }
+
     public String getViewerUrl() {
         return this.viewerUrl;
     }
@@ -306,6 +375,18 @@ public class SparkPlatform {
         return this.pingStatistics;
     }
 
+    public GcJournal getGcJournal() {
+        return this.gcJournal;
+    }
+
+    public MemoryPoolMonitor getMemoryPoolMonitor() {
+        return this.memoryPoolMonitor;
+    }
+
+    public ThreadAllocationMonitor getThreadAllocationMonitor() {
+        return this.threadAllocationMonitor;
+    }
+
     public Map<String, GarbageCollectorStatistics> getStartupGcStatistics() {
         return this.startupGcStatistics;
     }
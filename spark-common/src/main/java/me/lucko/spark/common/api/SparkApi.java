@@ -26,6 +26,7 @@ import me.lucko.spark.api.Spark;
 import me.lucko.spark.api.SparkProvider;
 import me.lucko.spark.api.gc.GarbageCollector;
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
+import me.lucko.spark.api.statistic.misc.TickTimeline;
 import me.lucko.spark.api.statistic.types.DoubleStatistic;
 import me.lucko.spark.api.statistic.types.GenericStatistic;
 import me.lucko.spark.common.SparkPlatform;
@@ -160,6 +161,15 @@ public class SparkApi implements Spark {
         };
     }
 
+    @Override
+    public @Nullable TickTimeline tickTimeline() {
+        TickStatistics stats = this.platform.getTickStatistics();
+        if (stats == null) {
+            return null;
+        }
+        return stats.durationTimeline();
+    }
+
     @Override
     public @NonNull Map<String, GarbageCollector> gc() {
         long serverUptime = System.currentTimeMillis() - this.platform.getServerNormalOperationStartTime();
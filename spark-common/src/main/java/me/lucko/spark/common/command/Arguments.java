@@ -23,10 +23,18 @@ package me.lucko.spark.common.command;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.SetMultimap;
 
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,6 +43,8 @@ import java.util.regex.Pattern;
  */
 public class Arguments {
     private static final Pattern FLAG_REGEX = Pattern.compile("^--(.+)$");
+    private static final Pattern DURATION_REGEX = Pattern.compile("^(?:(\\d+)d)?(?:(\\d+)h)?(?:(\\d+)m)?(?:(\\d+)s)?$");
+    private static final DateTimeFormatter TIME_OF_DAY_FORMAT = DateTimeFormatter.ofPattern("H:mm[:ss]");
 
     private final List<String> rawArgs;
     private final SetMultimap<String, String> parsedArgs;
@@ -111,6 +121,74 @@ public class Arguments {
         return -1; // undefined
     }
 
+    /**
+     * Parses a duration flag, in the form {@code 1d2h3m4s} (each unit is optional).
+     *
+     * @param key the flag
+     * @return the duration in milliseconds, or -1 if undefined
+     */
+    public long durationFlag(String key) {
+        Iterator<String> it = this.parsedArgs.get(key).iterator();
+        if (it.hasNext()) {
+            long duration = parseDuration(it.next());
+            if (duration == -1) {
+                throw new ParseException("Invalid input for '" + key + "' argument. Please specify a duration, e.g. 30s, 5m or 1h30m!");
+            }
+            return duration;
+        }
+        return -1; // undefined
+    }
+
+    /**
+     * Parses a point in time flag - either a duration before {@code now} (e.g. {@code 20m}),
+     * or a time of day (e.g. {@code 14:05}) in the last 24 hours.
+     *
+     * @param key the flag
+     * @param now the current time in milliseconds
+     * @return the time in milliseconds, or -1 if undefined
+     */
+    public long timeFlag(String key, long now) {
+        Iterator<String> it = this.parsedArgs.get(key).iterator();
+        if (!it.hasNext()) {
+            return -1; // undefined
+        }
+
+        String value = it.next();
+        long duration = parseDuration(value);
+        if (duration != -1) {
+            return now - duration;
+        }
+
+        try {
+            ZoneId zone = ZoneId.systemDefault();
+            ZonedDateTime nowTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(now), zone);
+            ZonedDateTime time = nowTime.with(LocalTime.parse(value, TIME_OF_DAY_FORMAT));
+            if (time.isAfter(nowTime)) {
+                time = time.minusDays(1);
+            }
+            return time.toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new ParseException("Invalid input for '" + key + "' argument. Please specify a time (e.g. 14:05) or how long ago (e.g. 20m)!");
+        }
+    }
+
+    private static long parseDuration(String value) {
+        Matcher matcher = DURATION_REGEX.matcher(value.toLowerCase(Locale.ROOT));
+        if (value.isEmpty() || !matcher.matches()) {
+            return -1;
+        }
+
+        TimeUnit[] units = {TimeUnit.DAYS, TimeUnit.HOURS, TimeUnit.MINUTES, TimeUnit.SECONDS};
+        long duration = 0;
+        for (int i = 0; i < units.length; i++) {
+            String group = matcher.group(i + 1);
+            if (group != null) {
+                duration += units[i].toMillis(Long.parseLong(group));
+            }
+        }
+        return duration;
+    }
+
     public Set<String> stringFlag(String key) {
         return this.parsedArgs.get(key);
     }
@@ -23,11 +23,16 @@ package me.lucko.spark.common.command.modules;
 import com.sun.management.GarbageCollectionNotificationInfo;
 
 import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.command.Arguments;
 import me.lucko.spark.common.command.Command;
 import me.lucko.spark.common.command.CommandModule;
 import me.lucko.spark.common.command.CommandResponseHandler;
+import me.lucko.spark.common.command.sender.CommandSender;
+import me.lucko.spark.common.command.tabcomplete.TabCompleter;
 import me.lucko.spark.common.monitor.memory.GarbageCollectionMonitor;
 import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
+import me.lucko.spark.common.monitor.memory.ThreadAllocationMonitor;
+import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.util.FormatUtil;
 
 import net.kyori.adventure.text.Component;
@@ -37,6 +42,7 @@ import java.text.DecimalFormat;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import static net.kyori.adventure.text.Component.empty;
@@ -151,6 +157,90 @@ public class GcMonitoringModule implements CommandModule {
                 })
                 .build()
         );
+
+        consumer.accept(Command.builder()
+                .aliases("allocrate", "allocationrate")
+                .argumentUsage("last", "duration")
+                .argumentUsage("limit", "number of threads")
+                .executor(GcMonitoringModule::allocationRate)
+                .tabCompleter((platform, sender, arguments) -> TabCompleter.completeForOpts(arguments, "--last", "--limit"))
+                .build()
+        );
+    }
+
+    private static void allocationRate(SparkPlatform platform, CommandSender sender, CommandResponseHandler resp, Arguments arguments) {
+        ThreadAllocationMonitor monitor = platform.getThreadAllocationMonitor();
+        if (!monitor.isSupported()) {
+            resp.replyPrefixed(text("Per-thread allocation counters are not supported by this JVM.", RED));
+            return;
+        }
+
+        long last = arguments.durationFlag("last");
+        if (last == -1) {
+            last = TimeUnit.MINUTES.toMillis(1);
+        }
+        int limit = arguments.intFlag("limit");
+        if (limit <= 0) {
+            limit = 10;
+        }
+
+        long now = System.currentTimeMillis();
+        List<ThreadAllocationMonitor.ThreadAllocation> rates = monitor.allocationRates(now - last, now);
+        if (rates.isEmpty()) {
+            resp.replyPrefixed(text("There is not enough data to show allocation rates yet. Please try again later."));
+            return;
+        }
+
+        List<Component> report = new LinkedList<>();
+        report.add(empty());
+        report.add(text()
+                .append(text(">", DARK_GRAY, BOLD))
+                .append(space())
+                .append(text("Allocation rates from last " + FormatUtil.formatSeconds(TimeUnit.MILLISECONDS.toSeconds(last)) + ":", GOLD))
+                .build()
+        );
+        report.add(text()
+                .content("    ")
+                .append(formatRate(rates.stream().mapToDouble(ThreadAllocationMonitor.ThreadAllocation::getRate).sum()))
+                .append(text(" total", GRAY))
+                .build()
+        );
+
+        report.add(empty());
+        report.add(text()
+                .content("    ")
+                .append(text("Thread pools:", GRAY))
+                .build()
+        );
+        ThreadAllocationMonitor.groupAllocationRates(rates, ThreadGrouper.BY_POOL).entrySet().stream()
+                .limit(limit)
+                .forEach(e -> report.add(text()
+                        .content("      ")
+                        .append(formatRate(e.getValue()))
+                        .append(text(" " + ThreadGrouper.BY_POOL.getLabel(e.getKey()), GRAY))
+                        .build()
+                ));
+
+        report.add(empty());
+        report.add(text()
+                .content("    ")
+                .append(text("Threads:", GRAY))
+                .build()
+        );
+        rates.stream()
+                .limit(limit)
+                .forEach(rate -> report.add(text()
+                        .content("      ")
+                        .append(formatRate(rate.getRate()))
+                        .append(text(" " + rate.getThreadName(), GRAY))
+                        .build()
+                ));
+
+        resp.reply(report);
+    }
+
+    private static Component formatRate(double bytesPerSecond) {
+        return text(FormatUtil.formatBytes((long) bytesPerSecond) + "/s", WHITE);
     }
 
     private static class ReportingGcMonitor extends GarbageCollectionMonitor implements GarbageCollectionMonitor.Listener {
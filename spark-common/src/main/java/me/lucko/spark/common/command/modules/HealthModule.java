@@ -29,6 +29,7 @@ import me.lucko.spark.common.command.sender.CommandSender;
 import me.lucko.spark.common.command.tabcomplete.TabCompleter;
 import me.lucko.spark.common.monitor.cpu.CpuMonitor;
 import me.lucko.spark.common.monitor.disk.DiskUsage;
+import me.lucko.spark.common.monitor.memory.MemoryPoolMonitor;
 import me.lucko.spark.common.monitor.net.Direction;
 import me.lucko.spark.common.monitor.net.NetworkInterfaceAverages;
 import me.lucko.spark.common.monitor.net.NetworkMonitor;
@@ -36,11 +37,13 @@ import me.lucko.spark.common.monitor.ping.PingStatistics;
 import me.lucko.spark.common.monitor.ping.PingSummary;
 import me.lucko.spark.common.monitor.tick.TickStatistics;
 import me.lucko.spark.common.util.FormatUtil;
+import me.lucko.spark.common.util.LogLinearHistogram;
 import me.lucko.spark.common.util.RollingAverage;
 import me.lucko.spark.common.util.StatisticFormatter;
 
 import net.kyori.adventure.text.Component;
 
+import java.lang.management.BufferPoolMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryPoolMXBean;
@@ -117,6 +120,19 @@ public class HealthModule implements CommandModule {
                         .build()
                 );
                 resp.replyPrefixed(empty());
+
+                LogLinearHistogram histogram1Min = tickStatistics.durationHistogram1Min();
+                LogLinearHistogram histogram5Min = tickStatistics.durationHistogram5Min();
+                if (histogram1Min != null && histogram5Min != null) {
+                    resp.replyPrefixed(text("Tick durations (50/90/99/99.9%ile/max ms) from last 1m, 5m:"));
+                    resp.replyPrefixed(text()
+                            .content(" ")
+                            .append(StatisticFormatter.formatTickDurationPercentiles(histogram1Min)).append(text(";  "))
+                            .append(StatisticFormatter.formatTickDurationPercentiles(histogram5Min))
+                            .build()
+                    );
+                    resp.replyPrefixed(empty());
+                }
             }
         }
 
@@ -201,6 +217,7 @@ public class HealthModule implements CommandModule {
 
         if (arguments.boolFlag("memory")) {
             addDetailedMemoryStats(report, memoryMXBean);
+            addMemoryPoolStats(report, platform.getMemoryPoolMonitor());
         }
 
         addNetworkStats(report, arguments.boolFlag("network"));
@@ -360,6 +377,90 @@ public class HealthModule implements CommandModule {
         }
     }
 
+    private static void addMemoryPoolStats(List<Component> report, MemoryPoolMonitor memoryPoolMonitor) {
+        if (memoryPoolMonitor.allocationRate(10) != -1) {
+            report.add(text()
+                    .append(text(">", DARK_GRAY, BOLD))
+                    .append(space())
+                    .append(text("Allocation & promotion rates from last 10s, 1m, 5m:", GOLD))
+                    .build()
+            );
+            report.add(text()
+                    .content("    ")
+                    .append(formatRate(memoryPoolMonitor.allocationRate(10))).append(text(", "))
+                    .append(formatRate(memoryPoolMonitor.allocationRate(60))).append(text(", "))
+                    .append(formatRate(memoryPoolMonitor.allocationRate(300)))
+                    .append(text("  (allocation)", DARK_GRAY))
+                    .build()
+            );
+            report.add(text()
+                    .content("    ")
+                    .append(formatRate(memoryPoolMonitor.promotionRate(10))).append(text(", "))
+                    .append(formatRate(memoryPoolMonitor.promotionRate(60))).append(text(", "))
+                    .append(formatRate(memoryPoolMonitor.promotionRate(300)))
+                    .append(text("  (promotion)", DARK_GRAY))
+                    .build()
+            );
+            report.add(empty());
+        }
+
+        for (MemoryPoolMXBean memoryPool : memoryPoolMonitor.getPools()) {
+            if (memoryPool.getType() != MemoryType.NON_HEAP) {
+                continue;
+            }
+
+            MemoryUsage usage = memoryPool.getUsage();
+            if (usage == null) {
+                continue;
+            }
+
+            report.add(text()
+                    .append(text(">", DARK_GRAY, BOLD))
+                    .append(space())
+                    .append(text(memoryPool.getName() + " pool usage:", GOLD))
+                    .build()
+            );
+            report.add(text()
+                    .content("    ")
+                    .append(text(FormatUtil.formatBytes(usage.getUsed()), WHITE))
+                    .append(space())
+                    .append(text("/", GRAY))
+                    .append(space())
+                    .append(text(FormatUtil.formatBytes(usage.getCommitted()), WHITE))
+                    .append(text("  (committed)", DARK_GRAY))
+                    .build()
+            );
+            report.add(empty());
+        }
+
+        for (BufferPoolMXBean bufferPool : memoryPoolMonitor.getBufferPools()) {
+            report.add(text()
+                    .append(text(">", DARK_GRAY, BOLD))
+                    .append(space())
+                    .append(text(bufferPool.getName() + " buffer pool usage:", GOLD))
+                    .build()
+            );
+            report.add(text()
+                    .content("    ")
+                    .append(text(FormatUtil.formatBytes(bufferPool.getMemoryUsed()), WHITE))
+                    .append(space())
+                    .append(text("/", GRAY))
+                    .append(space())
+                    .append(text(FormatUtil.formatBytes(bufferPool.getTotalCapacity()), WHITE))
+                    .append(text("   "))
+                    .append(text("(", GRAY))
+                    .append(text(bufferPool.getCount() + " buffers", GREEN))
+                    .append(text(")", GRAY))
+                    .build()
+            );
+            report.add(empty());
+        }
+    }
+
+    private static Component formatRate(double bytesPerSecond) {
+        return text(FormatUtil.formatBytes(Math.max(0, (long) bytesPerSecond)) + "/s", WHITE);
+    }
+
     private static void addNetworkStats(List<Component> report, boolean detailed) {
         List<Component> averagesReport = new LinkedList<>();
 
@@ -40,9 +40,22 @@ import me.lucko.spark.common.sampler.SamplerBuilder;
 import me.lucko.spark.common.sampler.SamplerMode;
 import me.lucko.spark.common.sampler.ThreadDumper;
 import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.async.AsyncProfilerAccess;
 import me.lucko.spark.common.sampler.async.AsyncSampler;
+import me.lucko.spark.common.sampler.columnar.ColumnarProfile;
+import me.lucko.spark.common.sampler.columnar.ColumnarProfiles;
+import me.lucko.spark.common.sampler.compare.ProfileComparison;
+import me.lucko.spark.common.sampler.history.WindowHistory;
+import me.lucko.spark.common.sampler.history.WindowSummaries;
 import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.node.SelfTimeCollector;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.pprof.PprofWriter;
+import me.lucko.spark.common.sampler.recording.FlightRecorder;
+import me.lucko.spark.common.sampler.recording.FlightRecording;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
+import me.lucko.spark.common.sampler.source.SourceCostSummary;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.util.FormatUtil;
 import me.lucko.spark.common.util.MediaTypes;
@@ -51,15 +64,29 @@ import me.lucko.spark.proto.SparkSamplerProtos;
 
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.format.TextColor;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
@@ -70,6 +97,7 @@ import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.format.NamedTextColor.DARK_GRAY;
 import static net.kyori.adventure.text.format.NamedTextColor.GOLD;
 import static net.kyori.adventure.text.format.NamedTextColor.GRAY;
+import static net.kyori.adventure.text.format.NamedTextColor.GREEN;
 import static net.kyori.adventure.text.format.NamedTextColor.RED;
 import static net.kyori.adventure.text.format.NamedTextColor.WHITE;
 
@@ -81,6 +109,10 @@ public class SamplerModule implements CommandModule {
                 .aliases("profiler", "sampler")
                 .allowSubCommand(true)
                 .argumentUsage("info", "", null)
+                .argumentUsage("info", "mods", null)
+                .argumentUsage("top", "limit", "number of methods")
+                .argumentUsage("history", "method", "method name")
+                .argumentUsage("history", "days", "number of days")
                 //.argumentUsage("open", "", null)//TODO:Fix sockets
                 .argumentUsage("start", "timeout", "timeout seconds")
                 .argumentUsage("start", "thread *", null)
@@ -88,7 +120,21 @@ public class SamplerModule implements CommandModule {
                 .argumentUsage("start", "only-ticks-over", "tick length millis")
                 .argumentUsage("start", "interval", "interval millis")
                 .argumentUsage("start", "alloc", null)
+                .argumentUsage("start", "no-folding", null)
+                .argumentUsage("start", "exclude-gc-pauses", null)
                 .argumentUsage("stop", "", null)
+                .argumentUsage("upload", "keep-running", null)
+                .argumentUsage("upload", "format", "proto|columnar|pprof")
+                .argumentUsage("upload", "last", "duration")
+                .argumentUsage("upload", "from", "time")
+                .argumentUsage("upload", "to", "time")
+                .argumentUsage("recording", "last", "duration")
+                .argumentUsage("recording", "from", "time")
+                .argumentUsage("recording", "to", "time")
+                .argumentUsage("compare", "baseline", "file")
+                .argumentUsage("compare", "current", "file")
+                .argumentUsage("compare", "limit", "number of methods")
+                .argumentUsage("compare", "separate-parent-calls", null)
                 .argumentUsage("cancel", "", null)
                 .executor(this::profiler)
                 .tabCompleter((platform, sender, arguments) -> {
@@ -96,20 +142,40 @@ public class SamplerModule implements CommandModule {
 
                     if (arguments.size() > 0) {
                         String subCommand = arguments.get(0);
+                        if (subCommand.equals("info")) {
+                            opts = new ArrayList<>(Collections.singletonList("--mods"));
+                            opts.removeAll(arguments);
+                        }
+                        if (subCommand.equals("top")) {
+                            opts = new ArrayList<>(Collections.singletonList("--limit"));
+                            opts.removeAll(arguments);
+                        }
+                        if (subCommand.equals("history")) {
+                            opts = new ArrayList<>(Arrays.asList("--method", "--days"));
+                            opts.removeAll(arguments);
+                        }
                         if (subCommand.equals("stop") || subCommand.equals("upload")) {
-                            opts = new ArrayList<>(Arrays.asList("--comment", "--save-to-file"));
+                            opts = new ArrayList<>(Arrays.asList("--comment", "--save-to-file", "--format", "--keep-running", "--last", "--from", "--to"));
+                            opts.removeAll(arguments);
+                        }
+                        if (subCommand.equals("recording")) {
+                            opts = new ArrayList<>(Arrays.asList("--comment", "--save-to-file", "--format", "--last", "--from", "--to"));
+                            opts.removeAll(arguments);
+                        }
+                        if (subCommand.equals("compare")) {
+                            opts = new ArrayList<>(Arrays.asList("--baseline", "--current", "--limit", "--separate-parent-calls"));
                             opts.removeAll(arguments);
                         }
                         if (subCommand.equals("start")) {
                             opts = new ArrayList<>(Arrays.asList("--timeout", "--regex", "--combine-all",
-                                    "--not-combined", "--interval", "--only-ticks-over", "--force-java-sampler", "--alloc", "--alloc-live-only"));
+                                    "--not-combined", "--interval", "--only-ticks-over", "--force-java-sampler", "--alloc", "--alloc-live-only", "--no-folding", "--exclude-gc-pauses"));
                             opts.removeAll(arguments);
                             opts.add("--thread"); // allowed multiple times
                         }
                     }
 
                     return TabCompleter.create()
-                            .at(0, CompletionSupplier.startsWith(Arrays.asList("info", "start", /*"open",*/ "stop", "cancel")))
+                            .at(0, CompletionSupplier.startsWith(Arrays.asList("info", "top", "history", "recording", "compare", "start", /*"open",*/ "stop", "cancel")))
                             .from(1, CompletionSupplier.startsWith(opts))
                             .complete(arguments);
                 })
@@ -121,7 +187,31 @@ public class SamplerModule implements CommandModule {
         String subCommand = arguments.subCommand() == null ? "" : arguments.subCommand();
 
         if (subCommand.equals("info") || arguments.boolFlag("info")) {
-            profilerInfo(platform, resp);
+            if (arguments.boolFlag("mods")) {
+                profilerSourceCosts(platform, resp);
+            } else {
+                profilerInfo(platform, resp);
+            }
+            return;
+        }
+
+        if (subCommand.equals("top") || arguments.boolFlag("top")) {
+            profilerTop(platform, resp, arguments);
+            return;
+        }
+
+        if (subCommand.equals("history") || arguments.boolFlag("history")) {
+            profilerHistory(platform, resp, arguments);
+            return;
+        }
+
+        if (subCommand.equals("recording") || arguments.boolFlag("recording")) {
+            profilerRecording(platform, resp, arguments);
+            return;
+        }
+
+        if (subCommand.equals("compare") || arguments.boolFlag("compare")) {
+            profilerCompare(platform, resp, arguments);
             return;
         }
 
@@ -144,7 +234,11 @@ public class SamplerModule implements CommandModule {
         }
 
         if (subCommand.equals("stop") || subCommand.equals("upload") || arguments.boolFlag("stop") || arguments.boolFlag("upload")) {
-            profilerStop(platform, sender, resp, arguments);
+            if (arguments.boolFlag("keep-running")) {
+                profilerSnapshot(platform, resp, arguments);
+            } else {
+                profilerStop(platform, sender, resp, arguments);
+            }
             return;
         }
 
@@ -198,6 +292,8 @@ public class SamplerModule implements CommandModule {
         boolean ignoreSleeping = arguments.boolFlag("ignore-sleeping");
         boolean ignoreNative = arguments.boolFlag("ignore-native");
         boolean forceJavaSampler = arguments.boolFlag("force-java-sampler");
+        boolean frameFolding = !arguments.boolFlag("no-folding");
+        boolean excludeGcPauses = arguments.boolFlag("exclude-gc-pauses");
 
         Set<String> threads = arguments.stringFlag("thread");
         ThreadDumper threadDumper;
@@ -248,6 +344,8 @@ public class SamplerModule implements CommandModule {
         builder.ignoreNative(ignoreNative);
         builder.forceJavaSampler(forceJavaSampler);
         builder.allocLiveOnly(allocLiveOnly);
+        builder.frameFolding(frameFolding);
+        builder.excludeGcPauses(excludeGcPauses);
         if (ticksOver != -1) {
             builder.ticksOver(ticksOver, tickHook);
         }
@@ -296,10 +394,11 @@ public class SamplerModule implements CommandModule {
         // await the result
         if (timeoutSeconds != -1) {
             Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
-            boolean saveToFile = arguments.boolFlag("save-to-file");
+            SaveFormat saveFormat = getSaveFormat(arguments);
+            boolean saveToFile = arguments.boolFlag("save-to-file") || saveFormat != SaveFormat.PROTO;
             future.thenAcceptAsync(s -> {
                 resp.broadcastPrefixed(text("The active profiler has completed! Uploading results..."));
-                handleUpload(platform, resp, s, exportProps, saveToFile);
+                handleUpload(platform, resp, s, exportProps, saveToFile, saveFormat);
             });
         }
     }
@@ -344,6 +443,267 @@ public class SamplerModule implements CommandModule {
         }
     }
 
+    private void profilerSourceCosts(SparkPlatform platform, CommandResponseHandler resp) {
+        Sampler sampler = platform.getSamplerContainer().getActiveSampler();
+        if (sampler == null) {
+            resp.replyPrefixed(text("There isn't an active profiler running."));
+            return;
+        }
+
+        List<ThreadNode> data = sampler.getCurrentData();
+        ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(sampler.getMode().valueTransformer(), data);
+        ClassSourceLookup.Visitor visitor = ClassSourceLookup.createVisitor(ClassSourceLookup.create(platform));
+        SourceCostSummary summary = SourceCostSummary.compute(data, timeEncoder, visitor);
+
+        long totalTime = summary.getTotalTime();
+        if (summary.isEmpty() || totalTime == 0) {
+            resp.replyPrefixed(text("No samples have been attributed to any mods yet."));
+            return;
+        }
+
+        resp.replyPrefixed(text()
+                .append(text("Top mods by ", GOLD))
+                .append(text(sampler.getMode() == SamplerMode.ALLOCATION ? "allocated bytes" : "sampled time", GOLD))
+                .append(text(" (attributed / in own code):", GOLD))
+                .build()
+        );
+
+        List<SourceCostSummary.Cost> costs = summary.getRankedCosts();
+        for (SourceCostSummary.Cost cost : costs.subList(0, Math.min(10, costs.size()))) {
+            resp.replyPrefixed(text()
+                    .content("  ")
+                    .append(text(formatShare(cost.getAttributedTime(), totalTime), WHITE))
+                    .append(text(" / ", DARK_GRAY))
+                    .append(text(formatShare(cost.getSelfTime(), totalTime), GRAY))
+                    .append(space())
+                    .append(text(cost.getSource(), GOLD))
+                    .build()
+            );
+        }
+    }
+
+    private void profilerTop(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+        Sampler sampler = platform.getSamplerContainer().getActiveSampler();
+        if (sampler == null) {
+            resp.replyPrefixed(text("There isn't an active profiler running."));
+            return;
+        }
+
+        int limit = arguments.intFlag("limit");
+        if (limit <= 0) {
+            limit = 10;
+        }
+
+        SelfTimeCollector collector = SelfTimeCollector.collect(sampler.getCurrentData());
+        long totalTime = collector.getTotalTime();
+        List<SelfTimeCollector.HotMethod> methods = collector.getHottestMethods(limit);
+        if (methods.isEmpty() || totalTime == 0) {
+            resp.replyPrefixed(text("No samples have been collected yet."));
+            return;
+        }
+
+        resp.replyPrefixed(text("Hottest methods by self " + (sampler.getMode() == SamplerMode.ALLOCATION ? "allocations" : "time") + ":", GOLD));
+        for (SelfTimeCollector.HotMethod method : methods) {
+            resp.replyPrefixed(text()
+                    .content("  ")
+                    .append(text(formatShare(method.getSelfTime(), totalTime), WHITE))
+                    .append(space())
+                    .append(text(method.getClassName() + "." + method.getMethodName() + "()", GOLD))
+                    .build()
+            );
+
+            // show the caller responsible for most of the time
+            method.buildCallers(1).stream()
+                    .max(Comparator.comparingLong(SelfTimeCollector.CallerNode::getTime))
+                    .ifPresent(caller -> resp.replyPrefixed(text()
+                            .content("      ")
+                            .append(text("called by ", DARK_GRAY))
+                            .append(text(caller.getClassName() + "." + caller.getMethodName() + "()", GRAY))
+                            .append(text(" (" + formatShare(caller.getTime(), method.getSelfTime()) + ")", DARK_GRAY))
+                            .build()
+                    ));
+        }
+    }
+
+    private static String formatShare(long value, long total) {
+        return String.format("%.1f%%", (value * 100d) / total);
+    }
+
+    private static String formatShare(double value, double total) {
+        return String.format("%.1f%%", total == 0 ? 0 : (value * 100d) / total);
+    }
+
+    private void profilerHistory(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+        WindowHistory history = platform.getWindowHistory();
+        if (history == null) {
+            resp.replyPrefixed(text("Profiler history is disabled. (set 'profilerHistoryDays' in the config to enable it)"));
+            return;
+        }
+
+        int days = arguments.intFlag("days");
+        if (days <= 0) {
+            days = 7;
+        }
+        long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+
+        List<SparkSamplerProtos.WindowSummary> summaries = new ArrayList<>();
+        try {
+            summaries.addAll(history.read());
+        } catch (IOException e) {
+            resp.replyPrefixed(text("An error occurred whilst reading the profiler history.", RED));
+            e.printStackTrace();
+            return;
+        }
+
+        // include the windows which haven't been pruned from the active profiler yet
+        Sampler sampler = platform.getSamplerContainer().getActiveSampler();
+        if (sampler != null && sampler.getMode() == SamplerMode.EXECUTION) {
+            summaries.addAll(sampler.summariseCompletedWindows());
+        }
+
+        summaries.removeIf(summary -> summary.getEndTime() <= since);
+        if (summaries.isEmpty()) {
+            resp.replyPrefixed(text("No profiler history has been recorded yet."));
+            return;
+        }
+
+        String method = Iterables.getFirst(arguments.stringFlag("method"), null);
+        if (method == null) {
+            profilerHistoryTop(resp, summaries, days);
+        } else {
+            profilerHistoryMethod(resp, summaries, method, days);
+        }
+    }
+
+    private void profilerHistoryTop(CommandResponseHandler resp, List<SparkSamplerProtos.WindowSummary> summaries, int days) {
+        double totalTime = 0;
+        Map<String, Double> methods = new HashMap<>();
+        Map<String, Double> sources = new HashMap<>();
+        for (SparkSamplerProtos.WindowSummary summary : summaries) {
+            totalTime += summary.getTotalTime();
+            for (SparkSamplerProtos.WindowSummary.Method m : summary.getMethodsList()) {
+                methods.merge(m.getClassName() + "." + m.getMethodName() + "()", m.getSelfTime(), Double::sum);
+            }
+            for (SparkSamplerProtos.WindowSummary.Source source : summary.getSourcesList()) {
+                sources.merge(source.getName(), source.getAttributedTime(), Double::sum);
+            }
+        }
+
+        resp.replyPrefixed(text("Hottest methods over the last " + days + " days (" + summaries.size() + " windows):", GOLD));
+        for (Map.Entry<String, Double> entry : topEntries(methods, 10)) {
+            resp.replyPrefixed(text()
+                    .content("  ")
+                    .append(text(formatShare(entry.getValue(), totalTime), WHITE))
+                    .append(space())
+                    .append(text(entry.getKey(), GOLD))
+                    .build()
+            );
+        }
+
+        if (!sources.isEmpty()) {
+            resp.replyPrefixed(text("Top mods:", GOLD));
+            for (Map.Entry<String, Double> entry : topEntries(sources, 5)) {
+                resp.replyPrefixed(text()
+                        .content("  ")
+                        .append(text(formatShare(entry.getValue(), totalTime), WHITE))
+                        .append(space())
+                        .append(text(entry.getKey(), GOLD))
+                        .build()
+                );
+            }
+        }
+        resp.replyPrefixed(text("Use '--method <name>' to chart the cost of a method over time.", GRAY));
+    }
+
+    private void profilerHistoryMethod(CommandResponseHandler resp, List<SparkSamplerProtos.WindowSummary> summaries, String method, int days) {
+        // accumulate the share of each hour which was spent in the method
+        ZoneId zone = ZoneId.systemDefault();
+        NavigableMap<LocalDate, double[][]> hours = new TreeMap<>(); // day -> hour -> {method time, total time}
+        double methodTime = 0;
+        double totalTime = 0;
+        for (SparkSamplerProtos.WindowSummary summary : summaries) {
+            double time = 0;
+            for (SparkSamplerProtos.WindowSummary.Method m : summary.getMethodsList()) {
+                if (matchesMethod(method, m.getClassName(), m.getMethodName())) {
+                    time += m.getSelfTime();
+                }
+            }
+            methodTime += time;
+            totalTime += summary.getTotalTime();
+
+            ZonedDateTime start = Instant.ofEpochMilli(summary.getStartTime()).atZone(zone);
+            double[] hour = hours.computeIfAbsent(start.toLocalDate(), d -> new double[24][2])[start.getHour()];
+            hour[0] += time;
+            hour[1] += summary.getTotalTime();
+        }
+
+        if (methodTime == 0) {
+            resp.replyPrefixed(text("No time has been recorded for '" + method + "' over the last " + days + " days."));
+            return;
+        }
+
+        double peak = 0;
+        for (double[][] day : hours.values()) {
+            for (double[] hour : day) {
+                if (hour[1] != 0) {
+                    peak = Math.max(peak, hour[0] / hour[1]);
+                }
+            }
+        }
+
+        resp.replyPrefixed(text()
+                .append(text("Cost of ", GOLD))
+                .append(text(method, WHITE))
+                .append(text(" over the last " + days + " days:", GOLD))
+                .build()
+        );
+        resp.replyPrefixed(text()
+                .content("  ")
+                .append(text(formatShare(methodTime, totalTime), WHITE))
+                .append(text(" of sampled time, peaking at ", GRAY))
+                .append(text(formatShare(peak, 1), WHITE))
+                .append(text(" in a single hour", GRAY))
+                .build()
+        );
+
+        DateTimeFormatter dayFormat = DateTimeFormatter.ofPattern("EEE dd MMM", Locale.ROOT);
+        for (Map.Entry<LocalDate, double[][]> day : hours.entrySet()) {
+            StringBuilder chart = new StringBuilder();
+            double dayMethodTime = 0;
+            double dayTotalTime = 0;
+            for (double[] hour : day.getValue()) {
+                chart.append(hour[1] == 0 ? ' ' : SPARKLINE[(int) Math.round((hour[0] / hour[1]) / peak * (SPARKLINE.length - 1))]);
+                dayMethodTime += hour[0];
+                dayTotalTime += hour[1];
+            }
+
+            resp.replyPrefixed(text()
+                    .content("  ")
+                    .append(text(day.getKey().format(dayFormat), GRAY))
+                    .append(space())
+                    .append(text(chart.toString(), GOLD))
+                    .append(space())
+                    .append(text(formatShare(dayMethodTime, dayTotalTime), WHITE))
+                    .build()
+            );
+        }
+        resp.replyPrefixed(text("(each bar is one hour - windows where the method wasn't among the " + WindowSummaries.METHOD_LIMIT + " hottest count as zero)", DARK_GRAY));
+    }
+
+    private static final char[] SPARKLINE = {'\u2581', '\u2582', '\u2583', '\u2584', '\u2585', '\u2586', '\u2587', '\u2588'};
+
+    private static boolean matchesMethod(String query, String className, String methodName) {
+        String fullName = className + "." + methodName;
+        return fullName.equals(query) || fullName.endsWith("." + query) || fullName.endsWith("$" + query) ||
+                className.equals(query) || className.endsWith("." + query) || className.endsWith("$" + query);
+    }
+
+    private static List<Map.Entry<String, Double>> topEntries(Map<String, Double> map, int limit) {
+        List<Map.Entry<String, Double>> list = new ArrayList<>(map.entrySet());
+        list.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        return list.size() > limit ? list.subList(0, limit) : list;
+    }
+
     //TODO:Fix sockets
 /*
     private void profilerOpen(SparkPlatform platform, CommandSender sender, CommandResponseHandler resp, Arguments arguments) {
@@ -406,18 +766,21 @@ public class SamplerModule implements CommandModule {
         if (sampler == null) {
             resp.replyPrefixed(text("There isn't an active profiler running."));
         } else {
+            // parse the export options first, so the profiler keeps running if they are invalid
+            Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
+            SaveFormat saveFormat = getSaveFormat(arguments);
+
             platform.getSamplerContainer().unsetActiveSampler(sampler);
             sampler.stop(false);
 
-            boolean saveToFile = arguments.boolFlag("save-to-file");
+            boolean saveToFile = arguments.boolFlag("save-to-file") || saveFormat != SaveFormat.PROTO;
             if (saveToFile) {
                 resp.broadcastPrefixed(text("Stopping the profiler & saving results, please wait..."));
             } else {
                 resp.broadcastPrefixed(text("Stopping the profiler & uploading results, please wait..."));
             }
 
-            Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
-            handleUpload(platform, resp, sampler, exportProps, saveToFile);
+            handleUpload(platform, resp, sampler, exportProps, saveToFile, saveFormat);
 
             // if the previous sampler was running in the background, create a new one
             if (platform.getBackgroundSamplerManager().restartBackgroundSampler()) {
@@ -430,9 +793,182 @@ public class SamplerModule implements CommandModule {
         }
     }
 
-    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, Sampler.ExportProps exportProps, boolean saveToFileFlag) {
+    private void profilerSnapshot(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+        Sampler sampler = platform.getSamplerContainer().getActiveSampler();
+
+        if (sampler == null) {
+            resp.replyPrefixed(text("There isn't an active profiler running."));
+        } else {
+            Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments).snapshot(true);
+            SaveFormat saveFormat = getSaveFormat(arguments);
+
+            boolean saveToFile = arguments.boolFlag("save-to-file") || saveFormat != SaveFormat.PROTO;
+            if (saveToFile) {
+                resp.broadcastPrefixed(text("Saving a snapshot of the profiler results, please wait..."));
+            } else {
+                resp.broadcastPrefixed(text("Uploading a snapshot of the profiler results, please wait..."));
+            }
+
+            handleUpload(platform, resp, sampler, exportProps, saveToFile, saveFormat);
+        }
+    }
+
+    private void profilerRecording(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+        FlightRecorder recorder = platform.getBackgroundSamplerManager().getFlightRecorder();
+        if (recorder == null) {
+            resp.replyPrefixed(text("The flight recorder is not enabled.", RED));
+            return;
+        }
+
+        Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments);
+        if (!exportProps.hasTimeRange()) {
+            resp.replyPrefixed(text("Please specify the time range to export using '--last', '--from' and/or '--to'.", RED));
+            return;
+        }
+        SaveFormat saveFormat = getSaveFormat(arguments);
+
+        boolean saveToFile = arguments.boolFlag("save-to-file") || saveFormat != SaveFormat.PROTO;
+        if (saveToFile) {
+            resp.broadcastPrefixed(text("Saving the flight recording, please wait..."));
+        } else {
+            resp.broadcastPrefixed(text("Uploading the flight recording, please wait..."));
+        }
+
+        FlightRecording recording;
+        try {
+            recording = FlightRecording.read(recorder.getDirectory(), exportProps.from(), exportProps.to());
+        } catch (IOException e) {
+            resp.replyPrefixed(text("An error occurred whilst reading the flight recording.", RED));
+            e.printStackTrace();
+            return;
+        }
+
+        if (recording.isEmpty()) {
+            resp.replyPrefixed(text("The flight recording has no data for the given time range.", RED));
+            return;
+        }
+
+        // the recording was taken by the background profiler, which is still the active sampler
+        uploadOrSave(platform, resp, platform.getSamplerContainer().getActiveSampler(), recording.toProto(platform, exportProps), "Flight recording", saveToFile, saveFormat);
+    }
+
+    private void profilerCompare(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
+        String baselineFile = Iterables.getFirst(arguments.stringFlag("baseline"), null);
+        if (baselineFile == null) {
+            resp.replyPrefixed(text("Please specify the baseline profile to compare against using '--baseline <file>'.", RED));
+            return;
+        }
+
+        int limit = arguments.intFlag("limit");
+        if (limit <= 0) {
+            limit = 5;
+        }
+
+        Sampler.ExportProps exportProps = getExportProps(platform, resp, arguments).snapshot(true);
+
+        SparkSamplerProtos.SamplerData baseline;
+        SparkSamplerProtos.SamplerData current;
+        try {
+            baseline = ProfileComparison.load(resolveProfileFile(platform, baselineFile));
+
+            String currentFile = Iterables.getFirst(arguments.stringFlag("current"), null);
+            if (currentFile != null) {
+                current = ProfileComparison.load(resolveProfileFile(platform, currentFile));
+            } else {
+                Sampler sampler = platform.getSamplerContainer().getActiveSampler();
+                if (sampler == null) {
+                    resp.replyPrefixed(text("There isn't an active profiler running - specify a profile to compare using '--current <file>'.", RED));
+                    return;
+                }
+                current = sampler.toProto(platform, exportProps);
+                if (current.getTimeWindowsCount() == 0) {
+                    resp.replyPrefixed(text("The profiler hasn't completed a time window yet - try again in a minute.", RED));
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            resp.replyPrefixed(text("Unable to read profile: " + e.getMessage(), RED));
+            return;
+        }
+
+        ProfileComparison comparison;
+        try {
+            comparison = ProfileComparison.compare(baseline, current, exportProps.mergeMode().get());
+        } catch (IllegalArgumentException e) {
+            resp.replyPrefixed(text(e.getMessage(), RED));
+            return;
+        }
+
+        resp.replyPrefixed(text()
+                .append(text("Compared with the baseline, normalised by ", GOLD))
+                .append(text(comparison.getNormalisation() == ProfileComparison.Normalisation.TICKS ? "tick count" : "total time", GOLD))
+                .append(text(" (" + comparison.format(comparison.getBaselineTotal(), false) + " -> " + comparison.format(comparison.getCurrentTotal(), false) + ")", GRAY))
+                .build()
+        );
+
+        List<ProfileComparison.Method> regressions = comparison.getRegressions(limit);
+        if (!regressions.isEmpty()) {
+            resp.replyPrefixed(text("Regressions (self time):", GOLD));
+            for (ProfileComparison.Method method : regressions) {
+                resp.replyPrefixed(formatComparedMethod(comparison, method, RED));
+            }
+        }
+
+        List<ProfileComparison.Method> improvements = comparison.getImprovements(limit);
+        if (!improvements.isEmpty()) {
+            resp.replyPrefixed(text("Improvements (self time):", GOLD));
+            for (ProfileComparison.Method method : improvements) {
+                resp.replyPrefixed(formatComparedMethod(comparison, method, GREEN));
+            }
+        }
+
+        Path file = platform.resolveSaveFile("compare", "txt");
+        try {
+            comparison.writeTree(file, 0.001);
+            resp.replyPrefixed(text("The full diff tree has been written to: " + file, GRAY));
+        } catch (IOException e) {
+            resp.replyPrefixed(text("An error occurred whilst saving the diff tree.", RED));
+            e.printStackTrace();
+        }
+    }
+
+    private static Component formatComparedMethod(ProfileComparison comparison, ProfileComparison.Method method, TextColor color) {
+        return text()
+                .content("  ")
+                .append(text(comparison.format(method.getDelta(), true), color))
+                .append(space())
+                .append(text(method.getClassName() + "." + method.getMethodName() + "()", WHITE))
+                .append(text(" (" + comparison.format(method.getBaselineSelf(), false) + " -> " + comparison.format(method.getCurrentSelf(), false) + ")", DARK_GRAY))
+                .build();
+    }
+
+    private static Path resolveProfileFile(SparkPlatform platform, String name) throws IOException {
+        Path file = Paths.get(name);
+        if (!file.isAbsolute()) {
+            file = platform.getPlugin().getPluginDirectory().resolve("data").resolve(name);
+        }
+        if (!Files.isRegularFile(file)) {
+            throw new NoSuchFileException(file.toString());
+        }
+        return file;
+    }
+
+    private void handleUpload(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, Sampler.ExportProps exportProps, boolean saveToFileFlag, SaveFormat saveFormat) {
         SparkSamplerProtos.SamplerData output = sampler.toProto(platform, exportProps);
 
+        if (exportProps.snapshot() && output.getTimeWindowsCount() == 0 && !exportProps.hasTimeRange()) {
+            resp.replyPrefixed(text("The profiler hasn't completed a time window yet - try again in a minute.", RED));
+            return;
+        }
+        if (exportProps.hasTimeRange() && output.getThreadsCount() == 0) {
+            resp.replyPrefixed(text("The profiler has no data for the given time range.", RED));
+            return;
+        }
+        String result = exportProps.snapshot() ? "Profiler snapshot" : "Profiler stopped &";
+        uploadOrSave(platform, resp, sampler, output, result, saveToFileFlag, saveFormat);
+    }
+
+    private void uploadOrSave(SparkPlatform platform, CommandResponseHandler resp, Sampler sampler, SparkSamplerProtos.SamplerData output, String result, boolean saveToFileFlag, SaveFormat saveFormat) {
         boolean saveToFile = false;
         if (saveToFileFlag) {
             saveToFile = true;
@@ -441,7 +977,7 @@ public class SamplerModule implements CommandModule {
                 String key = platform.getBytebinClient().postContent(output, MediaTypes.SPARK_SAMPLER_MEDIA_TYPE).key();
                 String url = platform.getViewerUrl() + key;
 
-                resp.broadcastPrefixed(text("Profiler stopped & upload complete!", GOLD));
+                resp.broadcastPrefixed(text(result + " upload complete!", GOLD));
                 resp.broadcast(text()
                         .content(url)
                         .color(GRAY)
@@ -458,11 +994,11 @@ public class SamplerModule implements CommandModule {
         }
 
         if (saveToFile) {
-            Path file = platform.resolveSaveFile("profile", "sparkprofile");
+            Path file = platform.resolveSaveFile("profile", saveFormat.extension);
             try {
-                Files.write(file, output.toByteArray());
+                saveFormat.write(output, file, getSampleType(platform, sampler, output));
 
-                resp.broadcastPrefixed(text("Profiler stopped & save complete!", GOLD));
+                resp.broadcastPrefixed(text(result + " save complete!", GOLD));
                 resp.broadcastPrefixed(text("Data has been written to: " + file));
                 resp.broadcastPrefixed(text("You can view the profile file using the web app @ " + platform.getViewerUrl(), GRAY));
 
@@ -483,10 +1019,32 @@ public class SamplerModule implements CommandModule {
      * @param prefix save file prefix
      */
     public static void handleManualSaveFile(SparkPlatform platform, Sampler sampler, Sampler.ExportProps exportProps, String prefix) {
+        handleManualSaveFile(platform, sampler, exportProps, prefix, null);
+    }
+
+    /**
+     * Manually save a sample with a given prefix, in the given format
+     *
+     * @param platform active platform
+     * @param sampler target sampler
+     * @param exportProps sampler export properties
+     * @param prefix save file prefix
+     * @param format the save format (proto, columnar or pprof), or null for proto
+     */
+    public static void handleManualSaveFile(SparkPlatform platform, Sampler sampler, Sampler.ExportProps exportProps, String prefix, String format) {
+        SaveFormat saveFormat = SaveFormat.PROTO;
+        if (format != null) {
+            try {
+                saveFormat = SaveFormat.parse(format);
+            } catch (Arguments.ParseException e) {
+                platform.getPlugin().log(Level.WARNING, e.getMessage() + ", saving as proto instead");
+            }
+        }
+
         SparkSamplerProtos.SamplerData output = sampler.toProto(platform, exportProps);
-        Path file = platform.resolveSaveFile(prefix, "sparkprofile");
+        Path file = platform.resolveSaveFile(prefix, saveFormat.extension);
         try {
-            Files.write(file, output.toByteArray());
+            saveFormat.write(output, file, getSampleType(platform, sampler, output));
             platform.getPlugin().log(Level.INFO, "Loading Profiler data has been saved to: " + file);
             platform.getPlugin().log(Level.INFO, "You can view the file using the web app @ " + platform.getViewerUrl());
 
@@ -527,7 +1085,28 @@ public class SamplerModule implements CommandModule {
  */
 
     private Sampler.ExportProps getExportProps(SparkPlatform platform, CommandResponseHandler resp, Arguments arguments) {
-        return new Sampler.ExportProps()
+        Sampler.ExportProps exportProps = new Sampler.ExportProps();
+
+        long now = System.currentTimeMillis();
+        long last = arguments.durationFlag("last");
+        long from = arguments.timeFlag("from", now);
+        long to = arguments.timeFlag("to", now);
+        if (last != -1) {
+            if (from != -1) {
+                throw new Arguments.ParseException("'--last' and '--from' can't be used together");
+            }
+            from = now - last;
+        }
+        if (from != -1 || to != -1) {
+            from = from == -1 ? 0 : from;
+            to = to == -1 ? Long.MAX_VALUE : to;
+            if (from >= to) {
+                throw new Arguments.ParseException("The start of the time range ('--from') must be before the end ('--to')");
+            }
+            exportProps.timeRange(from, to);
+        }
+
+        return exportProps
                 .creator(resp.sender().toData())
                 .comment(Iterables.getFirst(arguments.stringFlag("comment"), null))
                 .mergeMode(() -> {
@@ -539,6 +1118,17 @@ public class SamplerModule implements CommandModule {
                 .classSourceLookup(() -> ClassSourceLookup.create(platform));
     }
 
+    private static SaveFormat getSaveFormat(Arguments arguments) {
+        String format = Iterables.getFirst(arguments.stringFlag("format"), null);
+        return format == null ? SaveFormat.PROTO : SaveFormat.parse(format);
+    }
+
+    private static PprofWriter.SampleType getSampleType(SparkPlatform platform, Sampler sampler, SparkSamplerProtos.SamplerData output) {
+        // only the async engine's cpu event excludes time threads spend off the cpu
+        boolean cpuTime = sampler instanceof AsyncSampler && AsyncProfilerAccess.getInstance(platform).isCpuTimeProfiling();
+        return PprofWriter.SampleType.of(output.getMetadata().getSamplerMode(), cpuTime);
+    }
+
     private static Component cmdPrompt(String cmd) {
         return text()
                 .append(text("  "))
@@ -550,4 +1140,45 @@ public class SamplerModule implements CommandModule {
                 )
                 .build();
     }
+
+    /**
+     * The formats that profiler results can be saved to disk in.
+     */
+    private enum SaveFormat {
+        PROTO("sparkprofile") {
+            @Override
+            void write(SparkSamplerProtos.SamplerData data, Path file, PprofWriter.SampleType sampleType) throws IOException {
+                Files.write(file, data.toByteArray());
+            }
+        },
+        COLUMNAR(ColumnarProfile.FILE_EXTENSION) {
+            @Override
+            void write(SparkSamplerProtos.SamplerData data, Path file, PprofWriter.SampleType sampleType) throws IOException {
+                ColumnarProfiles.write(data, file);
+            }
+        },
+        PPROF(PprofWriter.FILE_EXTENSION) {
+            @Override
+            void write(SparkSamplerProtos.SamplerData data, Path file, PprofWriter.SampleType sampleType) throws IOException {
+                PprofWriter.write(data, file, sampleType);
+            }
+        };
+
+        private final String extension;
+
+        SaveFormat(String extension) {
+            this.extension = extension;
+        }
+
+        abstract void write(SparkSamplerProtos.SamplerData data, Path file, PprofWriter.SampleType sampleType) throws IOException;
+
+        static SaveFormat parse(String format) {
+            for (SaveFormat saveFormat : values()) {
+                if (saveFormat.name().equalsIgnoreCase(format)) {
+                    return saveFormat;
+                }
+            }
+            throw new Arguments.ParseException("Unknown format '" + format + "' - must be one of: proto, columnar, pprof");
+        }
+    }
 }
@@ -56,6 +56,8 @@ public class TickMonitoringModule implements CommandModule {
                 .argumentUsage("threshold", "percentage increase")
                 .argumentUsage("threshold-tick", "tick duration")
                 .argumentUsage("without-gc", null)
+                .argumentUsage("capture-stacks", null)
+                .argumentUsage("capture-interval", "interval millis")
                 .executor((platform, sender, resp, arguments) -> {
                     TickHook tickHook = platform.getTickHook();
                     if (tickHook == null) {
@@ -75,14 +77,20 @@ public class TickMonitoringModule implements CommandModule {
                             reportPredicate = new ReportPredicate.PercentageChangeGt(100);
                         }
 
-                        this.activeTickMonitor = new ReportingTickMonitor(platform, resp, tickHook, reportPredicate, !arguments.boolFlag("without-gc"));
+                        long spikeSamplingInterval = -1;
+                        if (arguments.boolFlag("capture-stacks")) {
+                            int intervalMillis = arguments.intFlag("capture-interval");
+                            spikeSamplingInterval = intervalMillis > 0 ? intervalMillis * 1000L : 1000;
+                        }
+
+                        this.activeTickMonitor = new ReportingTickMonitor(platform, resp, tickHook, reportPredicate, !arguments.boolFlag("without-gc"), spikeSamplingInterval);
                         this.activeTickMonitor.start();
                     } else {
                         close();
                         resp.broadcastPrefixed(text("Tick monitor disabled."));
                     }
                 })
-                .tabCompleter((platform, sender, arguments) -> TabCompleter.completeForOpts(arguments, "--threshold", "--threshold-tick", "--without-gc"))
+                .tabCompleter((platform, sender, arguments) -> TabCompleter.completeForOpts(arguments, "--threshold", "--threshold-tick", "--without-gc", "--capture-stacks", "--capture-interval"))
                 .build()
         );
     }
@@ -90,8 +98,8 @@ public class TickMonitoringModule implements CommandModule {
     private static class ReportingTickMonitor extends TickMonitor {
         private final CommandResponseHandler resp;
 
-        ReportingTickMonitor(SparkPlatform platform, CommandResponseHandler resp, TickHook tickHook, ReportPredicate reportPredicate, boolean monitorGc) {
-            super(platform, tickHook, reportPredicate, monitorGc);
+        ReportingTickMonitor(SparkPlatform platform, CommandResponseHandler resp, TickHook tickHook, ReportPredicate reportPredicate, boolean monitorGc, long spikeSamplingInterval) {
+            super(platform, tickHook, reportPredicate, monitorGc, spikeSamplingInterval);
             this.resp = resp;
         }
 
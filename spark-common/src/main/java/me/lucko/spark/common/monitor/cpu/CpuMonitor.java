@@ -24,7 +24,6 @@ import me.lucko.spark.common.monitor.MonitoringExecutor;
 import me.lucko.spark.common.util.RollingAverage;
 
 import java.lang.management.ManagementFactory;
-import java.math.BigDecimal;
 import java.util.concurrent.TimeUnit;
 
 import javax.management.JMX;
@@ -148,16 +147,16 @@ public enum CpuMonitor {
 
         @Override
         public void run() {
-            BigDecimal systemCpuLoad = new BigDecimal(systemLoad());
-            BigDecimal processCpuLoad = new BigDecimal(processLoad());
+            double systemCpuLoad = systemLoad();
+            double processCpuLoad = processLoad();
 
-            if (systemCpuLoad.signum() != -1) { // if value is not negative
+            if (systemCpuLoad >= 0) { // if value is not negative
                 for (RollingAverage average : this.systemAverages) {
                     average.add(systemCpuLoad);
                 }
             }
 
-            if (processCpuLoad.signum() != -1) { // if value is not negative
+            if (processCpuLoad >= 0) { // if value is not negative
                 for (RollingAverage average : this.processAverages) {
                     average.add(processCpuLoad);
                 }
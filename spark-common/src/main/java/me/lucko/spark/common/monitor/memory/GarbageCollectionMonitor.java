@@ -38,6 +38,19 @@ import javax.management.openmbean.CompositeData;
  */
 public class GarbageCollectionMonitor implements NotificationListener, AutoCloseable {
 
+    /** The collectors which send notifications (these never change once the JVM has started) */
+    private static final List<GarbageCollectorMXBean> NOTIFYING_COLLECTORS = findNotifyingCollectors();
+
+    private static List<GarbageCollectorMXBean> findNotifyingCollectors() {
+        List<GarbageCollectorMXBean> collectors = new ArrayList<>();
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof NotificationEmitter) {
+                collectors.add(bean);
+            }
+        }
+        return collectors;
+    }
+
     /** The registered listeners */
     private final List<Listener> listeners = new ArrayList<>();
     /** A list of the NotificationEmitters that feed information to this monitor. */
@@ -92,6 +105,22 @@ public class GarbageCollectionMonitor implements NotificationListener, AutoClose
         this.listeners.clear();
     }
 
+    /**
+     * Counts the collections reported by the collectors which send notifications.
+     *
+     * <p>Notifications are delivered shortly after a collection ends, so comparing this count to
+     * the number of notifications received shows whether any are still pending.</p>
+     *
+     * @return the number of collections
+     */
+    public static long countNotifyingCollections() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : NOTIFYING_COLLECTORS) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
     /**
      * A simple listener object for garbage collections.
      */
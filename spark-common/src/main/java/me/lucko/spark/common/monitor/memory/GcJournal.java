@@ -0,0 +1,423 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.memory;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+import me.lucko.spark.proto.SparkSamplerProtos;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every garbage collection into a bounded journal.
+ *
+ * <p>Events are held in a ring buffer of primitive arrays, with the collector, cause and action
+ * names stored as indexes into small tables of the names seen so far. The journal can be queried
+ * for the GC activity within a time range, and exported alongside profiles.</p>
+ */
+public class GcJournal implements GarbageCollectionMonitor.Listener, AutoCloseable {
+
+    /** The number of events kept by default */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** The maximum number of distinct collector/cause/action names to keep */
+    private static final int MAX_NAMES = 64;
+
+    /** The monitor providing GC notifications */
+    private final GarbageCollectionMonitor monitor;
+    /** The time the JVM started, used to convert GC start times to unix millis */
+    private final long jvmStartTime;
+
+    /** The memory pools, and whether each one is part of the heap */
+    private final String[] pools;
+    private final boolean[] heapPools;
+
+    /** The collector, cause & action names seen so far */
+    private final List<String> collectors = new ArrayList<>();
+    private final List<String> causes = new ArrayList<>();
+    private final List<String> actions = new ArrayList<>();
+
+    // the ring buffer
+    private final int capacity;
+    private final long[] startTimes;
+    private final long[] durations;
+    private final byte[] collectorIds;
+    private final byte[] causeIds;
+    private final byte[] actionIds;
+    private final boolean[] pauses;
+    private final long[] allocated;
+    private final long[] usedBefore;
+    private final long[] usedAfter;
+    private int head = 0;
+    private int count = 0;
+    /** The total number of collections recorded, including those no longer in the buffer */
+    private long recorded = 0;
+
+    /** The number of collections counted by the collectors which will never be recorded */
+    private long unrecorded;
+
+    /** The heap usage after the previous collection, or -1 if there hasn't been one yet */
+    private long lastHeapUsedAfter = -1;
+
+    public GcJournal(int capacity) {
+        List<MemoryPoolMXBean> poolBeans = ManagementFactory.getMemoryPoolMXBeans();
+        this.pools = new String[poolBeans.size()];
+        this.heapPools = new boolean[poolBeans.size()];
+        for (int i = 0; i < poolBeans.size(); i++) {
+            this.pools[i] = poolBeans.get(i).getName();
+            this.heapPools[i] = poolBeans.get(i).getType() == MemoryType.HEAP;
+        }
+
+        this.capacity = capacity;
+        this.startTimes = new long[capacity];
+        this.durations = new long[capacity];
+        this.collectorIds = new byte[capacity];
+        this.causeIds = new byte[capacity];
+        this.actionIds = new byte[capacity];
+        this.pauses = new boolean[capacity];
+        this.allocated = new long[capacity];
+        this.usedBefore = new long[capacity * this.pools.length];
+        this.usedAfter = new long[capacity * this.pools.length];
+
+        this.jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+        this.monitor = new GarbageCollectionMonitor();
+        this.monitor.addListener(this);
+
+        // collections which finished before the journal was created will never be recorded
+        this.unrecorded = GarbageCollectionMonitor.countNotifyingCollections();
+    }
+
+    @Override
+    public void close() {
+        this.monitor.close();
+    }
+
+    @Override
+    public synchronized void onGc(GarbageCollectionNotificationInfo data) {
+        GcInfo info = data.getGcInfo();
+        Map<String, MemoryUsage> before = info.getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = info.getMemoryUsageAfterGc();
+
+        int slot = this.head;
+        this.startTimes[slot] = this.jvmStartTime + info.getStartTime();
+        this.durations[slot] = info.getDuration();
+        this.collectorIds[slot] = intern(this.collectors, data.getGcName());
+        this.causeIds[slot] = intern(this.causes, data.getGcCause());
+        this.actionIds[slot] = intern(this.actions, data.getGcAction());
+        this.pauses[slot] = isPause(data.getGcName());
+
+        long heapUsedBefore = 0;
+        long heapUsedAfter = 0;
+        for (int i = 0; i < this.pools.length; i++) {
+            long poolBefore = used(before.get(this.pools[i]));
+            long poolAfter = used(after.get(this.pools[i]));
+            this.usedBefore[slot * this.pools.length + i] = poolBefore;
+            this.usedAfter[slot * this.pools.length + i] = poolAfter;
+            if (this.heapPools[i]) {
+                heapUsedBefore += poolBefore;
+                heapUsedAfter += poolAfter;
+            }
+        }
+
+        // the heap grows between collections by the amount allocated (ignoring direct promotion)
+        this.allocated[slot] = this.lastHeapUsedAfter == -1 ? 0 : Math.max(0, heapUsedBefore - this.lastHeapUsedAfter);
+        this.lastHeapUsedAfter = heapUsedAfter;
+
+        this.head = slot + 1 == this.capacity ? 0 : slot + 1;
+        if (this.count < this.capacity) {
+            this.count++;
+        }
+        this.recorded++;
+    }
+
+    /**
+     * Gets the total number of collections recorded, which can be used to tell whether the
+     * journal has changed.
+     *
+     * @return the number of collections recorded
+     */
+    public synchronized long getRecorded() {
+        return this.recorded;
+    }
+
+    /**
+     * Summarises the collections which started within the given time range.
+     *
+     * @param from the start of the range (unix millis, inclusive)
+     * @param to the end of the range (unix millis, exclusive)
+     * @return the summary
+     */
+    public synchronized Summary summarise(long from, long to) {
+        int count = 0;
+        long pauseTime = 0;
+        long allocated = 0;
+
+        for (int i = 0, slot = oldestSlot(); i < this.count; i++, slot = next(slot)) {
+            long startTime = this.startTimes[slot];
+            if (startTime < from || startTime >= to) {
+                continue;
+            }
+            count++;
+            allocated += this.allocated[slot];
+            if (this.pauses[slot]) {
+                pauseTime += this.durations[slot];
+            }
+        }
+        return new Summary(count, pauseTime, allocated);
+    }
+
+    /**
+     * Exports the collections which started within the given time range.
+     *
+     * @param from the start of the range (unix millis, inclusive)
+     * @param to the end of the range (unix millis, exclusive)
+     * @return the exported journal
+     */
+    public synchronized SparkSamplerProtos.GcJournal toProto(long from, long to) {
+        SparkSamplerProtos.GcJournal.Builder proto = SparkSamplerProtos.GcJournal.newBuilder()
+                .addAllCollectors(this.collectors)
+                .addAllCauses(this.causes)
+                .addAllActions(this.actions);
+        for (String pool : this.pools) {
+            proto.addPools(pool);
+        }
+
+        for (int i = 0, slot = oldestSlot(); i < this.count; i++, slot = next(slot)) {
+            long startTime = this.startTimes[slot];
+            if (startTime < from || startTime >= to) {
+                continue;
+            }
+
+            SparkSamplerProtos.GcJournal.Event.Builder event = SparkSamplerProtos.GcJournal.Event.newBuilder()
+                    .setStartTime(startTime)
+                    .setDuration(this.durations[slot])
+                    .setCollector(this.collectorIds[slot])
+                    .setCause(this.causeIds[slot])
+                    .setAction(this.actionIds[slot])
+                    .setPause(this.pauses[slot])
+                    .setAllocated(this.allocated[slot]);
+            for (int pool = 0; pool < this.pools.length; pool++) {
+                event.addUsedBefore(this.usedBefore[slot * this.pools.length + pool]);
+                event.addUsedAfter(this.usedAfter[slot * this.pools.length + pool]);
+            }
+            proto.addEvents(event.build());
+        }
+        return proto.build();
+    }
+
+    /**
+     * Waits for any collections which have finished, but haven't been recorded yet.
+     *
+     * <p>Notifications are delivered shortly after a collection ends, so a time which has only
+     * just passed may not be covered by the journal yet.</p>
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     */
+    public void awaitPendingCollections(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long pending;
+            synchronized (this) {
+                pending = GarbageCollectionMonitor.countNotifyingCollections() - this.unrecorded - this.recorded;
+                if (pending > 0 && System.nanoTime() >= deadline) {
+                    // don't wait for the same collections again
+                    this.unrecorded += pending;
+                    return;
+                }
+            }
+            if (pending <= 0) {
+                return;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Gets the GC pauses which overlap the given time range.
+     *
+     * @param from the start of the range (unix millis, inclusive)
+     * @param to the end of the range (unix millis, exclusive)
+     * @return the pauses
+     */
+    public synchronized Pauses pauses(long from, long to) {
+        long[] startTimes = new long[this.count];
+        long[] endTimes = new long[this.count];
+        int n = 0;
+
+        for (int i = 0, slot = oldestSlot(); i < this.count; i++, slot = next(slot)) {
+            long startTime = this.startTimes[slot];
+            long endTime = startTime + this.durations[slot];
+            if (!this.pauses[slot] || endTime < from || startTime >= to) {
+                continue;
+            }
+            startTimes[n] = startTime;
+            endTimes[n] = endTime;
+            n++;
+        }
+        return new Pauses(Arrays.copyOf(startTimes, n), Arrays.copyOf(endTimes, n));
+    }
+
+    private int oldestSlot() {
+        int slot = this.head - this.count;
+        return slot < 0 ? slot + this.capacity : slot;
+    }
+
+    private int next(int slot) {
+        return slot + 1 == this.capacity ? 0 : slot + 1;
+    }
+
+    private static byte intern(List<String> names, String name) {
+        if (name == null) {
+            name = "";
+        }
+        int index = names.indexOf(name);
+        if (index == -1) {
+            if (names.size() >= MAX_NAMES) {
+                return (byte) (MAX_NAMES - 1);
+            }
+            names.add(name);
+            index = names.size() - 1;
+        }
+        return (byte) index;
+    }
+
+    private static long used(MemoryUsage usage) {
+        return usage == null ? 0 : usage.getUsed();
+    }
+
+    /**
+     * Gets whether the collections reported by the given collector are (stop-the-world) pauses.
+     *
+     * <p>Concurrent collectors report the duration of a whole cycle, most of which runs
+     * alongside the application.</p>
+     *
+     * @param collector the name of the collector
+     * @return true if the collector's collections are pauses
+     */
+    private static boolean isPause(String collector) {
+        return !(collector.contains("Cycles") || collector.contains("Concurrent"));
+    }
+
+    /**
+     * A snapshot of the GC pauses within a time range.
+     */
+    public static final class Pauses {
+        /** The start times of the pauses, in ascending order */
+        private final long[] startTimes;
+        /** The latest end time of the pauses up to & including each index */
+        private final long[] endTimes;
+
+        Pauses(long[] startTimes, long[] endTimes) {
+            // collections are recorded in the order they finish, so sort by start time
+            Integer[] order = new Integer[startTimes.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(startTimes[a], startTimes[b]));
+
+            this.startTimes = new long[startTimes.length];
+            this.endTimes = new long[startTimes.length];
+            long latestEnd = Long.MIN_VALUE;
+            for (int i = 0; i < order.length; i++) {
+                latestEnd = Math.max(latestEnd, endTimes[order[i]]);
+                this.startTimes[i] = startTimes[order[i]];
+                this.endTimes[i] = latestEnd;
+            }
+        }
+
+        public boolean isEmpty() {
+            return this.startTimes.length == 0;
+        }
+
+        /**
+         * Gets whether the given time falls within a GC pause.
+         *
+         * @param time the time (unix millis)
+         * @return true if the JVM was paused at the time
+         */
+        public boolean contains(long time) {
+            // find the last pause which started at or before the time
+            int low = 0;
+            int high = this.startTimes.length - 1;
+            int index = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (this.startTimes[mid] <= time) {
+                    index = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return index != -1 && time <= this.endTimes[index];
+        }
+    }
+
+    /**
+     * A summary of the collections within a time range.
+     */
+    public static final class Summary {
+        private final int count;
+        private final long pauseTime;
+        private final long allocated;
+
+        Summary(int count, long pauseTime, long allocated) {
+            this.count = count;
+            this.pauseTime = pauseTime;
+            this.allocated = allocated;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+
+        /**
+         * Gets the total duration of the GC pauses, in milliseconds.
+         *
+         * @return the pause time
+         */
+        public long getPauseTime() {
+            return this.pauseTime;
+        }
+
+        /**
+         * Gets the number of bytes allocated, estimated from the growth of the heap between
+         * collections.
+         *
+         * @return the bytes allocated
+         */
+        public long getAllocated() {
+            return this.allocated;
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.memory;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import me.lucko.spark.common.monitor.MonitoringExecutor;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Polls the usage of each memory pool and buffer pool, and estimates the rate that objects are
+ * allocated in, and promoted out of, the young generation.
+ *
+ * <p>Readings are taken every second and kept for a few minutes in ring buffers of primitive
+ * arrays. The allocation rate is measured from the growth of the young generation (eden) between
+ * readings; when a collection empties it, the growth up to the start of the collection is taken
+ * from the GC notification instead. The promotion rate is measured from the growth of the old
+ * generation during young collections.</p>
+ */
+public final class MemoryPoolMonitor implements Runnable, GarbageCollectionMonitor.Listener, AutoCloseable {
+    private static final int POLL_INTERVAL_SECONDS = 1;
+    private static final int WINDOW_SIZE_SECONDS = (int) TimeUnit.MINUTES.toSeconds(5);
+    private static final int CAPACITY = WINDOW_SIZE_SECONDS / POLL_INTERVAL_SECONDS; // 300
+
+    /** The memory pools being monitored */
+    private final List<MemoryPoolMXBean> pools;
+    /** The buffer pools (direct & mapped) being monitored */
+    private final List<BufferPoolMXBean> bufferPools;
+    /** Whether each memory pool is part of the young generation, or the old generation */
+    private final boolean[] youngPools;
+    private final boolean[] oldPools;
+
+    /** The monitor providing GC notifications */
+    private final GarbageCollectionMonitor gcMonitor;
+
+    // the ring buffer
+    private final long[] times;
+    private final long[] durations;
+    private final long[] poolUsed;
+    private final long[] bufferUsed;
+    private final long[] allocated;
+    private final long[] promoted;
+    private int head = 0;
+    private int count = 0;
+
+    /** The young generation usage when it was last observed, or -1 if it hasn't been yet */
+    private long youngLastSeen = -1;
+    /** The bytes allocated & promoted since the last reading */
+    private long allocatedSinceLastPoll = 0;
+    private long promotedSinceLastPoll = 0;
+    /** The time of the last reading */
+    private long lastPollTime = 0;
+
+    /** The number of collections which finished before monitoring started, or have been notified */
+    private long collectionsSeen;
+
+    /** The scheduler task that polls the pools */
+    private ScheduledFuture<?> future;
+
+    public MemoryPoolMonitor() {
+        this.pools = ManagementFactory.getMemoryPoolMXBeans();
+        this.bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+        // identify the young & old generation pools by name, e.g. "G1 Eden Space", "PS Old Gen",
+        // "Tenured Gen", "ZGC Young Generation". if the collector isn't generational, treat the
+        // whole heap as the young generation.
+        this.youngPools = new boolean[this.pools.size()];
+        this.oldPools = new boolean[this.pools.size()];
+        boolean generational = false;
+        for (int i = 0; i < this.pools.size(); i++) {
+            MemoryPoolMXBean pool = this.pools.get(i);
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            String name = pool.getName();
+            this.youngPools[i] = name.contains("Eden") || name.contains("Young");
+            this.oldPools[i] = name.contains("Old") || name.contains("Tenured");
+            generational |= this.youngPools[i];
+        }
+        if (!generational) {
+            for (int i = 0; i < this.pools.size(); i++) {
+                this.youngPools[i] = this.pools.get(i).getType() == MemoryType.HEAP;
+                this.oldPools[i] = false;
+            }
+        }
+
+        this.times = new long[CAPACITY];
+        this.durations = new long[CAPACITY];
+        this.poolUsed = new long[CAPACITY * this.pools.size()];
+        this.bufferUsed = new long[CAPACITY * this.bufferPools.size()];
+        this.allocated = new long[CAPACITY];
+        this.promoted = new long[CAPACITY];
+
+        this.gcMonitor = new GarbageCollectionMonitor();
+        this.gcMonitor.addListener(this);
+        this.collectionsSeen = GarbageCollectionMonitor.countNotifyingCollections();
+    }
+
+    /**
+     * Starts the monitor
+     */
+    public void start() {
+        if (this.future != null) {
+            throw new IllegalStateException();
+        }
+        this.future = MonitoringExecutor.INSTANCE.scheduleAtFixedRate(this, 0, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (this.future != null) {
+            this.future.cancel(false);
+            this.future = null;
+        }
+        this.gcMonitor.close();
+    }
+
+    @Override
+    public synchronized void onGc(GarbageCollectionNotificationInfo data) {
+        this.collectionsSeen++;
+
+        Map<String, MemoryUsage> before = data.getGcInfo().getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = data.getGcInfo().getMemoryUsageAfterGc();
+        long youngBefore = 0, youngAfter = 0, oldBefore = 0, oldAfter = 0;
+        for (int i = 0; i < this.pools.size(); i++) {
+            String name = this.pools.get(i).getName();
+            if (this.youngPools[i]) {
+                youngBefore += used(before.get(name));
+                youngAfter += used(after.get(name));
+            } else if (this.oldPools[i]) {
+                oldBefore += used(before.get(name));
+                oldAfter += used(after.get(name));
+            }
+        }
+
+        if (this.youngLastSeen != -1) {
+            this.allocatedSinceLastPoll += Math.max(0, youngBefore - this.youngLastSeen);
+        }
+        this.youngLastSeen = youngAfter;
+
+        // the young generation was evacuated, so anything the old generation gained was promoted
+        if (youngAfter < youngBefore && !"end of major GC".equals(data.getGcAction())) {
+            this.promotedSinceLastPoll += Math.max(0, oldAfter - oldBefore);
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        long time = System.currentTimeMillis();
+        int slot = this.head;
+
+        long young = 0;
+        for (int i = 0; i < this.pools.size(); i++) {
+            MemoryUsage usage = this.pools.get(i).getUsage();
+            if (usage == null) {
+                continue;
+            }
+            this.poolUsed[slot * this.pools.size() + i] = usage.getUsed();
+            if (this.youngPools[i]) {
+                young += usage.getUsed();
+            }
+        }
+        for (int i = 0; i < this.bufferPools.size(); i++) {
+            this.bufferUsed[slot * this.bufferPools.size() + i] = this.bufferPools.get(i).getMemoryUsed();
+        }
+
+        // if a collection has finished but hasn't been notified yet, the young generation has
+        // been emptied without its usage beforehand being known - so wait for the notification
+        // before taking the young generation usage into account
+        if (GarbageCollectionMonitor.countNotifyingCollections() <= this.collectionsSeen) {
+            if (this.youngLastSeen != -1) {
+                this.allocatedSinceLastPoll += Math.max(0, young - this.youngLastSeen);
+            }
+            this.youngLastSeen = young;
+        }
+
+        this.times[slot] = time;
+        this.durations[slot] = this.lastPollTime == 0 ? 0 : time - this.lastPollTime;
+        this.allocated[slot] = this.allocatedSinceLastPoll;
+        this.promoted[slot] = this.promotedSinceLastPoll;
+        this.allocatedSinceLastPoll = 0;
+        this.promotedSinceLastPoll = 0;
+        this.lastPollTime = time;
+
+        this.head = slot + 1 == CAPACITY ? 0 : slot + 1;
+        if (this.count < CAPACITY) {
+            this.count++;
+        }
+    }
+
+    /**
+     * Gets the average rate that objects were allocated in the young generation, over the given
+     * time range.
+     *
+     * @param from the start of the range (unix millis)
+     * @param to the end of the range (unix millis)
+     * @return the allocation rate in bytes per second, or -1 if there are no readings in the range
+     */
+    public synchronized double allocationRate(long from, long to) {
+        return rate(this.allocated, from, to);
+    }
+
+    /**
+     * Gets the average rate that objects were promoted to the old generation, over the given
+     * time range.
+     *
+     * @param from the start of the range (unix millis)
+     * @param to the end of the range (unix millis)
+     * @return the promotion rate in bytes per second, or -1 if there are no readings in the range
+     */
+    public synchronized double promotionRate(long from, long to) {
+        return rate(this.promoted, from, to);
+    }
+
+    /**
+     * Gets the average rate that objects were allocated in the young generation, over the last
+     * given number of seconds.
+     *
+     * @param seconds the number of seconds
+     * @return the allocation rate in bytes per second, or -1 if there are no readings yet
+     */
+    public double allocationRate(int seconds) {
+        long now = System.currentTimeMillis();
+        return allocationRate(now - TimeUnit.SECONDS.toMillis(seconds), now);
+    }
+
+    /**
+     * Gets the average rate that objects were promoted to the old generation, over the last
+     * given number of seconds.
+     *
+     * @param seconds the number of seconds
+     * @return the promotion rate in bytes per second, or -1 if there are no readings yet
+     */
+    public double promotionRate(int seconds) {
+        long now = System.currentTimeMillis();
+        return promotionRate(now - TimeUnit.SECONDS.toMillis(seconds), now);
+    }
+
+    private double rate(long[] values, long from, long to) {
+        long total = 0;
+        long duration = 0;
+        for (int i = 0, slot = oldestSlot(); i < this.count; i++, slot = next(slot)) {
+            if (this.times[slot] <= from || this.times[slot] > to) {
+                continue;
+            }
+            total += values[slot];
+            duration += this.durations[slot];
+        }
+        return duration == 0 ? -1 : total * 1000d / duration;
+    }
+
+    /**
+     * Gets the peak usage of each memory pool over the given time range.
+     *
+     * @param from the start of the range (unix millis)
+     * @param to the end of the range (unix millis)
+     * @return the peak usage (bytes) of each pool
+     */
+    public synchronized Map<String, Long> peakPoolUsage(long from, long to) {
+        return peak(this.poolUsed, this.pools.size(), i -> this.pools.get(i).getName(), from, to);
+    }
+
+    /**
+     * Gets the peak usage of each buffer pool over the given time range.
+     *
+     * @param from the start of the range (unix millis)
+     * @param to the end of the range (unix millis)
+     * @return the peak usage (bytes) of each buffer pool
+     */
+    public synchronized Map<String, Long> peakBufferPoolUsage(long from, long to) {
+        return peak(this.bufferUsed, this.bufferPools.size(), i -> this.bufferPools.get(i).getName(), from, to);
+    }
+
+    private Map<String, Long> peak(long[] values, int width, IntFunction<String> names, long from, long to) {
+        if (width == 0) {
+            return Collections.emptyMap();
+        }
+
+        long[] peaks = new long[width];
+        boolean found = false;
+        for (int i = 0, slot = oldestSlot(); i < this.count; i++, slot = next(slot)) {
+            if (this.times[slot] <= from || this.times[slot] > to) {
+                continue;
+            }
+            found = true;
+            for (int j = 0; j < width; j++) {
+                peaks[j] = Math.max(peaks[j], values[slot * width + j]);
+            }
+        }
+        if (!found) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int j = 0; j < width; j++) {
+            map.put(names.apply(j), peaks[j]);
+        }
+        return map;
+    }
+
+    public List<MemoryPoolMXBean> getPools() {
+        return this.pools;
+    }
+
+    public List<BufferPoolMXBean> getBufferPools() {
+        return this.bufferPools;
+    }
+
+    private int oldestSlot() {
+        int slot = this.head - this.count;
+        return slot < 0 ? slot + CAPACITY : slot;
+    }
+
+    private static int next(int slot) {
+        return slot + 1 == CAPACITY ? 0 : slot + 1;
+    }
+
+    private static long used(MemoryUsage usage) {
+        return usage == null ? 0 : usage.getUsed();
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.memory;
+
+import me.lucko.spark.common.monitor.MonitoringExecutor;
+import me.lucko.spark.common.sampler.ThreadGrouper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the rate that each thread allocates memory, using the allocation counters kept by the
+ * JVM for each thread.
+ *
+ * <p>This works without async-profiler (and without debug symbols), but only says which threads
+ * allocate, not where. The counters of all threads are read in a single batch every few seconds,
+ * and the readings are kept for a few minutes.</p>
+ */
+public final class ThreadAllocationMonitor implements Runnable, AutoCloseable {
+    private static final int POLL_INTERVAL_SECONDS = 5;
+    private static final int WINDOW_SIZE_SECONDS = (int) TimeUnit.MINUTES.toSeconds(5);
+    private static final int CAPACITY = WINDOW_SIZE_SECONDS / POLL_INTERVAL_SECONDS + 1; // 61
+
+    /** The thread management interface, or null if allocation counters are not supported */
+    private final com.sun.management.ThreadMXBean threadBean;
+
+    /** The readings, used as a ring */
+    private final Reading[] readings = new Reading[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+
+    /** The scheduler task that polls the counters */
+    private ScheduledFuture<?> future;
+
+    public ThreadAllocationMonitor() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean && isEnabled((com.sun.management.ThreadMXBean) threadBean)) {
+            this.threadBean = (com.sun.management.ThreadMXBean) threadBean;
+        } else {
+            this.threadBean = null;
+        }
+    }
+
+    private static boolean isEnabled(com.sun.management.ThreadMXBean threadBean) {
+        try {
+            return threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled();
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets if the JVM keeps allocation counters for each thread.
+     *
+     * @return true if supported
+     */
+    public boolean isSupported() {
+        return this.threadBean != null;
+    }
+
+    /**
+     * Starts the monitor
+     */
+    public void start() {
+        if (this.future != null) {
+            throw new IllegalStateException();
+        }
+        if (isSupported()) {
+            this.future = MonitoringExecutor.INSTANCE.scheduleAtFixedRate(this, 0, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.future != null) {
+            this.future.cancel(false);
+            this.future = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        long[] ids = this.threadBean.getAllThreadIds();
+        Arrays.sort(ids);
+        long[] allocated = this.threadBean.getThreadAllocatedBytes(ids);
+        long time = System.currentTimeMillis();
+
+        Reading previous;
+        synchronized (this) {
+            previous = this.count == 0 ? null : this.readings[this.head == 0 ? CAPACITY - 1 : this.head - 1];
+        }
+
+        // the set of threads rarely changes, so share the ids & names with the previous reading if possible
+        String[] names;
+        if (previous != null && Arrays.equals(previous.ids, ids)) {
+            ids = previous.ids;
+            names = previous.names;
+        } else {
+            names = lookupNames(ids, previous);
+        }
+
+        synchronized (this) {
+            this.readings[this.head] = new Reading(time, ids, names, allocated);
+            this.head = this.head + 1 == CAPACITY ? 0 : this.head + 1;
+            if (this.count < CAPACITY) {
+                this.count++;
+            }
+        }
+    }
+
+    private String[] lookupNames(long[] ids, Reading previous) {
+        String[] names = new String[ids.length];
+        List<Long> unknown = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            int index = previous == null ? -1 : Arrays.binarySearch(previous.ids, ids[i]);
+            if (index >= 0) {
+                names[i] = previous.names[index];
+            } else {
+                unknown.add(ids[i]);
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            ThreadInfo[] infos = this.threadBean.getThreadInfo(unknown.stream().mapToLong(Long::longValue).toArray(), 0);
+            for (ThreadInfo info : infos) {
+                if (info != null) {
+                    names[Arrays.binarySearch(ids, info.getThreadId())] = info.getThreadName();
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Gets the allocation rate of each thread over the last given number of seconds.
+     *
+     * @param seconds the number of seconds
+     * @return the allocation rates, highest first
+     */
+    public List<ThreadAllocation> allocationRates(int seconds) {
+        long now = System.currentTimeMillis();
+        return allocationRates(now - TimeUnit.SECONDS.toMillis(seconds), now);
+    }
+
+    /**
+     * Gets the allocation rate of each thread over the given time range.
+     *
+     * <p>The rates are measured between the readings closest to the start & end of the range.
+     * Threads which stopped in the meantime are not included.</p>
+     *
+     * @param from the start of the range (unix millis)
+     * @param to the end of the range (unix millis)
+     * @return the allocation rates, highest first
+     */
+    public List<ThreadAllocation> allocationRates(long from, long to) {
+        Reading start = null;
+        Reading end = null;
+        synchronized (this) {
+            for (int i = 0, slot = oldestSlot(); i < this.count; i++, slot = next(slot)) {
+                Reading reading = this.readings[slot];
+                if (reading.time > to) {
+                    break;
+                }
+                if (start == null || reading.time <= from) {
+                    start = reading;
+                }
+                end = reading;
+            }
+        }
+        if (start == null || start == end) {
+            return Collections.emptyList();
+        }
+
+        double duration = (end.time - start.time) / 1000d;
+        List<ThreadAllocation> rates = new ArrayList<>(end.ids.length);
+        for (int i = 0; i < end.ids.length; i++) {
+            if (end.allocated[i] == -1 || end.names[i] == null) {
+                continue; // the thread has stopped
+            }
+
+            // threads which weren't running at the start have allocated everything since then
+            int index = Arrays.binarySearch(start.ids, end.ids[i]);
+            long startAllocated = index >= 0 ? Math.max(0, start.allocated[index]) : 0;
+
+            long allocated = end.allocated[i] - startAllocated;
+            if (allocated > 0) {
+                rates.add(new ThreadAllocation(end.ids[i], end.names[i], allocated / duration));
+            }
+        }
+        rates.sort((a, b) -> Double.compare(b.getRate(), a.getRate()));
+        return rates;
+    }
+
+    /**
+     * Groups the given allocation rates, summing the rates of the threads in each group.
+     *
+     * @param rates the allocation rates
+     * @param threadGrouper the thread grouper
+     * @return the allocation rates of each group, highest first
+     */
+    public static Map<String, Double> groupAllocationRates(List<ThreadAllocation> rates, ThreadGrouper threadGrouper) {
+        Map<String, Double> groups = new HashMap<>();
+        for (ThreadAllocation rate : rates) {
+            groups.merge(threadGrouper.getGroup(rate.getThreadId(), rate.getThreadName()), rate.getRate(), Double::sum);
+        }
+
+        Map<String, Double> sorted = new LinkedHashMap<>();
+        groups.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+        return sorted;
+    }
+
+    private int oldestSlot() {
+        int slot = this.head - this.count;
+        return slot < 0 ? slot + CAPACITY : slot;
+    }
+
+    private static int next(int slot) {
+        return slot + 1 == CAPACITY ? 0 : slot + 1;
+    }
+
+    /**
+     * The allocation counters of all threads at a point in time.
+     */
+    private static final class Reading {
+        private final long time;
+        /** The thread ids, in ascending order */
+        private final long[] ids;
+        private final String[] names;
+        /** The bytes allocated by each thread, or -1 if it had stopped */
+        private final long[] allocated;
+
+        Reading(long time, long[] ids, String[] names, long[] allocated) {
+            this.time = time;
+            this.ids = ids;
+            this.names = names;
+            this.allocated = allocated;
+        }
+    }
+
+    /**
+     * The allocation rate of a single thread.
+     */
+    public static final class ThreadAllocation {
+        private final long threadId;
+        private final String threadName;
+        private final double rate;
+
+        ThreadAllocation(long threadId, String threadName, double rate) {
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.rate = rate;
+        }
+
+        public long getThreadId() {
+            return this.threadId;
+        }
+
+        public String getThreadName() {
+            return this.threadName;
+        }
+
+        /**
+         * Gets the allocation rate, in bytes per second.
+         *
+         * @return the rate
+         */
+        public double getRate() {
+            return this.rate;
+        }
+    }
+
+}
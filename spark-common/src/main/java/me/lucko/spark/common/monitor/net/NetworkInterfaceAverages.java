@@ -22,8 +22,6 @@ package me.lucko.spark.common.monitor.net;
 
 import me.lucko.spark.common.util.RollingAverage;
 
-import java.math.BigDecimal;
-
 public final class NetworkInterfaceAverages {
     private final RollingAverage rxBytesPerSecond;
     private final RollingAverage txBytesPerSecond;
@@ -45,7 +43,7 @@ public final class NetworkInterfaceAverages {
     }
 
     interface RateCalculator {
-        BigDecimal calculate(long value);
+        double calculate(long value);
     }
 
     public RollingAverage bytesPerSecond(Direction direction) {
@@ -22,8 +22,6 @@ package me.lucko.spark.common.monitor.net;
 
 import me.lucko.spark.common.monitor.MonitoringExecutor;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -79,8 +77,6 @@ public enum NetworkMonitor {
      * Task to poll network activity and add to the rolling averages in the enclosing class.
      */
     private static final class RollingAverageCollectionTask implements Runnable {
-        private static final BigDecimal POLL_INTERVAL_DECIMAL = BigDecimal.valueOf(POLL_INTERVAL);
-
         @Override
         public void run() {
             Map<String, NetworkInterfaceInfo> values = pollAndDiff(NetworkInterfaceInfo::pollSystem, SYSTEM);
@@ -112,8 +108,8 @@ public enum NetworkMonitor {
             }
         }
 
-        private static BigDecimal calculateRate(long value) {
-            return BigDecimal.valueOf(value).divide(POLL_INTERVAL_DECIMAL, RoundingMode.HALF_UP);
+        private static double calculateRate(long value) {
+            return Math.round((double) value / POLL_INTERVAL);
         }
         
         private static Map<String, NetworkInterfaceInfo> pollAndDiff(Supplier<Map<String, NetworkInterfaceInfo>> poller, AtomicReference<Map<String, NetworkInterfaceInfo>> valueReference) {
@@ -25,7 +25,6 @@ import me.lucko.spark.common.util.RollingAverage;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import java.math.BigDecimal;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -75,7 +74,7 @@ public final class PingStatistics implements Runnable, AutoCloseable {
             return;
         }
 
-        this.rollingAverage.add(BigDecimal.valueOf(summary.median()));
+        this.rollingAverage.add(summary.median());
     }
 
     /**
@@ -37,6 +37,14 @@ public interface ReportPredicate {
      */
     boolean shouldReport(double duration, double increaseFromAvg, double percentageChange);
 
+    /**
+     * Gets the tick duration above which ticks may be reported.
+     *
+     * @param averageTickTime the average tick duration
+     * @return the duration threshold
+     */
+    double durationThreshold(double averageTickTime);
+
     /**
      * Gets a component to describe how the predicate will select ticks to report.
      *
@@ -59,6 +67,11 @@ public interface ReportPredicate {
             return percentageChange > this.threshold;
         }
 
+        @Override
+        public double durationThreshold(double averageTickTime) {
+            return averageTickTime * (1 + this.threshold / 100d);
+        }
+
         @Override
         public Component monitoringStartMessage() {
             return Component.text("Starting now, any ticks with >" + this.threshold + "% increase in " +
@@ -81,6 +94,11 @@ public interface ReportPredicate {
             return duration > this.threshold;
         }
 
+        @Override
+        public double durationThreshold(double averageTickTime) {
+            return this.threshold;
+        }
+
         @Override
         public Component monitoringStartMessage() {
             return Component.text("Starting now, any ticks with duration >" + this.threshold + " will be reported.");
@@ -23,10 +23,11 @@ package me.lucko.spark.common.monitor.tick;
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.tick.TickReporter;
+import me.lucko.spark.common.util.LogLinearHistogram;
 import me.lucko.spark.common.util.RollingAverage;
+import me.lucko.spark.common.util.RollingHistogram;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,7 +46,6 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
     private static final long SEC_IN_NANO = TimeUnit.SECONDS.toNanos(1);
     private static final int TPS = 20;
     private static final int TPS_SAMPLE_INTERVAL = 20;
-    private static final BigDecimal TPS_BASE = new BigDecimal(SEC_IN_NANO).multiply(new BigDecimal(TPS_SAMPLE_INTERVAL));
 
     private final TpsRollingAverage tps5Sec = new TpsRollingAverage(5);
     private final TpsRollingAverage tps10Sec = new TpsRollingAverage(10);
@@ -59,6 +59,11 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
     private final RollingAverage tickDuration1Min = new RollingAverage(TPS * 60);
     private final RollingAverage tickDuration5Min = new RollingAverage(TPS * 60 * 5);
     private final RollingAverage[] tickDurationAverages = {this.tickDuration10Sec, this.tickDuration1Min, this.tickDuration5Min};
+    private final RollingHistogram tickDurationHistogram10Sec = new RollingHistogram(10, 2, TimeUnit.SECONDS);
+    private final RollingHistogram tickDurationHistogram1Min = new RollingHistogram(60, 10, TimeUnit.SECONDS);
+    private final RollingHistogram tickDurationHistogram5Min = new RollingHistogram(60 * 5, 60, TimeUnit.SECONDS);
+    private final RollingHistogram[] tickDurationHistograms = {this.tickDurationHistogram10Sec, this.tickDurationHistogram1Min, this.tickDurationHistogram5Min};
+    private final TickTimelineRecorder tickDurationTimeline = new TickTimelineRecorder(TickTimelineRecorder.DEFAULT_CAPACITY);
 
     private long last = 0;
 
@@ -81,11 +86,8 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
         }
 
         long diff = now - this.last;
-        BigDecimal currentTps = TPS_BASE.divide(new BigDecimal(diff), 30, RoundingMode.HALF_UP);
-        BigDecimal total = currentTps.multiply(new BigDecimal(diff));
-
         for (TpsRollingAverage rollingAverage : this.tpsAverages) {
-            rollingAverage.add(currentTps, diff, total);
+            rollingAverage.add(diff);
         }
 
         this.last = now;
@@ -94,10 +96,13 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
     @Override
     public void onTick(double duration) {
         this.durationSupported = true;
-        BigDecimal decimal = new BigDecimal(duration);
         for (RollingAverage rollingAverage : this.tickDurationAverages) {
-            rollingAverage.add(decimal);
+            rollingAverage.add(duration);
+        }
+        for (RollingHistogram histogram : this.tickDurationHistograms) {
+            histogram.record(duration);
         }
+        this.tickDurationTimeline.record(duration, System.currentTimeMillis());
     }
 
     @Override
@@ -149,48 +154,80 @@ public class SparkTickStatistics implements TickHook.Callback, TickReporter.Call
         return this.tickDuration5Min;
     }
 
+    @Override
+    public LogLinearHistogram durationHistogram10Sec() {
+        if (!this.durationSupported) {
+            return null;
+        }
+        return this.tickDurationHistogram10Sec.snapshot();
+    }
+
+    @Override
+    public LogLinearHistogram durationHistogram1Min() {
+        if (!this.durationSupported) {
+            return null;
+        }
+        return this.tickDurationHistogram1Min.snapshot();
+    }
+
+    @Override
+    public LogLinearHistogram durationHistogram5Min() {
+        if (!this.durationSupported) {
+            return null;
+        }
+        return this.tickDurationHistogram5Min.snapshot();
+    }
+
+    @Override
+    public TickTimelineRecorder.Snapshot durationTimeline() {
+        if (!this.durationSupported) {
+            return null;
+        }
+        return this.tickDurationTimeline.snapshot();
+    }
+
 
     /**
      * Rolling average calculator.
      *
-     * <p>This code is taken from PaperMC/Paper, licensed under MIT.</p>
+     * <p>This code is based on PaperMC/Paper, licensed under MIT.</p>
+     *
+     * <p>Paper records the TPS measured over each sample ({@code TPS_SAMPLE_INTERVAL} ticks
+     * divided by the time taken) and averages them, weighted by the time each sample covers. The
+     * TPS multiplied by the time is just the number of ticks in the sample, which is the same for
+     * every sample (including the initial ones, which are {@code TPS} ticks over one second), so
+     * the average reduces to a constant divided by the total time in the window. Only the sample
+     * times need to be kept, as primitive nanosecond values.</p>
      *
      * @author aikar (PaperMC) https://github.com/PaperMC/Paper/blob/master/Spigot-Server-Patches/0021-Further-improve-server-tick-loop.patch
      */
     public static final class TpsRollingAverage {
         private final int size;
+        /** The number of ticks in the window, multiplied by {@code SEC_IN_NANO} */
+        private final double total;
+        /** The total time in nanoseconds covered by the window */
         private long time;
-        private BigDecimal total;
         private int index = 0;
-        private final BigDecimal[] samples;
         private final long[] times;
 
         TpsRollingAverage(int size) {
             this.size = size;
+            this.total = (double) TPS_SAMPLE_INTERVAL * SEC_IN_NANO * size;
             this.time = size * SEC_IN_NANO;
-            this.total = new BigDecimal(TPS).multiply(new BigDecimal(SEC_IN_NANO)).multiply(new BigDecimal(size));
-            this.samples = new BigDecimal[size];
             this.times = new long[size];
-            for (int i = 0; i < size; i++) {
-                this.samples[i] = new BigDecimal(TPS);
-                this.times[i] = SEC_IN_NANO;
-            }
+            Arrays.fill(this.times, SEC_IN_NANO);
         }
 
-        public void add(BigDecimal x, long t, BigDecimal total) {
-            this.time -= this.times[this.index];
-            this.total = this.total.subtract(this.samples[this.index].multiply(new BigDecimal(this.times[this.index])));
-            this.samples[this.index] = x;
+        public void add(long t) {
+            this.time += t - this.times[this.index];
             this.times[this.index] = t;
-            this.time += t;
-            this.total = this.total.add(total);
             if (++this.index == this.size) {
                 this.index = 0;
             }
         }
 
         public double getAverage() {
-            return this.total.divide(new BigDecimal(this.time), 30, RoundingMode.HALF_UP).doubleValue();
+            return this.total / this.time;
         }
     }
 
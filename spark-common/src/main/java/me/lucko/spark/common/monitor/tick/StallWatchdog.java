@@ -0,0 +1,326 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.tick;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.monitor.MonitoringExecutor;
+import me.lucko.spark.common.tick.TickHook;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Watches for the server thread stalling (not ticking) for longer than a time budget.
+ *
+ * <p>The tick hook callback only records the time of each tick, and the check runs on the
+ * {@link MonitoringExecutor} a few times per budget - so the watchdog is cheap enough to run all
+ * the time.</p>
+ *
+ * <p>When a stall is detected, a report is written to the {@code stalls} directory, containing a
+ * dump of all threads (with lock information) and then the stack of the server thread, sampled
+ * at increasing intervals until it ticks again. The most recent reports are kept.</p>
+ */
+public class StallWatchdog implements TickHook.Callback, AutoCloseable {
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss");
+
+    /** The interval between the first samples of the server thread */
+    private static final long INITIAL_SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    /** The maximum interval between samples of the server thread */
+    private static final long MAX_SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    /** The interval between dumps of all threads */
+    private static final long FULL_DUMP_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+    /** The maximum number of samples of the server thread in a report */
+    private static final int MAX_SAMPLES = 250;
+
+    private final SparkPlatform platform;
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final Path directory;
+    private final long budget;
+    private final int reportsToKeep;
+    private ScheduledFuture<?> checkTask;
+
+    /** The server thread, and the time (from nanoTime) of its last tick */
+    private volatile Thread serverThread;
+    private volatile long lastTick = 0;
+
+    // the state below is only accessed from the monitoring executor
+
+    /** The report being written for the current stall, or null if the server isn't stalled */
+    private Report report;
+
+    public StallWatchdog(SparkPlatform platform, Path directory, long budgetMillis, int reportsToKeep) {
+        this.platform = platform;
+        this.directory = directory;
+        this.budget = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.reportsToKeep = reportsToKeep;
+    }
+
+    public void start() {
+        long checkInterval = Math.max(TimeUnit.MILLISECONDS.toNanos(100), this.budget / 4);
+        this.checkTask = MonitoringExecutor.INSTANCE.scheduleAtFixedRate(this::check, checkInterval, checkInterval, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (this.checkTask != null) {
+            this.checkTask.cancel(false);
+        }
+        MonitoringExecutor.INSTANCE.execute(() -> {
+            if (this.report != null) {
+                this.report.finish("spark was disabled");
+                this.report = null;
+            }
+        });
+    }
+
+    @Override
+    public void onTick(int currentTick) {
+        // tick callbacks are called on the server thread
+        if (this.serverThread == null) {
+            this.serverThread = Thread.currentThread();
+        }
+        this.lastTick = System.nanoTime();
+    }
+
+    private void check() {
+        long lastTick = this.lastTick;
+        if (lastTick == 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (this.report != null) {
+            if (this.report.lastTick != lastTick) {
+                this.report.finish("The server thread ticked again after " + millis(this.report.elapsed(now)) + "ms");
+                this.report = null;
+            }
+        } else if (now - lastTick >= this.budget) {
+            try {
+                this.report = new Report(lastTick);
+                this.report.start(now);
+            } catch (Exception e) {
+                this.platform.getPlugin().log(Level.WARNING, "Unable to write stall report: " + e);
+                this.report = null;
+            }
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * A report for a single stall.
+     */
+    private final class Report {
+        private final long lastTick;
+        private final Path file;
+        private BufferedWriter writer;
+        private ScheduledFuture<?> sampleTask;
+
+        private long sampleInterval = INITIAL_SAMPLE_INTERVAL;
+        private long lastFullDump;
+        private int samples = 0;
+
+        Report(long lastTick) {
+            this.lastTick = lastTick;
+            this.file = StallWatchdog.this.directory.resolve("stall-" + DATE_TIME_FORMATTER.format(LocalDateTime.now()) + ".txt");
+        }
+
+        long elapsed(long now) {
+            return now - this.lastTick;
+        }
+
+        void start(long now) throws IOException {
+            Files.createDirectories(this.file.getParent());
+            deleteOldReports();
+            this.writer = Files.newBufferedWriter(this.file, StandardCharsets.UTF_8);
+
+            Thread serverThread = StallWatchdog.this.serverThread;
+            StallWatchdog.this.platform.getPlugin().log(Level.WARNING, "The server thread (" + (serverThread == null ? "unknown" : serverThread.getName()) +
+                    ") has not ticked for " + millis(elapsed(now)) + "ms! Writing a stall report to " + this.file);
+
+            this.writer.write("Stall report generated by spark at " + LocalDateTime.now());
+            this.writer.newLine();
+            this.writer.write("The server thread had not ticked for " + millis(elapsed(now)) + "ms (budget " + millis(StallWatchdog.this.budget) + "ms)");
+            this.writer.newLine();
+            this.writer.newLine();
+
+            writeFullDump(now);
+            sampleServerThread();
+        }
+
+        private void sampleServerThread() {
+            if (StallWatchdog.this.report != this) {
+                return;
+            }
+
+            try {
+                long now = System.nanoTime();
+                if (now - this.lastFullDump >= FULL_DUMP_INTERVAL) {
+                    writeFullDump(now);
+                }
+
+                Thread serverThread = StallWatchdog.this.serverThread;
+                ThreadMXBean threadBean = StallWatchdog.this.threadBean;
+                ThreadInfo info = serverThread == null ? null : threadBean.getThreadInfo(new long[]{serverThread.getId()}, threadBean.isObjectMonitorUsageSupported(), threadBean.isSynchronizerUsageSupported())[0];
+                if (info != null) {
+                    this.writer.write("--- server thread at +" + millis(elapsed(now)) + "ms ---");
+                    this.writer.newLine();
+                    writeThreadInfo(this.writer, info);
+                    this.writer.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            if (++this.samples < MAX_SAMPLES) {
+                this.sampleTask = MonitoringExecutor.INSTANCE.schedule(this::sampleServerThread, this.sampleInterval, TimeUnit.NANOSECONDS);
+                this.sampleInterval = Math.min(MAX_SAMPLE_INTERVAL, this.sampleInterval * 2);
+            }
+        }
+
+        private void writeFullDump(long now) throws IOException {
+            ThreadMXBean threadBean = StallWatchdog.this.threadBean;
+            ThreadInfo[] threads = threadBean.dumpAllThreads(threadBean.isObjectMonitorUsageSupported(), threadBean.isSynchronizerUsageSupported());
+
+            this.writer.write("=== all threads at +" + millis(elapsed(now)) + "ms ===");
+            this.writer.newLine();
+            for (ThreadInfo info : threads) {
+                if (info != null) {
+                    writeThreadInfo(this.writer, info);
+                }
+            }
+
+            long[] deadlocked = threadBean.isSynchronizerUsageSupported() ? threadBean.findDeadlockedThreads() : threadBean.findMonitorDeadlockedThreads();
+            if (deadlocked != null) {
+                this.writer.write("Deadlocked threads: " + Stream.of(threadBean.getThreadInfo(deadlocked))
+                        .map(info -> info == null ? "?" : "\"" + info.getThreadName() + "\"")
+                        .collect(Collectors.joining(", ")));
+                this.writer.newLine();
+                this.writer.newLine();
+            }
+
+            this.writer.flush();
+            this.lastFullDump = now;
+        }
+
+        void finish(String reason) {
+            if (this.sampleTask != null) {
+                this.sampleTask.cancel(false);
+            }
+            StallWatchdog.this.platform.getPlugin().log(Level.INFO, reason + " - the stall report has been written to " + this.file);
+
+            try {
+                this.writer.write(reason);
+                this.writer.newLine();
+                this.writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void deleteOldReports() throws IOException {
+            List<Path> reports;
+            try (Stream<Path> files = Files.list(this.file.getParent())) {
+                reports = files.filter(f -> f.getFileName().toString().startsWith("stall-"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (int i = 0; i <= reports.size() - StallWatchdog.this.reportsToKeep; i++) {
+                Files.deleteIfExists(reports.get(i));
+            }
+        }
+    }
+
+    /**
+     * Writes a thread, in the same format as {@link ThreadInfo#toString()} but without the limit
+     * on the number of frames.
+     *
+     * @param writer the writer
+     * @param info the thread
+     * @throws IOException if an error occurs
+     */
+    private static void writeThreadInfo(BufferedWriter writer, ThreadInfo info) throws IOException {
+        StringBuilder sb = new StringBuilder("\"" + info.getThreadName() + "\" Id=" + info.getThreadId() + " " + info.getThreadState());
+        if (info.getLockName() != null) {
+            sb.append(" on ").append(info.getLockName());
+        }
+        if (info.getLockOwnerName() != null) {
+            sb.append(" owned by \"").append(info.getLockOwnerName()).append("\" Id=").append(info.getLockOwnerId());
+        }
+        if (info.isSuspended()) {
+            sb.append(" (suspended)");
+        }
+        if (info.isInNative()) {
+            sb.append(" (in native)");
+        }
+        writer.write(sb.toString());
+        writer.newLine();
+
+        StackTraceElement[] stack = info.getStackTrace();
+        MonitorInfo[] monitors = info.getLockedMonitors();
+        for (int i = 0; i < stack.length; i++) {
+            writer.write("\tat " + stack[i]);
+            writer.newLine();
+            if (i == 0 && info.getLockInfo() != null) {
+                writer.write("\t-  " + info.getThreadState().toString().toLowerCase(Locale.ROOT) + " on " + info.getLockInfo());
+                writer.newLine();
+            }
+            for (MonitorInfo monitor : monitors) {
+                if (monitor.getLockedStackDepth() == i) {
+                    writer.write("\t-  locked " + monitor);
+                    writer.newLine();
+                }
+            }
+        }
+
+        LockInfo[] synchronizers = info.getLockedSynchronizers();
+        if (synchronizers.length != 0) {
+            writer.write("\tLocked synchronizers:");
+            writer.newLine();
+            for (LockInfo synchronizer : synchronizers) {
+                writer.write("\t- " + synchronizer);
+                writer.newLine();
+            }
+        }
+        writer.newLine();
+    }
+
+}
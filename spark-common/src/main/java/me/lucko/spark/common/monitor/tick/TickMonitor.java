@@ -28,6 +28,8 @@ import me.lucko.spark.common.tick.TickHook;
 
 import net.kyori.adventure.text.Component;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.util.DoubleSummaryStatistics;
 
@@ -55,6 +57,8 @@ public abstract class TickMonitor implements TickHook.Callback, GarbageCollectio
     private final GarbageCollectionMonitor garbageCollectionMonitor;
     /** The predicate used to decide if a tick should be reported. */
     private final ReportPredicate reportPredicate;
+    /** The interval (in microseconds) to sample the server thread at during long ticks, or -1 if disabled */
+    private final long spikeSamplingInterval;
 
     /**
      * Enum representing the various phases in a tick monitors lifetime.
@@ -74,12 +78,19 @@ public abstract class TickMonitor implements TickHook.Callback, GarbageCollectio
     private final DoubleSummaryStatistics averageTickTimeCalc = new DoubleSummaryStatistics();
     /** The average tick time, defined at the end of the SETUP phase. */
     private double averageTickTime;
+    /** The sampler capturing stacks during long ticks, created at the start of the MONITORING phase. */
+    private TickSpikeSampler spikeSampler;
 
     public TickMonitor(SparkPlatform platform, TickHook tickHook, ReportPredicate reportPredicate, boolean monitorGc) {
+        this(platform, tickHook, reportPredicate, monitorGc, -1);
+    }
+
+    public TickMonitor(SparkPlatform platform, TickHook tickHook, ReportPredicate reportPredicate, boolean monitorGc, long spikeSamplingInterval) {
         this.platform = platform;
         this.tickHook = tickHook;
         this.zeroTick = tickHook.getCurrentTick();
         this.reportPredicate = reportPredicate;
+        this.spikeSamplingInterval = spikeSamplingInterval;
 
         if (monitorGc) {
             this.garbageCollectionMonitor =  new GarbageCollectionMonitor();
@@ -106,11 +117,16 @@ public abstract class TickMonitor implements TickHook.Callback, GarbageCollectio
         if (this.garbageCollectionMonitor != null) {
             this.garbageCollectionMonitor.close();
         }
+
+        if (this.spikeSampler != null) {
+            this.spikeSampler.close();
+        }
     }
 
     @Override
     public void onTick(int currentTick) {
-        double now = ((double) System.nanoTime()) / 1000000d;
+        long nanoTime = System.nanoTime();
+        double now = ((double) nanoTime) / 1000000d;
 
         // init
         if (this.phase == null) {
@@ -170,18 +186,28 @@ public abstract class TickMonitor implements TickHook.Callback, GarbageCollectio
 
                 this.averageTickTime = this.averageTickTimeCalc.getAverage();
                 this.phase = Phase.MONITORING;
+
+                if (this.spikeSamplingInterval > 0) {
+                    // tick callbacks are called on the server thread
+                    long threshold = (long) (this.reportPredicate.durationThreshold(this.averageTickTime) * 1000000d);
+                    this.spikeSampler = new TickSpikeSampler(Thread.currentThread(), threshold, this.spikeSamplingInterval * 1000L);
+                    this.spikeSampler.start();
+                }
             }
         }
 
         if (this.phase == Phase.MONITORING) {
+            TickSpikeSampler.Profile spikeProfile = this.spikeSampler == null ? null : this.spikeSampler.onTickStart(currentTick, nanoTime);
+
             double increase = tickDuration - this.averageTickTime;
             double percentageChange = (increase * 100d) / this.averageTickTime;
             if (this.reportPredicate.shouldReport(tickDuration, increase, percentageChange)) {
+                int tickNumber = getCurrentTick();
                 this.platform.getPlugin().executeAsync(() -> {
                     sendMessage(text()
                             .color(GRAY)
                             .append(text("Tick "))
-                            .append(text("#" + getCurrentTick(), DARK_GRAY))
+                            .append(text("#" + tickNumber, DARK_GRAY))
                             .append(text(" lasted "))
                             .append(text(DF.format(tickDuration), GOLD))
                             .append(text(" ms. "))
@@ -190,11 +216,43 @@ public abstract class TickMonitor implements TickHook.Callback, GarbageCollectio
                             .append(text(" increase from avg)"))
                             .build()
                     );
+                    if (spikeProfile != null && spikeProfile.getSamples() != 0) {
+                        reportSpikeProfile(spikeProfile, tickNumber);
+                    }
                 });
             }
         }
     }
 
+    private void reportSpikeProfile(TickSpikeSampler.Profile profile, int tickNumber) {
+        int samples = profile.getSamples();
+        sendMessage(text()
+                .color(GRAY)
+                .append(text(">", WHITE))
+                .append(space())
+                .append(text("Sampled the server thread "))
+                .append(text(samples, WHITE))
+                .append(text(" times once the tick went over the threshold. Top methods:"))
+                .build()
+        );
+        profile.getTopMethods(5).forEach((method, count) -> sendMessage(text()
+                .color(GRAY)
+                .append(text("  "))
+                .append(text(DF.format(count * 100d / samples) + "%", GOLD))
+                .append(space())
+                .append(text(method + "()", WHITE))
+                .build()
+        ));
+
+        Path file = this.platform.resolveSaveFile("tickspike-" + tickNumber, "txt");
+        try {
+            profile.writeCollapsed(file);
+            sendMessage(text("  The sampled stacks have been written to: " + file, DARK_GRAY));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void onGc(GarbageCollectionNotificationInfo data) {
         if (this.phase == Phase.SETUP) {
@@ -0,0 +1,266 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.tick;
+
+import me.lucko.spark.common.util.SparkThreadFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples the server thread at a high frequency, but only while a tick is running over a
+ * duration threshold.
+ *
+ * <p>The watcher thread sleeps until the current tick would cross the threshold, and goes back to
+ * sleep if the tick has already finished by then - so outside of spikes it wakes (at most) once
+ * per tick, and the server thread only has to publish the start time of each tick.</p>
+ */
+public class TickSpikeSampler implements AutoCloseable {
+
+    /** The maximum number of samples taken in a single tick */
+    private static final int MAX_SAMPLES_PER_TICK = 60_000;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final long serverThreadId;
+    private final long thresholdNanos;
+    private final long intervalNanos;
+    private final Thread watcher;
+
+    /** The number of the current tick, and the time (from nanoTime) when it started */
+    private volatile int tick = -1;
+    private volatile long tickStart;
+    /** The samples taken for the current tick, if it has crossed the threshold */
+    private volatile Profile current;
+    private volatile boolean running = true;
+
+    public TickSpikeSampler(Thread serverThread, long thresholdNanos, long intervalNanos) {
+        this.serverThreadId = serverThread.getId();
+        this.thresholdNanos = thresholdNanos;
+        this.intervalNanos = intervalNanos;
+        this.watcher = new Thread(this::watch, "spark-tick-spike-sampler");
+        this.watcher.setDaemon(true);
+        this.watcher.setUncaughtExceptionHandler(SparkThreadFactory.EXCEPTION_HANDLER);
+    }
+
+    public void start() {
+        this.watcher.start();
+    }
+
+    /**
+     * Called by the server thread at the start of each tick.
+     *
+     * @param tick the number of the tick which is starting
+     * @param now the current time (from nanoTime)
+     * @return the samples taken during the previous tick, or null if it didn't cross the threshold
+     */
+    public Profile onTickStart(int tick, long now) {
+        int ended = this.tick;
+        this.tickStart = now;
+        this.tick = tick;
+
+        Profile previous = this.current;
+        if (previous == null) {
+            return null;
+        }
+        this.current = null;
+        previous.close();
+
+        // the watcher may have been late to notice that the tick had already finished
+        return previous.tick == ended ? previous : null;
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.watcher);
+    }
+
+    private void watch() {
+        while (this.running) {
+            int tick = this.tick;
+            long deadline = this.tickStart + this.thresholdNanos;
+            long now = System.nanoTime();
+
+            if (tick == -1 || now < deadline) {
+                LockSupport.parkNanos(this, tick == -1 ? this.thresholdNanos : deadline - now);
+                continue;
+            }
+
+            // the tick has crossed the threshold - sample until it finishes
+            Profile profile = new Profile(tick);
+            this.current = profile;
+            while (this.running && this.tick == tick && profile.add(sample())) {
+                LockSupport.parkNanos(this, this.intervalNanos);
+            }
+
+            // wait for the next tick to start
+            while (this.running && this.tick == tick) {
+                LockSupport.parkNanos(this, this.intervalNanos);
+            }
+        }
+    }
+
+    private StackTraceElement[] sample() {
+        ThreadInfo info = this.threadBean.getThreadInfo(this.serverThreadId, Integer.MAX_VALUE);
+        return info == null ? null : info.getStackTrace();
+    }
+
+    /**
+     * The stacks sampled during a single tick, merged into a tree.
+     */
+    public static final class Profile {
+        private final int tick;
+        private final Node root = new Node(null);
+        private int samples = 0;
+        private boolean closed = false;
+
+        Profile(int tick) {
+            this.tick = tick;
+        }
+
+        synchronized boolean add(StackTraceElement[] stack) {
+            if (this.closed || this.samples >= MAX_SAMPLES_PER_TICK) {
+                return false;
+            }
+            if (stack == null || stack.length == 0) {
+                return true;
+            }
+
+            this.samples++;
+            Node node = this.root;
+            node.total++;
+            for (int i = stack.length - 1; i >= 0; i--) {
+                node = node.child(stack[i].getClassName() + "." + stack[i].getMethodName());
+                node.total++;
+            }
+            node.self++;
+            return true;
+        }
+
+        synchronized void close() {
+            this.closed = true;
+        }
+
+        public int getTick() {
+            return this.tick;
+        }
+
+        public synchronized int getSamples() {
+            return this.samples;
+        }
+
+        /**
+         * Gets the methods with the most self time (samples where they were at the top of the stack).
+         *
+         * @param limit the maximum number of methods to return
+         * @return the methods, mapped to the number of samples
+         */
+        public synchronized Map<String, Integer> getTopMethods(int limit) {
+            Map<String, Integer> selfTimes = new HashMap<>();
+            this.root.collectSelfTimes(selfTimes);
+
+            Map<String, Integer> top = new LinkedHashMap<>();
+            selfTimes.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                    .limit(limit)
+                    .forEach(e -> top.put(e.getKey(), e.getValue()));
+            return top;
+        }
+
+        /**
+         * Writes the samples to a file in the "collapsed stacks" format, which can be read by
+         * most flame graph tools.
+         *
+         * @param file the file
+         * @throws IOException if an error occurs writing the file
+         */
+        public synchronized void writeCollapsed(Path file) throws IOException {
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for (Node child : this.root.sortedChildren()) {
+                    child.writeCollapsed(writer, new StringBuilder());
+                }
+            }
+        }
+    }
+
+    private static final class Node {
+        private final String frame;
+        private final Map<String, Node> children = new HashMap<>();
+        private int total = 0;
+        private int self = 0;
+
+        Node(String frame) {
+            this.frame = frame;
+        }
+
+        Node child(String frame) {
+            return this.children.computeIfAbsent(frame, Node::new);
+        }
+
+        List<Node> sortedChildren() {
+            List<Node> children = new ArrayList<>(this.children.values());
+            children.sort(Comparator.comparingInt((Node n) -> n.total).reversed());
+            return children;
+        }
+
+        void collectSelfTimes(Map<String, Integer> selfTimes) {
+            if (this.self != 0) {
+                selfTimes.merge(this.frame, this.self, Integer::sum);
+            }
+            for (Node child : this.children.values()) {
+                child.collectSelfTimes(selfTimes);
+            }
+        }
+
+        void writeCollapsed(BufferedWriter writer, StringBuilder path) throws IOException {
+            int length = path.length();
+            if (length != 0) {
+                path.append(';');
+            }
+            path.append(this.frame);
+
+            if (this.self != 0) {
+                writer.write(path.toString());
+                writer.write(' ');
+                writer.write(Integer.toString(this.self));
+                writer.newLine();
+            }
+            for (Node child : sortedChildren()) {
+                child.writeCollapsed(writer, path);
+            }
+            path.setLength(length);
+        }
+    }
+
+}
@@ -21,6 +21,7 @@
 package me.lucko.spark.common.monitor.tick;
 
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
+import me.lucko.spark.common.util.LogLinearHistogram;
 
 /**
  * Provides the server TPS (ticks per second) and MSPT (milliseconds per tick) rates.
@@ -39,4 +40,40 @@ public interface TickStatistics {
     DoubleAverageInfo duration1Min();
     DoubleAverageInfo duration5Min();
 
+    /**
+     * Gets a histogram of the tick durations over the last 10 seconds.
+     *
+     * @return a snapshot of the histogram, or null if durations are not supported
+     */
+    default LogLinearHistogram durationHistogram10Sec() {
+        return null;
+    }
+
+    /**
+     * Gets a histogram of the tick durations over the last minute.
+     *
+     * @return a snapshot of the histogram, or null if durations are not supported
+     */
+    default LogLinearHistogram durationHistogram1Min() {
+        return null;
+    }
+
+    /**
+     * Gets a histogram of the tick durations over the last 5 minutes.
+     *
+     * @return a snapshot of the histogram, or null if durations are not supported
+     */
+    default LogLinearHistogram durationHistogram5Min() {
+        return null;
+    }
+
+    /**
+     * Gets the duration of each recent tick.
+     *
+     * @return a snapshot of the timeline, or null if durations are not supported
+     */
+    default TickTimelineRecorder.Snapshot durationTimeline() {
+        return null;
+    }
+
 }
@@ -0,0 +1,192 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.tick;
+
+import me.lucko.spark.api.statistic.misc.TickTimeline;
+import me.lucko.spark.proto.SparkSamplerProtos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the duration of every tick, for a fixed number of recent ticks.
+ *
+ * <p>Each tick takes 4 bytes: its duration (in units of 0.1ms) and the time since the end of the
+ * previous tick (in ms), both as unsigned 16-bit values. The rare values which don't fit (ticks
+ * longer than 6.5 seconds, or gaps longer than a minute) are stored as {@link #OVERFLOW}, and the
+ * real value is kept in a small side table.</p>
+ */
+public class TickTimelineRecorder {
+
+    /** The number of ticks recorded by default - 20 minutes at 20 TPS */
+    public static final int DEFAULT_CAPACITY = 20 * 60 * 20;
+
+    private static final double DURATION_RESOLUTION = 10d;
+    /** The value stored in place of a duration or gap which doesn't fit */
+    private static final char OVERFLOW = 0xFFFF;
+
+    /** The duration of each tick */
+    private final char[] durations;
+    /** The time between the end of each tick and the end of the previous one */
+    private final char[] gaps;
+    /** The slot the next tick will be written to */
+    private int head = 0;
+    /** The number of ticks recorded */
+    private int count = 0;
+    /** The time when the most recent tick ended */
+    private long lastEndTime = 0;
+    /** The real durations & gaps of the slots holding {@link #OVERFLOW} */
+    private final Map<Integer, Long> overflowDurations = new HashMap<>();
+    private final Map<Integer, Long> overflowGaps = new HashMap<>();
+
+    public TickTimelineRecorder(int capacity) {
+        this.durations = new char[capacity];
+        this.gaps = new char[capacity];
+    }
+
+    public synchronized void record(double duration, long endTime) {
+        long gap = this.count == 0 ? 0 : endTime - this.lastEndTime;
+        this.durations[this.head] = store(Math.max(0, Math.round(duration * DURATION_RESOLUTION)), this.head, this.overflowDurations);
+        this.gaps[this.head] = store(gap, this.head, this.overflowGaps);
+        this.lastEndTime = endTime;
+
+        this.head = this.head + 1 == this.durations.length ? 0 : this.head + 1;
+        if (this.count < this.durations.length) {
+            this.count++;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the recorded ticks.
+     *
+     * @return the snapshot
+     */
+    public synchronized Snapshot snapshot() {
+        int count = this.count;
+        char[] durations = new char[count];
+        long[] endTimes = new long[count];
+        Map<Integer, Long> overflowDurations = new HashMap<>();
+
+        int slot = this.head;
+        long endTime = this.lastEndTime;
+        for (int i = count - 1; i >= 0; i--) {
+            slot = slot == 0 ? this.durations.length - 1 : slot - 1;
+            durations[i] = this.durations[slot];
+            if (durations[i] == OVERFLOW) {
+                overflowDurations.put(i, this.overflowDurations.get(slot));
+            }
+            endTimes[i] = endTime;
+            endTime -= load(this.gaps[slot], slot, this.overflowGaps);
+        }
+        return new Snapshot(durations, overflowDurations, endTimes);
+    }
+
+    private static char store(long value, int slot, Map<Integer, Long> overflow) {
+        if (value >= 0 && value < OVERFLOW) {
+            overflow.remove(slot);
+            return (char) value;
+        }
+        overflow.put(slot, value);
+        return OVERFLOW;
+    }
+
+    private static long load(char value, int slot, Map<Integer, Long> overflow) {
+        return value == OVERFLOW ? overflow.get(slot) : value;
+    }
+
+    private static int saturatedCast(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    public static final class Snapshot implements TickTimeline {
+        private final char[] durations;
+        private final Map<Integer, Long> overflowDurations;
+        private final long[] endTimes;
+
+        Snapshot(char[] durations, Map<Integer, Long> overflowDurations, long[] endTimes) {
+            this.durations = durations;
+            this.overflowDurations = overflowDurations;
+            this.endTimes = endTimes;
+        }
+
+        /**
+         * Gets the duration of a tick, in units of 0.1ms.
+         *
+         * @param index the index of the tick
+         * @return the duration
+         */
+        private long durationUnits(int index) {
+            return load(this.durations[index], index, this.overflowDurations);
+        }
+
+        @Override
+        public int size() {
+            return this.durations.length;
+        }
+
+        @Override
+        public double duration(int index) {
+            return durationUnits(index) / DURATION_RESOLUTION;
+        }
+
+        @Override
+        public long endTime(int index) {
+            return this.endTimes[index];
+        }
+
+        /**
+         * Exports the ticks which ended within the given time range.
+         *
+         * <p>Durations are written as the difference from the previous tick, and end times as the
+         * gap since the previous tick, so most values fit in a single byte.</p>
+         *
+         * @param from the start of the range (unix millis)
+         * @param to the end of the range (unix millis)
+         * @return the exported timeline
+         */
+        public SparkSamplerProtos.TickTimeline toProto(long from, long to) {
+            SparkSamplerProtos.TickTimeline.Builder proto = SparkSamplerProtos.TickTimeline.newBuilder()
+                    .setDurationResolution((int) DURATION_RESOLUTION);
+
+            long previousDuration = 0;
+            long previousEndTime = -1;
+            for (int i = 0; i < this.durations.length; i++) {
+                long endTime = this.endTimes[i];
+                if (endTime < from || endTime > to) {
+                    continue;
+                }
+
+                if (previousEndTime == -1) {
+                    proto.setStartTime(endTime);
+                } else {
+                    proto.addEndTimeDeltas(saturatedCast(endTime - previousEndTime));
+                }
+                long duration = durationUnits(i);
+                proto.addDurationDeltas(saturatedCast(duration - previousDuration));
+
+                previousDuration = duration;
+                previousEndTime = endTime;
+            }
+            return proto.build();
+        }
+    }
+
+}
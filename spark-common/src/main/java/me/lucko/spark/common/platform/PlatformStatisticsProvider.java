@@ -27,6 +27,7 @@ import me.lucko.spark.common.monitor.cpu.CpuMonitor;
 import me.lucko.spark.common.monitor.disk.DiskUsage;
 import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
 import me.lucko.spark.common.monitor.memory.MemoryInfo;
+import me.lucko.spark.common.monitor.memory.MemoryPoolMonitor;
 import me.lucko.spark.common.monitor.net.NetworkInterfaceAverages;
 import me.lucko.spark.common.monitor.net.NetworkMonitor;
 import me.lucko.spark.common.monitor.os.OperatingSystemInfo;
@@ -34,12 +35,15 @@ import me.lucko.spark.common.monitor.ping.PingStatistics;
 import me.lucko.spark.common.monitor.tick.TickStatistics;
 import me.lucko.spark.common.platform.world.AsyncWorldInfoProvider;
 import me.lucko.spark.common.platform.world.WorldStatisticsProvider;
+import me.lucko.spark.common.util.LogLinearHistogram;
 import me.lucko.spark.proto.SparkProtos;
 import me.lucko.spark.proto.SparkProtos.PlatformStatistics;
 import me.lucko.spark.proto.SparkProtos.SystemStatistics;
 import me.lucko.spark.proto.SparkProtos.WorldStatistics;
 
+import java.lang.management.BufferPoolMXBean;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.MemoryUsage;
 import java.lang.management.RuntimeMXBean;
 import java.util.Map;
@@ -134,14 +138,44 @@ public class PlatformStatisticsProvider {
         PlatformStatistics.Builder builder = PlatformStatistics.newBuilder();
 
         MemoryUsage memoryUsage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
-        builder.setMemory(PlatformStatistics.Memory.newBuilder()
+        PlatformStatistics.Memory.Builder memory = PlatformStatistics.Memory.newBuilder()
                 .setHeap(PlatformStatistics.Memory.MemoryPool.newBuilder()
                         .setUsed(memoryUsage.getUsed())
                         .setTotal(memoryUsage.getCommitted())
                         .build()
-                )
-                .build()
-        );
+                );
+
+        MemoryPoolMonitor memoryPoolMonitor = this.platform.getMemoryPoolMonitor();
+        for (MemoryPoolMXBean pool : memoryPoolMonitor.getPools()) {
+            MemoryUsage usage = pool.getUsage();
+            if (usage != null) {
+                memory.putPools(pool.getName(), PlatformStatistics.Memory.MemoryPool.newBuilder()
+                        .setUsed(usage.getUsed())
+                        .setTotal(usage.getCommitted())
+                        .build()
+                );
+            }
+        }
+        for (BufferPoolMXBean bufferPool : memoryPoolMonitor.getBufferPools()) {
+            memory.putBufferPools(bufferPool.getName(), PlatformStatistics.Memory.BufferPool.newBuilder()
+                    .setUsed(bufferPool.getMemoryUsed())
+                    .setCapacity(bufferPool.getTotalCapacity())
+                    .setCount(bufferPool.getCount())
+                    .build()
+            );
+        }
+
+        double allocationRate1Min = memoryPoolMonitor.allocationRate(60);
+        if (allocationRate1Min != -1) {
+            memory.setRates(PlatformStatistics.Memory.Rates.newBuilder()
+                    .setAllocationLast1M(allocationRate1Min)
+                    .setAllocationLast5M(memoryPoolMonitor.allocationRate(300))
+                    .setPromotionLast1M(memoryPoolMonitor.promotionRate(60))
+                    .setPromotionLast5M(memoryPoolMonitor.promotionRate(300))
+                    .build()
+            );
+        }
+        builder.setMemory(memory.build());
 
         long uptime = System.currentTimeMillis() - this.platform.getServerNormalOperationStartTime();
         builder.setUptime(uptime);
@@ -167,11 +201,20 @@ public class PlatformStatisticsProvider {
                     .build()
             );
             if (tickStatistics.isDurationSupported()) {
-                builder.setMspt(PlatformStatistics.Mspt.newBuilder()
+                PlatformStatistics.Mspt.Builder mspt = PlatformStatistics.Mspt.newBuilder()
                         .setLast1M(rollingAvgProto(tickStatistics.duration1Min()))
-                        .setLast5M(rollingAvgProto(tickStatistics.duration5Min()))
-                        .build()
-                );
+                        .setLast5M(rollingAvgProto(tickStatistics.duration5Min()));
+
+                LogLinearHistogram histogram1Min = tickStatistics.durationHistogram1Min();
+                if (histogram1Min != null) {
+                    mspt.setLast1MHistogram(histogram1Min.toValuesProto());
+                }
+                LogLinearHistogram histogram5Min = tickStatistics.durationHistogram5Min();
+                if (histogram5Min != null) {
+                    mspt.setLast5MHistogram(histogram5Min.toValuesProto());
+                }
+
+                builder.setMspt(mspt.build());
             }
         }
 
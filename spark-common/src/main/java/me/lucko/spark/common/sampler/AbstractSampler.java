@@ -31,24 +31,36 @@ package me.lucko.spark.common.sampler;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.command.sender.CommandSender;
 import me.lucko.spark.common.monitor.memory.GarbageCollectorStatistics;
+import me.lucko.spark.common.monitor.tick.TickStatistics;
+import me.lucko.spark.common.monitor.tick.TickTimelineRecorder;
 import me.lucko.spark.common.platform.MetadataProvider;
 import me.lucko.spark.common.platform.serverconfig.ServerConfigProvider;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.history.WindowHistory;
+import me.lucko.spark.common.sampler.history.WindowSummaries;
+import me.lucko.spark.common.sampler.node.FrozenWindows;
 import me.lucko.spark.common.sampler.node.MergeMode;
 import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.recording.FlightRecorder;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 import me.lucko.spark.common.sampler.source.SourceMetadata;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 import me.lucko.spark.common.sampler.window.WindowStatisticsCollector;
+import me.lucko.spark.common.tick.TickReporter;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkSamplerProtos.WindowSummary;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
 
 /**
  * Base implementation class for {@link Sampler}s.
@@ -73,6 +85,9 @@ public abstract class AbstractSampler implements Sampler {
     /** If the sampler is running in the background */
     protected boolean background;
 
+    /** If samples taken during a GC pause should be dropped, instead of attributed to a "GC pause" frame */
+    protected final boolean excludeGcPauses;
+
     /** Collects statistics for each window in the sample */
     protected final WindowStatisticsCollector windowStatisticsCollector;
 
@@ -91,7 +106,8 @@ public abstract class AbstractSampler implements Sampler {
         this.threadDumper = settings.threadDumper();
         this.autoEndTime = settings.autoEndTime();
         this.background = settings.runningInBackground();
-        this.windowStatisticsCollector = new WindowStatisticsCollector(platform);
+        this.excludeGcPauses = settings.excludeGcPauses();
+        this.windowStatisticsCollector = new WindowStatisticsCollector(platform, settings.threadGrouper());
     }
 
     @Override
@@ -117,6 +133,75 @@ public abstract class AbstractSampler implements Sampler {
         return this.future;
     }
 
+    /**
+     * Gets the data aggregator used by this sampler.
+     *
+     * @return the data aggregator
+     */
+    protected abstract DataAggregator getDataAggregator();
+
+    @Override
+    public List<ThreadNode> getCurrentData() {
+        return getDataAggregator().getCurrentData();
+    }
+
+    @Override
+    public List<WindowSummary> summariseCompletedWindows() {
+        return summariseWindows(window -> true);
+    }
+
+    private List<WindowSummary> summariseWindows(IntPredicate predicate) {
+        DataAggregator dataAggregator = getDataAggregator();
+        try (FrozenWindows.Snapshot frozenWindows = dataAggregator.snapshotCompletedWindows()) {
+            ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(getMode().valueTransformer(), frozenWindows).filter(predicate);
+            if (timeEncoder.getKeys().length == 0) {
+                return Collections.emptyList();
+            }
+
+            ClassSourceLookup.Visitor classSourceVisitor = ClassSourceLookup.createVisitor(ClassSourceLookup.create(this.platform));
+            return WindowSummaries.summarise(dataAggregator.getCurrentData(), timeEncoder, classSourceVisitor, this.windowStatisticsCollector.export(), getMode().valueTransformer());
+        }
+    }
+
+    /**
+     * Records a summary of the windows which are about to be pruned in the {@link WindowHistory}.
+     *
+     * @param predicate the prune predicate
+     */
+    protected void recordPrunedWindows(IntPredicate predicate) {
+        WindowHistory history = this.platform.getWindowHistory();
+        if (history == null || getMode() != SamplerMode.EXECUTION) {
+            return;
+        }
+
+        try {
+            for (WindowSummary summary : summariseWindows(predicate)) {
+                if (!history.append(summary)) {
+                    this.platform.getPlugin().log(Level.WARNING, "Summary of window " + summary.getWindow() + " is too large to be kept in the window history (" + summary.getSerializedSize() + " bytes)");
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends the newly completed windows to the {@link FlightRecorder}, if this is a background sampler.
+     */
+    protected void recordCompletedWindows() {
+        FlightRecorder recorder = this.platform.getBackgroundSamplerManager().getFlightRecorder();
+        if (recorder == null || !this.background) {
+            return;
+        }
+
+        DataAggregator dataAggregator = getDataAggregator();
+        try (FrozenWindows.Snapshot frozenWindows = dataAggregator.snapshotCompletedWindows()) {
+            recorder.record(dataAggregator.getCurrentData(), frozenWindows, this.windowStatisticsCollector.export(), getMode(), dataAggregator.getMetadata().getThreadGrouper(), this.interval);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     protected void recordInitialGcStats() {
         this.initialGcStats = GarbageCollectorStatistics.pollStats();
     }
@@ -128,6 +213,11 @@ public abstract class AbstractSampler implements Sampler {
     @Override
     public void start() {
         this.startTime = System.currentTimeMillis();
+
+        TickReporter tickReporter = this.platform.getTickReporter();
+        if (tickReporter != null) {
+            this.windowStatisticsCollector.startRecordingTickDurations(tickReporter);
+        }
     }
 
     @Override
@@ -190,6 +280,7 @@ public abstract class AbstractSampler implements Sampler {
                 .setStartTime(this.startTime)
                 .setEndTime(System.currentTimeMillis())
                 .setInterval(this.interval)
+                .setWindowSize(ProfilingWindowUtils.WINDOW_SIZE_SECONDS)
                 .setThreadDumper(this.threadDumper.getMetadata())
                 .setDataAggregator(dataAggregator.getMetadata());
 
@@ -240,36 +331,60 @@ public abstract class AbstractSampler implements Sampler {
         proto.setMetadata(metadata);
     }
 
-    protected void writeDataToProto(SamplerData.Builder proto, DataAggregator dataAggregator, MergeMode mergeMode, ClassSourceLookup classSourceLookup) {
-        List<ThreadNode> data = dataAggregator.exportData();
+    protected void writeDataToProto(SamplerData.Builder proto, DataAggregator dataAggregator, ExportProps exportProps) {
+        MergeMode mergeMode = exportProps.mergeMode().get();
+        ClassSourceLookup classSourceLookup = exportProps.classSourceLookup().get();
+
+        if (!exportProps.snapshot()) {
+            List<ThreadNode> data = dataAggregator.exportData();
+            ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(getMode().valueTransformer(), data, dataAggregator::getWindowWidth);
+            writeDataToProto(proto, data, timeEncoder, exportProps, classSourceLookup, mergeMode);
+            return;
+        }
+
+        // export the completed windows, without waiting for (or blocking) the sampler
+        try (FrozenWindows.Snapshot frozenWindows = dataAggregator.snapshotCompletedWindows()) {
+            ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(getMode().valueTransformer(), frozenWindows);
+            writeDataToProto(proto, dataAggregator.getCurrentData(), timeEncoder, exportProps, classSourceLookup, mergeMode);
+        }
+    }
+
+    private void writeDataToProto(SamplerData.Builder proto, List<ThreadNode> data, ProtoTimeEncoder timeEncoder, ExportProps exportProps, ClassSourceLookup classSourceLookup, MergeMode mergeMode) {
+        IntPredicate windowFilter = null;
+        if (exportProps.hasTimeRange()) {
+            windowFilter = ProfilingWindowUtils.windowsBetween(exportProps.from(), exportProps.to(), timeEncoder::getWidth);
+            timeEncoder = timeEncoder.filter(windowFilter);
+        }
+
+        // threads with no time in the exported windows are left out (their
+        // children are skipped in the same way when the tree is written)
+        ProtoTimeEncoder encoder = timeEncoder;
+        data.removeIf(thread -> encoder.getTotalTime(thread) == 0);
         data.sort(Comparator.comparing(ThreadNode::getThreadLabel));
 
         ClassSourceLookup.Visitor classSourceVisitor = ClassSourceLookup.createVisitor(classSourceLookup);
 
-        ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(getMode().valueTransformer(), data);
         int[] timeWindows = timeEncoder.getKeys();
         for (int timeWindow : timeWindows) {
             proto.addTimeWindows(timeWindow);
+            proto.addTimeWindowWidths(timeEncoder.getWidth(timeWindow));
         }
 
-        this.windowStatisticsCollector.ensureHasStatisticsForAllWindows(timeWindows);
-        proto.putAllTimeWindowStatistics(this.windowStatisticsCollector.export());
+        this.windowStatisticsCollector.ensureHasStatisticsForAllWindows(timeWindows, timeEncoder::getWidth);
+        proto.putAllTimeWindowStatistics(windowFilter == null
+                ? this.windowStatisticsCollector.export()
+                : this.windowStatisticsCollector.export(windowFilter));
 
-        for (ThreadNode entry : data) {
-            proto.addThreads(entry.toProto(mergeMode, timeEncoder));
-            classSourceVisitor.visit(entry);
-        }
+        long from = exportProps.hasTimeRange() ? Math.max(exportProps.from(), this.startTime) : this.startTime;
+        long to = exportProps.hasTimeRange() ? exportProps.to() : Long.MAX_VALUE;
 
-        if (classSourceVisitor.hasClassSourceMappings()) {
-            proto.putAllClassSources(classSourceVisitor.getClassSourceMapping());
+        TickStatistics tickStatistics = this.platform.getTickStatistics();
+        TickTimelineRecorder.Snapshot tickTimeline = tickStatistics == null ? null : tickStatistics.durationTimeline();
+        if (tickTimeline != null) {
+            proto.setTickTimeline(tickTimeline.toProto(from, to));
         }
+        proto.setGcJournal(this.platform.getGcJournal().toProto(from, to));
 
-        if (classSourceVisitor.hasMethodSourceMappings()) {
-            proto.putAllMethodSources(classSourceVisitor.getMethodSourceMapping());
-        }
-
-        if (classSourceVisitor.hasLineSourceMappings()) {
-            proto.putAllLineSources(classSourceVisitor.getLineSourceMapping());
-        }
+        SamplerDataWriter.writeThreads(proto, data, timeEncoder, getMode().valueTransformer(), classSourceVisitor, mergeMode);
     }
 }
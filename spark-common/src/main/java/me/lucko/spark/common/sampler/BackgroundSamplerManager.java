@@ -22,6 +22,7 @@ package me.lucko.spark.common.sampler;
 
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.platform.PlatformInfo;
+import me.lucko.spark.common.sampler.recording.FlightRecorder;
 import me.lucko.spark.common.util.Configuration;
 
 import java.util.logging.Level;
@@ -33,12 +34,16 @@ public class BackgroundSamplerManager {
     private static final String OPTION_INTERVAL = "backgroundProfilerInterval";
     private static final String OPTION_THREAD_GROUPER = "backgroundProfilerThreadGrouper";
     private static final String OPTION_THREAD_DUMPER = "backgroundProfilerThreadDumper";
+    private static final String OPTION_NODE_BUDGET = "backgroundProfilerNodeBudget";
+    private static final String OPTION_FLIGHT_RECORDER = "backgroundProfilerFlightRecorder";
+    private static final String OPTION_FLIGHT_RECORDER_SIZE = "backgroundProfilerFlightRecorderSizeMb";
 
     private static final String MARKER_FAILED = "_marker_background_profiler_failed";
 
     private final SparkPlatform platform;
     private final Configuration configuration;
     private final boolean enabled;
+    private final FlightRecorder flightRecorder;
 
     public BackgroundSamplerManager(SparkPlatform platform, Configuration configuration) {
         this.platform = platform;
@@ -46,6 +51,13 @@ public class BackgroundSamplerManager {
 
         PlatformInfo.Type type = this.platform.getPlugin().getPlatformInfo().getType();
         this.enabled = this.platform.getPlugin().runBackgroundProfiler() && this.configuration.getBoolean(OPTION_ENABLED, type == PlatformInfo.Type.SERVER);
+
+        if (this.enabled && this.configuration.getOrSaveBoolean(OPTION_FLIGHT_RECORDER, true)) {
+            long sizeBudget = this.configuration.getOrSaveInteger(OPTION_FLIGHT_RECORDER_SIZE, 128) * 1024L * 1024L;
+            this.flightRecorder = new FlightRecorder(this.platform.getPlugin(), this.platform.getPlugin().getPluginDirectory().resolve("recordings"), sizeBudget);
+        } else {
+            this.flightRecorder = null;
+        }
     }
 
     public void initialise() {
@@ -100,6 +112,21 @@ public class BackgroundSamplerManager {
         return false;
     }
 
+    /**
+     * Gets the flight recorder which records the windows completed by the background profiler.
+     *
+     * @return the flight recorder, or null if recording is disabled
+     */
+    public FlightRecorder getFlightRecorder() {
+        return this.flightRecorder;
+    }
+
+    public void close() {
+        if (this.flightRecorder != null) {
+            this.flightRecorder.close();
+        }
+    }
+
     private void startSampler() {
         boolean forceJavaEngine = this.configuration.getString(OPTION_ENGINE, "async").equals("java");
 
@@ -110,6 +137,7 @@ public class BackgroundSamplerManager {
         }
 
         int interval = this.configuration.getOrSaveInteger(OPTION_INTERVAL, 10);
+        int nodeBudget = this.configuration.getOrSaveInteger(OPTION_NODE_BUDGET, 100_000);
 
         Sampler sampler = new SamplerBuilder()
               .background(true)
@@ -117,6 +145,7 @@ public class BackgroundSamplerManager {
               .threadGrouper(threadGrouper)
               .samplingInterval(interval)
               .forceJavaSampler(forceJavaEngine)
+              .nodeBudget(nodeBudget)
               .start(this.platform);
 
         this.platform.getSamplerContainer().setActiveSampler(sampler);
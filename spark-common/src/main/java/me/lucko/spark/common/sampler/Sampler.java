@@ -27,10 +27,13 @@ package me.lucko.spark.common.sampler;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.command.sender.CommandSender;
 import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
 import me.lucko.spark.proto.SparkSamplerProtos.SocketChannelInfo;
+import me.lucko.spark.proto.SparkSamplerProtos.WindowSummary;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
@@ -105,6 +108,20 @@ public interface Sampler {
      */
     CompletableFuture<Sampler> getFuture();
 
+    /**
+     * Gets a view of the data collected so far, without stopping the sampler.
+     *
+     * @return the data collected so far
+     */
+    List<ThreadNode> getCurrentData();
+
+    /**
+     * Summarises each of the windows which have been completed so far, without stopping the sampler.
+     *
+     * @return the summaries, in window order
+     */
+    List<WindowSummary> summariseCompletedWindows();
+
     // Methods used to export the sampler data to the web viewer.
     SamplerData toProto(SparkPlatform platform, ExportProps exportProps);
 
@@ -114,6 +131,9 @@ public interface Sampler {
         private Supplier<MergeMode> mergeMode;
         private Supplier<ClassSourceLookup> classSourceLookup;
         private SocketChannelInfo channelInfo;
+        private boolean snapshot;
+        private long from = -1;
+        private long to = -1;
 
         public ExportProps() {
         }
@@ -138,6 +158,43 @@ public interface Sampler {
             return this.channelInfo;
         }
 
+        /**
+         * Gets if only the completed windows should be exported, from a snapshot
+         * taken while the sampler keeps running.
+         *
+         * @return true to export a snapshot
+         */
+        public boolean snapshot() {
+            return this.snapshot;
+        }
+
+        /**
+         * Gets if only the windows within a time range should be exported.
+         *
+         * @return true if a time range has been set
+         */
+        public boolean hasTimeRange() {
+            return this.from != -1;
+        }
+
+        /**
+         * Gets the start of the time range to export, in unix-millis.
+         *
+         * @return the start time, or -1 if unset
+         */
+        public long from() {
+            return this.from;
+        }
+
+        /**
+         * Gets the end of the time range to export, in unix-millis.
+         *
+         * @return the end time, or -1 if unset
+         */
+        public long to() {
+            return this.to;
+        }
+
         public ExportProps creator(CommandSender.Data creator) {
             this.creator = creator;
             return this;
@@ -162,6 +219,17 @@ public interface Sampler {
             this.channelInfo = channelInfo;
             return this;
         }
+
+        public ExportProps snapshot(boolean snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        public ExportProps timeRange(long from, long to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
     }
 
 }
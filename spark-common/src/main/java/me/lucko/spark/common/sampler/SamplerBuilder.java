@@ -25,6 +25,7 @@ import me.lucko.spark.common.sampler.async.AsyncProfilerAccess;
 import me.lucko.spark.common.sampler.async.AsyncSampler;
 import me.lucko.spark.common.sampler.async.SampleCollector;
 import me.lucko.spark.common.sampler.java.JavaSampler;
+import me.lucko.spark.common.sampler.node.FrameFolder;
 import me.lucko.spark.common.tick.TickHook;
 
 import java.util.concurrent.TimeUnit;
@@ -41,6 +42,9 @@ public class SamplerBuilder {
     private boolean ignoreNative = false;
     private boolean useAsyncProfiler = true;
     private boolean allocLiveOnly = false;
+    private boolean frameFolding = true;
+    private int nodeBudget = 0;
+    private boolean excludeGcPauses = false;
     private long autoEndTime = -1;
     private boolean background = false;
     private ThreadDumper threadDumper = ThreadDumper.ALL;
@@ -111,6 +115,21 @@ public class SamplerBuilder {
         return this;
     }
 
+    public SamplerBuilder frameFolding(boolean frameFolding) {
+        this.frameFolding = frameFolding;
+        return this;
+    }
+
+    public SamplerBuilder nodeBudget(int nodeBudget) {
+        this.nodeBudget = nodeBudget;
+        return this;
+    }
+
+    public SamplerBuilder excludeGcPauses(boolean excludeGcPauses) {
+        this.excludeGcPauses = excludeGcPauses;
+        return this;
+    }
+
     public Sampler start(SparkPlatform platform) throws UnsupportedOperationException {
         if (this.samplingInterval <= 0) {
             throw new IllegalArgumentException("samplingInterval = " + this.samplingInterval);
@@ -131,7 +150,8 @@ public class SamplerBuilder {
                 this.samplingInterval
         );
 
-        SamplerSettings settings = new SamplerSettings(interval, this.threadDumper, this.threadGrouper, this.autoEndTime, this.background);
+        FrameFolder frameFolder = this.frameFolding ? platform.getFrameFolder() : FrameFolder.NONE;
+        SamplerSettings settings = new SamplerSettings(interval, this.threadDumper, this.threadGrouper, this.autoEndTime, this.background, frameFolder, this.nodeBudget, this.excludeGcPauses);
 
         Sampler sampler;
         if (this.mode == SamplerMode.ALLOCATION) {
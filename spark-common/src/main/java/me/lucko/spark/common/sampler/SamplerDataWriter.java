@@ -0,0 +1,81 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler;
+
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.common.sampler.node.SelfTimeCollector;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.source.ClassSourceLookup;
+import me.lucko.spark.common.sampler.source.SourceCostSummary;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+
+import java.util.List;
+import java.util.function.LongToDoubleFunction;
+
+/**
+ * Writes sampled thread data to a {@link SamplerData} proto.
+ */
+public enum SamplerDataWriter {
+    ;
+
+    /**
+     * Writes the threads, along with the source costs, hot methods and source mappings
+     * derived from them.
+     *
+     * @param proto the proto to write to
+     * @param data the threads
+     * @param timeEncoder the encoder for the windows being written
+     * @param valueTransformer the function used to transform times
+     * @param classSourceVisitor the visitor used to identify the source of each node
+     * @param mergeMode the merge mode
+     */
+    public static void writeThreads(SamplerData.Builder proto, List<ThreadNode> data, ProtoTimeEncoder timeEncoder, LongToDoubleFunction valueTransformer, ClassSourceLookup.Visitor classSourceVisitor, MergeMode mergeMode) {
+        SourceCostSummary sourceCosts = SourceCostSummary.compute(data, timeEncoder, classSourceVisitor);
+        proto.addAllSourceCosts(sourceCosts.toProto(valueTransformer));
+
+        SelfTimeCollector selfTimeCollector = SelfTimeCollector.DEFAULT_LIMIT > 0
+                ? new SelfTimeCollector(SelfTimeCollector.DEFAULT_CALLER_DEPTH)
+                : null;
+
+        for (ThreadNode entry : data) {
+            proto.addThreads(entry.toProto(mergeMode, timeEncoder, selfTimeCollector));
+            classSourceVisitor.visit(entry);
+        }
+
+        if (selfTimeCollector != null) {
+            proto.addAllHotMethods(selfTimeCollector.toProto(valueTransformer, SelfTimeCollector.DEFAULT_LIMIT));
+        }
+
+        if (classSourceVisitor.hasClassSourceMappings()) {
+            proto.putAllClassSources(classSourceVisitor.getClassSourceMapping());
+        }
+
+        if (classSourceVisitor.hasMethodSourceMappings()) {
+            proto.putAllMethodSources(classSourceVisitor.getMethodSourceMapping());
+        }
+
+        if (classSourceVisitor.hasLineSourceMappings()) {
+            proto.putAllLineSources(classSourceVisitor.getLineSourceMapping());
+        }
+    }
+
+}
@@ -20,6 +20,8 @@
 
 package me.lucko.spark.common.sampler;
 
+import me.lucko.spark.common.sampler.node.FrameFolder;
+
 /**
  * Base settings for all samplers
  */
@@ -30,13 +32,19 @@ public class SamplerSettings {
     private final ThreadGrouper threadGrouper;
     private final long autoEndTime;
     private final boolean runningInBackground;
+    private final FrameFolder frameFolder;
+    private final int nodeBudget;
+    private final boolean excludeGcPauses;
 
-    public SamplerSettings(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long autoEndTime, boolean runningInBackground) {
+    public SamplerSettings(int interval, ThreadDumper threadDumper, ThreadGrouper threadGrouper, long autoEndTime, boolean runningInBackground, FrameFolder frameFolder, int nodeBudget, boolean excludeGcPauses) {
         this.interval = interval;
         this.threadDumper = threadDumper;
         this.threadGrouper = threadGrouper;
         this.autoEndTime = autoEndTime;
         this.runningInBackground = runningInBackground;
+        this.frameFolder = frameFolder;
+        this.nodeBudget = nodeBudget;
+        this.excludeGcPauses = excludeGcPauses;
     }
 
     public int interval() {
@@ -58,4 +66,22 @@ public class SamplerSettings {
     public boolean runningInBackground() {
         return this.runningInBackground;
     }
+
+    public FrameFolder frameFolder() {
+        return this.frameFolder;
+    }
+
+    public int nodeBudget() {
+        return this.nodeBudget;
+    }
+
+    /**
+     * Gets if samples taken during a GC pause should be dropped, instead of being attributed to
+     * a synthetic "GC pause" frame.
+     *
+     * @return true to exclude GC pauses
+     */
+    public boolean excludeGcPauses() {
+        return this.excludeGcPauses;
+    }
 }
@@ -21,7 +21,12 @@
 package me.lucko.spark.common.sampler.aggregator;
 
 import me.lucko.spark.common.sampler.ThreadGrouper;
+import me.lucko.spark.common.sampler.node.FrameFolder;
+import me.lucko.spark.common.sampler.node.FrozenWindows;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -40,8 +45,36 @@ public abstract class AbstractDataAggregator implements DataAggregator {
     /** The instance used to group threads together */
     protected final ThreadGrouper threadGrouper;
 
-    protected AbstractDataAggregator(ThreadGrouper threadGrouper) {
+    /** The folder used to drop or collapse frames as they are inserted */
+    protected final FrameFolder frameFolder;
+
+    /** The budget limiting the number of nodes held in {@link #threadData} */
+    protected final NodeBudget nodeBudget;
+
+    /** The times for windows which have been completed */
+    protected final FrozenWindows frozenWindows = new FrozenWindows();
+
+    protected AbstractDataAggregator(ThreadGrouper threadGrouper, FrameFolder frameFolder, NodeBudget nodeBudget) {
         this.threadGrouper = threadGrouper;
+        this.frameFolder = frameFolder;
+        this.nodeBudget = nodeBudget;
+    }
+
+    /**
+     * Creates a metadata builder, populated with the properties common to all aggregators.
+     *
+     * @param type the aggregator type
+     * @return the builder
+     */
+    protected SamplerMetadata.DataAggregator.Builder newMetadataBuilder(SamplerMetadata.DataAggregator.Type type) {
+        SamplerMetadata.DataAggregator.Builder builder = SamplerMetadata.DataAggregator.newBuilder()
+                .setType(type)
+                .setThreadGrouper(this.threadGrouper.asProto());
+
+        if (this.nodeBudget.getMaxNodes() != 0) {
+            builder.setNodeBudget(this.nodeBudget.toProto());
+        }
+        return builder;
     }
 
     protected ThreadNode getNode(String group) {
@@ -49,16 +82,39 @@ public abstract class AbstractDataAggregator implements DataAggregator {
         if (node != null) {
             return node;
         }
-        return this.threadData.computeIfAbsent(group, ThreadNode::new);
+        return this.threadData.computeIfAbsent(group, g -> new ThreadNode(g, this.nodeBudget));
     }
 
     @Override
     public void pruneData(IntPredicate timeWindowPredicate) {
-        this.threadData.values().removeIf(node -> node.removeTimeWindowsRecursively(timeWindowPredicate));
+        this.frozenWindows.prune(timeWindowPredicate);
+        this.nodeBudget.evict(this.threadData.values(), this.frozenWindows);
+    }
+
+    @Override
+    public void freezeCompletedWindows(int currentWindow) {
+        // nodes which only held data in pruned windows are removed here
+        this.frozenWindows.freeze(this.threadData.values(), currentWindow, this.nodeBudget);
+        ProfilingWindowUtils.rollup(currentWindow, this.frozenWindows::rollup);
+    }
+
+    @Override
+    public int getWindowWidth(int window) {
+        return this.frozenWindows.getWidth(window);
+    }
+
+    @Override
+    public FrozenWindows.Snapshot snapshotCompletedWindows() {
+        return this.frozenWindows.snapshot();
     }
 
     @Override
     public List<ThreadNode> exportData() {
+        return getCurrentData();
+    }
+
+    @Override
+    public List<ThreadNode> getCurrentData() {
         List<ThreadNode> data = new ArrayList<>(this.threadData.values());
         for (ThreadNode node : data) {
             node.setThreadLabel(this.threadGrouper.getLabel(node.getThreadGroup()));
@@ -20,6 +20,7 @@
 
 package me.lucko.spark.common.sampler.aggregator;
 
+import me.lucko.spark.common.sampler.node.FrozenWindows;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
@@ -38,6 +39,16 @@ public interface DataAggregator {
      */
     List<ThreadNode> exportData();
 
+    /**
+     * Gets a view of the data collected so far, without waiting for pending data
+     * to be inserted or otherwise finalising the aggregator.
+     *
+     * <p>The returned nodes may continue to be written to while the sampler is running.</p>
+     *
+     * @return the data collected so far
+     */
+    List<ThreadNode> getCurrentData();
+
     /**
      * Prunes windows of data from this aggregator if the given {@code timeWindowPredicate} returns true.
      *
@@ -45,6 +56,32 @@ public interface DataAggregator {
      */
     void pruneData(IntPredicate timeWindowPredicate);
 
+    /**
+     * Freezes the windows of data before the given (current) window, as they will no longer be written to,
+     * and rolls up older windows into larger buckets.
+     *
+     * @param currentWindow the current window
+     */
+    void freezeCompletedWindows(int currentWindow);
+
+    /**
+     * Gets the width of a window, in multiples of the window size. Windows which have been
+     * rolled up cover more than one window.
+     *
+     * @param window the window
+     * @return the width
+     */
+    int getWindowWidth(int window);
+
+    /**
+     * Takes a snapshot of the windows which have been completed (frozen) so far.
+     *
+     * <p>The snapshot can be read while data continues to be inserted into the current window.</p>
+     *
+     * @return the snapshot, which must be closed after use
+     */
+    FrozenWindows.Snapshot snapshotCompletedWindows();
+
     /**
      * Gets metadata about the data aggregator instance.
      */
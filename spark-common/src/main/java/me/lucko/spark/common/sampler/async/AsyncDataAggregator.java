@@ -22,6 +22,8 @@ package me.lucko.spark.common.sampler.async;
 
 import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.aggregator.AbstractDataAggregator;
+import me.lucko.spark.common.sampler.node.FrameFolder;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.common.sampler.node.StackTraceNode;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
@@ -35,22 +37,19 @@ public class AsyncDataAggregator extends AbstractDataAggregator {
     private static final StackTraceNode.Describer<AsyncStackTraceElement> STACK_TRACE_DESCRIBER = (element, parent) ->
             new StackTraceNode.Description(element.getClassName(), element.getMethodName(), element.getMethodDescription());
 
-    protected AsyncDataAggregator(ThreadGrouper threadGrouper) {
-        super(threadGrouper);
+    protected AsyncDataAggregator(ThreadGrouper threadGrouper, FrameFolder frameFolder, NodeBudget nodeBudget) {
+        super(threadGrouper, frameFolder, nodeBudget);
     }
 
     @Override
     public SamplerMetadata.DataAggregator getMetadata() {
-        return SamplerMetadata.DataAggregator.newBuilder()
-                .setType(SamplerMetadata.DataAggregator.Type.SIMPLE)
-                .setThreadGrouper(this.threadGrouper.asProto())
-                .build();
+        return newMetadataBuilder(SamplerMetadata.DataAggregator.Type.SIMPLE).build();
     }
 
     public void insertData(ProfileSegment element, int window) {
         try {
             ThreadNode node = getNode(this.threadGrouper.getGroup(element.getNativeThreadId(), element.getThreadName()));
-            node.log(STACK_TRACE_DESCRIBER, element.getStackTrace(), element.getValue(), window);
+            node.log(this.frameFolder, STACK_TRACE_DESCRIBER, element.getStackTrace(), element.getValue(), window);
         } catch (Exception e) {
             e.printStackTrace();
         }
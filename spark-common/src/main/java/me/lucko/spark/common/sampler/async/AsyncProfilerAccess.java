@@ -107,6 +107,16 @@ public class AsyncProfilerAccess {
         return this.profilingEvent;
     }
 
+    /**
+     * Gets if execution samples are only taken while threads are running on a cpu, as opposed
+     * to wall clock sampling.
+     *
+     * @return if the cpu event is being used
+     */
+    public boolean isCpuTimeProfiling() {
+        return this.profilingEvent == ProfilingEvent.CPU;
+    }
+
     public ProfilingEvent getAllocationProfilingEvent() {
         return this.allocationProfilingEvent;
     }
@@ -23,6 +23,7 @@ package me.lucko.spark.common.sampler.async;
 import com.google.common.collect.ImmutableList;
 
 import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.monitor.memory.GcJournal;
 import me.lucko.spark.common.sampler.ThreadDumper;
 import me.lucko.spark.common.sampler.async.jfr.JfrReader;
 
@@ -86,6 +87,8 @@ public class AsyncProfilerJob {
     private int window;
     /** If the profiler should run in quiet mode */
     private boolean quiet;
+    /** If samples taken during a GC pause should be dropped */
+    private boolean excludeGcPauses;
 
     /** The file used by async-profiler to output data */
     private Path outputFile;
@@ -119,12 +122,13 @@ public class AsyncProfilerJob {
     }
 
     // Initialise the job
-    public void init(SparkPlatform platform, SampleCollector<?> collector, ThreadDumper threadDumper, int window, boolean quiet) {
+    public void init(SparkPlatform platform, SampleCollector<?> collector, ThreadDumper threadDumper, int window, boolean quiet, boolean excludeGcPauses) {
         this.platform = platform;
         this.sampleCollector = collector;
         this.threadDumper = threadDumper;
         this.window = window;
         this.quiet = quiet;
+        this.excludeGcPauses = excludeGcPauses;
     }
 
     /**
@@ -233,6 +237,13 @@ public class AsyncProfilerJob {
 
     private <E extends JfrReader.Event> void readSegments(JfrReader reader, SampleCollector<E> collector, AsyncDataAggregator dataAggregator) throws IOException {
         List<E> samples = reader.readAllEvents(collector.eventClass());
+
+        // nothing is allocated while the JVM is paused, so only execution samples are affected
+        GcJournal.Pauses gcPauses = null;
+        if (collector instanceof SampleCollector.Execution) {
+            gcPauses = this.platform.getGcJournal().pauses(reader.startNanos / 1_000_000, Long.MAX_VALUE);
+        }
+
         for (E sample : samples) {
             String threadName = reader.threads.get((long) sample.tid);
             if (threadName == null) {
@@ -246,11 +257,40 @@ public class AsyncProfilerJob {
             long value = collector.measure(sample);
 
             // parse the segment and give it to the data aggregator
-            ProfileSegment segment = ProfileSegment.parseSegment(reader, sample, threadName, value);
+            ProfileSegment segment;
+            if (gcPauses != null && !gcPauses.isEmpty() && isDuringGcPause(reader, (JfrReader.ExecutionSample) sample, gcPauses)) {
+                if (this.excludeGcPauses) {
+                    continue;
+                }
+                segment = ProfileSegment.gcPause(sample.tid, threadName, value);
+            } else {
+                segment = ProfileSegment.parseSegment(reader, sample, threadName, value);
+            }
             dataAggregator.insertData(segment, this.window);
         }
     }
 
+    /**
+     * Gets whether a sample was taken while the thread was stopped for a GC pause.
+     *
+     * <p>Sleeping threads are unaffected by the pause, so their samples are left alone.</p>
+     *
+     * @param reader the jfr reader
+     * @param sample the sample
+     * @param gcPauses the GC pauses
+     * @return true if the sample was taken during a GC pause
+     */
+    private static boolean isDuringGcPause(JfrReader reader, JfrReader.ExecutionSample sample, GcJournal.Pauses gcPauses) {
+        if ("STATE_SLEEPING".equals(reader.threadStates.get(sample.threadState))) {
+            return false;
+        }
+
+        // convert the sample time from ticks to unix millis
+        double millisSinceStart = (double) (sample.time - reader.startTicks) * 1000d / reader.ticksPerSec;
+        long time = reader.startNanos / 1_000_000 + (long) millisSinceStart;
+        return gcPauses.contains(time);
+    }
+
     public int getWindow() {
         return this.window;
     }
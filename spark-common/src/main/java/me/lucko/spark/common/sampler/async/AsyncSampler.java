@@ -30,6 +30,7 @@ import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.sampler.AbstractSampler;
 import me.lucko.spark.common.sampler.SamplerMode;
 import me.lucko.spark.common.sampler.SamplerSettings;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.tick.TickHook;
 import me.lucko.spark.common.util.SparkThreadFactory;
@@ -71,7 +72,7 @@ public class AsyncSampler extends AbstractSampler {
         super(platform, settings);
         this.sampleCollector = collector;
         this.profilerAccess = AsyncProfilerAccess.getInstance(platform);
-        this.dataAggregator = new AsyncDataAggregator(settings.threadGrouper());
+        this.dataAggregator = new AsyncDataAggregator(settings.threadGrouper(), settings.frameFolder(), new NodeBudget(settings.nodeBudget()));
         this.scheduler = Executors.newSingleThreadScheduledExecutor(
                 new ThreadFactoryBuilder()
                         .setNameFormat("spark-async-sampler-worker-thread")
@@ -95,7 +96,7 @@ public class AsyncSampler extends AbstractSampler {
         int window = ProfilingWindowUtils.windowNow();
 
         AsyncProfilerJob job = this.profilerAccess.startNewProfilerJob();
-        job.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background);
+        job.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background, this.excludeGcPauses);
         job.start();
         this.windowStatisticsCollector.recordWindowStartTime(window);
         this.currentJob = job;
@@ -133,7 +134,7 @@ public class AsyncSampler extends AbstractSampler {
                 // start a new job
                 int window = previousJob.getWindow() + 1;
                 AsyncProfilerJob newJob = this.profilerAccess.startNewProfilerJob();
-                newJob.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background);
+                newJob.init(this.platform, this.sampleCollector, this.threadDumper, window, this.background, this.excludeGcPauses);
                 newJob.start();
                 this.windowStatisticsCollector.recordWindowStartTime(window);
                 this.currentJob = newJob;
@@ -148,10 +149,14 @@ public class AsyncSampler extends AbstractSampler {
                 // aggregate the output of the previous job
                 previousJob.aggregate(this.dataAggregator);
 
-                // prune data older than the history size
+                // summarise & prune data older than the history size, and roll up older windows
                 IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(window);
+                recordPrunedWindows(predicate);
                 this.dataAggregator.pruneData(predicate);
+                this.dataAggregator.freezeCompletedWindows(window);
+                recordCompletedWindows();
                 this.windowStatisticsCollector.pruneStatistics(predicate);
+                this.windowStatisticsCollector.rollupStatistics(window);
 
                 //TODO:Fix sockets
                 //this.scheduler.execute(this::processWindowRotate);
@@ -218,6 +223,11 @@ public class AsyncSampler extends AbstractSampler {
 
  */
 
+    @Override
+    protected AsyncDataAggregator getDataAggregator() {
+        return this.dataAggregator;
+    }
+
     @Override
     public SamplerMode getMode() {
         return this.sampleCollector.getMode();
@@ -230,7 +240,7 @@ public class AsyncSampler extends AbstractSampler {
             proto.setChannelInfo(exportProps.channelInfo());
         }
         writeMetadataToProto(proto, platform, exportProps.creator(), exportProps.comment(), this.dataAggregator);
-        writeDataToProto(proto, this.dataAggregator, exportProps.mergeMode().get(), exportProps.classSourceLookup().get());
+        writeDataToProto(proto, this.dataAggregator, exportProps);
         return proto.build();
     }
 
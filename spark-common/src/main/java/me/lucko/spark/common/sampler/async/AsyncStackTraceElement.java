@@ -28,6 +28,9 @@ public class AsyncStackTraceElement {
     /** The class name used for native method calls */
     public static final String NATIVE_CALL = "native";
 
+    /** The synthetic frame samples taken during a GC pause are attributed to */
+    public static final AsyncStackTraceElement GC_PAUSE = new AsyncStackTraceElement(NATIVE_CALL, "GC pause", null);
+
     /** The name of the class */
     private final String className;
     /** The name of the method */
@@ -63,6 +63,19 @@ public class ProfileSegment {
         return this.value;
     }
 
+    /**
+     * Creates a segment for a sample taken during a GC pause, which is attributed to a synthetic
+     * frame instead of wherever the thread was stopped.
+     *
+     * @param nativeThreadId the native thread id
+     * @param threadName the name of the thread
+     * @param value the time spent
+     * @return the segment
+     */
+    public static ProfileSegment gcPause(int nativeThreadId, String threadName, long value) {
+        return new ProfileSegment(nativeThreadId, threadName, new AsyncStackTraceElement[]{AsyncStackTraceElement.GC_PAUSE}, value);
+    }
+
     public static ProfileSegment parseSegment(JfrReader reader, JfrReader.Event sample, String threadName, long value) {
         JfrReader.StackTrace stackTrace = reader.stackTraces.get(sample.stackTraceId);
         int len = stackTrace.methods.length;
@@ -0,0 +1,301 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.columnar;
+
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A profile stored in the columnar format, read lazily from a memory-mapped file.
+ *
+ * <pre>
+ * header    := magic version stringCount frameCount nodeCount threadCount windowCount reserved (int32s)
+ *              stringsOffset framesOffset nodesOffset threadsOffset extrasOffset windowsOffset (int64s)
+ * strings   := offset:int32[stringCount + 1] utf8-bytes
+ * frames    := (className methodName methodDesc lineNumber parentLineNumber):int32[frameCount]
+ * nodes     := frame:int32[nodeCount] parent:int32[nodeCount]
+ * threads   := name:int32[threadCount] rootNode:int32[threadCount]
+ * extras    := length:int32 SamplerData (metadata, sources, etc - without threads or windows)
+ * column    := time:float64[nodeCount]
+ * windows   := (window:int32 width:int32 columnOffset:int64 statisticsOffset:int64 statisticsLength:int32)[windowCount]
+ * </pre>
+ *
+ * <p>Strings are referred to by index (-1 for null). Each thread has a root node with no frame or
+ * parent, and every other node has a parent with a lower index. The time columns hold the total
+ * time of each node in the window, in the same units as the {@link SamplerData} proto.</p>
+ *
+ * <p>The dictionaries and node table are mapped when the profile is opened. The time column of
+ * each window is only mapped when it is first requested.</p>
+ */
+public final class ColumnarProfile implements AutoCloseable {
+
+    /** The file extension used for columnar profiles */
+    public static final String FILE_EXTENSION = "sparkcolumns";
+
+    static final int MAGIC = 0x53504b43; // SPKC
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8 * Integer.BYTES + 6 * Long.BYTES;
+    static final int FRAME_FIELDS = 5;
+    static final int WINDOW_ENTRY_SIZE = 3 * Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * Opens a columnar profile.
+     *
+     * @param file the file
+     * @return the profile
+     * @throws IOException if an I/O error occurs, or the file is not a columnar profile
+     */
+    public static ColumnarProfile open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new ColumnarProfile(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private final FileChannel channel;
+
+    private final int nodeCount;
+    private final int windowCount;
+
+    private final IntBuffer stringOffsets;
+    private final ByteBuffer stringBytes;
+    private final IntBuffer frames;
+    private final IntBuffer nodeFrames;
+    private final IntBuffer nodeParents;
+    private final IntBuffer threadNames;
+    private final IntBuffer threadRoots;
+    private final ByteBuffer extras;
+    private final ByteBuffer windows;
+
+    /** The time columns which have been mapped so far */
+    private final DoubleBuffer[] columns;
+
+    private ColumnarProfile(FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a columnar profile");
+        }
+
+        int stringCount = header.getInt();
+        int frameCount = header.getInt();
+        this.nodeCount = header.getInt();
+        int threadCount = header.getInt();
+        this.windowCount = header.getInt();
+        header.getInt(); // reserved
+
+        long stringsOffset = header.getLong();
+        long framesOffset = header.getLong();
+        long nodesOffset = header.getLong();
+        long threadsOffset = header.getLong();
+        long extrasOffset = header.getLong();
+        long windowsOffset = header.getLong();
+
+        ByteBuffer strings = channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset, framesOffset - stringsOffset);
+        this.stringOffsets = slice(strings, 0, (stringCount + 1) * Integer.BYTES).asIntBuffer();
+        this.stringBytes = slice(strings, (stringCount + 1) * Integer.BYTES, strings.capacity() - (stringCount + 1) * Integer.BYTES);
+
+        this.frames = channel.map(FileChannel.MapMode.READ_ONLY, framesOffset, (long) frameCount * FRAME_FIELDS * Integer.BYTES).asIntBuffer();
+
+        IntBuffer nodes = channel.map(FileChannel.MapMode.READ_ONLY, nodesOffset, (long) this.nodeCount * 2 * Integer.BYTES).asIntBuffer();
+        this.nodeFrames = slice(nodes, 0, this.nodeCount);
+        this.nodeParents = slice(nodes, this.nodeCount, this.nodeCount);
+
+        IntBuffer threads = channel.map(FileChannel.MapMode.READ_ONLY, threadsOffset, (long) threadCount * 2 * Integer.BYTES).asIntBuffer();
+        this.threadNames = slice(threads, 0, threadCount);
+        this.threadRoots = slice(threads, threadCount, threadCount);
+
+        ByteBuffer extras = channel.map(FileChannel.MapMode.READ_ONLY, extrasOffset, Integer.BYTES);
+        this.extras = channel.map(FileChannel.MapMode.READ_ONLY, extrasOffset + Integer.BYTES, extras.getInt());
+
+        this.windows = channel.map(FileChannel.MapMode.READ_ONLY, windowsOffset, (long) this.windowCount * WINDOW_ENTRY_SIZE);
+        this.columns = new DoubleBuffer[this.windowCount];
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    private static IntBuffer slice(IntBuffer buf, int offset, int length) {
+        IntBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+
+    /**
+     * Gets a string from the string table.
+     *
+     * @param index the index of the string, or -1
+     * @return the string, or null if the index is -1
+     */
+    public String getString(int index) {
+        if (index == -1) {
+            return null;
+        }
+        int start = this.stringOffsets.get(index);
+        int end = this.stringOffsets.get(index + 1);
+        byte[] bytes = new byte[end - start];
+        ByteBuffer buf = this.stringBytes.duplicate();
+        buf.position(start);
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int getFrameCount() {
+        return this.frames.capacity() / FRAME_FIELDS;
+    }
+
+    public String getClassName(int frame) {
+        return getString(this.frames.get(frame * FRAME_FIELDS));
+    }
+
+    public String getMethodName(int frame) {
+        return getString(this.frames.get(frame * FRAME_FIELDS + 1));
+    }
+
+    public String getMethodDescription(int frame) {
+        return getString(this.frames.get(frame * FRAME_FIELDS + 2));
+    }
+
+    public int getLineNumber(int frame) {
+        return this.frames.get(frame * FRAME_FIELDS + 3);
+    }
+
+    public int getParentLineNumber(int frame) {
+        return this.frames.get(frame * FRAME_FIELDS + 4);
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    /**
+     * Gets the frame of a node.
+     *
+     * @param node the node
+     * @return the frame, or -1 if the node is the root of a thread
+     */
+    public int getFrame(int node) {
+        return this.nodeFrames.get(node);
+    }
+
+    /**
+     * Gets the parent of a node.
+     *
+     * @param node the node
+     * @return the parent, or -1 if the node is the root of a thread
+     */
+    public int getParent(int node) {
+        return this.nodeParents.get(node);
+    }
+
+    public int getThreadCount() {
+        return this.threadRoots.capacity();
+    }
+
+    public String getThreadName(int thread) {
+        return getString(this.threadNames.get(thread));
+    }
+
+    public int getThreadRoot(int thread) {
+        return this.threadRoots.get(thread);
+    }
+
+    public int getWindowCount() {
+        return this.windowCount;
+    }
+
+    public int getWindow(int index) {
+        return this.windows.getInt(index * WINDOW_ENTRY_SIZE);
+    }
+
+    public int getWidth(int index) {
+        return this.windows.getInt(index * WINDOW_ENTRY_SIZE + Integer.BYTES);
+    }
+
+    /**
+     * Gets the time column of a window, mapping it if necessary.
+     *
+     * @param index the index of the window
+     * @return the total time of each node in the window
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized DoubleBuffer getTimes(int index) throws IOException {
+        DoubleBuffer column = this.columns[index];
+        if (column == null) {
+            long offset = this.windows.getLong(index * WINDOW_ENTRY_SIZE + 2 * Integer.BYTES);
+            column = this.channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) this.nodeCount * Double.BYTES).asDoubleBuffer();
+            this.columns[index] = column;
+        }
+        return column.duplicate();
+    }
+
+    /**
+     * Gets the statistics recorded for a window.
+     *
+     * @param index the index of the window
+     * @return the statistics, or null if none were recorded
+     * @throws IOException if an I/O error occurs
+     */
+    public WindowStatistics getStatistics(int index) throws IOException {
+        long offset = this.windows.getLong(index * WINDOW_ENTRY_SIZE + 2 * Integer.BYTES + Long.BYTES);
+        int length = this.windows.getInt(index * WINDOW_ENTRY_SIZE + 2 * Integer.BYTES + 2 * Long.BYTES);
+        if (length == 0) {
+            return null;
+        }
+        return WindowStatistics.parseFrom(this.channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    /**
+     * Gets the rest of the profile - the metadata, sources, etc.
+     *
+     * @return a proto without any threads or windows
+     * @throws InvalidProtocolBufferException if the data is corrupt
+     */
+    public SamplerData getExtras() throws InvalidProtocolBufferException {
+        return SamplerData.parseFrom(this.extras.duplicate());
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.columnar;
+
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the dictionaries & node table of a {@link ColumnarProfile}, and then streams its
+ * window columns to disk.
+ *
+ * <p>Frames, nodes and threads are deduplicated as they are added, so the same writer can be
+ * used to merge the trees of several profiles. Parents must be added before their children.</p>
+ */
+public final class ColumnarProfileWriter {
+
+    /** The string table */
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+
+    /** The frame table, {@link ColumnarProfile#FRAME_FIELDS} ints per frame */
+    private int[] frames = new int[ColumnarProfile.FRAME_FIELDS * 64];
+    private int frameCount = 0;
+    private final Map<Frame, Integer> frameIds = new HashMap<>();
+
+    /** The node table - the frame & parent of each node */
+    private int[] nodeFrames = new int[1024];
+    private int[] nodeParents = new int[1024];
+    private int nodeCount = 0;
+    private final Map<Long, Integer> nodeIds = new HashMap<>();
+
+    /** The thread table - the name & root node of each thread */
+    private final List<Integer> threadNames = new ArrayList<>();
+    private final List<Integer> threadRoots = new ArrayList<>();
+    private final Map<String, Integer> threadIds = new HashMap<>();
+
+    /** The rest of the profile (metadata, sources, etc) */
+    private SamplerData extras = SamplerData.getDefaultInstance();
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    private int string(String string) {
+        if (string == null) {
+            return -1;
+        }
+        Integer id = this.stringIds.get(string);
+        if (id == null) {
+            id = this.strings.size();
+            this.strings.add(string);
+            this.stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    /**
+     * Adds a frame to the frame table.
+     *
+     * @param className the class name
+     * @param methodName the method name
+     * @param methodDescription the method description, or null
+     * @param lineNumber the line number
+     * @param parentLineNumber the line number of the call in the parent frame
+     * @return the id of the frame
+     */
+    public int frame(String className, String methodName, String methodDescription, int lineNumber, int parentLineNumber) {
+        Frame frame = new Frame(string(className), string(methodName), string(methodDescription), lineNumber, parentLineNumber);
+        Integer id = this.frameIds.get(frame);
+        if (id != null) {
+            return id;
+        }
+
+        id = this.frameCount++;
+        int offset = id * ColumnarProfile.FRAME_FIELDS;
+        if (offset + ColumnarProfile.FRAME_FIELDS > this.frames.length) {
+            this.frames = Arrays.copyOf(this.frames, this.frames.length * 2);
+        }
+        System.arraycopy(frame.fields, 0, this.frames, offset, ColumnarProfile.FRAME_FIELDS);
+        this.frameIds.put(frame, id);
+        return id;
+    }
+
+    /**
+     * Adds a thread, or gets the root node of an existing thread with the same name.
+     *
+     * @param name the name of the thread
+     * @return the root node of the thread
+     */
+    public int thread(String name) {
+        Integer thread = this.threadIds.get(name);
+        if (thread != null) {
+            return this.threadRoots.get(thread);
+        }
+
+        int root = addNode(-1, -1);
+        this.threadIds.put(name, this.threadNames.size());
+        this.threadNames.add(string(name));
+        this.threadRoots.add(root);
+        return root;
+    }
+
+    /**
+     * Adds a node, or gets the existing node with the same parent & frame.
+     *
+     * @param parent the parent node
+     * @param frame the frame
+     * @return the id of the node
+     */
+    public int node(int parent, int frame) {
+        if (parent < 0 || parent >= this.nodeCount) {
+            throw new IllegalArgumentException("Unknown parent: " + parent);
+        }
+
+        long key = ((long) parent << 32) | (frame & 0xFFFFFFFFL);
+        Integer id = this.nodeIds.get(key);
+        if (id == null) {
+            id = addNode(parent, frame);
+            this.nodeIds.put(key, id);
+        }
+        return id;
+    }
+
+    private int addNode(int parent, int frame) {
+        if (this.nodeCount == this.nodeFrames.length) {
+            this.nodeFrames = Arrays.copyOf(this.nodeFrames, this.nodeCount * 2);
+            this.nodeParents = Arrays.copyOf(this.nodeParents, this.nodeCount * 2);
+        }
+        this.nodeFrames[this.nodeCount] = frame;
+        this.nodeParents[this.nodeCount] = parent;
+        return this.nodeCount++;
+    }
+
+    /**
+     * Sets the rest of the profile. Any threads or windows in the proto are ignored.
+     *
+     * @param extras the extras
+     */
+    public void extras(SamplerData extras) {
+        this.extras = extras.toBuilder()
+                .clearThreads()
+                .clearTimeWindows()
+                .clearTimeWindowWidths()
+                .clearTimeWindowStatistics()
+                .build();
+    }
+
+    /**
+     * Writes the profile to a file.
+     *
+     * <p>Windows are consumed from the iterator one at a time, so only a single time column needs
+     * to be held in memory.</p>
+     *
+     * @param file the file
+     * @param windows the windows, each with a time column of length {@link #getNodeCount()}
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(Path file, Iterator<Window> windows) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = ColumnarProfile.HEADER_SIZE;
+
+            // strings: an offset table, followed by the utf8 bytes
+            long stringsOffset = position;
+            byte[][] encoded = new byte[this.strings.size()][];
+            int[] offsets = new int[encoded.length + 1];
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = this.strings.get(i).getBytes(StandardCharsets.UTF_8);
+                offsets[i + 1] = offsets[i] + encoded[i].length;
+            }
+            ByteBuffer strings = ByteBuffer.allocate(offsets.length * Integer.BYTES + offsets[encoded.length]);
+            strings.asIntBuffer().put(offsets);
+            strings.position(offsets.length * Integer.BYTES);
+            for (byte[] bytes : encoded) {
+                strings.put(bytes);
+            }
+            position += writeFully(channel, (ByteBuffer) strings.flip(), position);
+
+            long framesOffset = position;
+            position += writeInts(channel, position, this.frames, this.frameCount * ColumnarProfile.FRAME_FIELDS);
+
+            long nodesOffset = position;
+            position += writeInts(channel, position, this.nodeFrames, this.nodeCount);
+            position += writeInts(channel, position, this.nodeParents, this.nodeCount);
+
+            long threadsOffset = position;
+            int[] threads = new int[this.threadNames.size() * 2];
+            for (int i = 0; i < this.threadNames.size(); i++) {
+                threads[i] = this.threadNames.get(i);
+                threads[this.threadNames.size() + i] = this.threadRoots.get(i);
+            }
+            position += writeInts(channel, position, threads, threads.length);
+
+            long extrasOffset = position;
+            byte[] extras = this.extras.toByteArray();
+            position += writeFully(channel, (ByteBuffer) ByteBuffer.allocate(Integer.BYTES + extras.length).putInt(extras.length).put(extras).flip(), position);
+
+            // the time columns & statistics, followed by the window directory
+            ByteBuffer directory = ByteBuffer.allocate(64 * ColumnarProfile.WINDOW_ENTRY_SIZE);
+            int windowCount = 0;
+            ByteBuffer column = ByteBuffer.allocate(this.nodeCount * Double.BYTES);
+            while (windows.hasNext()) {
+                Window window = windows.next();
+                if (window.times.length != this.nodeCount) {
+                    throw new IllegalArgumentException("Column length " + window.times.length + " does not match node count " + this.nodeCount);
+                }
+
+                long timesOffset = position;
+                column.clear();
+                column.asDoubleBuffer().put(window.times);
+                position += writeFully(channel, column, position);
+
+                long statisticsOffset = position;
+                byte[] statistics = window.statistics == null ? new byte[0] : window.statistics.toByteArray();
+                position += writeFully(channel, ByteBuffer.wrap(statistics), position);
+
+                if (directory.remaining() < ColumnarProfile.WINDOW_ENTRY_SIZE) {
+                    directory = ByteBuffer.allocate(directory.capacity() * 2).put((ByteBuffer) directory.flip());
+                }
+                directory.putInt(window.window)
+                        .putInt(window.width)
+                        .putLong(timesOffset)
+                        .putLong(statisticsOffset)
+                        .putInt(statistics.length);
+                windowCount++;
+            }
+
+            long windowsOffset = position;
+            writeFully(channel, (ByteBuffer) directory.flip(), position);
+
+            ByteBuffer header = ByteBuffer.allocate(ColumnarProfile.HEADER_SIZE)
+                    .putInt(ColumnarProfile.MAGIC)
+                    .putInt(ColumnarProfile.VERSION)
+                    .putInt(this.strings.size())
+                    .putInt(this.frameCount)
+                    .putInt(this.nodeCount)
+                    .putInt(this.threadNames.size())
+                    .putInt(windowCount)
+                    .putInt(0)
+                    .putLong(stringsOffset)
+                    .putLong(framesOffset)
+                    .putLong(nodesOffset)
+                    .putLong(threadsOffset)
+                    .putLong(extrasOffset)
+                    .putLong(windowsOffset);
+            writeFully(channel, (ByteBuffer) header.flip(), 0);
+        }
+    }
+
+    private static long writeInts(FileChannel channel, long position, int[] values, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length * Integer.BYTES);
+        buf.asIntBuffer().put(values, 0, length);
+        return writeFully(channel, buf, position);
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long written = 0;
+        while (buf.hasRemaining()) {
+            written += channel.write(buf, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * A window to be written to the profile.
+     */
+    public static final class Window {
+        private final int window;
+        private final int width;
+        private final WindowStatistics statistics;
+        private final double[] times;
+
+        public Window(int window, int width, WindowStatistics statistics, double[] times) {
+            this.window = window;
+            this.width = width;
+            this.statistics = statistics;
+            this.times = times;
+        }
+    }
+
+    private static final class Frame {
+        private final int[] fields;
+        private final int hash;
+
+        Frame(int className, int methodName, int methodDescription, int lineNumber, int parentLineNumber) {
+            this.fields = new int[]{className, methodName, methodDescription, lineNumber, parentLineNumber};
+            this.hash = Arrays.hashCode(this.fields);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(this.fields, ((Frame) o).fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+}
@@ -0,0 +1,358 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.columnar;
+
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.DoubleBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Converts between {@link ColumnarProfile}s and {@link SamplerData} protos, and merges profiles.
+ */
+public enum ColumnarProfiles {
+    ;
+
+    /**
+     * Writes a {@link SamplerData} proto to a file in the columnar format.
+     *
+     * @param data the data
+     * @param file the file to write to
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(SamplerData data, Path file) throws IOException {
+        ColumnarProfileWriter writer = new ColumnarProfileWriter();
+        writer.extras(data);
+
+        // the times of each proto node, and the node it was written as
+        List<IntToDoubleFunction> times = new ArrayList<>();
+        int[] nodes = new int[1024];
+
+        Deque<int[]> stack = new ArrayDeque<>();
+        for (SparkSamplerProtos.ThreadNode thread : data.getThreadsList()) {
+            int root = writer.thread(thread.getName());
+            times.add(window -> window < thread.getTimesCount() ? thread.getTimes(window) : 0);
+            nodes = append(nodes, times.size() - 1, root);
+
+            for (int ref : thread.getChildrenRefsList()) {
+                stack.push(new int[]{ref, root});
+            }
+            while (!stack.isEmpty()) {
+                int[] entry = stack.pop();
+                SparkSamplerProtos.StackTraceNode node = thread.getChildren(entry[0]);
+                int frame = writer.frame(
+                        node.getClassName(),
+                        node.getMethodName(),
+                        node.getMethodDesc().isEmpty() ? null : node.getMethodDesc(),
+                        node.getLineNumber(),
+                        node.getParentLineNumber()
+                );
+                int id = writer.node(entry[1], frame);
+                times.add(window -> window < node.getTimesCount() ? node.getTimes(window) : 0);
+                nodes = append(nodes, times.size() - 1, id);
+
+                for (int ref : node.getChildrenRefsList()) {
+                    stack.push(new int[]{ref, id});
+                }
+            }
+        }
+
+        int[] nodeMap = nodes;
+        int nodeCount = writer.getNodeCount();
+        writer.write(file, new Iterator<ColumnarProfileWriter.Window>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < data.getTimeWindowsCount();
+            }
+
+            @Override
+            public ColumnarProfileWriter.Window next() {
+                int index = this.index++;
+                int window = data.getTimeWindows(index);
+                int width = index < data.getTimeWindowWidthsCount() ? data.getTimeWindowWidths(index) : 1;
+
+                double[] column = new double[nodeCount];
+                for (int i = 0; i < times.size(); i++) {
+                    column[nodeMap[i]] += times.get(i).applyAsDouble(index);
+                }
+                return new ColumnarProfileWriter.Window(window, width, data.getTimeWindowStatisticsMap().get(window), column);
+            }
+        });
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    /**
+     * Reads a columnar profile back into a {@link SamplerData} proto.
+     *
+     * @param profile the profile
+     * @return the proto
+     * @throws IOException if an I/O error occurs
+     */
+    public static SamplerData toProto(ColumnarProfile profile) throws IOException {
+        int nodeCount = profile.getNodeCount();
+        int windowCount = profile.getWindowCount();
+
+        DoubleBuffer[] columns = new DoubleBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            columns[i] = profile.getTimes(i);
+        }
+
+        // index the children of each node
+        int[] childOffsets = new int[nodeCount + 1];
+        for (int node = 0; node < nodeCount; node++) {
+            int parent = profile.getParent(node);
+            if (parent != -1) {
+                childOffsets[parent + 1]++;
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            childOffsets[node + 1] += childOffsets[node];
+        }
+        int[] children = new int[childOffsets[nodeCount]];
+        int[] fill = Arrays.copyOf(childOffsets, nodeCount);
+        for (int node = 0; node < nodeCount; node++) {
+            int parent = profile.getParent(node);
+            if (parent != -1) {
+                children[fill[parent]++] = node;
+            }
+        }
+
+        SamplerData.Builder proto = profile.getExtras().toBuilder();
+
+        int[] refs = new int[nodeCount];
+        List<Integer> order = new ArrayList<>();
+        for (int thread = 0; thread < profile.getThreadCount(); thread++) {
+            int root = profile.getThreadRoot(thread);
+
+            // assign each node in the thread an index in the thread's list of nodes
+            order.clear();
+            Deque<Integer> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                int node = stack.pop();
+                if (node != root) {
+                    refs[node] = order.size();
+                    order.add(node);
+                }
+                for (int i = childOffsets[node + 1] - 1; i >= childOffsets[node]; i--) {
+                    stack.push(children[i]);
+                }
+            }
+
+            SparkSamplerProtos.ThreadNode.Builder threadProto = SparkSamplerProtos.ThreadNode.newBuilder()
+                    .setName(profile.getThreadName(thread));
+            for (int i = 0; i < windowCount; i++) {
+                threadProto.addTimes(columns[i].get(root));
+            }
+            for (int i = childOffsets[root]; i < childOffsets[root + 1]; i++) {
+                threadProto.addChildrenRefs(refs[children[i]]);
+            }
+
+            for (int node : order) {
+                int frame = profile.getFrame(node);
+                SparkSamplerProtos.StackTraceNode.Builder nodeProto = SparkSamplerProtos.StackTraceNode.newBuilder()
+                        .setClassName(profile.getClassName(frame))
+                        .setMethodName(profile.getMethodName(frame));
+
+                String methodDescription = profile.getMethodDescription(frame);
+                if (methodDescription != null) {
+                    nodeProto.setMethodDesc(methodDescription);
+                }
+                if (profile.getLineNumber(frame) >= 0) {
+                    nodeProto.setLineNumber(profile.getLineNumber(frame));
+                }
+                if (profile.getParentLineNumber(frame) >= 0) {
+                    nodeProto.setParentLineNumber(profile.getParentLineNumber(frame));
+                }
+
+                for (int i = 0; i < windowCount; i++) {
+                    nodeProto.addTimes(columns[i].get(node));
+                }
+                for (int i = childOffsets[node]; i < childOffsets[node + 1]; i++) {
+                    nodeProto.addChildrenRefs(refs[children[i]]);
+                }
+                threadProto.addChildren(nodeProto.build());
+            }
+
+            proto.addThreads(threadProto.build());
+        }
+
+        for (int i = 0; i < windowCount; i++) {
+            int window = profile.getWindow(i);
+            proto.addTimeWindows(window);
+            proto.addTimeWindowWidths(profile.getWidth(i));
+
+            WindowStatistics statistics = profile.getStatistics(i);
+            if (statistics != null) {
+                proto.putTimeWindowStatistics(window, statistics);
+            }
+        }
+
+        return proto.build();
+    }
+
+    /**
+     * Merges several columnar profiles into a single file.
+     *
+     * <p>Threads are merged by name, and nodes by their path from the thread root. Windows which
+     * appear in more than one profile have their times summed. The metadata of the first profile
+     * is kept, with the start & end times widened to cover all of the profiles.</p>
+     *
+     * @param profiles the profiles to merge
+     * @param file the file to write to
+     * @throws IOException if an I/O error occurs
+     */
+    public static void merge(List<ColumnarProfile> profiles, Path file) throws IOException {
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("No profiles to merge");
+        }
+
+        ColumnarProfileWriter writer = new ColumnarProfileWriter();
+
+        // map the nodes of each profile into the merged tree - parents always precede their children
+        int[][] nodeMaps = new int[profiles.size()][];
+        for (int p = 0; p < profiles.size(); p++) {
+            ColumnarProfile profile = profiles.get(p);
+
+            String[] rootThreads = new String[profile.getNodeCount()];
+            for (int thread = 0; thread < profile.getThreadCount(); thread++) {
+                rootThreads[profile.getThreadRoot(thread)] = profile.getThreadName(thread);
+            }
+
+            int[] frameMap = new int[profile.getFrameCount()];
+            for (int frame = 0; frame < frameMap.length; frame++) {
+                frameMap[frame] = writer.frame(
+                        profile.getClassName(frame),
+                        profile.getMethodName(frame),
+                        profile.getMethodDescription(frame),
+                        profile.getLineNumber(frame),
+                        profile.getParentLineNumber(frame)
+                );
+            }
+
+            int[] nodeMap = new int[profile.getNodeCount()];
+            for (int node = 0; node < nodeMap.length; node++) {
+                int parent = profile.getParent(node);
+                nodeMap[node] = parent == -1
+                        ? writer.thread(rootThreads[node])
+                        : writer.node(nodeMap[parent], frameMap[profile.getFrame(node)]);
+            }
+            nodeMaps[p] = nodeMap;
+        }
+
+        // the profiles (and their window index) that contain each window
+        Map<Integer, List<int[]>> windows = new TreeMap<>();
+        for (int p = 0; p < profiles.size(); p++) {
+            ColumnarProfile profile = profiles.get(p);
+            for (int i = 0; i < profile.getWindowCount(); i++) {
+                windows.computeIfAbsent(profile.getWindow(i), w -> new ArrayList<>()).add(new int[]{p, i});
+            }
+        }
+
+        writer.extras(mergeExtras(profiles));
+
+        int nodeCount = writer.getNodeCount();
+        Iterator<Map.Entry<Integer, List<int[]>>> it = windows.entrySet().iterator();
+        writer.write(file, new Iterator<ColumnarProfileWriter.Window>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public ColumnarProfileWriter.Window next() {
+                Map.Entry<Integer, List<int[]>> entry = it.next();
+
+                double[] column = new double[nodeCount];
+                int width = 1;
+                WindowStatistics statistics = null;
+                try {
+                    for (int[] source : entry.getValue()) {
+                        ColumnarProfile profile = profiles.get(source[0]);
+                        int[] nodeMap = nodeMaps[source[0]];
+
+                        DoubleBuffer times = profile.getTimes(source[1]);
+                        for (int node = 0; node < nodeMap.length; node++) {
+                            column[nodeMap[node]] += times.get(node);
+                        }
+
+                        width = Math.max(width, profile.getWidth(source[1]));
+                        if (statistics == null) {
+                            statistics = profile.getStatistics(source[1]);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return new ColumnarProfileWriter.Window(entry.getKey(), width, statistics, column);
+            }
+        });
+    }
+
+    private static SamplerData mergeExtras(List<ColumnarProfile> profiles) throws IOException {
+        SamplerData.Builder extras = profiles.get(0).getExtras().toBuilder();
+        SamplerMetadata.Builder metadata = extras.getMetadata().toBuilder();
+
+        for (ColumnarProfile profile : profiles.subList(1, profiles.size())) {
+            SamplerData other = profile.getExtras();
+            extras.putAllClassSources(other.getClassSourcesMap());
+            extras.putAllMethodSources(other.getMethodSourcesMap());
+            extras.putAllLineSources(other.getLineSourcesMap());
+
+            if (other.getMetadata().getStartTime() != 0) {
+                metadata.setStartTime(metadata.getStartTime() == 0
+                        ? other.getMetadata().getStartTime()
+                        : Math.min(metadata.getStartTime(), other.getMetadata().getStartTime()));
+            }
+            metadata.setEndTime(Math.max(metadata.getEndTime(), other.getMetadata().getEndTime()));
+        }
+
+        // source costs & hot methods are derived from a single profile - they no longer apply
+        return extras.setMetadata(metadata)
+                .clearSourceCosts()
+                .clearHotMethods()
+                .build();
+    }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.compare;
+
+import me.lucko.spark.common.sampler.columnar.ColumnarProfile;
+import me.lucko.spark.common.sampler.columnar.ColumnarProfiles;
+import me.lucko.spark.common.sampler.node.MergeMode;
+import me.lucko.spark.proto.SparkSamplerProtos;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * A comparison of two profiles, aligned by method.
+ *
+ * <p>Both profiles are normalised before they are compared - by the number of ticks if both
+ * profiles recorded it, or otherwise by their total time - so profiles of different lengths can
+ * be compared directly.</p>
+ */
+public final class ProfileComparison {
+
+    /**
+     * Loads a saved profile, in either the proto or columnar format.
+     *
+     * @param file the file
+     * @return the profile
+     * @throws IOException if an I/O error occurs
+     */
+    public static SamplerData load(Path file) throws IOException {
+        if (file.getFileName().toString().endsWith("." + ColumnarProfile.FILE_EXTENSION)) {
+            try (ColumnarProfile profile = ColumnarProfile.open(file)) {
+                return ColumnarProfiles.toProto(profile);
+            }
+        }
+        return SamplerData.parseFrom(Files.readAllBytes(file));
+    }
+
+    /**
+     * Compares two profiles.
+     *
+     * @param baseline the baseline profile
+     * @param current the profile to compare against the baseline
+     * @param mergeMode the merge mode, which determines whether calls from different parent lines are kept apart
+     * @return the comparison
+     */
+    public static ProfileComparison compare(SamplerData baseline, SamplerData current, MergeMode mergeMode) {
+        SamplerMetadata.SamplerMode mode = current.getMetadata().getSamplerMode();
+        if (baseline.getMetadata().getSamplerMode() != mode) {
+            throw new IllegalArgumentException("Can't compare an " + baseline.getMetadata().getSamplerMode().name().toLowerCase(Locale.ROOT) + " profile with an " + mode.name().toLowerCase(Locale.ROOT) + " profile");
+        }
+
+        boolean ticks = baseline.getMetadata().getNumberOfTicks() > 0 && current.getMetadata().getNumberOfTicks() > 0;
+        ProfileComparison comparison = new ProfileComparison(ticks ? Normalisation.TICKS : Normalisation.TOTAL, mode, mergeMode.separateParentCalls());
+        comparison.add(baseline, true);
+        comparison.add(current, false);
+        return comparison;
+    }
+
+    /** How the profiles were normalised */
+    private final Normalisation normalisation;
+
+    /** The mode of the profiles */
+    private final SamplerMetadata.SamplerMode mode;
+
+    /** If calls to the same method from different parent lines are kept apart */
+    private final boolean separateParentCalls;
+
+    /** The merged tree - one node for each thread */
+    private final Map<String, Node> threads = new LinkedHashMap<>();
+
+    /** The self time of each method, regardless of where it was called from */
+    private final Map<String, Method> methods = new LinkedHashMap<>();
+
+    private ProfileComparison(Normalisation normalisation, SamplerMetadata.SamplerMode mode, boolean separateParentCalls) {
+        this.normalisation = normalisation;
+        this.mode = mode;
+        this.separateParentCalls = separateParentCalls;
+    }
+
+    private void add(SamplerData data, boolean baseline) {
+        double total = 0;
+        for (SparkSamplerProtos.ThreadNode thread : data.getThreadsList()) {
+            total += sum(thread.getTimesList());
+        }
+
+        double factor;
+        if (this.normalisation == Normalisation.TICKS) {
+            factor = 1d / data.getMetadata().getNumberOfTicks();
+        } else {
+            factor = total == 0 ? 0 : 100d / total;
+        }
+
+        Deque<ChildFrame> stack = new ArrayDeque<>();
+        for (SparkSamplerProtos.ThreadNode thread : data.getThreadsList()) {
+            Node threadNode = this.threads.computeIfAbsent(thread.getName(), name -> new Node(name, null, null, 0));
+            threadNode.add(baseline, sum(thread.getTimesList()) * factor, 0);
+
+            double[] totals = new double[thread.getChildrenCount()];
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] = sum(thread.getChildren(i).getTimesList());
+            }
+
+            for (int ref : thread.getChildrenRefsList()) {
+                stack.push(new ChildFrame(ref, threadNode));
+            }
+            while (!stack.isEmpty()) {
+                ChildFrame frame = stack.pop();
+                int ref = frame.ref;
+                SparkSamplerProtos.StackTraceNode node = thread.getChildren(ref);
+
+                double selfTime = totals[ref];
+                for (int child : node.getChildrenRefsList()) {
+                    selfTime -= totals[child];
+                }
+                selfTime = Math.max(0, selfTime);
+
+                String desc = node.getMethodDesc().isEmpty() ? null : node.getMethodDesc();
+                int parentLine = this.separateParentCalls ? node.getParentLineNumber() : 0;
+
+                Node diffNode = frame.parent.child(node.getClassName(), node.getMethodName(), desc, parentLine);
+                diffNode.add(baseline, totals[ref] * factor, selfTime * factor);
+
+                this.methods.computeIfAbsent(diffNode.methodKey(), key -> new Method(node.getClassName(), node.getMethodName(), desc))
+                        .add(baseline, selfTime * factor);
+
+                for (int child : node.getChildrenRefsList()) {
+                    stack.push(new ChildFrame(child, diffNode));
+                }
+            }
+        }
+    }
+
+    private static double sum(List<Double> times) {
+        double sum = 0;
+        for (double time : times) {
+            sum += time;
+        }
+        return sum;
+    }
+
+    public Normalisation getNormalisation() {
+        return this.normalisation;
+    }
+
+    public double getBaselineTotal() {
+        return this.threads.values().stream().mapToDouble(node -> node.baselineTotal).sum();
+    }
+
+    public double getCurrentTotal() {
+        return this.threads.values().stream().mapToDouble(node -> node.currentTotal).sum();
+    }
+
+    /**
+     * Gets the methods whose self time increased the most.
+     *
+     * @param limit the maximum number of methods to return
+     * @return the methods
+     */
+    public List<Method> getRegressions(int limit) {
+        return this.methods.values().stream()
+                .filter(method -> method.getDelta() > 0)
+                .sorted(Comparator.comparingDouble(Method::getDelta).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Gets the methods whose self time decreased the most.
+     *
+     * @param limit the maximum number of methods to return
+     * @return the methods
+     */
+    public List<Method> getImprovements(int limit) {
+        return this.methods.values().stream()
+                .filter(method -> method.getDelta() < 0)
+                .sorted(Comparator.comparingDouble(Method::getDelta))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Formats a normalised value.
+     *
+     * @param value the value
+     * @param signed if a sign should always be included
+     * @return the formatted value
+     */
+    public String format(double value, boolean signed) {
+        String sign = signed && value >= 0 ? "+" : "";
+        if (this.normalisation == Normalisation.TOTAL) {
+            return String.format("%s%.2f%%", sign, value);
+        }
+        if (this.mode == SamplerMetadata.SamplerMode.ALLOCATION) {
+            return String.format("%s%.0fB/tick", sign, value);
+        }
+        return String.format("%s%.3fms/tick", sign, value);
+    }
+
+    /**
+     * Writes the merged tree, with the baseline & current value and the change for each node.
+     *
+     * <p>Subtrees which make up less than {@code minShare} of both profiles are left out.</p>
+     *
+     * @param file the file to write to
+     * @param minShare the minimum share of the total, between 0 and 1
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTree(Path file, double minShare) throws IOException {
+        double threshold = Math.max(getBaselineTotal(), getCurrentTotal()) * minShare;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# normalised by " + (this.normalisation == Normalisation.TICKS ? "number of ticks" : "total time"));
+            writer.newLine();
+            writer.write("# change, baseline -> current, total (self)");
+            writer.newLine();
+
+            Deque<TreeFrame> stack = new ArrayDeque<>();
+            for (Node thread : sorted(new ArrayList<>(this.threads.values()), threshold)) {
+                stack.push(new TreeFrame(thread, 0));
+                while (!stack.isEmpty()) {
+                    TreeFrame frame = stack.pop();
+                    Node node = frame.node;
+                    int depth = frame.depth;
+
+                    StringBuilder line = new StringBuilder();
+                    for (int i = 0; i < depth; i++) {
+                        line.append("  ");
+                    }
+                    line.append(format(node.currentTotal - node.baselineTotal, true))
+                            .append("  ")
+                            .append(format(node.baselineTotal, false))
+                            .append(" -> ")
+                            .append(format(node.currentTotal, false))
+                            .append(" (")
+                            .append(format(node.currentSelf - node.baselineSelf, true))
+                            .append(" self)  ")
+                            .append(node.describe());
+                    writer.write(line.toString());
+                    writer.newLine();
+
+                    List<Node> children = sorted(new ArrayList<>(node.children.values()), threshold);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(new TreeFrame(children.get(i), depth + 1));
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Node> sorted(List<Node> nodes, double threshold) {
+        nodes.removeIf(node -> Math.max(node.baselineTotal, node.currentTotal) < threshold);
+        nodes.sort(Comparator.comparingDouble((Node node) -> Math.abs(node.currentTotal - node.baselineTotal)).reversed());
+        return nodes;
+    }
+
+    /**
+     * How the profiles are normalised.
+     */
+    public enum Normalisation {
+
+        /** Values are per tick */
+        TICKS,
+
+        /** Values are a percentage of the total time */
+        TOTAL
+    }
+
+    /**
+     * A pending child reference of a thread, and the node it should be merged under.
+     */
+    private static final class ChildFrame {
+        private final int ref;
+        private final Node parent;
+
+        ChildFrame(int ref, Node parent) {
+            this.ref = ref;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * A node waiting to be written, and its depth in the tree.
+     */
+    private static final class TreeFrame {
+        private final Node node;
+        private final int depth;
+
+        TreeFrame(Node node, int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
+    }
+
+    private final class Node {
+        private final String className;
+        private final String methodName;
+        private final String methodDescription;
+        private final int parentLineNumber;
+
+        private double baselineTotal;
+        private double baselineSelf;
+        private double currentTotal;
+        private double currentSelf;
+
+        private final Map<String, Node> children = new LinkedHashMap<>();
+
+        Node(String className, String methodName, String methodDescription, int parentLineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDescription = methodDescription;
+            this.parentLineNumber = parentLineNumber;
+        }
+
+        Node child(String className, String methodName, String methodDescription, int parentLineNumber) {
+            String key = className + '.' + methodName + (methodDescription == null ? "" : methodDescription) + ':' + parentLineNumber;
+            return this.children.computeIfAbsent(key, k -> new Node(className, methodName, methodDescription, parentLineNumber));
+        }
+
+        void add(boolean baseline, double total, double self) {
+            if (baseline) {
+                this.baselineTotal += total;
+                this.baselineSelf += self;
+            } else {
+                this.currentTotal += total;
+                this.currentSelf += self;
+            }
+        }
+
+        String methodKey() {
+            return this.className + '.' + this.methodName + (this.methodDescription == null ? "" : this.methodDescription);
+        }
+
+        String describe() {
+            if (this.methodName == null) {
+                return this.className;
+            }
+            String description = this.className + '.' + this.methodName + "()";
+            if (ProfileComparison.this.separateParentCalls && this.parentLineNumber > 0) {
+                description += " (from line " + this.parentLineNumber + ")";
+            }
+            return description;
+        }
+    }
+
+    /**
+     * The change in the self time of a method.
+     */
+    public static final class Method {
+        private final String className;
+        private final String methodName;
+        private final String methodDescription;
+
+        private double baselineSelf;
+        private double currentSelf;
+
+        Method(String className, String methodName, String methodDescription) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDescription = methodDescription;
+        }
+
+        void add(boolean baseline, double self) {
+            if (baseline) {
+                this.baselineSelf += self;
+            } else {
+                this.currentSelf += self;
+            }
+        }
+
+        public String getClassName() {
+            return this.className;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
+        public String getMethodDescription() {
+            return this.methodDescription;
+        }
+
+        public double getBaselineSelf() {
+            return this.baselineSelf;
+        }
+
+        public double getCurrentSelf() {
+            return this.currentSelf;
+        }
+
+        public double getDelta() {
+            return this.currentSelf - this.baselineSelf;
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.history;
+
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.proto.SparkSamplerProtos.WindowSummary;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, on-disk ring of {@link WindowSummary} records.
+ *
+ * <p>The file is made up of a small header, followed by a fixed number of fixed-size slots.
+ * Once every slot has been used, the oldest record is overwritten, so the file never grows
+ * beyond {@code HEADER_SIZE + capacity * SLOT_SIZE} bytes.</p>
+ */
+public final class WindowHistory implements AutoCloseable {
+
+    /** Identifies the file format */
+    private static final int MAGIC = 0x53504b48; // SPKH
+    private static final int VERSION = 1;
+
+    /** magic, version, slot size, capacity, next slot, record count */
+    private static final int HEADER_SIZE = 6 * Integer.BYTES;
+
+    /** The size of each slot - summaries which are larger than this are trimmed to fit */
+    private static final int SLOT_SIZE = 4096;
+
+    /**
+     * Gets the number of slots needed to hold the given number of days of history.
+     *
+     * @param days the number of days
+     * @return the capacity
+     */
+    public static int capacityForDays(int days) {
+        return (int) Math.min(Integer.MAX_VALUE / SLOT_SIZE, TimeUnit.DAYS.toSeconds(days) / ProfilingWindowUtils.PRUNED_WINDOW_SIZE_SECONDS);
+    }
+
+    /** The file */
+    private final Path file;
+
+    /** The number of slots */
+    private final int capacity;
+
+    /** The open channel, or null if it hasn't been opened yet */
+    private FileChannel channel;
+
+    /** The index of the slot to write the next record to */
+    private int next;
+
+    /** The number of records in the ring */
+    private int count;
+
+    public WindowHistory(Path file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    private FileChannel open() throws IOException {
+        if (this.channel != null) {
+            return this.channel;
+        }
+
+        Files.createDirectories(this.file.getParent());
+        FileChannel channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() >= HEADER_SIZE && readFully(channel, header, 0)) {
+            header.flip();
+            boolean valid = header.getInt() == MAGIC &&
+                    header.getInt() == VERSION &&
+                    header.getInt() == SLOT_SIZE &&
+                    header.getInt() == this.capacity;
+            int next = header.getInt();
+            int count = header.getInt();
+            if (valid && next >= 0 && next < this.capacity && count >= 0 && count <= this.capacity) {
+                this.next = next;
+                this.count = count;
+                this.channel = channel;
+                return channel;
+            }
+        }
+
+        // new file, or the format/capacity has changed - start again
+        channel.truncate(0);
+        this.next = 0;
+        this.count = 0;
+        this.channel = channel;
+        writeHeader();
+        return channel;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(SLOT_SIZE)
+                .putInt(this.capacity)
+                .putInt(this.next)
+                .putInt(this.count);
+        header.flip();
+        writeFully(this.channel, header, 0);
+    }
+
+    /**
+     * Appends a summary to the ring, overwriting the oldest record if the ring is full.
+     *
+     * <p>Summaries which are too large for a slot are trimmed. If the summary still doesn't fit,
+     * it isn't written.</p>
+     *
+     * @param summary the summary
+     * @return true if the summary was written
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized boolean append(WindowSummary summary) throws IOException {
+        byte[] bytes = trimToFit(summary).toByteArray();
+        if (Integer.BYTES + bytes.length > SLOT_SIZE) {
+            return false;
+        }
+
+        FileChannel channel = open();
+        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+        buf.putInt(bytes.length).put(bytes);
+        buf.flip();
+        writeFully(channel, buf, slotPosition(this.next));
+
+        this.next = (this.next + 1) % this.capacity;
+        this.count = Math.min(this.count + 1, this.capacity);
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Reads all of the summaries in the ring.
+     *
+     * @return the summaries, oldest first
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized List<WindowSummary> read() throws IOException {
+        FileChannel channel = open();
+
+        List<WindowSummary> summaries = new ArrayList<>(this.count);
+        ByteBuffer buf = ByteBuffer.allocate(SLOT_SIZE);
+        for (int i = 0; i < this.count; i++) {
+            int slot = Math.floorMod(this.next - this.count + i, this.capacity);
+
+            buf.clear();
+            if (!readFully(channel, buf, slotPosition(slot))) {
+                continue;
+            }
+            buf.flip();
+
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+
+            try {
+                summaries.add(WindowSummary.parseFrom(bytes));
+            } catch (InvalidProtocolBufferException e) {
+                // skip corrupt records
+            }
+        }
+        return summaries;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.channel = null;
+        }
+    }
+
+    private static long slotPosition(int slot) {
+        return HEADER_SIZE + (long) slot * SLOT_SIZE;
+    }
+
+    private static WindowSummary trimToFit(WindowSummary summary) {
+        // drop the least significant methods & sources until the record fits
+        while (Integer.BYTES + summary.getSerializedSize() > SLOT_SIZE && (summary.getMethodsCount() != 0 || summary.getSourcesCount() != 0)) {
+            WindowSummary.Builder builder = summary.toBuilder();
+            if (summary.getMethodsCount() >= summary.getSourcesCount()) {
+                builder.removeMethods(summary.getMethodsCount() - 1);
+            } else {
+                builder.removeSources(summary.getSourcesCount() - 1);
+            }
+            summary = builder.build();
+        }
+
+        // then the larger statistics
+        if (Integer.BYTES + summary.getSerializedSize() > SLOT_SIZE && summary.hasStatistics()) {
+            summary = summary.toBuilder()
+                    .setStatistics(summary.getStatistics().toBuilder()
+                            .clearMsptHistogram()
+                            .clearMemoryPoolPeakUsed()
+                            .clearBufferPoolPeakUsed()
+                            .clearThreadAllocationRates())
+                    .build();
+        }
+        return summary;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read == -1) {
+                // a partially written slot at the end of the file
+                return buf.position() >= Integer.BYTES && buf.position() >= Integer.BYTES + buf.getInt(0);
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+}
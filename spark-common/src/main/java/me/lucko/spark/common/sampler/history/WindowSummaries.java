@@ -0,0 +1,112 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.history;
+
+import me.lucko.spark.common.sampler.node.SelfTimeCollector;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.source.ClassSourceLookup;
+import me.lucko.spark.common.sampler.source.SourceCostSummary;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.WindowSummary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongToDoubleFunction;
+
+/**
+ * Summarises profiling windows into compact {@link WindowSummary} records.
+ */
+public enum WindowSummaries {
+    ;
+
+    /** The number of methods to include in each summary */
+    public static final int METHOD_LIMIT = Integer.getInteger("spark.historyMethodLimit", 20);
+
+    /** The number of sources to include in each summary */
+    public static final int SOURCE_LIMIT = Integer.getInteger("spark.historySourceLimit", 10);
+
+    /**
+     * Summarises each of the windows encoded by the given {@code timeEncoder}.
+     *
+     * @param data the data
+     * @param timeEncoder the encoder defining the windows to summarise
+     * @param classSourceVisitor the visitor used to identify the source of each node
+     * @param statistics the statistics for each window
+     * @param valueTransformer the function used to transform times
+     * @return the summaries, in window order
+     */
+    public static List<WindowSummary> summarise(Collection<ThreadNode> data, ProtoTimeEncoder timeEncoder, ClassSourceLookup.Visitor classSourceVisitor, Map<Integer, WindowStatistics> statistics, LongToDoubleFunction valueTransformer) {
+        List<WindowSummary> summaries = new ArrayList<>();
+        for (int window : timeEncoder.getKeys()) {
+            ProtoTimeEncoder windowEncoder = timeEncoder.filter(w -> w == window);
+
+            SelfTimeCollector selfTimes = SelfTimeCollector.collect(data, windowEncoder);
+            if (selfTimes.getTotalTime() == 0) {
+                continue;
+            }
+
+            int width = timeEncoder.getWidth(window);
+            long startTime = ProfilingWindowUtils.windowToUnixMillis(window);
+            long endTime = ProfilingWindowUtils.windowToUnixMillis(window + width);
+
+            WindowSummary.Builder summary = WindowSummary.newBuilder()
+                    .setWindow(window)
+                    .setWidth(width)
+                    .setWindowSize(ProfilingWindowUtils.WINDOW_SIZE_SECONDS)
+                    .setTotalTime(valueTransformer.applyAsDouble(selfTimes.getTotalTime()));
+
+            for (SelfTimeCollector.HotMethod method : selfTimes.getHottestMethods(METHOD_LIMIT)) {
+                summary.addMethods(WindowSummary.Method.newBuilder()
+                        .setClassName(method.getClassName())
+                        .setMethodName(method.getMethodName())
+                        .setSelfTime(valueTransformer.applyAsDouble(method.getSelfTime()))
+                        .build()
+                );
+            }
+
+            List<SourceCostSummary.Cost> costs = SourceCostSummary.compute(data, windowEncoder, classSourceVisitor).getRankedCosts();
+            for (SourceCostSummary.Cost cost : costs.subList(0, Math.min(SOURCE_LIMIT, costs.size()))) {
+                summary.addSources(WindowSummary.Source.newBuilder()
+                        .setName(cost.getSource())
+                        .setAttributedTime(valueTransformer.applyAsDouble(cost.getAttributedTime()))
+                        .build()
+                );
+            }
+
+            WindowStatistics windowStatistics = statistics.get(window);
+            if (windowStatistics != null) {
+                summary.setStatistics(windowStatistics);
+                if (windowStatistics.getStartTime() != 0) {
+                    startTime = windowStatistics.getStartTime();
+                    endTime = windowStatistics.getEndTime();
+                }
+            }
+
+            summaries.add(summary.setStartTime(startTime).setEndTime(endTime).build());
+        }
+        return summaries;
+    }
+
+}
@@ -23,13 +23,20 @@ package me.lucko.spark.common.sampler.java;
 import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.aggregator.AbstractDataAggregator;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.async.AsyncStackTraceElement;
+import me.lucko.spark.common.sampler.node.FrameFolder;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.common.sampler.node.StackTraceNode;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 
 import java.lang.management.ThreadInfo;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
 
 /**
  * Abstract {@link DataAggregator} for the {@link JavaSampler}.
@@ -42,6 +49,11 @@ public abstract class JavaDataAggregator extends AbstractDataAggregator {
         return new StackTraceNode.Description(element.getClassName(), element.getMethodName(), element.getLineNumber(), parentLineNumber);
     };
 
+    /** The stack which samples taken during a GC pause are attributed to */
+    private static final StackTraceElement[] GC_PAUSE_STACK = new StackTraceElement[]{
+            new StackTraceElement(AsyncStackTraceElement.GC_PAUSE.getClassName(), AsyncStackTraceElement.GC_PAUSE.getMethodName(), null, -2)
+    };
+
     /** The worker pool for inserting stack nodes */
     protected final ExecutorService workerPool;
 
@@ -54,12 +66,41 @@ public abstract class JavaDataAggregator extends AbstractDataAggregator {
     /** If threads executing native code should be ignored */
     private final boolean ignoreNative;
 
-    public JavaDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative) {
-        super(threadGrouper);
+    /** The shard for each worker thread, or null if data is written directly to {@link #threadData} */
+    private final ThreadLocal<Shard> shard;
+
+    /** All shards which have been created */
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+
+    public JavaDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, FrameFolder frameFolder, NodeBudget nodeBudget, int interval, boolean ignoreSleeping, boolean ignoreNative) {
+        super(threadGrouper, frameFolder, nodeBudget);
         this.workerPool = workerPool;
         this.interval = interval;
         this.ignoreSleeping = ignoreSleeping;
         this.ignoreNative = ignoreNative;
+        this.shard = shouldShard(threadGrouper) ? ThreadLocal.withInitial(this::createShard) : null;
+    }
+
+    /**
+     * Gets if data should be sharded by worker thread before it is merged into {@link #threadData}.
+     *
+     * <p>When many threads are grouped into the same node, the workers would otherwise all be
+     * contending on the same (root) maps.</p>
+     *
+     * @param threadGrouper the thread grouper
+     * @return true to shard
+     */
+    private static boolean shouldShard(ThreadGrouper threadGrouper) {
+        if (Boolean.getBoolean("spark.disableShardedAggregation")) {
+            return false;
+        }
+        return threadGrouper == ThreadGrouper.AS_ONE || threadGrouper == ThreadGrouper.BY_POOL;
+    }
+
+    private Shard createShard() {
+        Shard shard = new Shard();
+        this.shards.add(shard);
+        return shard;
     }
 
     /**
@@ -67,10 +108,11 @@ public abstract class JavaDataAggregator extends AbstractDataAggregator {
      *
      * @param threadInfo the thread info
      * @param window the window
+     * @param gcPause if the sample was taken during a GC pause
      */
-    public abstract void insertData(ThreadInfo threadInfo, int window);
+    public abstract void insertData(ThreadInfo threadInfo, int window, boolean gcPause);
 
-    protected void writeData(ThreadInfo threadInfo, int window) {
+    protected void writeData(ThreadInfo threadInfo, int window, boolean gcPause) {
         if (this.ignoreSleeping && isSleeping(threadInfo)) {
             return;
         }
@@ -78,14 +120,49 @@ public abstract class JavaDataAggregator extends AbstractDataAggregator {
             return;
         }
 
+        StackTraceElement[] stack = gcPause ? GC_PAUSE_STACK : threadInfo.getStackTrace();
         try {
-            ThreadNode node = getNode(this.threadGrouper.getGroup(threadInfo.getThreadId(), threadInfo.getThreadName()));
-            node.log(STACK_TRACE_DESCRIBER, threadInfo.getStackTrace(), this.interval, window);
+            String group = this.threadGrouper.getGroup(threadInfo.getThreadId(), threadInfo.getThreadName());
+            if (this.shard != null) {
+                this.shard.get().log(group, this.frameFolder, stack, this.interval, window);
+            } else {
+                ThreadNode node = getNode(group);
+                node.log(this.frameFolder, STACK_TRACE_DESCRIBER, stack, this.interval, window);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Merges the data accumulated by each shard into {@link #threadData}.
+     */
+    private void mergeShards() {
+        for (Shard shard : this.shards) {
+            for (ThreadNode node : shard.drain().values()) {
+                getNode(node.getThreadGroup()).merge(node);
+            }
+        }
+    }
+
+    @Override
+    public void pruneData(IntPredicate timeWindowPredicate) {
+        mergeShards();
+        super.pruneData(timeWindowPredicate);
+    }
+
+    @Override
+    public void freezeCompletedWindows(int currentWindow) {
+        mergeShards();
+        super.freezeCompletedWindows(currentWindow);
+    }
+
+    @Override
+    public List<ThreadNode> getCurrentData() {
+        mergeShards();
+        return super.getCurrentData();
+    }
+
     @Override
     public List<ThreadNode> exportData() {
         // wait for all pending data to be inserted
@@ -99,6 +176,30 @@ public abstract class JavaDataAggregator extends AbstractDataAggregator {
         return super.exportData();
     }
 
+    /**
+     * Data accumulated by a single worker thread.
+     *
+     * <p>The lock is only contended when the shard is drained.</p>
+     */
+    private static final class Shard {
+        private Map<String, ThreadNode> data = new HashMap<>();
+
+        synchronized void log(String group, FrameFolder frameFolder, StackTraceElement[] stack, long time, int window) {
+            ThreadNode node = this.data.get(group);
+            if (node == null) {
+                node = new ThreadNode(group);
+                this.data.put(group, node);
+            }
+            node.log(frameFolder, STACK_TRACE_DESCRIBER, stack, time, window);
+        }
+
+        synchronized Map<String, ThreadNode> drain() {
+            Map<String, ThreadNode> data = this.data;
+            this.data = new HashMap<>();
+            return data;
+        }
+    }
+
     private static boolean isSleeping(ThreadInfo thread) {
         if (thread.getThreadState() == Thread.State.WAITING || thread.getThreadState() == Thread.State.TIMED_WAITING) {
             return true;
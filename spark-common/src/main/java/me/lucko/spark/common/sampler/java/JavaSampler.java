@@ -27,9 +27,12 @@ package me.lucko.spark.common.sampler.java;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.monitor.memory.GarbageCollectionMonitor;
+import me.lucko.spark.common.monitor.memory.GcJournal;
 import me.lucko.spark.common.sampler.AbstractSampler;
 import me.lucko.spark.common.sampler.SamplerMode;
 import me.lucko.spark.common.sampler.SamplerSettings;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
 import me.lucko.spark.common.sampler.window.WindowStatisticsCollector;
 import me.lucko.spark.common.tick.TickHook;
@@ -52,6 +55,12 @@ import java.util.function.IntPredicate;
 public class JavaSampler extends AbstractSampler implements Runnable {
     private static final AtomicInteger THREAD_ID = new AtomicInteger(0);
 
+    /** The maximum time to wait for the GC journal to record a collection which has just finished */
+    private static final long GC_NOTIFICATION_TIMEOUT_MILLIS = 100;
+
+    /** The number of intervals a sample can run late by, other than after a GC, before the schedule is reset */
+    private static final int MAX_LATE_INTERVALS = 3;
+
     /** The worker pool for inserting stack nodes */
     private final ScheduledExecutorService workerPool = Executors.newScheduledThreadPool(
             6, new ThreadFactoryBuilder()
@@ -74,15 +83,25 @@ public class JavaSampler extends AbstractSampler implements Runnable {
 
     /** The last window that was profiled */
     private final AtomicInteger lastWindow = new AtomicInteger();
+
+    /** The time (nanos) the next sample is due */
+    private long nextDueNanos;
+    /** The number of collections when the threads were last sampled */
+    private long lastCollections;
+    /** The time (nanos) a collection was last noticed - samples due before this may be late because of it */
+    private long lastCollectionNanos = Long.MIN_VALUE;
+
+    /** The GC pauses since sampling started, published for the insert workers */
+    private volatile GcPauses gcPauses;
     
     public JavaSampler(SparkPlatform platform, SamplerSettings settings, boolean ignoreSleeping, boolean ignoreNative) {
         super(platform, settings);
-        this.dataAggregator = new SimpleDataAggregator(this.workerPool, settings.threadGrouper(), settings.interval(), ignoreSleeping, ignoreNative);
+        this.dataAggregator = new SimpleDataAggregator(this.workerPool, settings.threadGrouper(), settings.frameFolder(), new NodeBudget(settings.nodeBudget()), settings.interval(), ignoreSleeping, ignoreNative);
     }
 
     public JavaSampler(SparkPlatform platform, SamplerSettings settings, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold) {
         super(platform, settings);
-        this.dataAggregator = new TickedDataAggregator(this.workerPool, settings.threadGrouper(), settings.interval(), ignoreSleeping, ignoreNative, tickHook, tickLengthThreshold);
+        this.dataAggregator = new TickedDataAggregator(this.workerPool, settings.threadGrouper(), settings.frameFolder(), new NodeBudget(settings.nodeBudget()), settings.interval(), ignoreSleeping, ignoreNative, tickHook, tickLengthThreshold);
     }
 
     @Override
@@ -100,6 +119,8 @@ public class JavaSampler extends AbstractSampler implements Runnable {
         }
 
         this.windowStatisticsCollector.recordWindowStartTime(ProfilingWindowUtils.unixMillisToWindow(this.startTime));
+        this.nextDueNanos = System.nanoTime();
+        this.lastCollections = GarbageCollectionMonitor.countNotifyingCollections();
         this.task = this.workerPool.scheduleAtFixedRate(this, 0, this.interval, TimeUnit.MICROSECONDS);
     }
 
@@ -127,6 +148,23 @@ public class JavaSampler extends AbstractSampler implements Runnable {
         // to concurrently execute.
         try {
             long time = System.currentTimeMillis();
+            long nanos = System.nanoTime();
+
+            // the time this sample was due - if the JVM was paused, the threads can't be dumped
+            // until the pause has ended, and the samples which were missed are then taken in a burst
+            long collections = GarbageCollectionMonitor.countNotifyingCollections();
+            if (collections != this.lastCollections) {
+                this.lastCollections = collections;
+                this.lastCollectionNanos = nanos;
+            }
+            long intervalNanos = TimeUnit.MICROSECONDS.toNanos(this.interval);
+            long dueNanos = Math.min(this.nextDueNanos, nanos);
+            if (nanos - dueNanos > MAX_LATE_INTERVALS * intervalNanos && dueNanos >= this.lastCollectionNanos) {
+                // running behind for some other reason (e.g. slow thread dumps), don't try to catch up
+                dueNanos = nanos;
+            }
+            this.nextDueNanos = dueNanos + intervalNanos;
+            long dueTime = time - TimeUnit.NANOSECONDS.toMillis(nanos - dueNanos);
 
             if (this.autoEndTime != -1 && this.autoEndTime <= time) {
                 stop(false);
@@ -136,7 +174,7 @@ public class JavaSampler extends AbstractSampler implements Runnable {
 
             int window = ProfilingWindowUtils.unixMillisToWindow(time);
             ThreadInfo[] threadDumps = this.threadDumper.dumpThreads(this.threadBean);
-            this.workerPool.execute(new InsertDataTask(threadDumps, window));
+            this.workerPool.execute(new InsertDataTask(threadDumps, window, dueTime, collections));
         } catch (Throwable t) {
             stop(false);
             this.future.completeExceptionally(t);
@@ -155,22 +193,84 @@ public class JavaSampler extends AbstractSampler implements Runnable {
     }
      */
 
+    /**
+     * Gets whether the JVM was in a GC pause at the given time.
+     *
+     * @param time the time (unix millis)
+     * @param collections the number of collections when the sample was taken
+     * @return true if the JVM was paused
+     */
+    private boolean isDuringGcPause(long time, long collections) {
+        GcPauses gcPauses = this.gcPauses;
+        if (gcPauses == null || gcPauses.collections < collections) {
+            gcPauses = lookupGcPauses(collections);
+        }
+        return gcPauses.pauses.contains(time);
+    }
+
+    /**
+     * Looks up the GC pauses again, once the journal has recorded the given number of collections.
+     *
+     * <p>This only happens once after each collection, the first time a sample is inserted which
+     * was taken after it.</p>
+     *
+     * @param collections the number of collections
+     * @return the pauses
+     */
+    private synchronized GcPauses lookupGcPauses(long collections) {
+        GcPauses gcPauses = this.gcPauses;
+        if (gcPauses != null && gcPauses.collections >= collections) {
+            return gcPauses; // another worker got here first
+        }
+
+        GcJournal gcJournal = this.platform.getGcJournal();
+        gcJournal.awaitPendingCollections(GC_NOTIFICATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        gcPauses = new GcPauses(gcJournal.pauses(this.startTime, Long.MAX_VALUE), collections);
+        this.gcPauses = gcPauses;
+        return gcPauses;
+    }
+
+    /**
+     * The GC pauses, and the number of collections when they were looked up.
+     */
+    private static final class GcPauses {
+        private final GcJournal.Pauses pauses;
+        private final long collections;
+
+        GcPauses(GcJournal.Pauses pauses, long collections) {
+            this.pauses = pauses;
+            this.collections = collections;
+        }
+    }
+
     private final class InsertDataTask implements Runnable {
         private final ThreadInfo[] threadDumps;
         private final int window;
+        private final long dueTime;
+        private final long collections;
 
-        InsertDataTask(ThreadInfo[] threadDumps, int window) {
+        InsertDataTask(ThreadInfo[] threadDumps, int window, long dueTime, long collections) {
             this.threadDumps = threadDumps;
             this.window = window;
+            this.dueTime = dueTime;
+            this.collections = collections;
         }
 
         @Override
         public void run() {
+            boolean duringGcPause = isDuringGcPause(this.dueTime, this.collections);
+
             for (ThreadInfo threadInfo : this.threadDumps) {
                 if (threadInfo.getThreadName() == null || threadInfo.getStackTrace() == null) {
                     continue;
                 }
-                JavaSampler.this.dataAggregator.insertData(threadInfo, this.window);
+
+                // sleeping threads are unaffected by the pause, so their samples are left alone
+                boolean gcPause = duringGcPause && threadInfo.getThreadState() == Thread.State.RUNNABLE;
+                if (gcPause && JavaSampler.this.excludeGcPauses) {
+                    continue;
+                }
+                JavaSampler.this.dataAggregator.insertData(threadInfo, this.window, gcPause);
             }
 
             // if we have just stepped over into a new window...
@@ -183,10 +283,14 @@ public class JavaSampler extends AbstractSampler implements Runnable {
                 // collect statistics for the previous window
                 JavaSampler.this.windowStatisticsCollector.measureNow(previousWindow);
 
-                // prune data older than the history size
+                // summarise & prune data older than the history size, and roll up older windows
                 IntPredicate predicate = ProfilingWindowUtils.keepHistoryBefore(this.window);
+                JavaSampler.this.recordPrunedWindows(predicate);
                 JavaSampler.this.dataAggregator.pruneData(predicate);
+                JavaSampler.this.dataAggregator.freezeCompletedWindows(this.window);
+                JavaSampler.this.recordCompletedWindows();
                 JavaSampler.this.windowStatisticsCollector.pruneStatistics(predicate);
+                JavaSampler.this.windowStatisticsCollector.rollupStatistics(this.window);
 
                 //TODO:Fix sockets
                 //JavaSampler.this.workerPool.execute(JavaSampler.this::processWindowRotate);
@@ -201,10 +305,15 @@ public class JavaSampler extends AbstractSampler implements Runnable {
             proto.setChannelInfo(exportProps.channelInfo());
         }
         writeMetadataToProto(proto, platform, exportProps.creator(), exportProps.comment(), this.dataAggregator);
-        writeDataToProto(proto, this.dataAggregator, exportProps.mergeMode().get(), exportProps.classSourceLookup().get());
+        writeDataToProto(proto, this.dataAggregator, exportProps);
         return proto.build();
     }
 
+    @Override
+    protected JavaDataAggregator getDataAggregator() {
+        return this.dataAggregator;
+    }
+
     @Override
     public SamplerMode getMode() {
         return SamplerMode.EXECUTION;
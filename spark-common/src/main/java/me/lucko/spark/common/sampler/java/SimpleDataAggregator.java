@@ -22,6 +22,8 @@ package me.lucko.spark.common.sampler.java;
 
 import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.node.FrameFolder;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
 import java.lang.management.ThreadInfo;
@@ -31,21 +33,18 @@ import java.util.concurrent.ExecutorService;
  * Basic implementation of {@link DataAggregator}.
  */
 public class SimpleDataAggregator extends JavaDataAggregator {
-    public SimpleDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative) {
-        super(workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
+    public SimpleDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, FrameFolder frameFolder, NodeBudget nodeBudget, int interval, boolean ignoreSleeping, boolean ignoreNative) {
+        super(workerPool, threadGrouper, frameFolder, nodeBudget, interval, ignoreSleeping, ignoreNative);
     }
 
     @Override
     public SamplerMetadata.DataAggregator getMetadata() {
-        return SamplerMetadata.DataAggregator.newBuilder()
-                .setType(SamplerMetadata.DataAggregator.Type.SIMPLE)
-                .setThreadGrouper(this.threadGrouper.asProto())
-                .build();
+        return newMetadataBuilder(SamplerMetadata.DataAggregator.Type.SIMPLE).build();
     }
 
     @Override
-    public void insertData(ThreadInfo threadInfo, int window) {
-        writeData(threadInfo, window);
+    public void insertData(ThreadInfo threadInfo, int window, boolean gcPause) {
+        writeData(threadInfo, window, gcPause);
     }
 
 }
@@ -22,6 +22,8 @@ package me.lucko.spark.common.sampler.java;
 
 import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
+import me.lucko.spark.common.sampler.node.FrameFolder;
+import me.lucko.spark.common.sampler.node.NodeBudget;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 import me.lucko.spark.common.sampler.window.WindowStatisticsCollector;
 import me.lucko.spark.common.tick.TickHook;
@@ -29,6 +31,7 @@ import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
 
 import java.lang.management.ThreadInfo;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -59,8 +62,8 @@ public class TickedDataAggregator extends JavaDataAggregator {
     // guards currentData
     private final Object mutex = new Object();
 
-    public TickedDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, int interval, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold) {
-        super(workerPool, threadGrouper, interval, ignoreSleeping, ignoreNative);
+    public TickedDataAggregator(ExecutorService workerPool, ThreadGrouper threadGrouper, FrameFolder frameFolder, NodeBudget nodeBudget, int interval, boolean ignoreSleeping, boolean ignoreNative, TickHook tickHook, int tickLengthThreshold) {
+        super(workerPool, threadGrouper, frameFolder, nodeBudget, interval, ignoreSleeping, ignoreNative);
         this.tickHook = tickHook;
         this.tickLengthThreshold = TimeUnit.MILLISECONDS.toMicros(tickLengthThreshold);
         // 50 millis in a tick, plus 10 so we have a bit of room to go over
@@ -80,16 +83,14 @@ public class TickedDataAggregator extends JavaDataAggregator {
             this.currentData = null;
         }
 
-        return SamplerMetadata.DataAggregator.newBuilder()
-                .setType(SamplerMetadata.DataAggregator.Type.TICKED)
-                .setThreadGrouper(this.threadGrouper.asProto())
+        return newMetadataBuilder(SamplerMetadata.DataAggregator.Type.TICKED)
                 .setTickLengthThreshold(this.tickLengthThreshold)
                 .setNumberOfIncludedTicks(this.tickCounter.getTotalCountedTicks())
                 .build();
     }
 
     @Override
-    public void insertData(ThreadInfo threadInfo, int window) {
+    public void insertData(ThreadInfo threadInfo, int window, boolean gcPause) {
         synchronized (this.mutex) {
             int tick = this.tickHook.getCurrentTick();
             if (this.currentTick != tick || this.currentData == null) {
@@ -98,7 +99,7 @@ public class TickedDataAggregator extends JavaDataAggregator {
                 this.currentData = new TickList(this.expectedSize, window);
             }
 
-            this.currentData.addData(threadInfo);
+            this.currentData.addData(threadInfo, gcPause);
         }
     }
 
@@ -133,6 +134,7 @@ public class TickedDataAggregator extends JavaDataAggregator {
 
     private final class TickList implements Runnable {
         private final List<ThreadInfo> list;
+        private final BitSet gcPauses = new BitSet();
         private final int window;
 
         TickList(int expectedSize, int window) {
@@ -142,8 +144,8 @@ public class TickedDataAggregator extends JavaDataAggregator {
 
         @Override
         public void run() {
-            for (ThreadInfo data : this.list) {
-                writeData(data, this.window);
+            for (int i = 0; i < this.list.size(); i++) {
+                writeData(this.list.get(i), this.window, this.gcPauses.get(i));
             }
         }
 
@@ -151,7 +153,10 @@ public class TickedDataAggregator extends JavaDataAggregator {
             return this.list;
         }
 
-        public void addData(ThreadInfo data) {
+        public void addData(ThreadInfo data, boolean gcPause) {
+            if (gcPause) {
+                this.gcPauses.set(this.list.size());
+            }
             this.list.add(data);
         }
     }
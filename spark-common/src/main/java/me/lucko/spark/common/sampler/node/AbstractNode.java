@@ -20,17 +20,15 @@
 
 package me.lucko.spark.common.sampler.node;
 
-import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
-
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.function.IntPredicate;
 
 /**
  * Encapsulates a timed node in the sampling stack.
@@ -45,8 +43,21 @@ public abstract class AbstractNode {
     /** The accumulated sample time for this node, measured in microseconds */
     // Integer key = the window (effectively System.currentTimeMillis() / 60_000)
     // LongAdder value = accumulated time in microseconds
+    // Only holds windows which have not yet been frozen - usually just the current & previous window.
     private final Map<Integer, LongAdder> times = new ConcurrentHashMap<>();
 
+    /** The store holding the times for frozen windows, or null if no times have been frozen yet */
+    volatile FrozenWindows frozenWindows = null;
+
+    /** The id of this node in the {@link #frozenWindows} columns */
+    int id = -1;
+
+    /** The most recent window frozen for this node */
+    int lastFrozenWindow = Integer.MIN_VALUE;
+
+    /** The current window when this node was first visited by {@link FrozenWindows#freeze}, if it has been */
+    int firstFrozenVisit = Integer.MAX_VALUE;
+
     /**
      * Gets the time accumulator for a given window
      *
@@ -54,12 +65,11 @@ public abstract class AbstractNode {
      * @return the accumulator
      */
     protected LongAdder getTimeAccumulator(int window) {
-        LongAdder adder = this.times.get(window);
-        if (adder == null) {
-            adder = new LongAdder();
-            this.times.put(window, adder);
+        LongAdder adder = this.times.get(window); // fast path
+        if (adder != null) {
+            return adder;
         }
-        return adder;
+        return this.times.computeIfAbsent(window, w -> new LongAdder());
     }
 
     /**
@@ -68,26 +78,116 @@ public abstract class AbstractNode {
      * @return the time windows
      */
     public Set<Integer> getTimeWindows() {
-        return this.times.keySet();
+        FrozenWindows frozenWindows = this.frozenWindows;
+        if (frozenWindows == null) {
+            return this.times.keySet();
+        }
+
+        Set<Integer> windows = new HashSet<>(this.times.keySet());
+        frozenWindows.collectWindows(this.id, windows);
+        return windows;
+    }
+
+    /**
+     * Gets the time logged for this node in the given window.
+     *
+     * @param window the window
+     * @return the time, or zero if nothing was logged in the window
+     */
+    public long getTime(int window) {
+        LongAdder adder = this.times.get(window);
+        long time = adder == null ? 0 : adder.longValue();
+
+        FrozenWindows frozenWindows = this.frozenWindows;
+        if (frozenWindows != null) {
+            time += frozenWindows.getTime(window, this.id);
+        }
+        return time;
     }
 
     /**
-     * Removes time windows from this node if they pass the given {@code predicate} test.
+     * Gets the total time logged for this node across all windows.
      *
-     * @param predicate the predicate
-     * @return true if any time windows were removed
+     * @return the total time
      */
-    public boolean removeTimeWindows(IntPredicate predicate) {
-        return this.times.keySet().removeIf(predicate::test);
+    public long getTotalTime() {
+        FrozenWindows frozenWindows = this.frozenWindows;
+        return getLiveTotalTime() + (frozenWindows == null ? 0 : frozenWindows.getTotalTime(this.id));
+    }
+
+    /**
+     * Gets the total time logged for this node across all windows.
+     *
+     * @param frozenTotals the precomputed totals for each id, from {@link FrozenWindows#computeTotalTimes()}
+     * @return the total time
+     */
+    long getTotalTime(long[] frozenTotals) {
+        long total = getLiveTotalTime();
+        if (this.frozenWindows != null && this.id < frozenTotals.length) {
+            total += frozenTotals[this.id];
+        }
+        return total;
+    }
+
+    private long getLiveTotalTime() {
+        long total = 0;
+        for (LongAdder adder : this.times.values()) {
+            total += adder.longValue();
+        }
+        return total;
+    }
+
+    /**
+     * Drains the (not yet frozen) time windows before the {@code currentWindow},
+     * passing each to the consumer.
+     *
+     * <p>Samples for the previous window may still be being inserted, so its time is drained by
+     * subtracting what was read, and the accumulator is kept for any late additions. It is
+     * removed once the sampler has moved on by another window.</p>
+     *
+     * @param currentWindow the current window
+     * @param consumer the consumer
+     */
+    void drainTimes(int currentWindow, FrozenWindows.WindowTimeConsumer consumer) {
+        for (Iterator<Map.Entry<Integer, LongAdder>> it = this.times.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, LongAdder> entry = it.next();
+            int window = entry.getKey();
+            if (window >= currentWindow) {
+                continue;
+            }
+
+            LongAdder adder = entry.getValue();
+            long time;
+            if (window == currentWindow - 1) {
+                time = adder.sum();
+                adder.add(-time);
+            } else {
+                it.remove();
+                time = adder.sum();
+            }
+            if (time != 0) {
+                consumer.accept(window, time);
+            }
+        }
     }
 
     /**
-     * Gets the encoded total sample times logged for this node in milliseconds.
+     * Gets if this node no longer holds any time.
+     *
+     * <p>Nodes first seen in the current or previous window are never expired, as a sample
+     * may have just created them and not yet logged its time.</p>
      *
-     * @return the total times
+     * @param currentWindow the current window
+     * @param oldestWindow the oldest window still held by {@link #frozenWindows}
+     * @return true if expired
      */
-    protected double[] encodeTimesForProto(ProtoTimeEncoder encoder) {
-        return encoder.encode(this.times);
+    boolean isExpired(int currentWindow, int oldestWindow) {
+        if (this.firstFrozenVisit == Integer.MAX_VALUE) {
+            this.firstFrozenVisit = currentWindow;
+        }
+        return this.firstFrozenVisit < currentWindow - 1
+                && this.times.isEmpty()
+                && (this.frozenWindows == null || this.lastFrozenWindow < oldestWindow);
     }
 
     public Collection<StackTraceNode> getChildren() {
@@ -103,39 +203,97 @@ public abstract class AbstractNode {
     }
 
     /**
-     * Merge {@code other} into {@code this}.
+     * Gets the child for the given description, if it exists.
+     *
+     * @param description the description
+     * @return the child, or null
+     */
+    StackTraceNode getChild(StackTraceNode.Description description) {
+        return this.children.get(description);
+    }
+
+    /**
+     * Resolves a child node, recording its creation against the given budget.
+     *
+     * @param description the description
+     * @param budget the budget
+     * @return the child
+     */
+    StackTraceNode resolveChild(StackTraceNode.Description description, NodeBudget budget) {
+        StackTraceNode result = this.children.get(description); // fast path
+        if (result != null) {
+            return result;
+        }
+        return this.children.computeIfAbsent(description, d -> {
+            budget.nodeCreated();
+            return new StackTraceNode(d);
+        });
+    }
+
+    /**
+     * Merge {@code other} into {@code this}, recording any nodes created against the given budget.
+     *
+     * <p>If the budget is full, children which don't already exist are merged into
+     * the {@link StackTraceNode#OTHER "(other)"} node instead.</p>
      *
      * @param other the other node
+     * @param budget the budget
      */
-    protected void merge(AbstractNode other) {
-        other.times.forEach((key, value) -> getTimeAccumulator(key).add(value.longValue()));
+    void merge(AbstractNode other, NodeBudget budget) {
+        mergeTimes(other);
         for (Map.Entry<StackTraceNode.Description, StackTraceNode> child : other.children.entrySet()) {
-            resolveChild(child.getKey()).merge(child.getValue());
+            StackTraceNode existing = this.children.get(child.getKey());
+            if (existing == null && budget.isFull()) {
+                resolveChild(StackTraceNode.OTHER, budget).mergeTimes(child.getValue());
+                continue;
+            }
+            (existing != null ? existing : resolveChild(child.getKey(), budget)).merge(child.getValue(), budget);
         }
     }
 
-    protected List<StackTraceNode> exportChildren(MergeMode mergeMode) {
-        if (this.children.isEmpty()) {
-            return Collections.emptyList();
+    /**
+     * Merge the times of {@code other} into {@code this}, ignoring its children.
+     *
+     * @param other the other node
+     */
+    void mergeTimes(AbstractNode other) {
+        for (int window : other.getTimeWindows()) {
+            getTimeAccumulator(window).add(other.getTime(window));
         }
+    }
 
-        List<StackTraceNode> list = new ArrayList<>(this.children.size());
+    /**
+     * Groups the children of the given nodes for export, without modifying the tree.
+     *
+     * <p>Children which should be merged according to the {@code mergeMode} are placed in the
+     * same group, and exported as a single node.</p>
+     *
+     * @param parents the nodes to export the children of
+     * @param mergeMode the merge mode
+     * @return the groups of children
+     */
+    static List<List<StackTraceNode>> exportChildren(Collection<? extends AbstractNode> parents, MergeMode mergeMode) {
+        List<List<StackTraceNode>> groups = new ArrayList<>();
 
-        outer:
-        for (StackTraceNode child : this.children.values()) {
-            // attempt to find an existing node we can merge into
-            for (StackTraceNode other : list) {
-                if (mergeMode.shouldMerge(other, child)) {
-                    other.merge(child);
-                    continue outer;
+        for (AbstractNode parent : parents) {
+            outer:
+            for (StackTraceNode child : parent.children.values()) {
+                // attempt to find an existing group we can merge into
+                for (List<StackTraceNode> group : groups) {
+                    if (mergeMode.shouldMerge(group.get(0), child)) {
+                        group.add(child);
+                        continue outer;
+                    }
                 }
-            }
 
-            // just add
-            list.add(child);
+                // just add
+                List<StackTraceNode> group = new ArrayList<>(1);
+                group.add(child);
+                groups.add(group);
+            }
         }
 
-        return list;
+        return groups;
     }
 
 }
@@ -0,0 +1,291 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Folds "noise" frames (reflection, lambda bridges, executor internals, etc) out of
+ * stack traces as they are inserted into a {@link ThreadNode}.
+ *
+ * <p>Each rule has an action and one or more class name patterns, in the form
+ * {@code <fold|skip> <pattern> [pattern...]}. A pattern is either a class name prefix,
+ * or a regular expression prefixed with {@code regex:}.</p>
+ * <ul>
+ *     <li><b>fold</b> - a run of consecutive frames matching the rule is collapsed into the outermost frame of the run</li>
+ *     <li><b>skip</b> - frames matching the rule are dropped entirely</li>
+ * </ul>
+ *
+ * <p>Prefix patterns are compiled into a trie, so the cost of matching a frame is bounded
+ * by the length of its class name, regardless of the number of rules.</p>
+ */
+public final class FrameFolder {
+
+    /** Returned by {@link #match(String)} when no rule matches */
+    static final int NO_MATCH = -1;
+
+    /** A folder which does nothing */
+    public static final FrameFolder NONE = new FrameFolder(new TrieNode(), new String[0], new boolean[0], ImmutableList.of(), false);
+
+    /** The rules used if none have been configured */
+    public static final List<String> DEFAULT_RULES = ImmutableList.of(
+            "fold java.lang.reflect. sun.reflect. jdk.internal.reflect.",
+            "fold java.util.concurrent.",
+            "fold net.minecraftforge.fml.common.eventhandler.ASMEventHandler ASMEventHandler_",
+            "skip regex:\\$\\$Lambda\\$"
+    );
+
+    /**
+     * Parses a folder from the given rules.
+     *
+     * @param rules the rules
+     * @param compressRecursion if directly recursive frames should be collapsed into one
+     * @param errorHandler called with a message for each rule that could not be parsed
+     * @return the folder
+     */
+    public static FrameFolder parse(List<String> rules, boolean compressRecursion, Consumer<String> errorHandler) {
+        TrieNode trie = new TrieNode();
+        List<String> names = new ArrayList<>();
+        List<Boolean> skip = new ArrayList<>();
+        List<RegexRule> regexRules = new ArrayList<>();
+
+        for (String rule : rules) {
+            String[] parts = rule.trim().split("\\s+");
+            if (parts.length < 2) {
+                errorHandler.accept("Invalid frame folding rule (expected '<fold|skip> <pattern>'): " + rule);
+                continue;
+            }
+
+            String action = parts[0].toLowerCase(Locale.ROOT);
+            if (!action.equals("fold") && !action.equals("skip")) {
+                errorHandler.accept("Invalid frame folding rule (unknown action '" + parts[0] + "'): " + rule);
+                continue;
+            }
+
+            int id = names.size();
+            List<Pattern> regexes = new ArrayList<>();
+            List<String> prefixes = new ArrayList<>();
+            try {
+                for (String pattern : Arrays.asList(parts).subList(1, parts.length)) {
+                    if (pattern.startsWith("regex:")) {
+                        regexes.add(Pattern.compile(pattern.substring("regex:".length())));
+                    } else {
+                        prefixes.add(pattern);
+                    }
+                }
+            } catch (PatternSyntaxException e) {
+                errorHandler.accept("Invalid frame folding rule (" + e.getDescription() + "): " + rule);
+                continue;
+            }
+
+            for (String prefix : prefixes) {
+                trie.insert(prefix, id);
+            }
+            for (Pattern regex : regexes) {
+                regexRules.add(new RegexRule(regex, id));
+            }
+            names.add(rule);
+            skip.add(action.equals("skip"));
+        }
+
+        boolean[] skipArray = new boolean[skip.size()];
+        for (int i = 0; i < skipArray.length; i++) {
+            skipArray[i] = skip.get(i);
+        }
+        return new FrameFolder(trie, names.toArray(new String[0]), skipArray, ImmutableList.copyOf(regexRules), compressRecursion);
+    }
+
+    /** Prefix rules, keyed by class name */
+    private final TrieNode prefixTrie;
+
+    /** The source of each rule, indexed by rule id */
+    private final String[] rules;
+
+    /** If each rule drops matching frames entirely, indexed by rule id */
+    private final boolean[] skip;
+
+    /** Regex rules, which are tested (in order) if no prefix rule matches */
+    private final List<RegexRule> regexRules;
+
+    /** Cache of class name -> matching regex rule id, as regex matching is comparatively expensive */
+    private final Map<String, Integer> regexCache = new ConcurrentHashMap<>();
+
+    /** If directly recursive frames should be collapsed into one */
+    private final boolean compressRecursion;
+
+    private FrameFolder(TrieNode prefixTrie, String[] rules, boolean[] skip, List<RegexRule> regexRules, boolean compressRecursion) {
+        this.prefixTrie = prefixTrie;
+        this.rules = rules;
+        this.skip = skip;
+        this.regexRules = regexRules;
+        this.compressRecursion = compressRecursion;
+    }
+
+    /**
+     * Gets the number of (valid) rules.
+     *
+     * @return the number of rules
+     */
+    public int getRuleCount() {
+        return this.rules.length;
+    }
+
+    /**
+     * Finds the rule matching the given class name.
+     *
+     * @param className the class name
+     * @return the id of the matching rule, or {@link #NO_MATCH}
+     */
+    int match(String className) {
+        int rule = this.prefixTrie.match(className);
+        if (rule != NO_MATCH || this.regexRules.isEmpty()) {
+            return rule;
+        }
+
+        Integer cached = this.regexCache.get(className);
+        if (cached != null) {
+            return cached;
+        }
+
+        rule = NO_MATCH;
+        for (RegexRule regexRule : this.regexRules) {
+            if (regexRule.pattern.matcher(className).find()) {
+                rule = regexRule.id;
+                break;
+            }
+        }
+        this.regexCache.put(className, rule);
+        return rule;
+    }
+
+    /**
+     * Gets if frames matching the given rule should be dropped entirely.
+     *
+     * @param rule the rule id
+     * @return true to skip
+     */
+    boolean isSkip(int rule) {
+        return this.skip[rule];
+    }
+
+    /**
+     * Gets if directly recursive frames should be collapsed into one.
+     *
+     * @return true to compress recursion
+     */
+    boolean compressRecursion() {
+        return this.compressRecursion;
+    }
+
+    private static final class RegexRule {
+        private final Pattern pattern;
+        private final int id;
+
+        RegexRule(Pattern pattern, int id) {
+            this.pattern = pattern;
+            this.id = id;
+        }
+    }
+
+    /**
+     * A node in the class name prefix trie.
+     */
+    private static final class TrieNode {
+        private static final char[] EMPTY_KEYS = new char[0];
+        private static final TrieNode[] EMPTY_CHILDREN = new TrieNode[0];
+
+        // sorted, for binary search
+        private char[] keys = EMPTY_KEYS;
+        private TrieNode[] children = EMPTY_CHILDREN;
+
+        /** The rule id which terminates at this node */
+        private int rule = NO_MATCH;
+
+        void insert(String prefix, int rule) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.resolveChild(prefix.charAt(i));
+            }
+            if (node.rule == NO_MATCH) {
+                node.rule = rule;
+            }
+        }
+
+        /**
+         * Finds the rule for the longest prefix of the given string.
+         *
+         * @param str the string
+         * @return the rule, or {@link #NO_MATCH}
+         */
+        int match(String str) {
+            int result = this.rule;
+            TrieNode node = this;
+            for (int i = 0; i < str.length(); i++) {
+                node = node.getChild(str.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.rule != NO_MATCH) {
+                    result = node.rule;
+                }
+            }
+            return result;
+        }
+
+        private TrieNode getChild(char c) {
+            int idx = Arrays.binarySearch(this.keys, c);
+            return idx < 0 ? null : this.children[idx];
+        }
+
+        private TrieNode resolveChild(char c) {
+            int idx = Arrays.binarySearch(this.keys, c);
+            if (idx >= 0) {
+                return this.children[idx];
+            }
+
+            int insertAt = -(idx + 1);
+            char[] keys = new char[this.keys.length + 1];
+            TrieNode[] children = new TrieNode[this.children.length + 1];
+            System.arraycopy(this.keys, 0, keys, 0, insertAt);
+            System.arraycopy(this.children, 0, children, 0, insertAt);
+            System.arraycopy(this.keys, insertAt, keys, insertAt + 1, this.keys.length - insertAt);
+            System.arraycopy(this.children, insertAt, children, insertAt + 1, this.children.length - insertAt);
+
+            TrieNode child = new TrieNode();
+            keys[insertAt] = c;
+            children[insertAt] = child;
+            this.keys = keys;
+            this.children = children;
+            return child;
+        }
+    }
+
+}
@@ -0,0 +1,452 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Holds the times for completed windows in a compact, columnar layout.
+ *
+ * <p>Once the sampler has moved on from a window, the times logged in it never change. When a
+ * window is {@link #freeze frozen}, its times are moved out of the concurrent maps held by each
+ * node into a single column: a sorted array of node ids, and a parallel array of times. The nodes
+ * then only hold times for the current window, and pruning a window just drops its column.</p>
+ *
+ * <p>Columns are immutable once published, so they can be read while the sampler is running.</p>
+ *
+ * <p>Older windows can be {@link #rollup rolled up}: the columns for a run of windows are merged
+ * into a single, wider column, identified by the first window in the run.</p>
+ */
+public final class FrozenWindows {
+
+    /** The frozen columns, keyed by window */
+    private final Map<Integer, Column> columns = new ConcurrentHashMap<>();
+
+    /** The next (never used) node id */
+    private int nextId = 0;
+
+    /** Ids which no longer appear in any column, and can be reused */
+    private int[] freeIds = new int[16];
+    private int freeIdCount = 0;
+
+    /** Ids of removed nodes, keyed by the last window they appear in */
+    private final NavigableMap<Integer, List<Integer>> releasedIds = new TreeMap<>();
+
+    /** The number of snapshots which are still open */
+    private int openSnapshots = 0;
+
+    /**
+     * Gets the windows which have been frozen.
+     *
+     * @return the windows
+     */
+    public Set<Integer> getWindows() {
+        return this.columns.keySet();
+    }
+
+    /**
+     * Freezes the windows before the {@code currentWindow}, and removes any nodes
+     * which no longer hold any data.
+     *
+     * <p>Samples may still be being inserted into the previous window while it is frozen. Any
+     * time logged afterwards is kept by the node, and added to the column on the next freeze.</p>
+     *
+     * @param data the trees
+     * @param currentWindow the current window
+     * @param budget the budget to record removed nodes against
+     */
+    public synchronized void freeze(Collection<ThreadNode> data, int currentWindow, NodeBudget budget) {
+        Map<Integer, ColumnBuilder> builders = new HashMap<>();
+        int oldestWindow = oldestWindow();
+
+        Deque<AbstractNode> stack = new ArrayDeque<>();
+        for (Iterator<ThreadNode> it = data.iterator(); it.hasNext(); ) {
+            ThreadNode thread = it.next();
+            freezeNode(thread, currentWindow, builders);
+            if (thread.isExpired(currentWindow, oldestWindow)) {
+                it.remove();
+                for (StackTraceNode child : thread.getChildren()) {
+                    budget.subtreeRemoved(child);
+                }
+            } else {
+                stack.push(thread);
+            }
+        }
+
+        while (!stack.isEmpty()) {
+            AbstractNode node = stack.pop();
+            for (Iterator<StackTraceNode> it = node.getChildren().iterator(); it.hasNext(); ) {
+                StackTraceNode child = it.next();
+                freezeNode(child, currentWindow, builders);
+                if (child.isExpired(currentWindow, oldestWindow)) {
+                    it.remove();
+                    budget.subtreeRemoved(child);
+                } else {
+                    stack.push(child);
+                }
+            }
+        }
+
+        builders.forEach((window, builder) -> this.columns.put(window, builder.build(this.columns.get(window))));
+    }
+
+    /**
+     * Rolls up the columns in each bucket which passes the given {@code predicate} into a
+     * single column, identified by the start of the bucket.
+     *
+     * @param bucketSize the size of the buckets, in windows
+     * @param predicate the predicate to test if a bucket should be rolled up
+     */
+    public synchronized void rollup(int bucketSize, IntPredicate predicate) {
+        Map<Integer, List<Integer>> buckets = new HashMap<>();
+        this.columns.forEach((window, column) -> {
+            int bucket = window - Math.floorMod(window, bucketSize);
+            if (column.width < bucketSize && predicate.test(bucket)) {
+                buckets.computeIfAbsent(bucket, b -> new ArrayList<>()).add(window);
+            }
+        });
+
+        buckets.forEach((bucket, windows) -> {
+            Column merged = null;
+            int width = bucketSize;
+            for (int window : windows) {
+                Column column = this.columns.get(window);
+                merged = merged == null ? column : Column.merge(merged, column);
+                width = Math.max(width, column.width);
+            }
+            this.columns.put(bucket, merged.withWidth(width));
+            for (int window : windows) {
+                if (window != bucket) {
+                    this.columns.remove(window);
+                }
+            }
+        });
+    }
+
+    private void freezeNode(AbstractNode node, int currentWindow, Map<Integer, ColumnBuilder> builders) {
+        node.drainTimes(currentWindow, (window, time) -> {
+            if (node.frozenWindows == null) {
+                node.id = allocateId();
+                node.frozenWindows = this; // publishes the id
+            }
+            node.lastFrozenWindow = Math.max(node.lastFrozenWindow, window);
+            builders.computeIfAbsent(window, w -> new ColumnBuilder()).add(node.id, time);
+        });
+    }
+
+    /**
+     * Drops the columns for windows which pass the given {@code predicate}.
+     *
+     * @param predicate the predicate
+     */
+    public synchronized void prune(IntPredicate predicate) {
+        this.columns.keySet().removeIf(predicate::test);
+
+        // an open snapshot may still be reading dropped columns
+        if (this.openSnapshots != 0) {
+            return;
+        }
+
+        // any ids which were last used in a dropped column can now be reused
+        NavigableMap<Integer, List<Integer>> released = this.columns.isEmpty()
+                ? this.releasedIds
+                : this.releasedIds.headMap(oldestWindow(), false);
+        for (List<Integer> ids : released.values()) {
+            for (int id : ids) {
+                if (this.freeIdCount == this.freeIds.length) {
+                    this.freeIds = Arrays.copyOf(this.freeIds, this.freeIdCount * 2);
+                }
+                this.freeIds[this.freeIdCount++] = id;
+            }
+        }
+        released.clear();
+    }
+
+    /**
+     * Takes a snapshot of the windows which have been frozen so far.
+     *
+     * <p>The snapshot is unaffected by windows which are frozen or pruned afterwards, so it
+     * gives a consistent view of the completed windows while the sampler keeps running.
+     * Node ids are not reused while a snapshot is open, so it must be {@link Snapshot#close() closed}.</p>
+     *
+     * @return the snapshot
+     */
+    public synchronized Snapshot snapshot() {
+        this.openSnapshots++;
+        return new Snapshot(new HashMap<>(this.columns));
+    }
+
+    private synchronized void closeSnapshot() {
+        this.openSnapshots--;
+    }
+
+    /**
+     * Releases the id of a node which has been removed from the tree, so it can be reused
+     * once it no longer appears in any column.
+     *
+     * @param node the node
+     */
+    synchronized void release(AbstractNode node) {
+        this.releasedIds.computeIfAbsent(node.lastFrozenWindow, w -> new ArrayList<>()).add(node.id);
+    }
+
+    private int allocateId() {
+        if (this.freeIdCount != 0) {
+            return this.freeIds[--this.freeIdCount];
+        }
+        if (this.nextId == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Ran out of node ids");
+        }
+        return this.nextId++;
+    }
+
+    private int oldestWindow() {
+        int oldest = Integer.MAX_VALUE;
+        for (int window : this.columns.keySet()) {
+            oldest = Math.min(oldest, window);
+        }
+        return this.columns.isEmpty() ? Integer.MIN_VALUE : oldest;
+    }
+
+    /**
+     * Gets the width of a window, in windows (the number of windows it has been rolled up from).
+     *
+     * @param window the window
+     * @return the width
+     */
+    public int getWidth(int window) {
+        Column column = this.columns.get(window);
+        return column == null ? 1 : column.width;
+    }
+
+    long getTime(int window, int id) {
+        Column column = this.columns.get(window);
+        return column == null ? 0 : column.get(id);
+    }
+
+    long getTotalTime(int id) {
+        long total = 0;
+        for (Column column : this.columns.values()) {
+            total += column.get(id);
+        }
+        return total;
+    }
+
+    void collectWindows(int id, Set<Integer> windows) {
+        this.columns.forEach((window, column) -> {
+            if (column.contains(id)) {
+                windows.add(window);
+            }
+        });
+    }
+
+    /**
+     * Computes the total frozen time for every node id, in a single pass over the columns.
+     *
+     * @return the totals, indexed by node id
+     */
+    synchronized long[] computeTotalTimes() {
+        long[] totals = new long[this.nextId];
+        for (Column column : this.columns.values()) {
+            for (int i = 0; i < column.ids.length; i++) {
+                totals[column.ids[i]] += column.times[i];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * A point-in-time view of the frozen windows.
+     */
+    public final class Snapshot implements AutoCloseable {
+        private final Map<Integer, Column> columns;
+        private final int[] windows;
+        private boolean closed = false;
+
+        private Snapshot(Map<Integer, Column> columns) {
+            this.columns = columns;
+            this.windows = columns.keySet().stream().mapToInt(i -> i).sorted().toArray();
+        }
+
+        /**
+         * Gets the windows included in the snapshot, in ascending order.
+         *
+         * @return the windows
+         */
+        public int[] getWindows() {
+            return this.windows;
+        }
+
+        /**
+         * Gets the width of a window, in units of the profiling window size.
+         *
+         * @param window the window
+         * @return the width
+         */
+        public int getWidth(int window) {
+            Column column = this.columns.get(window);
+            return column == null ? 1 : column.width;
+        }
+
+        /**
+         * Gets the time logged for the given node in a window.
+         *
+         * @param node the node
+         * @param window the window
+         * @return the time
+         */
+        public long getTime(AbstractNode node, int window) {
+            if (node.frozenWindows != FrozenWindows.this) {
+                return 0;
+            }
+            Column column = this.columns.get(window);
+            return column == null ? 0 : column.get(node.id);
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                closeSnapshot();
+            }
+        }
+    }
+
+    /**
+     * Consumes a window and the time logged in it.
+     */
+    @FunctionalInterface
+    interface WindowTimeConsumer {
+        void accept(int window, long time);
+    }
+
+    /**
+     * The times for a single window (or a rolled up run of windows), sorted by node id.
+     */
+    private static final class Column {
+        private final int[] ids;
+        private final long[] times;
+        private final int width;
+
+        Column(int[] ids, long[] times, int width) {
+            this.ids = ids;
+            this.times = times;
+            this.width = width;
+        }
+
+        Column withWidth(int width) {
+            return new Column(this.ids, this.times, width);
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(this.ids, id) >= 0;
+        }
+
+        long get(int id) {
+            int idx = Arrays.binarySearch(this.ids, id);
+            return idx < 0 ? 0 : this.times[idx];
+        }
+
+        /**
+         * Merges two columns, keeping the width of the first.
+         *
+         * @param a the first column
+         * @param b the second column
+         * @return the merged column
+         */
+        static Column merge(Column a, Column b) {
+            int[] ids = new int[a.ids.length + b.ids.length];
+            long[] times = new long[ids.length];
+            int i = 0, j = 0, size = 0;
+            while (i < a.ids.length || j < b.ids.length) {
+                if (j == b.ids.length || (i < a.ids.length && a.ids[i] < b.ids[j])) {
+                    ids[size] = a.ids[i];
+                    times[size++] = a.times[i++];
+                } else if (i == a.ids.length || b.ids[j] < a.ids[i]) {
+                    ids[size] = b.ids[j];
+                    times[size++] = b.times[j++];
+                } else {
+                    ids[size] = a.ids[i];
+                    times[size++] = a.times[i++] + b.times[j++];
+                }
+            }
+            return new Column(Arrays.copyOf(ids, size), Arrays.copyOf(times, size), a.width);
+        }
+    }
+
+    private static final class ColumnBuilder {
+        private int[] ids = new int[64];
+        private long[] times = new long[64];
+        private int size = 0;
+
+        void add(int id, long time) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+                this.times = Arrays.copyOf(this.times, this.size * 2);
+            }
+            this.ids[this.size] = id;
+            this.times[this.size] = time;
+            this.size++;
+        }
+
+        /**
+         * Builds the column, merging in the existing column for the window (if any).
+         *
+         * @param existing the existing column
+         * @return the new column
+         */
+        Column build(Column existing) {
+            // sort by id, carrying the index in the low bits
+            long[] order = new long[this.size];
+            for (int i = 0; i < this.size; i++) {
+                order[i] = ((long) this.ids[i] << 32) | i;
+            }
+            Arrays.sort(order);
+
+            int[] ids = new int[this.size];
+            long[] times = new long[this.size];
+            for (int i = 0; i < this.size; i++) {
+                ids[i] = (int) (order[i] >>> 32);
+                times[i] = this.times[(int) order[i]];
+            }
+
+            if (existing == null) {
+                return new Column(ids, times, 1);
+            }
+            return Column.merge(existing, new Column(ids, times, 1));
+        }
+    }
+
+
+}
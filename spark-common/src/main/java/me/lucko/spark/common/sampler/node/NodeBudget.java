@@ -0,0 +1,216 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of {@link StackTraceNode}s held by a set of {@link ThreadNode} trees.
+ *
+ * <p>The number of nodes is tracked incrementally as they are created and removed, so checking
+ * the budget never requires a walk of the tree. Once the budget is reached, stacks which would
+ * create new nodes are instead attributed to the {@link StackTraceNode#OTHER "(other)"} node of
+ * the deepest existing frame.</p>
+ *
+ * <p>{@link #evict(Collection, FrozenWindows)} is called periodically (when the sampler moves into
+ * a new window) to make room again: the subtrees with the smallest total time are folded into an
+ * "(other)" child of their parent, until the tree is back down to {@link #EVICTION_TARGET} of the
+ * budget. Eviction does walk the trees (and totals the frozen times of every node), but only when
+ * the budget has been exceeded.</p>
+ */
+public final class NodeBudget {
+
+    /** The fraction of the budget that eviction reduces the number of nodes to */
+    private static final double EVICTION_TARGET = 0.9;
+
+    /**
+     * Creates a budget which only counts nodes.
+     *
+     * @return the budget
+     */
+    public static NodeBudget unlimited() {
+        return new NodeBudget(0);
+    }
+
+    /** The maximum number of nodes, or zero for no limit */
+    private final int maxNodes;
+
+    /** The current number of nodes */
+    private final LongAdder nodes = new LongAdder();
+
+    /** The total number of nodes that have been folded into "(other)" nodes */
+    private final LongAdder foldedNodes = new LongAdder();
+
+    /** The total time held by subtrees when they were folded */
+    private final LongAdder foldedTime = new LongAdder();
+
+    public NodeBudget(int maxNodes) {
+        this.maxNodes = Math.max(0, maxNodes);
+    }
+
+    public int getMaxNodes() {
+        return this.maxNodes;
+    }
+
+    public long getNodeCount() {
+        return this.nodes.sum();
+    }
+
+    public long getFoldedNodes() {
+        return this.foldedNodes.sum();
+    }
+
+    public long getFoldedTime() {
+        return this.foldedTime.sum();
+    }
+
+    /**
+     * Gets if the budget has been used up, and no more nodes should be created.
+     *
+     * @return true if the budget is full
+     */
+    public boolean isFull() {
+        return this.maxNodes != 0 && this.nodes.sum() >= this.maxNodes;
+    }
+
+    void nodeCreated() {
+        this.nodes.increment();
+    }
+
+    private void nodesRemoved(long count) {
+        this.nodes.add(-count);
+    }
+
+    /**
+     * Folds the smallest subtrees into "(other)" nodes, if the budget has been exceeded.
+     *
+     * <p>The trees may still be written to while this runs - any time logged against a subtree
+     * after it has been folded is lost.</p>
+     *
+     * @param data the trees
+     * @param frozenWindows the store holding the frozen times for the trees
+     */
+    public void evict(Collection<ThreadNode> data, FrozenWindows frozenWindows) {
+        if (!isFull()) {
+            return;
+        }
+
+        long toRemove = this.nodes.sum() - (long) (this.maxNodes * EVICTION_TARGET);
+        if (toRemove <= 0) {
+            return;
+        }
+
+        long[] frozenTotals = frozenWindows.computeTotalTimes();
+
+        // find the total time of the toRemove-th smallest subtree, excluding (other) nodes
+        long[] totals = new long[(int) Math.min(Integer.MAX_VALUE - 8, this.nodes.sum() + 64)];
+        int count = 0;
+        Deque<AbstractNode> stack = new ArrayDeque<>(data);
+        while (!stack.isEmpty()) {
+            AbstractNode node = stack.pop();
+            for (StackTraceNode child : node.getChildren()) {
+                if (child.isOther()) {
+                    continue;
+                }
+                if (count == totals.length) {
+                    totals = Arrays.copyOf(totals, count + (count >> 1) + 1);
+                }
+                totals[count++] = child.getTotalTime(frozenTotals);
+                stack.push(child);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        Arrays.sort(totals, 0, count);
+        long threshold = totals[(int) Math.min(toRemove, count) - 1];
+
+        // fold every maximal subtree with a total time below the threshold, and
+        // those equal to it until enough nodes have been removed
+        stack.addAll(data);
+        while (!stack.isEmpty()) {
+            AbstractNode node = stack.pop();
+            for (Iterator<StackTraceNode> it = node.getChildren().iterator(); it.hasNext(); ) {
+                StackTraceNode child = it.next();
+                if (child.isOther()) {
+                    continue;
+                }
+                long total = child.getTotalTime(frozenTotals);
+                if (total > threshold || (total == threshold && toRemove <= 0)) {
+                    stack.push(child);
+                    continue;
+                }
+
+                it.remove();
+                long removed = subtreeRemoved(child);
+                toRemove -= removed;
+                this.foldedNodes.add(removed);
+                this.foldedTime.add(total);
+
+                node.resolveChild(StackTraceNode.OTHER, this).mergeTimes(child);
+            }
+        }
+    }
+
+    /**
+     * Records the removal of a subtree from the tree, releasing the frozen ids of its nodes.
+     *
+     * @param root the root of the removed subtree
+     * @return the number of nodes removed
+     */
+    long subtreeRemoved(StackTraceNode root) {
+        long count = 0;
+        Deque<StackTraceNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            StackTraceNode node = stack.pop();
+            count++;
+
+            FrozenWindows frozenWindows = node.frozenWindows;
+            if (frozenWindows != null) {
+                frozenWindows.release(node);
+            }
+            for (StackTraceNode child : node.getChildren()) {
+                stack.push(child);
+            }
+        }
+        nodesRemoved(count);
+        return count;
+    }
+
+    public SamplerMetadata.DataAggregator.NodeBudget toProto() {
+        return SamplerMetadata.DataAggregator.NodeBudget.newBuilder()
+                .setMaxNodes(this.maxNodes)
+                .setNodes(getNodeCount())
+                .setFoldedNodes(getFoldedNodes())
+                .setFoldedTime(getFoldedTime())
+                .build();
+    }
+
+}
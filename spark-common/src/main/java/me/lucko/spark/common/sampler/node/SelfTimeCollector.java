@@ -0,0 +1,366 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.node;
+
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.common.util.IndexedListBuilder;
+import me.lucko.spark.proto.SparkSamplerProtos;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Collects the self time of each method in a set of {@link ThreadNode} trees, and builds a
+ * bottom-up (inverted) tree of the callers of the hottest methods.
+ *
+ * <p>When exporting, frames are fed to the collector during the post-order traversal in
+ * {@link ThreadNode#toProto}, so the self time of each frame is known by the time it is
+ * {@link #exit(CallFrame, long) exited}, and no additional pass over the tree is needed.</p>
+ */
+public final class SelfTimeCollector {
+
+    /** The default number of methods to include in the output */
+    public static final int DEFAULT_LIMIT = Integer.getInteger("spark.hotMethodsLimit", 50);
+
+    /** The default maximum depth of the caller tree for each method */
+    public static final int DEFAULT_CALLER_DEPTH = Integer.getInteger("spark.hotMethodsCallerDepth", 10);
+
+    /**
+     * Collects the self times for the given (live) data, without going via a proto export.
+     *
+     * @param data the data
+     * @return the collector
+     */
+    public static SelfTimeCollector collect(Collection<ThreadNode> data) {
+        return collect(data, AbstractNode::getTotalTime);
+    }
+
+    /**
+     * Collects the self times for the windows encoded by the given {@code timeEncoder}.
+     *
+     * @param data the data
+     * @param timeEncoder the encoder defining the windows to collect
+     * @return the collector
+     */
+    public static SelfTimeCollector collect(Collection<ThreadNode> data, ProtoTimeEncoder timeEncoder) {
+        return collect(data, timeEncoder::getTotalTime);
+    }
+
+    private static SelfTimeCollector collect(Collection<ThreadNode> data, ToLongFunction<AbstractNode> totalTime) {
+        SelfTimeCollector collector = new SelfTimeCollector(DEFAULT_CALLER_DEPTH);
+        for (ThreadNode thread : data) {
+            collector.addTotalTime(totalTime.applyAsLong(thread));
+
+            Deque<CallFrame> stack = new ArrayDeque<>();
+            for (StackTraceNode child : thread.getChildren()) {
+                if (totalTime.applyAsLong(child) != 0) {
+                    stack.push(collector.enter(null, child));
+                }
+            }
+
+            while (!stack.isEmpty()) {
+                CallFrame frame = stack.pop();
+                StackTraceNode node = frame.node;
+
+                long selfTime = totalTime.applyAsLong(node);
+                for (StackTraceNode child : node.getChildren()) {
+                    long childTime = totalTime.applyAsLong(child);
+                    if (childTime != 0) {
+                        selfTime -= childTime;
+                        stack.push(collector.enter(frame, child));
+                    }
+                }
+
+                // data is still being written to if the sampler is running
+                collector.exit(frame, Math.max(0, selfTime));
+            }
+        }
+        return collector;
+    }
+
+    /** The maximum depth of the caller tree for each method */
+    private final int callerDepth;
+
+    /** The accumulated self time for each method */
+    private final Map<MethodKey, HotMethod> methods = new HashMap<>();
+
+    /** The total time across all threads that were collected */
+    private long totalTime = 0;
+
+    public SelfTimeCollector(int callerDepth) {
+        this.callerDepth = callerDepth;
+    }
+
+    /**
+     * Enters a frame in the traversal.
+     *
+     * @param parent the parent frame, or null if the node is a direct child of a thread
+     * @param node the node
+     * @return the frame
+     */
+    CallFrame enter(@Nullable CallFrame parent, StackTraceNode node) {
+        return new CallFrame(parent, node);
+    }
+
+    /**
+     * Exits a frame in the traversal, after all of its children have been visited.
+     *
+     * @param frame the frame
+     * @param selfTime the self time of the frame
+     */
+    void exit(CallFrame frame, long selfTime) {
+        if (selfTime <= 0) {
+            return;
+        }
+
+        frame.selfTime = selfTime;
+
+        HotMethod method = this.methods.computeIfAbsent(MethodKey.of(frame.node), HotMethod::new);
+        method.selfTime += selfTime;
+        method.frames.add(frame);
+    }
+
+    void addTotalTime(long time) {
+        this.totalTime += time;
+    }
+
+    /**
+     * Gets the total time across all threads that were collected.
+     *
+     * @return the total time
+     */
+    public long getTotalTime() {
+        return this.totalTime;
+    }
+
+    /**
+     * Gets the methods with the highest self time.
+     *
+     * @param limit the maximum number of methods to return
+     * @return the hottest methods, highest self time first
+     */
+    public List<HotMethod> getHottestMethods(int limit) {
+        List<HotMethod> list = new ArrayList<>(this.methods.values());
+        list.sort(Comparator.comparingLong(HotMethod::getSelfTime).reversed());
+        return list.size() > limit ? list.subList(0, limit) : list;
+    }
+
+    public List<SparkSamplerProtos.HotMethod> toProto(LongToDoubleFunction valueTransformer, int limit) {
+        List<HotMethod> hottest = getHottestMethods(limit);
+        List<SparkSamplerProtos.HotMethod> list = new ArrayList<>(hottest.size());
+        for (HotMethod method : hottest) {
+            list.add(method.toProto(valueTransformer, this.callerDepth));
+        }
+        return list;
+    }
+
+    /**
+     * A frame in the traversal, linked to its parent (caller) frame.
+     */
+    static final class CallFrame {
+        private final CallFrame parent;
+        private final StackTraceNode node;
+        private long selfTime;
+
+        CallFrame(CallFrame parent, StackTraceNode node) {
+            this.parent = parent;
+            this.node = node;
+        }
+    }
+
+    /**
+     * A method and its accumulated self time.
+     */
+    public static final class HotMethod {
+        private final MethodKey key;
+        private long selfTime = 0;
+
+        // the frames which contributed self time
+        private final List<CallFrame> frames = new ArrayList<>();
+
+        HotMethod(MethodKey key) {
+            this.key = key;
+        }
+
+        public String getClassName() {
+            return this.key.className;
+        }
+
+        public String getMethodName() {
+            return this.key.methodName;
+        }
+
+        public @Nullable String getMethodDescription() {
+            return this.key.methodDescription;
+        }
+
+        public long getSelfTime() {
+            return this.selfTime;
+        }
+
+        /**
+         * Builds the bottom-up tree of callers for this method.
+         *
+         * @param maxDepth the maximum depth of the tree
+         * @return the direct callers of the method
+         */
+        public Collection<CallerNode> buildCallers(int maxDepth) {
+            CallerNode root = new CallerNode(this.key);
+            for (CallFrame frame : this.frames) {
+                long time = frame.selfTime;
+
+                CallerNode node = root;
+                CallFrame caller = frame.parent;
+                for (int depth = 0; caller != null && depth < maxDepth; depth++) {
+                    node = node.resolveCaller(MethodKey.of(caller.node));
+                    node.time += time;
+                    caller = caller.parent;
+                }
+            }
+            return root.callers.values();
+        }
+
+        SparkSamplerProtos.HotMethod toProto(LongToDoubleFunction valueTransformer, int maxDepth) {
+            SparkSamplerProtos.HotMethod.Builder proto = SparkSamplerProtos.HotMethod.newBuilder()
+                    .setClassName(this.key.className)
+                    .setMethodName(this.key.methodName)
+                    .setSelfTime(valueTransformer.applyAsDouble(this.selfTime));
+
+            if (this.key.methodDescription != null) {
+                proto.setMethodDesc(this.key.methodDescription);
+            }
+
+            // flatten the caller tree in the same way as the thread nodes
+            IndexedListBuilder<SparkSamplerProtos.CallerNode> nodesArray = new IndexedListBuilder<>();
+            for (CallerNode caller : buildCallers(maxDepth)) {
+                proto.addCallersRefs(caller.appendTo(nodesArray, valueTransformer));
+            }
+            proto.addAllCallers(nodesArray.build());
+
+            return proto.build();
+        }
+    }
+
+    /**
+     * A node in the bottom-up tree of callers.
+     */
+    public static final class CallerNode {
+        private final MethodKey key;
+        private final Map<MethodKey, CallerNode> callers = new LinkedHashMap<>();
+        private long time = 0;
+
+        CallerNode(MethodKey key) {
+            this.key = key;
+        }
+
+        CallerNode resolveCaller(MethodKey key) {
+            return this.callers.computeIfAbsent(key, CallerNode::new);
+        }
+
+        public String getClassName() {
+            return this.key.className;
+        }
+
+        public String getMethodName() {
+            return this.key.methodName;
+        }
+
+        /**
+         * Gets the self time of the hot method which passed through this caller.
+         *
+         * @return the time
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        public Collection<CallerNode> getCallers() {
+            return this.callers.values();
+        }
+
+        // the depth of the caller tree is bounded, so recursion is fine here
+        private int appendTo(IndexedListBuilder<SparkSamplerProtos.CallerNode> nodesArray, LongToDoubleFunction valueTransformer) {
+            SparkSamplerProtos.CallerNode.Builder proto = SparkSamplerProtos.CallerNode.newBuilder()
+                    .setClassName(this.key.className)
+                    .setMethodName(this.key.methodName)
+                    .setTime(valueTransformer.applyAsDouble(this.time));
+
+            if (this.key.methodDescription != null) {
+                proto.setMethodDesc(this.key.methodDescription);
+            }
+
+            for (CallerNode caller : this.callers.values()) {
+                proto.addChildrenRefs(caller.appendTo(nodesArray, valueTransformer));
+            }
+            return nodesArray.add(proto.build());
+        }
+    }
+
+    /**
+     * Identifies a method, ignoring line numbers.
+     */
+    private static final class MethodKey {
+        private final String className;
+        private final String methodName;
+        private final String methodDescription;
+        private final int hash;
+
+        static MethodKey of(StackTraceNode node) {
+            return new MethodKey(node.getClassName(), node.getMethodName(), node.getMethodDescription());
+        }
+
+        private MethodKey(String className, String methodName, String methodDescription) {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDescription = methodDescription;
+            this.hash = Objects.hash(className, methodName, methodDescription);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MethodKey that = (MethodKey) o;
+            return this.hash == that.hash &&
+                    this.className.equals(that.className) &&
+                    this.methodName.equals(that.methodName) &&
+                    Objects.equals(this.methodDescription, that.methodDescription);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+}
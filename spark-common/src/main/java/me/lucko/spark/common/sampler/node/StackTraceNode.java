@@ -20,7 +20,6 @@
 
 package me.lucko.spark.common.sampler.node;
 
-import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 import me.lucko.spark.common.util.MethodDisambiguator;
 import me.lucko.spark.proto.SparkSamplerProtos;
 
@@ -38,6 +37,9 @@ public final class StackTraceNode extends AbstractNode {
      */
     public static final int NULL_LINE_NUMBER = -1;
 
+    /** The description of the node which holds subtrees folded away by a {@link NodeBudget} */
+    public static final Description OTHER = new Description("(other)", "(folded)", NULL_LINE_NUMBER, NULL_LINE_NUMBER);
+
     /** A description of the element */
     private final Description description;
 
@@ -45,6 +47,10 @@ public final class StackTraceNode extends AbstractNode {
         this.description = description;
     }
 
+    public Description getDescription() {
+        return this.description;
+    }
+
     public String getClassName() {
         return this.description.className;
     }
@@ -65,12 +71,40 @@ public final class StackTraceNode extends AbstractNode {
         return this.description.parentLineNumber;
     }
 
-    public SparkSamplerProtos.StackTraceNode toProto(MergeMode mergeMode, ProtoTimeEncoder timeEncoder, Iterable<Integer> childrenRefs) {
+    /**
+     * Gets if this node holds subtrees folded away by a {@link NodeBudget}.
+     *
+     * @return true if this is an "(other)" node
+     */
+    public boolean isOther() {
+        return this.description.equals(OTHER);
+    }
+
+    /**
+     * Gets if the given description refers to the same method as this node, ignoring line numbers.
+     *
+     * @param description the description
+     * @return true if the method is the same
+     */
+    boolean isSameMethod(Description description) {
+        return this.description.className.equals(description.className) &&
+                this.description.methodName.equals(description.methodName) &&
+                Objects.equals(this.description.methodDescription, description.methodDescription);
+    }
+
+    /**
+     * Converts this node to a proto.
+     *
+     * @param mergeMode the merge mode
+     * @param times the encoded times for the node (and any nodes merged with it)
+     * @param childrenRefs the refs of the node's children
+     * @return the proto
+     */
+    public SparkSamplerProtos.StackTraceNode toProto(MergeMode mergeMode, double[] times, Iterable<Integer> childrenRefs) {
         SparkSamplerProtos.StackTraceNode.Builder proto = SparkSamplerProtos.StackTraceNode.newBuilder()
                 .setClassName(this.description.className)
                 .setMethodName(this.description.methodName);
 
-        double[] times = encodeTimesForProto(timeEncoder);
         for (double time : times) {
             proto.addTimes(time);
         }
@@ -151,6 +185,14 @@ public final class StackTraceNode extends AbstractNode {
             this.hash = Objects.hash(this.className, this.methodName, this.methodDescription);
         }
 
+        public String getClassName() {
+            return this.className;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -24,14 +24,13 @@ import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
 import me.lucko.spark.common.util.IndexedListBuilder;
 import me.lucko.spark.proto.SparkSamplerProtos;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 import java.util.ArrayDeque;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.function.IntPredicate;
 
 /**
  * The root of a sampling stack for a given thread / thread group.
@@ -48,8 +47,18 @@ public final class ThreadNode extends AbstractNode {
      */
     public String label;
 
+    /**
+     * The budget that nodes created in this tree are counted against
+     */
+    private final NodeBudget budget;
+
     public ThreadNode(String name) {
+        this(name, NodeBudget.unlimited());
+    }
+
+    public ThreadNode(String name, NodeBudget budget) {
         this.name = name;
+        this.budget = budget;
     }
 
     public String getThreadLabel() {
@@ -74,6 +83,20 @@ public final class ThreadNode extends AbstractNode {
      * @param <T> the stack trace element type
      */
     public <T> void log(StackTraceNode.Describer<T> describer, T[] stack, long time, int window) {
+        log(FrameFolder.NONE, describer, stack, time, window);
+    }
+
+    /**
+     * Logs the given stack trace against this node and its children.
+     *
+     * @param folder the folder used to drop or collapse frames before they are inserted
+     * @param describer the function that describes the elements of the stack
+     * @param stack the stack
+     * @param time the total time to log
+     * @param window the window
+     * @param <T> the stack trace element type
+     */
+    public <T> void log(FrameFolder folder, StackTraceNode.Describer<T> describer, T[] stack, long time, int window) {
         if (stack.length == 0) {
             return;
         }
@@ -82,63 +105,76 @@ public final class ThreadNode extends AbstractNode {
 
         AbstractNode node = this;
         T previousElement = null;
+        int foldingRule = FrameFolder.NO_MATCH;
+        int depth = 0; // the number of frames inserted, after folding
 
-        for (int offset = 0; offset < Math.min(MAX_STACK_DEPTH, stack.length); offset++) {
+        for (int offset = 0; offset < stack.length && depth < MAX_STACK_DEPTH; offset++) {
             T element = stack[(stack.length - 1) - offset];
+            StackTraceNode.Description description = describer.describe(element, previousElement);
+
+            int rule = folder.match(description.getClassName());
+            if (rule != FrameFolder.NO_MATCH) {
+                if (folder.isSkip(rule)) {
+                    continue;
+                }
+                if (rule == foldingRule) {
+                    // fold into the outermost frame of the run
+                    continue;
+                }
+            }
+            foldingRule = rule;
+
+            if (folder.compressRecursion() && node instanceof StackTraceNode && ((StackTraceNode) node).isSameMethod(description)) {
+                continue;
+            }
+
+            StackTraceNode child = node.getChild(description);
+            if (child == null) {
+                if (this.budget.isFull()) {
+                    // attribute the rest of the stack to the (other) node. there is at most one
+                    // per parent, so creating it can only exceed the budget by a bounded amount
+                    node.resolveChild(StackTraceNode.OTHER, this.budget).getTimeAccumulator(window).add(time);
+                    break;
+                }
+                child = node.resolveChild(description, this.budget);
+            }
 
-            node = node.resolveChild(describer.describe(element, previousElement));
+            node = child;
             node.getTimeAccumulator(window).add(time);
 
             previousElement = element;
+            depth++;
         }
     }
 
     /**
-     * Removes time windows that match the given {@code predicate}.
+     * Merges the data from {@code other} into this node.
+     *
+     * <p>Nodes created by the merge are counted against this node's budget.</p>
      *
-     * @param predicate the predicate to use to test the time windows
-     * @return true if this node is now empty
+     * @param other the other node
      */
-    public boolean removeTimeWindowsRecursively(IntPredicate predicate) {
-        Queue<AbstractNode> queue = new ArrayDeque<>();
-        queue.add(this);
-
-        while (!queue.isEmpty()) {
-            AbstractNode node = queue.remove();
-            Collection<StackTraceNode> children = node.getChildren();
-
-            boolean needToProcessChildren = false;
-
-            for (Iterator<StackTraceNode> it = children.iterator(); it.hasNext(); ) {
-                StackTraceNode child = it.next();
-
-                boolean windowsWereRemoved = child.removeTimeWindows(predicate);
-                boolean childIsNowEmpty = child.getTimeWindows().isEmpty();
-
-                if (childIsNowEmpty) {
-                    it.remove();
-                    continue;
-                }
-
-                if (windowsWereRemoved) {
-                    needToProcessChildren = true;
-                }
-            }
-
-            if (needToProcessChildren) {
-                queue.addAll(children);
-            }
-        }
-
-        removeTimeWindows(predicate);
-        return getTimeWindows().isEmpty();
+    public void merge(ThreadNode other) {
+        merge(other, this.budget);
     }
 
     public SparkSamplerProtos.ThreadNode toProto(MergeMode mergeMode, ProtoTimeEncoder timeEncoder) {
+        return toProto(mergeMode, timeEncoder, null);
+    }
+
+    /**
+     * Converts this node to a proto.
+     *
+     * @param mergeMode the merge mode
+     * @param timeEncoder the time encoder
+     * @param selfTimeCollector a collector to accumulate the self time of each node in, if any
+     * @return the proto
+     */
+    public SparkSamplerProtos.ThreadNode toProto(MergeMode mergeMode, ProtoTimeEncoder timeEncoder, @Nullable SelfTimeCollector selfTimeCollector) {
         SparkSamplerProtos.ThreadNode.Builder proto = SparkSamplerProtos.ThreadNode.newBuilder()
                 .setName(getThreadLabel());
 
-        double[] times = encodeTimesForProto(timeEncoder);
+        double[] times = timeEncoder.encode(this);
         for (double time : times) {
             proto.addTimes(time);
         }
@@ -175,8 +211,10 @@ public final class ThreadNode extends AbstractNode {
 
         // push the thread node's children to the stack
         List<Integer> childrenRefs = new LinkedList<>();
-        for (StackTraceNode child : exportChildren(mergeMode)) {
-            stack.push(new Node(child, childrenRefs));
+        pushChildren(stack, Collections.singletonList(this), null, childrenRefs, mergeMode, timeEncoder, selfTimeCollector);
+
+        if (selfTimeCollector != null) {
+            selfTimeCollector.addTotalTime(timeEncoder.getTotalTime(this));
         }
 
         Node node;
@@ -185,9 +223,7 @@ public final class ThreadNode extends AbstractNode {
 
             // on the first visit, just push this node's children and leave it on the stack
             if (node.firstVisit) {
-                for (StackTraceNode child : node.stackTraceNode.exportChildren(mergeMode)) {
-                    stack.push(new Node(child, node.childrenRefs));
-                }
+                pushChildren(stack, node.stackTraceNodes, node, node.childrenRefs, mergeMode, timeEncoder, selfTimeCollector);
                 node.firstVisit = false;
                 continue;
             }
@@ -195,12 +231,21 @@ public final class ThreadNode extends AbstractNode {
             // convert StackTraceNode to a proto
             // - at this stage, we have already visited this node's children
             // - the refs for each child are stored in node.childrenRefs
-            SparkSamplerProtos.StackTraceNode childProto = node.stackTraceNode.toProto(mergeMode, timeEncoder, node.childrenRefs);
+            // - nodes merged with this one are combined into a single proto, without modifying the tree
+            SparkSamplerProtos.StackTraceNode childProto = node.stackTraceNode.toProto(mergeMode, timeEncoder.encode(node.stackTraceNodes), node.childrenRefs);
 
             // add the child proto to the nodes array, and record the ref in the parent
             int childIndex = nodesArray.add(childProto);
             node.parentChildrenRefs.add(childIndex);
 
+            // record the self time of the node, now that its children have been visited
+            if (selfTimeCollector != null) {
+                selfTimeCollector.exit(node.frame, Math.max(0, node.totalTime - node.childrenTime));
+                if (node.parent != null) {
+                    node.parent.childrenTime += node.totalTime;
+                }
+            }
+
             // pop from the stack
             stack.pop();
         }
@@ -211,15 +256,42 @@ public final class ThreadNode extends AbstractNode {
         return proto.build();
     }
 
+    private static void pushChildren(Deque<Node> stack, List<? extends AbstractNode> parents, Node parent, List<Integer> parentChildrenRefs, MergeMode mergeMode, ProtoTimeEncoder timeEncoder, SelfTimeCollector selfTimeCollector) {
+        for (List<StackTraceNode> group : exportChildren(parents, mergeMode)) {
+            long totalTime = 0;
+            for (StackTraceNode child : group) {
+                totalTime += timeEncoder.getTotalTime(child);
+            }
+
+            // nothing was logged in the windows being exported
+            if (totalTime == 0) {
+                continue;
+            }
+
+            stack.push(new Node(group, totalTime, parent, parentChildrenRefs, selfTimeCollector));
+        }
+    }
+
     private static final class Node {
+        private final List<StackTraceNode> stackTraceNodes;
         private final StackTraceNode stackTraceNode;
+        private final long totalTime;
+        private final Node parent;
         private boolean firstVisit = true;
         private final List<Integer> childrenRefs = new LinkedList<>();
         private final List<Integer> parentChildrenRefs;
 
-        private Node(StackTraceNode node, List<Integer> parentChildrenRefs) {
-            this.stackTraceNode = node;
+        // used to compute self times, if a collector is present
+        private final SelfTimeCollector.CallFrame frame;
+        private long childrenTime = 0;
+
+        private Node(List<StackTraceNode> nodes, long totalTime, Node parent, List<Integer> parentChildrenRefs, SelfTimeCollector selfTimeCollector) {
+            this.stackTraceNodes = nodes;
+            this.stackTraceNode = nodes.get(0);
+            this.totalTime = totalTime;
+            this.parent = parent;
             this.parentChildrenRefs = parentChildrenRefs;
+            this.frame = selfTimeCollector == null ? null : selfTimeCollector.enter(parent == null ? null : parent.frame, this.stackTraceNode);
         }
     }
 }
@@ -0,0 +1,385 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.pprof;
+
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+import me.lucko.spark.proto.SparkSamplerProtos.StackTraceNode;
+import me.lucko.spark.proto.SparkSamplerProtos.ThreadNode;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes profiles in the gzipped <a href="https://github.com/google/pprof/blob/main/proto/profile.proto">pprof</a> format.
+ *
+ * <p>The profile is encoded directly to the output as the tree is walked - one sample is written
+ * for each node with self time, and only the function, location and string tables are held in
+ * memory until the end. The pprof protos are not part of spark, so the messages are written using
+ * the field numbers from profile.proto.</p>
+ */
+public final class PprofWriter {
+
+    /** The file extension used for pprof profiles */
+    public static final String FILE_EXTENSION = "pb.gz";
+
+    // field numbers in profile.proto
+    private static final int PROFILE_SAMPLE_TYPE = 1;
+    private static final int PROFILE_SAMPLE = 2;
+    private static final int PROFILE_LOCATION = 4;
+    private static final int PROFILE_FUNCTION = 5;
+    private static final int PROFILE_STRING_TABLE = 6;
+    private static final int PROFILE_TIME_NANOS = 9;
+    private static final int PROFILE_DURATION_NANOS = 10;
+    private static final int PROFILE_PERIOD_TYPE = 11;
+    private static final int PROFILE_PERIOD = 12;
+    private static final int PROFILE_COMMENT = 13;
+    private static final int VALUE_TYPE_TYPE = 1;
+    private static final int VALUE_TYPE_UNIT = 2;
+    private static final int SAMPLE_LOCATION_ID = 1;
+    private static final int SAMPLE_VALUE = 2;
+    private static final int SAMPLE_LABEL = 3;
+    private static final int LABEL_KEY = 1;
+    private static final int LABEL_STR = 2;
+    private static final int LOCATION_ID = 1;
+    private static final int LOCATION_LINE = 4;
+    private static final int LINE_FUNCTION_ID = 1;
+    private static final int LINE_LINE = 2;
+    private static final int FUNCTION_ID = 1;
+    private static final int FUNCTION_NAME = 2;
+    private static final int FUNCTION_SYSTEM_NAME = 3;
+
+    /**
+     * The type of value recorded by a profile.
+     */
+    public enum SampleType {
+        CPU("cpu", "nanoseconds"),
+        WALL("wall", "nanoseconds"),
+        ALLOCATION("alloc_space", "bytes");
+
+        private final String type;
+        private final String unit;
+
+        SampleType(String type, String unit) {
+            this.type = type;
+            this.unit = unit;
+        }
+
+        /**
+         * Gets the sample type for a profile.
+         *
+         * @param mode the mode of the profile
+         * @param cpuTime if execution samples were only taken while threads were running on a cpu
+         * @return the sample type
+         */
+        public static SampleType of(SamplerMetadata.SamplerMode mode, boolean cpuTime) {
+            if (mode == SamplerMetadata.SamplerMode.ALLOCATION) {
+                return ALLOCATION;
+            }
+            return cpuTime ? CPU : WALL;
+        }
+    }
+
+    /**
+     * Writes a profile to a file.
+     *
+     * @param data the profile
+     * @param file the file
+     * @param sampleType the type of value recorded by the profile
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(SamplerData data, Path file, SampleType sampleType) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), 8192)) {
+            CodedOutputStream coded = CodedOutputStream.newInstance(out);
+            new PprofWriter(coded, sampleType).write(data);
+            coded.flush();
+        }
+    }
+
+    private final CodedOutputStream out;
+    private final SampleType sampleType;
+
+    /** The string table - index 0 is always the empty string */
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+
+    /** The function table - the name & system name of each function, ids start from 1 */
+    private final Map<String, Integer> functionIds = new HashMap<>();
+    private long[] functions = new long[64];
+    private int functionCount = 0;
+
+    /** The location table - the function & line of each location, ids start from 1 */
+    private final Map<Long, Integer> locationIds = new HashMap<>();
+    private long[] locations = new long[64];
+    private int locationCount = 0;
+
+    /** The location ids of the stack being walked, from the root */
+    private long[] stack = new long[64];
+
+    private PprofWriter(CodedOutputStream out, SampleType sampleType) {
+        this.out = out;
+        this.sampleType = sampleType;
+        string("");
+    }
+
+    private void write(SamplerData data) throws IOException {
+        SamplerMetadata metadata = data.getMetadata();
+        boolean execution = this.sampleType != SampleType.ALLOCATION;
+
+        // execution samples also record a sample count, derived from the interval
+        double samplesPerMilli = execution && metadata.getInterval() > 0 ? 1000d / metadata.getInterval() : 0;
+        if (execution) {
+            writeValueType(PROFILE_SAMPLE_TYPE, "samples", "count");
+        }
+        writeValueType(PROFILE_SAMPLE_TYPE, this.sampleType.type, this.sampleType.unit);
+
+        int threadKey = string("thread");
+        for (ThreadNode thread : data.getThreadsList()) {
+            writeThread(thread, threadKey, execution, samplesPerMilli);
+        }
+
+        for (int i = 0; i < this.locationCount; i++) {
+            long function = this.locations[i * 2];
+            long line = this.locations[i * 2 + 1];
+            int lineSize = sizeOfUInt64(LINE_FUNCTION_ID, function) + sizeOfInt64(LINE_LINE, line);
+            this.out.writeTag(PROFILE_LOCATION, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            this.out.writeUInt32NoTag(sizeOfUInt64(LOCATION_ID, i + 1) + sizeOfMessage(LOCATION_LINE, lineSize));
+            this.out.writeUInt64(LOCATION_ID, i + 1);
+            this.out.writeTag(LOCATION_LINE, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            this.out.writeUInt32NoTag(lineSize);
+            writeUInt64(LINE_FUNCTION_ID, function);
+            writeInt64(LINE_LINE, line);
+        }
+
+        for (int i = 0; i < this.functionCount; i++) {
+            long name = this.functions[i * 2];
+            long systemName = this.functions[i * 2 + 1];
+            this.out.writeTag(PROFILE_FUNCTION, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            this.out.writeUInt32NoTag(sizeOfUInt64(FUNCTION_ID, i + 1) + sizeOfInt64(FUNCTION_NAME, name) + sizeOfInt64(FUNCTION_SYSTEM_NAME, systemName));
+            this.out.writeUInt64(FUNCTION_ID, i + 1);
+            writeInt64(FUNCTION_NAME, name);
+            writeInt64(FUNCTION_SYSTEM_NAME, systemName);
+        }
+
+        long startNanos = metadata.getStartTime() * 1000000L;
+        writeInt64(PROFILE_TIME_NANOS, startNanos);
+        if (metadata.getEndTime() > metadata.getStartTime()) {
+            writeInt64(PROFILE_DURATION_NANOS, metadata.getEndTime() * 1000000L - startNanos);
+        }
+
+        // the interval is in microseconds for execution profiles, and bytes for allocation profiles
+        writeValueType(PROFILE_PERIOD_TYPE, this.sampleType.type, this.sampleType.unit);
+        writeInt64(PROFILE_PERIOD, execution ? metadata.getInterval() * 1000L : metadata.getInterval());
+
+        if (!metadata.getComment().isEmpty()) {
+            writeInt64(PROFILE_COMMENT, string(metadata.getComment()));
+        }
+
+        // the string table is written last, once every string has been seen
+        for (String string : this.strings) {
+            this.out.writeString(PROFILE_STRING_TABLE, string);
+        }
+    }
+
+    private void writeThread(ThreadNode thread, int threadKey, boolean execution, double samplesPerMilli) throws IOException {
+        int threadName = string(thread.getName());
+
+        double[] totals = new double[thread.getChildrenCount()];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = sum(thread.getChildren(i).getTimesList());
+        }
+
+        // walk the tree depth first - the stack holds {ref, depth} pairs
+        int[] pending = new int[64];
+        int pendingCount = 0;
+        for (int ref : thread.getChildrenRefsList()) {
+            pending = push(pending, pendingCount++, ref, 0);
+        }
+        while (pendingCount > 0) {
+            pendingCount--;
+            int ref = pending[pendingCount * 2];
+            int depth = pending[pendingCount * 2 + 1];
+            StackTraceNode node = thread.getChildren(ref);
+
+            if (depth == this.stack.length) {
+                this.stack = Arrays.copyOf(this.stack, depth * 2);
+            }
+            this.stack[depth] = location(node);
+
+            double selfTime = totals[ref];
+            for (int child : node.getChildrenRefsList()) {
+                selfTime -= totals[child];
+                pending = push(pending, pendingCount++, child, depth + 1);
+            }
+
+            if (selfTime > 0) {
+                long value = execution ? Math.round(selfTime * 1000000d) : Math.round(selfTime);
+                long samples = Math.max(1, Math.round(selfTime * samplesPerMilli));
+                if (value > 0) {
+                    writeSample(depth, execution ? samples : -1, value, threadKey, threadName);
+                }
+            }
+        }
+    }
+
+    private static int[] push(int[] pending, int index, int ref, int depth) {
+        if (index * 2 + 2 > pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[index * 2] = ref;
+        pending[index * 2 + 1] = depth;
+        return pending;
+    }
+
+    private void writeSample(int depth, long samples, long value, int threadKey, int threadName) throws IOException {
+        // locations are listed leaf first
+        int locationsSize = 0;
+        for (int i = depth; i >= 0; i--) {
+            locationsSize += CodedOutputStream.computeUInt64SizeNoTag(this.stack[i]);
+        }
+        int valuesSize = CodedOutputStream.computeInt64SizeNoTag(value);
+        if (samples >= 0) {
+            valuesSize += CodedOutputStream.computeInt64SizeNoTag(samples);
+        }
+        int labelSize = sizeOfInt64(LABEL_KEY, threadKey) + sizeOfInt64(LABEL_STR, threadName);
+
+        this.out.writeTag(PROFILE_SAMPLE, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        this.out.writeUInt32NoTag(sizeOfMessage(SAMPLE_LOCATION_ID, locationsSize) + sizeOfMessage(SAMPLE_VALUE, valuesSize) + sizeOfMessage(SAMPLE_LABEL, labelSize));
+
+        this.out.writeTag(SAMPLE_LOCATION_ID, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        this.out.writeUInt32NoTag(locationsSize);
+        for (int i = depth; i >= 0; i--) {
+            this.out.writeUInt64NoTag(this.stack[i]);
+        }
+
+        this.out.writeTag(SAMPLE_VALUE, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        this.out.writeUInt32NoTag(valuesSize);
+        if (samples >= 0) {
+            this.out.writeInt64NoTag(samples);
+        }
+        this.out.writeInt64NoTag(value);
+
+        this.out.writeTag(SAMPLE_LABEL, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        this.out.writeUInt32NoTag(labelSize);
+        writeInt64(LABEL_KEY, threadKey);
+        writeInt64(LABEL_STR, threadName);
+    }
+
+    private void writeValueType(int field, String type, String unit) throws IOException {
+        int typeId = string(type);
+        int unitId = string(unit);
+        this.out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        this.out.writeUInt32NoTag(sizeOfInt64(VALUE_TYPE_TYPE, typeId) + sizeOfInt64(VALUE_TYPE_UNIT, unitId));
+        writeInt64(VALUE_TYPE_TYPE, typeId);
+        writeInt64(VALUE_TYPE_UNIT, unitId);
+    }
+
+    private int string(String string) {
+        Integer id = this.stringIds.get(string);
+        if (id == null) {
+            id = this.strings.size();
+            this.strings.add(string);
+            this.stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    private int function(StackTraceNode node) {
+        String name = node.getClassName() + "." + node.getMethodName();
+        String systemName = node.getMethodDesc().isEmpty() ? name : name + node.getMethodDesc();
+
+        Integer id = this.functionIds.get(systemName);
+        if (id == null) {
+            if (this.functionCount * 2 == this.functions.length) {
+                this.functions = Arrays.copyOf(this.functions, this.functions.length * 2);
+            }
+            this.functions[this.functionCount * 2] = string(name);
+            this.functions[this.functionCount * 2 + 1] = string(systemName);
+            id = ++this.functionCount;
+            this.functionIds.put(systemName, id);
+        }
+        return id;
+    }
+
+    private long location(StackTraceNode node) {
+        int function = function(node);
+        long key = ((long) function << 32) | (node.getLineNumber() & 0xFFFFFFFFL);
+
+        Integer id = this.locationIds.get(key);
+        if (id == null) {
+            if (this.locationCount * 2 == this.locations.length) {
+                this.locations = Arrays.copyOf(this.locations, this.locations.length * 2);
+            }
+            this.locations[this.locationCount * 2] = function;
+            this.locations[this.locationCount * 2 + 1] = node.getLineNumber();
+            id = ++this.locationCount;
+            this.locationIds.put(key, id);
+        }
+        return id;
+    }
+
+    // proto3 omits fields with default values
+
+    private void writeInt64(int field, long value) throws IOException {
+        if (value != 0) {
+            this.out.writeInt64(field, value);
+        }
+    }
+
+    private void writeUInt64(int field, long value) throws IOException {
+        if (value != 0) {
+            this.out.writeUInt64(field, value);
+        }
+    }
+
+    private static int sizeOfInt64(int field, long value) {
+        return value == 0 ? 0 : CodedOutputStream.computeInt64Size(field, value);
+    }
+
+    private static int sizeOfUInt64(int field, long value) {
+        return value == 0 ? 0 : CodedOutputStream.computeUInt64Size(field, value);
+    }
+
+    private static int sizeOfMessage(int field, int size) {
+        return CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    private static double sum(List<Double> times) {
+        double total = 0;
+        for (double time : times) {
+            total += time;
+        }
+        return total;
+    }
+
+}
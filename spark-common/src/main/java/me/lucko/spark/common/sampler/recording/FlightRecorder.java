@@ -0,0 +1,338 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.recording;
+
+import me.lucko.spark.common.SparkPlugin;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.node.AbstractNode;
+import me.lucko.spark.common.sampler.node.FrozenWindows;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Continuously records the completed windows of the background profiler to disk.
+ *
+ * <p>Windows are appended to a series of fixed-size, memory-mapped segment files (see
+ * {@link RecordingFormat}). Once the total size of the segments exceeds the size budget,
+ * the oldest segments are deleted. The recording survives restarts, and can be read back
+ * using {@link FlightRecording}.</p>
+ *
+ * <p>A window which is too large for a segment is split across several records, one for each
+ * thread. The reader adds the records for the same window together.</p>
+ */
+public final class FlightRecorder implements AutoCloseable {
+
+    /** The size of each segment file */
+    private static final int SEGMENT_SIZE = Integer.getInteger("spark.flightRecorderSegmentSize", 8 * 1024 * 1024);
+
+    /** The plugin, used to log windows which can't be recorded */
+    private final SparkPlugin plugin;
+
+    /** The directory containing the segments */
+    private final Path directory;
+
+    /** The maximum number of segments to keep */
+    private final int maxSegments;
+
+    /** The buffer for the current segment, or null if no segment is open */
+    private MappedByteBuffer segment;
+
+    /** The header values of the current segment */
+    private int segmentInterval;
+    private SamplerMode segmentMode;
+    private SamplerMetadata.DataAggregator.ThreadGrouper segmentGrouper;
+
+    /** The sequence number of the next segment, or -1 if not yet known */
+    private long nextSequence = -1;
+
+    /** The ids of the frames & threads defined in the current segment */
+    private final Map<StackTraceNode.Description, Integer> frameIds = new HashMap<>();
+    private final Map<String, Integer> threadIds = new HashMap<>();
+
+    /** The most recent window to be recorded */
+    private int lastRecordedWindow = Integer.MIN_VALUE;
+
+    public FlightRecorder(SparkPlugin plugin, Path directory, long sizeBudget) {
+        this.plugin = plugin;
+        this.directory = directory;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, sizeBudget / SEGMENT_SIZE));
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Records the completed windows which haven't yet been recorded.
+     *
+     * @param data the sampled data
+     * @param snapshot the snapshot of the completed windows
+     * @param statistics the statistics for each window
+     * @param mode the sampler mode
+     * @param grouper the thread grouper used to group the data
+     * @param interval the sampling interval, in microseconds
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void record(List<ThreadNode> data, FrozenWindows.Snapshot snapshot, Map<Integer, WindowStatistics> statistics, SamplerMode mode, SamplerMetadata.DataAggregator.ThreadGrouper grouper, int interval) throws IOException {
+        if (this.segment == null || this.segmentMode != mode || this.segmentGrouper != grouper || this.segmentInterval != interval) {
+            this.lastRecordedWindow = Integer.MIN_VALUE;
+            newSegment(mode, grouper, interval);
+        }
+
+        for (int window : snapshot.getWindows()) {
+            // windows which have already been rolled up were recorded at full resolution earlier
+            if (window <= this.lastRecordedWindow || snapshot.getWidth(window) != 1) {
+                continue;
+            }
+
+            WindowStatistics windowStatistics = statistics.get(window);
+            if (appendWindow(window, data, snapshot, windowStatistics, mode, grouper, interval) != 0) {
+                // too big for a segment - split the threads across several records
+                boolean statisticsWritten = false;
+                for (ThreadNode thread : data) {
+                    if (snapshot.getTime(thread, window) == 0) {
+                        continue;
+                    }
+                    int size = appendWindow(window, Collections.singletonList(thread), snapshot, statisticsWritten ? null : windowStatistics, mode, grouper, interval);
+                    if (size == 0) {
+                        statisticsWritten = true;
+                    } else {
+                        this.plugin.log(Level.WARNING, "Unable to record thread '" + thread.getThreadLabel() + "' in window " + window + " to the flight recording, " +
+                                "its encoded size (" + size + " bytes) is larger than a segment (" + SEGMENT_SIZE + " bytes)");
+                    }
+                }
+            }
+            this.lastRecordedWindow = window;
+        }
+    }
+
+    /**
+     * Appends a window record for the given threads, starting a new segment if the current one is full.
+     *
+     * @return zero if the window was appended, otherwise its encoded size
+     */
+    private int appendWindow(int window, List<ThreadNode> data, FrozenWindows.Snapshot snapshot, WindowStatistics statistics, SamplerMode mode, SamplerMetadata.DataAggregator.ThreadGrouper grouper, int interval) throws IOException {
+        if (append(encodeWindow(window, data, snapshot, statistics))) {
+            return 0;
+        }
+
+        newSegment(mode, grouper, interval);
+        ByteArrayOutputStream records = encodeWindow(window, data, snapshot, statistics);
+        if (append(records)) {
+            return 0;
+        }
+
+        // too big for a segment - forget the definitions & leave the (empty) segment open
+        this.frameIds.clear();
+        this.threadIds.clear();
+        return records.size();
+    }
+
+    private ByteArrayOutputStream encodeWindow(int window, List<ThreadNode> data, FrozenWindows.Snapshot snapshot, WindowStatistics statistics) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        ByteArrayOutputStream threads = new ByteArrayOutputStream();
+        int threadCount = 0;
+
+        Deque<AbstractNode> stack = new ArrayDeque<>();
+        List<StackTraceNode> children = new ArrayList<>();
+        for (ThreadNode thread : data) {
+            long threadTime = snapshot.getTime(thread, window);
+            if (threadTime == 0) {
+                continue;
+            }
+
+            Integer threadId = this.threadIds.get(thread.getThreadLabel());
+            if (threadId == null) {
+                threadId = this.threadIds.size();
+                this.threadIds.put(thread.getThreadLabel(), threadId);
+
+                RecordingFormat.writeVarLong(body, threadId);
+                RecordingFormat.writeString(body, thread.getThreadLabel());
+                RecordingFormat.writeRecord(out, RecordingFormat.THREAD, body);
+                body.reset();
+            }
+
+            RecordingFormat.writeVarLong(threads, threadId);
+            threadCount++;
+
+            stack.push(thread);
+            while (!stack.isEmpty()) {
+                AbstractNode node = stack.pop();
+
+                children.clear();
+                for (StackTraceNode child : node.getChildren()) {
+                    if (snapshot.getTime(child, window) != 0) {
+                        children.add(child);
+                    }
+                }
+
+                if (node instanceof StackTraceNode) {
+                    RecordingFormat.writeVarLong(threads, frameId((StackTraceNode) node, out, body));
+                }
+                RecordingFormat.writeVarLong(threads, snapshot.getTime(node, window));
+                RecordingFormat.writeVarLong(threads, children.size());
+
+                // push in reverse, so the children are written in order
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    stack.push(children.get(i));
+                }
+            }
+        }
+
+        RecordingFormat.writeVarLong(body, window);
+        RecordingFormat.writeVarLong(body, 1);
+        RecordingFormat.writeBytes(body, statistics == null ? new byte[0] : statistics.toByteArray());
+        RecordingFormat.writeVarLong(body, threadCount);
+        byte[] threadBytes = threads.toByteArray();
+        body.write(threadBytes, 0, threadBytes.length);
+        RecordingFormat.writeRecord(out, RecordingFormat.WINDOW, body);
+        return out;
+    }
+
+    private int frameId(StackTraceNode node, ByteArrayOutputStream out, ByteArrayOutputStream body) {
+        Integer id = this.frameIds.get(node.getDescription());
+        if (id != null) {
+            return id;
+        }
+
+        id = this.frameIds.size();
+        this.frameIds.put(node.getDescription(), id);
+
+        RecordingFormat.writeVarLong(body, id);
+        RecordingFormat.writeString(body, node.getClassName());
+        RecordingFormat.writeString(body, node.getMethodName());
+        RecordingFormat.writeNullableString(body, node.getMethodDescription());
+        RecordingFormat.writeZigZag(body, node.getLineNumber());
+        RecordingFormat.writeZigZag(body, node.getParentLineNumber());
+        RecordingFormat.writeRecord(out, RecordingFormat.FRAME, body);
+        body.reset();
+        return id;
+    }
+
+    private boolean append(ByteArrayOutputStream records) {
+        byte[] bytes = records.toByteArray();
+
+        // leave room for the end marker
+        if (bytes.length + 1 > this.segment.remaining()) {
+            return false;
+        }
+
+        // write the type of the first record last, so that readers never see a partial batch
+        int position = this.segment.position();
+        byte type = bytes[0];
+        bytes[0] = RecordingFormat.END;
+        this.segment.put(bytes);
+        this.segment.put(position, type);
+        return true;
+    }
+
+    private void newSegment(SamplerMode mode, SamplerMetadata.DataAggregator.ThreadGrouper grouper, int interval) throws IOException {
+        closeSegment();
+        Files.createDirectories(this.directory);
+
+        List<Path> existing = listSegments(this.directory);
+        if (this.nextSequence == -1) {
+            this.nextSequence = existing.isEmpty() ? 0 : RecordingFormat.segmentSequence(existing.get(existing.size() - 1)) + 1;
+        }
+
+        // make room for the new segment
+        for (int i = 0; i <= existing.size() - this.maxSegments; i++) {
+            try {
+                Files.deleteIfExists(existing.get(i));
+            } catch (IOException e) {
+                // the file may still be mapped - try again next time
+            }
+        }
+
+        Path file = this.directory.resolve(RecordingFormat.segmentFileName(this.nextSequence++));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+
+        this.segment.putInt(RecordingFormat.MAGIC)
+                .putInt(RecordingFormat.VERSION)
+                .putInt(ProfilingWindowUtils.WINDOW_SIZE_SECONDS)
+                .putInt(interval)
+                .putInt(mode.asProto().getNumber())
+                .putInt(grouper.getNumber())
+                .putLong(System.currentTimeMillis());
+
+        this.segmentMode = mode;
+        this.segmentGrouper = grouper;
+        this.segmentInterval = interval;
+        this.frameIds.clear();
+        this.threadIds.clear();
+    }
+
+    private void closeSegment() {
+        if (this.segment != null) {
+            this.segment.force();
+            this.segment = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeSegment();
+    }
+
+    /**
+     * Lists the segment files in a directory.
+     *
+     * @param directory the directory
+     * @return the segments, oldest first
+     * @throws IOException if an I/O error occurs
+     */
+    static List<Path> listSegments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> RecordingFormat.segmentSequence(file) != -1)
+                    .sorted((a, b) -> Long.compare(RecordingFormat.segmentSequence(a), RecordingFormat.segmentSequence(b)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.recording;
+
+import me.lucko.spark.common.SparkPlatform;
+import me.lucko.spark.common.sampler.Sampler;
+import me.lucko.spark.common.sampler.SamplerDataWriter;
+import me.lucko.spark.common.sampler.SamplerMode;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.source.ClassSourceLookup;
+import me.lucko.spark.common.sampler.source.SourceMetadata;
+import me.lucko.spark.common.sampler.window.ProfilingWindowUtils;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.proto.SparkProtos.WindowStatistics;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerData;
+import me.lucko.spark.proto.SparkSamplerProtos.SamplerMetadata;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The data read back from the segments written by a {@link FlightRecorder}.
+ */
+public final class FlightRecording {
+
+    /**
+     * Reads the windows overlapping the given time range from the segments in a directory.
+     *
+     * <p>Segments recorded with a different window size, or with a different sampler mode to
+     * the first matching segment, are skipped.</p>
+     *
+     * @param directory the directory containing the segments
+     * @param from the start of the range, in unix-millis
+     * @param to the end of the range, in unix-millis
+     * @return the recording
+     * @throws IOException if an I/O error occurs
+     */
+    public static FlightRecording read(Path directory, long from, long to) throws IOException {
+        FlightRecording recording = new FlightRecording();
+        for (Path file : FlightRecorder.listSegments(directory)) {
+            ByteBuffer buf;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (NoSuchFileException e) {
+                // deleted by the recorder since the directory was listed
+                continue;
+            }
+            recording.readSegment(buf, from, to);
+        }
+        return recording;
+    }
+
+    private SamplerMode mode;
+    private SamplerMetadata.DataAggregator.ThreadGrouper grouper = SamplerMetadata.DataAggregator.ThreadGrouper.BY_POOL;
+    private int interval;
+
+    private final Map<String, ThreadNode> threads = new LinkedHashMap<>();
+    private final Map<Integer, Integer> widths = new TreeMap<>();
+    private final Map<Integer, WindowStatistics> statistics = new HashMap<>();
+
+    private FlightRecording() {
+
+    }
+
+    private void readSegment(ByteBuffer buf, long from, long to) {
+        if (buf.remaining() < RecordingFormat.HEADER_SIZE ||
+                buf.getInt() != RecordingFormat.MAGIC ||
+                buf.getInt() != RecordingFormat.VERSION ||
+                buf.getInt() != ProfilingWindowUtils.WINDOW_SIZE_SECONDS) {
+            return;
+        }
+
+        int interval = buf.getInt();
+        SamplerMode mode = modeFromProto(buf.getInt());
+        SamplerMetadata.DataAggregator.ThreadGrouper grouper = SamplerMetadata.DataAggregator.ThreadGrouper.forNumber(buf.getInt());
+        buf.getLong(); // created time
+
+        if (mode == null || (this.mode != null && this.mode != mode)) {
+            return;
+        }
+
+        List<StackTraceNode.Description> frames = new ArrayList<>();
+        List<String> threadNames = new ArrayList<>();
+
+        try {
+            while (buf.hasRemaining()) {
+                byte type = buf.get();
+                if (type == RecordingFormat.END) {
+                    break;
+                }
+
+                int length = RecordingFormat.readVarInt(buf);
+                ByteBuffer body = buf.slice();
+                body.limit(length);
+                buf.position(buf.position() + length);
+
+                switch (type) {
+                    case RecordingFormat.FRAME:
+                        frames.add(RecordingFormat.readVarInt(body), readFrame(body));
+                        break;
+                    case RecordingFormat.THREAD:
+                        threadNames.add(RecordingFormat.readVarInt(body), RecordingFormat.readString(body));
+                        break;
+                    case RecordingFormat.WINDOW:
+                        if (readWindow(body, frames, threadNames, from, to)) {
+                            this.mode = mode;
+                            this.interval = interval;
+                            if (grouper != null) {
+                                this.grouper = grouper;
+                            }
+                        }
+                        break;
+                    default:
+                        // unknown record type
+                        break;
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException | IllegalArgumentException e) {
+            // corrupt or truncated segment - keep what has been read so far
+        }
+    }
+
+    private static StackTraceNode.Description readFrame(ByteBuffer buf) {
+        String className = RecordingFormat.readString(buf);
+        String methodName = RecordingFormat.readString(buf);
+        String methodDescription = RecordingFormat.readNullableString(buf);
+        int lineNumber = RecordingFormat.readZigZag(buf);
+        int parentLineNumber = RecordingFormat.readZigZag(buf);
+
+        if (methodDescription != null) {
+            return new StackTraceNode.Description(className, methodName, methodDescription);
+        } else {
+            return new StackTraceNode.Description(className, methodName, lineNumber, parentLineNumber);
+        }
+    }
+
+    private boolean readWindow(ByteBuffer buf, List<StackTraceNode.Description> frames, List<String> threadNames, long from, long to) {
+        int window = RecordingFormat.readVarInt(buf);
+        int width = RecordingFormat.readVarInt(buf);
+        if (!ProfilingWindowUtils.windowsBetween(from, to, w -> width).test(window)) {
+            return false;
+        }
+
+        byte[] statistics = RecordingFormat.readBytes(buf);
+        if (statistics.length != 0) {
+            try {
+                this.statistics.put(window, WindowStatistics.parseFrom(statistics));
+            } catch (InvalidProtocolBufferException e) {
+                // ignore
+            }
+        }
+        this.widths.put(window, width);
+
+        // the nodes of each thread are stored in pre-order - rebuild the tree by
+        // logging the self time of each node against the path leading to it
+        StackTraceNode.Description[] path = new StackTraceNode.Description[16];
+        long[] times = new long[16];
+        long[] childTimes = new long[16];
+        int[] remaining = new int[16];
+
+        int threadCount = RecordingFormat.readVarInt(buf);
+        for (int i = 0; i < threadCount; i++) {
+            String name = threadNames.get(RecordingFormat.readVarInt(buf));
+            ThreadNode thread = this.threads.computeIfAbsent(name, ThreadNode::new);
+
+            RecordingFormat.readVarLong(buf); // thread time, the sum of the nodes below
+            int depth = 0;
+            remaining[0] = RecordingFormat.readVarInt(buf);
+
+            while (depth > 0 || remaining[0] > 0) {
+                if (remaining[depth] == 0) {
+                    // all children of the node at the top of the path have been read
+                    long selfTime = times[depth] - childTimes[depth];
+                    if (selfTime > 0) {
+                        thread.log((description, parent) -> description, leafFirst(path, depth), selfTime, window);
+                    }
+                    depth--;
+                    continue;
+                }
+
+                remaining[depth]--;
+                if (++depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                    times = Arrays.copyOf(times, depth * 2);
+                    childTimes = Arrays.copyOf(childTimes, depth * 2);
+                    remaining = Arrays.copyOf(remaining, depth * 2);
+                }
+
+                path[depth] = frames.get(RecordingFormat.readVarInt(buf));
+                times[depth] = RecordingFormat.readVarLong(buf);
+                childTimes[depth] = 0;
+                remaining[depth] = RecordingFormat.readVarInt(buf);
+                childTimes[depth - 1] += times[depth];
+            }
+        }
+        return true;
+    }
+
+    private static StackTraceNode.Description[] leafFirst(StackTraceNode.Description[] path, int depth) {
+        StackTraceNode.Description[] stack = new StackTraceNode.Description[depth];
+        for (int i = 0; i < depth; i++) {
+            stack[i] = path[depth - i];
+        }
+        return stack;
+    }
+
+    private static SamplerMode modeFromProto(int number) {
+        for (SamplerMode mode : SamplerMode.values()) {
+            if (mode.asProto().getNumber() == number) {
+                return mode;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return this.widths.isEmpty();
+    }
+
+    public List<ThreadNode> getThreads() {
+        return new ArrayList<>(this.threads.values());
+    }
+
+    public int getWidth(int window) {
+        return this.widths.getOrDefault(window, 1);
+    }
+
+    public Map<Integer, WindowStatistics> getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Exports the recording to a proto.
+     *
+     * @param platform the platform
+     * @param exportProps the export props
+     * @return the proto
+     */
+    public SamplerData toProto(SparkPlatform platform, Sampler.ExportProps exportProps) {
+        SamplerData.Builder proto = SamplerData.newBuilder();
+        if (exportProps.channelInfo() != null) {
+            proto.setChannelInfo(exportProps.channelInfo());
+        }
+
+        int firstWindow = this.widths.keySet().stream().min(Integer::compare).orElse(0);
+        int lastWindow = this.widths.keySet().stream().max(Integer::compare).orElse(0);
+
+        SamplerMetadata.Builder metadata = SamplerMetadata.newBuilder()
+                .setSamplerMode(this.mode.asProto())
+                .setPlatformMetadata(platform.getPlugin().getPlatformInfo().toData().toProto())
+                .setCreator(exportProps.creator().toProto())
+                .setStartTime(ProfilingWindowUtils.windowToUnixMillis(firstWindow))
+                .setEndTime(ProfilingWindowUtils.windowToUnixMillis(lastWindow + getWidth(lastWindow)))
+                .setInterval(this.interval)
+                .setWindowSize(ProfilingWindowUtils.WINDOW_SIZE_SECONDS)
+                .setDataAggregator(SamplerMetadata.DataAggregator.newBuilder()
+                        .setType(SamplerMetadata.DataAggregator.Type.SIMPLE)
+                        .setThreadGrouper(this.grouper)
+                );
+
+        if (exportProps.comment() != null) {
+            metadata.setComment(exportProps.comment());
+        }
+
+        for (SourceMetadata source : platform.getPlugin().getKnownSources()) {
+            metadata.putSources(source.getName().toLowerCase(Locale.ROOT), source.toProto());
+        }
+        proto.setMetadata(metadata);
+
+        List<ThreadNode> data = getThreads();
+        data.sort(Comparator.comparing(ThreadNode::getThreadLabel));
+
+        ProtoTimeEncoder timeEncoder = new ProtoTimeEncoder(this.mode.valueTransformer(), data, this::getWidth);
+        for (int window : timeEncoder.getKeys()) {
+            proto.addTimeWindows(window);
+            proto.addTimeWindowWidths(timeEncoder.getWidth(window));
+        }
+        proto.putAllTimeWindowStatistics(this.statistics);
+
+        ClassSourceLookup.Visitor classSourceVisitor = ClassSourceLookup.createVisitor(exportProps.classSourceLookup().get());
+        SamplerDataWriter.writeThreads(proto, data, timeEncoder, this.mode.valueTransformer(), classSourceVisitor, exportProps.mergeMode().get());
+        return proto.build();
+    }
+
+}
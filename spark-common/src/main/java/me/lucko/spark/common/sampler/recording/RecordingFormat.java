@@ -0,0 +1,160 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.recording;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Constants and encoding helpers for the flight recorder segment format.
+ *
+ * <pre>
+ * segment := header record* 0x00
+ * header  := magic:int32 version:int32 windowSize:int32 interval:int32 mode:int32 grouper:int32 created:int64
+ * record  := type:byte length:varint body
+ *
+ * FRAME   := id:varint className:string methodName:string methodDesc:nullable-string line:zigzag parentLine:zigzag
+ * THREAD  := id:varint label:string
+ * WINDOW  := window:varint width:varint statistics:bytes threadCount:varint thread*
+ * thread  := id:varint time:varlong childCount:varint node*
+ * node    := frameId:varint time:varlong childCount:varint     (in pre-order)
+ * </pre>
+ *
+ * <p>Frame and thread ids are only valid within the segment that defines them. The type byte of a
+ * batch of records is written last, so a record torn by a crash reads as the end of the segment.</p>
+ */
+enum RecordingFormat {
+    ;
+
+    static final int MAGIC = 0x53504b52; // SPKR
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 6 * Integer.BYTES + Long.BYTES;
+
+    static final byte END = 0;
+    static final byte FRAME = 1;
+    static final byte THREAD = 2;
+    static final byte WINDOW = 3;
+
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("segment-(\\d+)\\.sfr");
+
+    static String segmentFileName(long sequence) {
+        return String.format("segment-%08d.sfr", sequence);
+    }
+
+    /**
+     * Gets the sequence number of a segment file.
+     *
+     * @param file the file
+     * @return the sequence number, or -1 if the file isn't a segment
+     */
+    static long segmentSequence(Path file) {
+        Matcher matcher = SEGMENT_FILE_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeZigZag(ByteArrayOutputStream out, int value) {
+        writeVarLong(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String string) {
+        writeBytes(out, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void writeNullableString(ByteArrayOutputStream out, String string) {
+        if (string == null) {
+            writeVarLong(out, 0);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length + 1L);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    static void writeRecord(ByteArrayOutputStream out, byte type, ByteArrayOutputStream body) {
+        out.write(type);
+        byte[] bytes = body.toByteArray();
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static long readVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    static int readVarInt(ByteBuffer buf) {
+        long value = readVarLong(buf);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Malformed varint");
+        }
+        return (int) value;
+    }
+
+    static int readZigZag(ByteBuffer buf) {
+        int value = (int) readVarLong(buf);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static byte[] readBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[readVarInt(buf)];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    static String readString(ByteBuffer buf) {
+        return new String(readBytes(buf), StandardCharsets.UTF_8);
+    }
+
+    static String readNullableString(ByteBuffer buf) {
+        int length = readVarInt(buf);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -191,6 +191,15 @@ public interface ClassSourceLookup {
     interface Visitor {
         void visit(ThreadNode node);
 
+        /**
+         * Identifies the source of a single stack trace node, preferring a (Mixin)
+         * method call mapping over the class mapping where one exists.
+         *
+         * @param node the node
+         * @return the source of the node, or null if it could not be identified
+         */
+        @Nullable String identify(StackTraceNode node);
+
         boolean hasClassSourceMappings();
 
         Map<String, String> getClassSourceMapping();
@@ -219,6 +228,11 @@ public interface ClassSourceLookup {
 
         }
 
+        @Override
+        public @Nullable String identify(StackTraceNode node) {
+            return null;
+        }
+
         @Override
         public boolean hasClassSourceMappings() {
             return false;
@@ -294,6 +308,19 @@ public interface ClassSourceLookup {
             }
         }
 
+        @Override
+        public @Nullable String identify(StackTraceNode node) {
+            visitStackNode(node);
+
+            String source;
+            if (node.getMethodDescription() != null) {
+                source = this.methodSources.get(new MethodCall(node.getClassName(), node.getMethodName(), node.getMethodDescription()));
+            } else {
+                source = this.lineSources.get(new MethodCallByLine(node.getClassName(), node.getMethodName(), node.getLineNumber()));
+            }
+            return source != null ? source : this.classSources.get(node.getClassName());
+        }
+
         @Override
         public boolean hasClassSourceMappings() {
             return this.classSources.hasMappings();
@@ -344,6 +371,10 @@ public interface ClassSourceLookup {
             }
         }
 
+        public @Nullable String get(T key) {
+            return this.map.get(key);
+        }
+
         public boolean hasMappings() {
             this.map.values().removeIf(Objects::isNull);
             return !this.map.isEmpty();
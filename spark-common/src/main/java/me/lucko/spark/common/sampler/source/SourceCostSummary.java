@@ -0,0 +1,253 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.sampler.source;
+
+import me.lucko.spark.common.sampler.node.AbstractNode;
+import me.lucko.spark.common.sampler.node.StackTraceNode;
+import me.lucko.spark.common.sampler.node.ThreadNode;
+import me.lucko.spark.common.sampler.window.ProtoTimeEncoder;
+import me.lucko.spark.proto.SparkSamplerProtos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongToDoubleFunction;
+
+/**
+ * A summary of the sampled time (or allocated bytes) attributed to each source (plugin/mod).
+ *
+ * <p>The self time of every node in the tree is attributed in two ways:</p>
+ * <ul>
+ *     <li><b>self</b> - to the source of the leaf frame itself, i.e. time spent executing the source's own code</li>
+ *     <li><b>attributed</b> - to the source of the closest frame to the leaf which has a known source, i.e. the
+ *     mod responsible for the call, including any platform/JDK code that it called into</li>
+ * </ul>
+ */
+public final class SourceCostSummary {
+
+    /**
+     * Computes a summary for the given data.
+     *
+     * @param data the data
+     * @param timeEncoder the encoder defining the windows to compute the breakdown for
+     * @param visitor the visitor used to identify the source of each node
+     * @return the summary
+     */
+    public static SourceCostSummary compute(Collection<ThreadNode> data, ProtoTimeEncoder timeEncoder, ClassSourceLookup.Visitor visitor) {
+        SourceCostSummary summary = new SourceCostSummary(timeEncoder);
+        for (ThreadNode thread : data) {
+            summary.visit(thread, visitor);
+        }
+        return summary;
+    }
+
+    /** The encoder used to read the times for each window */
+    private final ProtoTimeEncoder timeEncoder;
+
+    /** The windows included in the summary */
+    private final int[] windows;
+
+    /** The total time across all threads, per window */
+    private final long[] totalTimes;
+
+    /** The cost for each identified source */
+    private final Map<String, Cost> costs = new HashMap<>();
+
+    private SourceCostSummary(ProtoTimeEncoder timeEncoder) {
+        this.timeEncoder = timeEncoder;
+        this.windows = timeEncoder.getKeys();
+        this.totalTimes = new long[this.windows.length];
+    }
+
+    private void visit(ThreadNode thread, ClassSourceLookup.Visitor visitor) {
+        for (int i = 0; i < this.windows.length; i++) {
+            this.totalTimes[i] += this.timeEncoder.getTime(thread, this.windows[i]);
+        }
+
+        // depth-first traversal, carrying the closest identified source from the parent
+        Deque<Frame> stack = new ArrayDeque<>();
+        for (StackTraceNode child : thread.getChildren()) {
+            stack.push(new Frame(child, null));
+        }
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.pop();
+            StackTraceNode node = frame.node;
+
+            String source = visitor.identify(node);
+            String attributedSource = source != null ? source : frame.attributedSource;
+
+            long[] selfTimes = selfTimes(node);
+            if (source != null) {
+                getCost(source).addSelf(selfTimes);
+            }
+            if (attributedSource != null) {
+                getCost(attributedSource).addAttributed(selfTimes);
+            }
+
+            for (StackTraceNode child : node.getChildren()) {
+                stack.push(new Frame(child, attributedSource));
+            }
+        }
+    }
+
+    private long[] selfTimes(AbstractNode node) {
+        long[] times = new long[this.windows.length];
+        for (int i = 0; i < this.windows.length; i++) {
+            times[i] = this.timeEncoder.getTime(node, this.windows[i]);
+        }
+        for (StackTraceNode child : node.getChildren()) {
+            for (int i = 0; i < this.windows.length; i++) {
+                times[i] -= this.timeEncoder.getTime(child, this.windows[i]);
+            }
+        }
+        for (int i = 0; i < times.length; i++) {
+            // data is still being written to if the sampler is running
+            times[i] = Math.max(0, times[i]);
+        }
+        return times;
+    }
+
+    private Cost getCost(String source) {
+        return this.costs.computeIfAbsent(source, s -> new Cost(s, this.windows.length));
+    }
+
+    /**
+     * Gets the total time across all threads.
+     *
+     * @return the total time
+     */
+    public long getTotalTime() {
+        return sum(this.totalTimes);
+    }
+
+    /**
+     * Gets the costs for each identified source, ordered by attributed time (highest first).
+     *
+     * @return the ranked costs
+     */
+    public List<Cost> getRankedCosts() {
+        List<Cost> list = new ArrayList<>(this.costs.values());
+        list.sort(Comparator.comparingLong(Cost::getAttributedTime).reversed().thenComparing(Cost::getSource));
+        return list;
+    }
+
+    public boolean isEmpty() {
+        return this.costs.isEmpty();
+    }
+
+    public List<SparkSamplerProtos.SourceCost> toProto(LongToDoubleFunction valueTransformer) {
+        List<SparkSamplerProtos.SourceCost> list = new ArrayList<>(this.costs.size());
+        for (Cost cost : getRankedCosts()) {
+            list.add(cost.toProto(valueTransformer));
+        }
+        return list;
+    }
+
+    private static long sum(long[] array) {
+        long total = 0;
+        for (long value : array) {
+            total += value;
+        }
+        return total;
+    }
+
+    /**
+     * The cost of a single source.
+     */
+    public static final class Cost {
+        private final String source;
+        private final long[] selfTimes;
+        private final long[] attributedTimes;
+
+        Cost(String source, int windows) {
+            this.source = source;
+            this.selfTimes = new long[windows];
+            this.attributedTimes = new long[windows];
+        }
+
+        void addSelf(long[] times) {
+            for (int i = 0; i < times.length; i++) {
+                this.selfTimes[i] += times[i];
+            }
+        }
+
+        void addAttributed(long[] times) {
+            for (int i = 0; i < times.length; i++) {
+                this.attributedTimes[i] += times[i];
+            }
+        }
+
+        public String getSource() {
+            return this.source;
+        }
+
+        /**
+         * Gets the time spent with a frame from this source at the top of the stack.
+         *
+         * @return the self time
+         */
+        public long getSelfTime() {
+            return sum(this.selfTimes);
+        }
+
+        /**
+         * Gets the time spent in (or called by) this source, where this source is the closest
+         * identified frame to the top of the stack.
+         *
+         * @return the attributed time
+         */
+        public long getAttributedTime() {
+            return sum(this.attributedTimes);
+        }
+
+        public SparkSamplerProtos.SourceCost toProto(LongToDoubleFunction valueTransformer) {
+            SparkSamplerProtos.SourceCost.Builder proto = SparkSamplerProtos.SourceCost.newBuilder()
+                    .setSource(this.source)
+                    .setSelfTime(valueTransformer.applyAsDouble(getSelfTime()))
+                    .setAttributedTime(valueTransformer.applyAsDouble(getAttributedTime()));
+
+            for (long time : this.selfTimes) {
+                proto.addSelfTimes(valueTransformer.applyAsDouble(time));
+            }
+            for (long time : this.attributedTimes) {
+                proto.addAttributedTimes(valueTransformer.applyAsDouble(time));
+            }
+            return proto.build();
+        }
+    }
+
+    private static final class Frame {
+        private final StackTraceNode node;
+        private final String attributedSource;
+
+        Frame(StackTraceNode node, String attributedSource) {
+            this.node = node;
+            this.attributedSource = attributedSource;
+        }
+    }
+
+}
@@ -23,22 +23,68 @@ package me.lucko.spark.common.sampler.window;
 import me.lucko.spark.common.sampler.aggregator.DataAggregator;
 
 import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 
+/**
+ * Utilities for profiling windows.
+ *
+ * <p>Windows are identified by their start time, in units of {@link #WINDOW_SIZE_SECONDS}.
+ * Recent windows are kept at full resolution; older windows are rolled up into 1 minute
+ * buckets, and then into 10 minute buckets, so that history can be kept for many hours in
+ * bounded memory. A bucket is identified by its first window, and has a width (in windows)
+ * equal to the number of windows it covers.</p>
+ */
 public enum ProfilingWindowUtils {
     ;
 
     /**
      * The size/duration of a profiling window in seconds.
-     * (1 window = 1 minute)
+     * (between 5 and 60 seconds, and must divide a minute - defaults to 1 window = 1 minute)
      */
-    public static final int WINDOW_SIZE_SECONDS = 60;
+    public static final int WINDOW_SIZE_SECONDS = windowSize(Integer.getInteger("spark.profilingWindowSize", 60));
+
+    /** The number of windows in a minute */
+    public static final int WINDOWS_PER_MINUTE = 60 / WINDOW_SIZE_SECONDS;
+
+    /** The number of windows in 10 minutes */
+    public static final int WINDOWS_PER_TEN_MINUTES = WINDOWS_PER_MINUTE * 10;
 
     /**
-     * The number of windows to record in continuous profiling before data is dropped.
+     * The number of minutes of history to record in continuous profiling at a resolution of (at most)
+     * 1 minute, before the data is rolled up into 10 minute buckets.
      * (60 windows * 1 minute = 1 hour of profiling data)
      */
     public static final int HISTORY_SIZE = Integer.getInteger("spark.continuousProfilingHistorySize", 60);
 
+    /**
+     * The number of windows to keep at full resolution, before they are rolled up into 1 minute buckets.
+     * (10 minutes by default)
+     */
+    public static final int FINE_HISTORY_SIZE = Math.min(
+            Integer.getInteger("spark.continuousProfilingFineHistorySeconds", 600) / WINDOW_SIZE_SECONDS,
+            HISTORY_SIZE * WINDOWS_PER_MINUTE
+    );
+
+    /**
+     * The number of 10 minute buckets to keep after the {@link #HISTORY_SIZE}, before data is dropped.
+     * (36 buckets * 10 minutes = 6 hours of profiling data)
+     */
+    public static final int ROLLUP_HISTORY_SIZE = Integer.getInteger("spark.continuousProfilingRollupHistorySize", 36);
+
+    /**
+     * The (approximate) size of the windows when they are pruned, in seconds.
+     */
+    public static final int PRUNED_WINDOW_SIZE_SECONDS = ROLLUP_HISTORY_SIZE > 0
+            ? WINDOWS_PER_TEN_MINUTES * WINDOW_SIZE_SECONDS
+            : WINDOWS_PER_MINUTE * WINDOW_SIZE_SECONDS;
+
+    private static int windowSize(int seconds) {
+        if (seconds < 5 || seconds > 60 || 60 % seconds != 0) {
+            return 60;
+        }
+        return seconds;
+    }
+
     /**
      * Gets the profiling window for the given time in unix-millis.
      *
@@ -49,6 +95,16 @@ public enum ProfilingWindowUtils {
         return (int) (time / (WINDOW_SIZE_SECONDS * 1000L));
     }
 
+    /**
+     * Gets the start time of the given window in unix-millis.
+     *
+     * @param window the window
+     * @return the start time in milliseconds
+     */
+    public static long windowToUnixMillis(int window) {
+        return window * (WINDOW_SIZE_SECONDS * 1000L);
+    }
+
     /**
      * Gets the window at the current time.
      *
@@ -58,6 +114,22 @@ public enum ProfilingWindowUtils {
         return unixMillisToWindow(System.currentTimeMillis());
     }
 
+    /**
+     * Gets a predicate which matches the windows that overlap the given time range.
+     *
+     * @param from the start of the range, in unix-millis
+     * @param to the end of the range, in unix-millis
+     * @param widths a function to get the width of each window
+     * @return the predicate
+     */
+    public static IntPredicate windowsBetween(long from, long to, IntUnaryOperator widths) {
+        return window -> {
+            long start = windowToUnixMillis(window);
+            long end = windowToUnixMillis(window + widths.applyAsInt(window));
+            return end > from && start < to;
+        };
+    }
+
     /**
      * Gets a prune predicate that can be passed to {@link DataAggregator#pruneData(IntPredicate)}.
      *
@@ -65,6 +137,55 @@ public enum ProfilingWindowUtils {
      */
     public static IntPredicate keepHistoryBefore(int currentWindow) {
         // windows that were earlier than (currentWindow minus history size) should be pruned
-        return window -> window < (currentWindow - HISTORY_SIZE);
+        int historySize = HISTORY_SIZE * WINDOWS_PER_MINUTE + ROLLUP_HISTORY_SIZE * WINDOWS_PER_TEN_MINUTES;
+        return window -> window < (currentWindow - historySize);
+    }
+
+    /**
+     * Applies the rollup policy for the given (current) window to the {@code target}.
+     *
+     * <p>Windows older than the {@link #FINE_HISTORY_SIZE} are rolled up into 1 minute buckets,
+     * and buckets older than the {@link #HISTORY_SIZE} into 10 minute buckets. Only complete
+     * buckets are rolled up.</p>
+     *
+     * @param currentWindow the current window
+     * @param target the target
+     */
+    public static void rollup(int currentWindow, RollupTarget target) {
+        if (WINDOWS_PER_MINUTE > 1) {
+            int cutoff = currentWindow - FINE_HISTORY_SIZE;
+            target.rollup(WINDOWS_PER_MINUTE, bucket -> bucket + WINDOWS_PER_MINUTE <= cutoff);
+        }
+        if (ROLLUP_HISTORY_SIZE > 0) {
+            int cutoff = currentWindow - HISTORY_SIZE * WINDOWS_PER_MINUTE;
+            target.rollup(WINDOWS_PER_TEN_MINUTES, bucket -> bucket + WINDOWS_PER_TEN_MINUTES <= cutoff);
+        }
+    }
+
+    /**
+     * Gets the bucket (of the given size) that a window belongs to.
+     *
+     * @param window the window
+     * @param bucketSize the size of the bucket, in windows
+     * @return the bucket
+     */
+    public static int bucketOf(int window, int bucketSize) {
+        return window - Math.floorMod(window, bucketSize);
+    }
+
+    /**
+     * Something holding per-window data which can be rolled up into larger buckets.
+     */
+    @FunctionalInterface
+    public interface RollupTarget {
+
+        /**
+         * Rolls up the windows in each bucket which passes the {@code predicate} into a single window,
+         * identified by the start of the bucket.
+         *
+         * @param bucketSize the size of the buckets, in windows
+         * @param predicate the predicate to test if a bucket should be rolled up
+         */
+        void rollup(int bucketSize, IntPredicate predicate);
     }
 }
@@ -20,18 +20,27 @@
 
 package me.lucko.spark.common.sampler.window;
 
-import me.lucko.spark.common.sampler.async.jfr.Dictionary;
+import me.lucko.spark.common.sampler.node.AbstractNode;
+import me.lucko.spark.common.sampler.node.FrozenWindows;
 import me.lucko.spark.common.sampler.node.ThreadNode;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 import java.util.function.LongToDoubleFunction;
 import java.util.stream.IntStream;
 
 /**
- * Encodes a map of int->double into a double array.
+ * Encodes the times logged for a node (window -> time) into a double array.
+ *
+ * <p>The encoder also defines which windows are being exported, and where their times are
+ * read from: either the nodes themselves, or a {@link FrozenWindows.Snapshot snapshot}.</p>
+ *
+ * <p>Windows may have different widths, if older windows have been rolled up into larger buckets.
+ * The times for each window are encoded as-is; the width of each window is exported alongside.</p>
  */
 public class ProtoTimeEncoder {
 
@@ -40,11 +49,25 @@ public class ProtoTimeEncoder {
 
     /** A sorted array of all possible keys to encode */
     private final int[] keys;
-    /** A map of key value -> index in the keys array */
-    private final Map<Integer, Integer> keysToIndex;
+
+    /** The snapshot to read times from, or null to read from the nodes */
+    private final FrozenWindows.Snapshot snapshot;
+
+    /** The width of each window */
+    private final IntUnaryOperator widths;
+
+    /** If the keys include every window held by the nodes */
+    private final boolean allWindows;
 
     public ProtoTimeEncoder(LongToDoubleFunction valueTransformer, List<ThreadNode> sourceData) {
+        this(valueTransformer, sourceData, window -> 1);
+    }
+
+    public ProtoTimeEncoder(LongToDoubleFunction valueTransformer, List<ThreadNode> sourceData, IntUnaryOperator widths) {
         this.valueTransformer = valueTransformer;
+        this.snapshot = null;
+        this.widths = widths;
+        this.allWindows = true;
 
         // get an array of all keys that show up in the source data
         this.keys = sourceData.stream()
@@ -53,12 +76,35 @@ public class ProtoTimeEncoder {
                 .distinct()
                 .sorted()
                 .toArray();
+    }
 
-        // construct a reverse index lookup
-        this.keysToIndex = new HashMap<>(this.keys.length);
-        for (int i = 0; i < this.keys.length; i++) {
-            this.keysToIndex.put(this.keys[i], i);
-        }
+    public ProtoTimeEncoder(LongToDoubleFunction valueTransformer, FrozenWindows.Snapshot snapshot) {
+        this.valueTransformer = valueTransformer;
+        this.snapshot = snapshot;
+        this.keys = snapshot.getWindows();
+        this.widths = snapshot::getWidth;
+        this.allWindows = false;
+    }
+
+    private ProtoTimeEncoder(LongToDoubleFunction valueTransformer, FrozenWindows.Snapshot snapshot, IntUnaryOperator widths, int[] keys) {
+        this.valueTransformer = valueTransformer;
+        this.snapshot = snapshot;
+        this.widths = widths;
+        this.keys = keys;
+        this.allWindows = false;
+    }
+
+    /**
+     * Creates an encoder which only encodes the windows that pass the given {@code filter}.
+     *
+     * <p>Times are still read from the same place, so nothing is copied.</p>
+     *
+     * @param filter the window filter
+     * @return the filtered encoder
+     */
+    public ProtoTimeEncoder filter(IntPredicate filter) {
+        int[] keys = Arrays.stream(this.keys).filter(filter).toArray();
+        return new ProtoTimeEncoder(this.valueTransformer, this.snapshot, this.widths, keys);
     }
 
     /**
@@ -71,26 +117,74 @@ public class ProtoTimeEncoder {
     }
 
     /**
-     * Encode a {@link Dictionary} (map) of times/durations into a double array.
+     * Gets the width of the given window, in multiples of {@link ProfilingWindowUtils#WINDOW_SIZE_SECONDS}.
+     *
+     * @param window the window
+     * @return the width
+     */
+    public int getWidth(int window) {
+        return this.widths.applyAsInt(window);
+    }
+
+    /**
+     * Gets the time logged for a node in the given window.
+     *
+     * @param node the node
+     * @param window the window
+     * @return the time
+     */
+    public long getTime(AbstractNode node, int window) {
+        return this.snapshot == null ? node.getTime(window) : this.snapshot.getTime(node, window);
+    }
+
+    /**
+     * Gets the total time logged for a node across all of the windows being encoded.
+     *
+     * @param node the node
+     * @return the total time
+     */
+    public long getTotalTime(AbstractNode node) {
+        if (this.allWindows) {
+            return node.getTotalTime();
+        }
+
+        long total = 0;
+        for (int key : this.keys) {
+            total += getTime(node, key);
+        }
+        return total;
+    }
+
+    /**
+     * Encode the times/durations logged for a node into a double array.
+     *
+     * @param node the node
+     * @return the times encoded as a double array
+     */
+    public double[] encode(AbstractNode node) {
+        return encode(Collections.singletonList(node));
+    }
+
+    /**
+     * Encode the combined times/durations logged for a group of nodes into a double array.
      *
-     * @param times a dictionary of times (unix-time millis -> duration in microseconds)
+     * @param nodes the nodes
      * @return the times encoded as a double array
      */
-    public double[] encode(Map<Integer, LongAdder> times) {
+    public double[] encode(Collection<? extends AbstractNode> nodes) {
         // construct an array of values - length needs to exactly match the
         // number of keys, even if some values are zero.
         double[] array = new double[this.keys.length];
 
-        times.forEach((key, value) -> {
-            // get the index for the given key
-            Integer idx = this.keysToIndex.get(key);
-            if (idx == null) {
-                throw new RuntimeException("No index for key " + key + " in " + this.keysToIndex.keySet());
+        for (int i = 0; i < this.keys.length; i++) {
+            long time = 0;
+            for (AbstractNode node : nodes) {
+                time += getTime(node, this.keys[i]);
             }
-
-            // store in the array
-            array[idx] = this.valueTransformer.applyAsDouble(value.longValue());
-        });
+            if (time != 0) {
+                array[i] = this.valueTransformer.applyAsDouble(time);
+            }
+        }
 
         return array;
     }
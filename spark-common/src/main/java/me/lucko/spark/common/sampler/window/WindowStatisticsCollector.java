@@ -23,39 +23,63 @@ package me.lucko.spark.common.sampler.window;
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
 import me.lucko.spark.common.SparkPlatform;
 import me.lucko.spark.common.monitor.cpu.CpuMonitor;
+import me.lucko.spark.common.monitor.memory.GcJournal;
+import me.lucko.spark.common.monitor.memory.MemoryPoolMonitor;
+import me.lucko.spark.common.monitor.memory.ThreadAllocationMonitor;
 import me.lucko.spark.common.monitor.tick.TickStatistics;
 import me.lucko.spark.common.platform.world.AsyncWorldInfoProvider;
 import me.lucko.spark.common.platform.world.WorldInfoProvider;
+import me.lucko.spark.common.sampler.ThreadGrouper;
 import me.lucko.spark.common.tick.TickHook;
+import me.lucko.spark.common.tick.TickReporter;
+import me.lucko.spark.common.util.LogLinearHistogram;
 import me.lucko.spark.proto.SparkProtos;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 import java.util.logging.Level;
 
 /**
  * Collects statistics for each profiling window.
  */
 public class WindowStatisticsCollector {
-    private static final SparkProtos.WindowStatistics ZERO = SparkProtos.WindowStatistics.newBuilder()
-            .setDuration(ProfilingWindowUtils.WINDOW_SIZE_SECONDS * 1000)
-            .build();
+    private static final SparkProtos.WindowStatistics ZERO = zero(1);
+
+    /** The number of thread groups to record allocation rates for in each window */
+    private static final int THREAD_ALLOCATION_RATES_LIMIT = 10;
+
+    private static SparkProtos.WindowStatistics zero(int width) {
+        return SparkProtos.WindowStatistics.newBuilder()
+                .setDuration(width * ProfilingWindowUtils.WINDOW_SIZE_SECONDS * 1000)
+                .build();
+    }
 
     /** The platform */
     private final SparkPlatform platform;
+    /** The grouper used to group threads for allocation rates */
+    private final ThreadGrouper threadGrouper;
 
-    /** Map of profiling window -> start time */
-    private final Map<Integer, Long> windowStartTimes = new HashMap<>();
+    /** Map of profiling window -> start time (for windows which haven't been measured yet) */
+    private final Map<Integer, Long> windowStartTimes = new ConcurrentHashMap<>();
     /** Map of profiling window -> statistics */
     private final Map<Integer, SparkProtos.WindowStatistics> stats;
 
     private TickCounter tickCounter;
 
-    public WindowStatisticsCollector(SparkPlatform platform) {
+    /** The tick reporter providing tick durations, if they are being recorded */
+    private TickReporter tickReporter;
+    /** The tick durations in the current window */
+    private final WindowDurationRecorder durationRecorder = new WindowDurationRecorder();
+
+    public WindowStatisticsCollector(SparkPlatform platform, ThreadGrouper threadGrouper) {
         this.platform = platform;
+        this.threadGrouper = threadGrouper;
         this.stats = new ConcurrentHashMap<>();
     }
 
@@ -83,10 +107,24 @@ public class WindowStatisticsCollector {
         return counter;
     }
 
+    /**
+     * Indicates to the statistics collector that it should record the duration
+     * of ticks in each window using the provided {@link TickReporter}.
+     *
+     * @param reporter the tick reporter
+     */
+    public void startRecordingTickDurations(TickReporter reporter) {
+        this.tickReporter = reporter;
+        reporter.addCallback(this.durationRecorder);
+    }
+
     public void stop() {
         if (this.tickCounter != null) {
             this.tickCounter.stop();
         }
+        if (this.tickReporter != null) {
+            this.tickReporter.removeCallback(this.durationRecorder);
+        }
     }
 
     /**
@@ -127,15 +165,135 @@ public class WindowStatisticsCollector {
      * Ensures that the exported map has statistics (even if they are zeroed) for all windows.
      *
      * @param windows the expected windows
+     * @param widths a function to get the width of each window
      */
-    public void ensureHasStatisticsForAllWindows(int[] windows) {
+    public void ensureHasStatisticsForAllWindows(int[] windows, IntUnaryOperator widths) {
         for (int window : windows) {
-            this.stats.computeIfAbsent(window, w -> ZERO);
+            int width = widths.applyAsInt(window);
+            this.stats.computeIfAbsent(window, w -> width == 1 ? ZERO : zero(width));
         }
     }
 
     public void pruneStatistics(IntPredicate predicate) {
         this.stats.keySet().removeIf(predicate::test);
+        this.windowStartTimes.keySet().removeIf(predicate::test);
+    }
+
+    /**
+     * Rolls up the statistics for older windows, in the same way as the profiling data.
+     *
+     * @param currentWindow the current window
+     * @see ProfilingWindowUtils#rollup(int, ProfilingWindowUtils.RollupTarget)
+     */
+    public void rollupStatistics(int currentWindow) {
+        ProfilingWindowUtils.rollup(currentWindow, this::rollup);
+    }
+
+    private void rollup(int bucketSize, IntPredicate predicate) {
+        long bucketDuration = bucketSize * ProfilingWindowUtils.WINDOW_SIZE_SECONDS * 1000L;
+
+        Map<Integer, List<SparkProtos.WindowStatistics>> buckets = new HashMap<>();
+        this.stats.forEach((window, stats) -> {
+            int bucket = ProfilingWindowUtils.bucketOf(window, bucketSize);
+            if (stats.getDuration() < bucketDuration && predicate.test(bucket)) {
+                buckets.computeIfAbsent(bucket, b -> new ArrayList<>()).add(stats);
+            }
+        });
+
+        buckets.forEach((bucket, stats) -> {
+            this.stats.put(bucket, merge(stats));
+            for (int window = bucket + 1; window < bucket + bucketSize; window++) {
+                this.stats.remove(window);
+            }
+        });
+    }
+
+    /**
+     * Merges the statistics for a run of windows. Averages are weighted by the duration of each
+     * window, and counts (players, entities, etc) take the peak value. The mspt percentiles are
+     * recalculated from the merged histograms of each window.
+     *
+     * @param windows the statistics for each window
+     * @return the merged statistics
+     */
+    private static SparkProtos.WindowStatistics merge(List<SparkProtos.WindowStatistics> windows) {
+        long startTime = Long.MAX_VALUE;
+        long endTime = 0;
+        long duration = 0;
+        int ticks = 0;
+        double cpuProcess = 0, cpuSystem = 0, tps = 0, msptMedian = 0, msptMax = 0, gcAllocationRate = 0, youngAllocationRate = 0, promotionRate = 0;
+        int players = 0, entities = 0, tileEntities = 0, chunks = 0, gcCount = 0;
+        long gcPauseTime = 0;
+        LogLinearHistogram mspt = null;
+        Map<String, Long> memoryPoolPeakUsed = new HashMap<>();
+        Map<String, Long> bufferPoolPeakUsed = new HashMap<>();
+        Map<String, Double> threadAllocationRates = new HashMap<>();
+
+        for (SparkProtos.WindowStatistics stats : windows) {
+            if (stats.getStartTime() != 0) {
+                startTime = Math.min(startTime, stats.getStartTime());
+            }
+            endTime = Math.max(endTime, stats.getEndTime());
+            duration += stats.getDuration();
+            ticks += stats.getTicks();
+
+            cpuProcess += stats.getCpuProcess() * stats.getDuration();
+            cpuSystem += stats.getCpuSystem() * stats.getDuration();
+            tps += stats.getTps() * stats.getDuration();
+            msptMedian += stats.getMsptMedian() * stats.getDuration();
+            msptMax = Math.max(msptMax, stats.getMsptMax());
+            gcCount += stats.getGcCount();
+            gcPauseTime += stats.getGcPauseTime();
+            gcAllocationRate += stats.getGcAllocationRate() * stats.getDuration();
+            youngAllocationRate += stats.getYoungAllocationRate() * stats.getDuration();
+            promotionRate += stats.getPromotionRate() * stats.getDuration();
+            stats.getMemoryPoolPeakUsedMap().forEach((pool, used) -> memoryPoolPeakUsed.merge(pool, used, Math::max));
+            stats.getBufferPoolPeakUsedMap().forEach((pool, used) -> bufferPoolPeakUsed.merge(pool, used, Math::max));
+            stats.getThreadAllocationRatesMap().forEach((group, rate) -> threadAllocationRates.merge(group, rate * stats.getDuration(), Double::sum));
+            if (stats.hasMsptHistogram()) {
+                if (mspt == null) {
+                    mspt = new LogLinearHistogram();
+                }
+                mspt.add(LogLinearHistogram.fromProto(stats.getMsptHistogram()));
+            }
+
+            players = Math.max(players, stats.getPlayers());
+            entities = Math.max(entities, stats.getEntities());
+            tileEntities = Math.max(tileEntities, stats.getTileEntities());
+            chunks = Math.max(chunks, stats.getChunks());
+        }
+
+        SparkProtos.WindowStatistics.Builder builder = SparkProtos.WindowStatistics.newBuilder()
+                .setDuration((int) Math.min(Integer.MAX_VALUE, duration))
+                .setTicks(ticks)
+                .setMsptMax(msptMax)
+                .setPlayers(players)
+                .setEntities(entities)
+                .setTileEntities(tileEntities)
+                .setChunks(chunks)
+                .setGcCount(gcCount)
+                .setGcPauseTime(gcPauseTime)
+                .putAllMemoryPoolPeakUsed(memoryPoolPeakUsed)
+                .putAllBufferPoolPeakUsed(bufferPoolPeakUsed);
+
+        if (startTime != Long.MAX_VALUE) {
+            builder.setStartTime(startTime);
+            builder.setEndTime(endTime);
+        }
+        if (duration != 0) {
+            builder.setCpuProcess(cpuProcess / duration);
+            builder.setCpuSystem(cpuSystem / duration);
+            builder.setTps(tps / duration);
+            builder.setMsptMedian(msptMedian / duration);
+            builder.setGcAllocationRate(gcAllocationRate / duration);
+            builder.setYoungAllocationRate(youngAllocationRate / duration);
+            builder.setPromotionRate(promotionRate / duration);
+            putThreadAllocationRates(builder, threadAllocationRates, duration);
+        }
+        if (mspt != null) {
+            setMsptPercentiles(builder, mspt);
+        }
+        return builder.build();
     }
 
     public Map<Integer, SparkProtos.WindowStatistics> export() {
@@ -143,15 +301,33 @@ public class WindowStatisticsCollector {
     }
 
     /**
-     * Measures current statistics, where possible averaging over the last minute. (1 min = 1 window)
+     * Exports the statistics for the windows which pass the given {@code filter}.
+     *
+     * @param filter the window filter
+     * @return the statistics
+     */
+    public Map<Integer, SparkProtos.WindowStatistics> export(IntPredicate filter) {
+        Map<Integer, SparkProtos.WindowStatistics> map = new HashMap<>();
+        this.stats.forEach((window, stats) -> {
+            if (filter.test(window)) {
+                map.put(window, stats);
+            }
+        });
+        return map;
+    }
+
+    /**
+     * Measures current statistics, where possible averaging over the duration of a window.
+     * (the last minute, or the last 10 seconds if windows are shorter than a minute)
      *
      * @return the current statistics
      */
     private SparkProtos.WindowStatistics measure(int window) {
         SparkProtos.WindowStatistics.Builder builder = SparkProtos.WindowStatistics.newBuilder();
+        boolean shortWindows = ProfilingWindowUtils.WINDOW_SIZE_SECONDS < 60;
 
         long endTime = System.currentTimeMillis();
-        Long startTime = this.windowStartTimes.get(window);
+        Long startTime = this.windowStartTimes.remove(window);
         if (startTime == null) {
             this.platform.getPlugin().log(Level.WARNING, "Unknown start time for window " + window);
             startTime = endTime - (ProfilingWindowUtils.WINDOW_SIZE_SECONDS * 1000); // guess
@@ -163,13 +339,22 @@ public class WindowStatisticsCollector {
 
         TickStatistics tickStatistics = this.platform.getTickStatistics();
         if (tickStatistics != null) {
-            builder.setTps(tickStatistics.tps1Min());
+            builder.setTps(shortWindows ? tickStatistics.tps10Sec() : tickStatistics.tps1Min());
 
-            DoubleAverageInfo mspt = tickStatistics.duration1Min();
+            DoubleAverageInfo mspt = shortWindows ? tickStatistics.duration10Sec() : tickStatistics.duration1Min();
             if (mspt != null) {
                 builder.setMsptMedian(mspt.median());
                 builder.setMsptMax(mspt.max());
             }
+
+        }
+
+        // the rolling histograms overlap adjacent windows, so use one that only covers this window
+        if (this.tickReporter != null) {
+            LogLinearHistogram msptHistogram = this.durationRecorder.drain();
+            if (msptHistogram.getCount() != 0) {
+                setMsptPercentiles(builder, msptHistogram);
+            }
         }
 
         if (this.tickCounter != null) {
@@ -177,8 +362,30 @@ public class WindowStatisticsCollector {
             builder.setTicks(ticks);
         }
 
-        builder.setCpuProcess(CpuMonitor.processLoad1MinAvg());
-        builder.setCpuSystem(CpuMonitor.systemLoad1MinAvg());
+        GcJournal.Summary gc = this.platform.getGcJournal().summarise(startTime, endTime);
+        builder.setGcCount(gc.getCount());
+        builder.setGcPauseTime(gc.getPauseTime());
+        if (endTime > startTime) {
+            builder.setGcAllocationRate(gc.getAllocated() * 1000d / (endTime - startTime));
+        }
+
+        MemoryPoolMonitor memoryPoolMonitor = this.platform.getMemoryPoolMonitor();
+        double youngAllocationRate = memoryPoolMonitor.allocationRate(startTime, endTime);
+        if (youngAllocationRate != -1) {
+            builder.setYoungAllocationRate(youngAllocationRate);
+            builder.setPromotionRate(memoryPoolMonitor.promotionRate(startTime, endTime));
+        }
+        builder.putAllMemoryPoolPeakUsed(memoryPoolMonitor.peakPoolUsage(startTime, endTime));
+        builder.putAllBufferPoolPeakUsed(memoryPoolMonitor.peakBufferPoolUsage(startTime, endTime));
+
+        ThreadAllocationMonitor threadAllocationMonitor = this.platform.getThreadAllocationMonitor();
+        if (threadAllocationMonitor.isSupported()) {
+            List<ThreadAllocationMonitor.ThreadAllocation> rates = threadAllocationMonitor.allocationRates(startTime, endTime);
+            putThreadAllocationRates(builder, ThreadAllocationMonitor.groupAllocationRates(rates, this.threadGrouper), 1);
+        }
+
+        builder.setCpuProcess(shortWindows ? CpuMonitor.processLoad10SecAvg() : CpuMonitor.processLoad1MinAvg());
+        builder.setCpuSystem(shortWindows ? CpuMonitor.systemLoad10SecAvg() : CpuMonitor.systemLoad1MinAvg());
 
         try {
             AsyncWorldInfoProvider worldInfoProvider = new AsyncWorldInfoProvider(this.platform, this.platform.getPlugin().createWorldInfoProvider());
@@ -196,6 +403,20 @@ public class WindowStatisticsCollector {
         return builder.build();
     }
 
+    private static void putThreadAllocationRates(SparkProtos.WindowStatistics.Builder builder, Map<String, Double> rates, double divisor) {
+        rates.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(THREAD_ALLOCATION_RATES_LIMIT)
+                .forEach(e -> builder.putThreadAllocationRates(e.getKey(), e.getValue() / divisor));
+    }
+
+    private static void setMsptPercentiles(SparkProtos.WindowStatistics.Builder builder, LogLinearHistogram histogram) {
+        builder.setMsptP90(histogram.percentile(0.9));
+        builder.setMsptP99(histogram.percentile(0.99));
+        builder.setMsptP999(histogram.percentile(0.999));
+        builder.setMsptHistogram(histogram.toProto());
+    }
+
     /**
      * Responsible for counting the number of ticks in a profile/window.
      */
@@ -261,6 +482,29 @@ public class WindowStatisticsCollector {
         }
     }
 
+    /**
+     * Records the duration of ticks into a histogram, which is swapped out at the end of each window.
+     */
+    private static final class WindowDurationRecorder implements TickReporter.Callback {
+        private LogLinearHistogram histogram = new LogLinearHistogram();
+
+        @Override
+        public synchronized void onTick(double duration) {
+            this.histogram.record(duration);
+        }
+
+        /**
+         * Gets the durations recorded since the last call, and starts a new histogram.
+         *
+         * @return the histogram
+         */
+        synchronized LogLinearHistogram drain() {
+            LogLinearHistogram histogram = this.histogram;
+            this.histogram = new LogLinearHistogram();
+            return histogram;
+        }
+    }
+
     /**
      * Counts the number of ticks in a window using a {@link TickHook}.
      */
@@ -104,7 +104,7 @@ public final class Configuration {
         }
 
         JsonPrimitive val = el.getAsJsonPrimitive();
-        return val.isBoolean() ? val.getAsInt() : def;
+        return val.isNumber() ? val.getAsInt() : def;
     }
 
     public List<String> getStringList(String path) {
@@ -173,4 +173,12 @@ public final class Configuration {
         }
         return this.getInteger(path, def);
     }
+
+    public List<String> getOrSaveStringList(String path, List<String> def) {
+        if(!this.contains(path)) {
+            this.setStringList(path, def);
+            this.save();
+        }
+        return this.getStringList(path);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.util;
+
+import me.lucko.spark.proto.SparkProtos;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of (millisecond) durations, with log-linear buckets in the style of HdrHistogram.
+ *
+ * <p>Values are recorded with microsecond precision. Below 64µs each microsecond has its own
+ * bucket, and above that every power of two is split into 32 linear sub-buckets - so a value is
+ * always reported to within ~1.5% of what was recorded, using a fixed amount of memory however
+ * many values are recorded. Values above ~67 seconds are counted in the last bucket.</p>
+ *
+ * <p>The exact min, max and sum are tracked separately from the buckets.</p>
+ *
+ * <p>Histograms are not thread safe.</p>
+ */
+public class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 20;
+
+    /** The number of buckets in each histogram */
+    public static final int BUCKETS = SUB_BUCKETS * (MAX_SHIFT + 2);
+
+    /** The number of buckets per millisecond */
+    private static final double RESOLUTION = 1000d;
+
+    /** The largest value (in microseconds) which has its own bucket */
+    private static final long MAX_VALUE = ((2L * SUB_BUCKETS) << MAX_SHIFT) - 1;
+
+    /** The number of values in each bucket */
+    private final int[] counts = new int[BUCKETS];
+    /** The number of values in the histogram */
+    private long count = 0;
+    /** The sum, min and max of the values in the histogram */
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public void record(double value) {
+        this.counts[indexOf(value)]++;
+        this.count++;
+        this.sum += value;
+        if (value < this.min) {
+            this.min = value;
+        }
+        if (value > this.max) {
+            this.max = value;
+        }
+    }
+
+    /**
+     * Adds all of the values in another histogram to this one.
+     *
+     * @param other the other histogram
+     */
+    public void add(LogLinearHistogram other) {
+        if (other.count == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.sum += other.sum;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+    }
+
+    public void reset() {
+        if (this.count == 0) {
+            return;
+        }
+        Arrays.fill(this.counts, 0);
+        this.count = 0;
+        this.sum = 0;
+        this.min = Double.POSITIVE_INFINITY;
+        this.max = Double.NEGATIVE_INFINITY;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public double mean() {
+        return this.count == 0 ? 0 : this.sum / this.count;
+    }
+
+    public double min() {
+        return this.count == 0 ? 0 : this.min;
+    }
+
+    public double max() {
+        return this.count == 0 ? 0 : this.max;
+    }
+
+    /**
+     * Gets the value at the given percentile.
+     *
+     * <p>The rank of the value is calculated in the same way as {@link RollingAverage}. The value
+     * returned is the middle of the bucket it was counted in, kept within the exact min/max.</p>
+     *
+     * @param percentile the percentile, between 0 and 1
+     * @return the value
+     */
+    public double percentile(double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        if (this.count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile * (this.count - 1));
+        if (rank == this.count - 1) {
+            return this.max;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+            if (seen > rank) {
+                double value = (lowestValue(i) + highestValue(i)) / 2d / RESOLUTION;
+                return Math.max(this.min, Math.min(this.max, value));
+            }
+        }
+        return this.max;
+    }
+
+    public SparkProtos.HistogramValues toValuesProto() {
+        return SparkProtos.HistogramValues.newBuilder()
+                .setCount(this.count)
+                .setMean(mean())
+                .setMin(min())
+                .setMax(max())
+                .setP50(percentile(0.5))
+                .setP90(percentile(0.9))
+                .setP99(percentile(0.99))
+                .setP999(percentile(0.999))
+                .build();
+    }
+
+    public SparkProtos.Histogram toProto() {
+        SparkProtos.Histogram.Builder proto = SparkProtos.Histogram.newBuilder()
+                .setSum(this.sum)
+                .setMin(min())
+                .setMax(max());
+
+        for (int i = 0; i < BUCKETS; i++) {
+            if (this.counts[i] != 0) {
+                proto.addBucketIndexes(i);
+                proto.addBucketCounts(this.counts[i]);
+            }
+        }
+        return proto.build();
+    }
+
+    public static LogLinearHistogram fromProto(SparkProtos.Histogram proto) {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        int buckets = Math.min(proto.getBucketIndexesCount(), proto.getBucketCountsCount());
+        for (int i = 0; i < buckets; i++) {
+            int index = proto.getBucketIndexes(i);
+            int count = proto.getBucketCounts(i);
+            if (index >= 0 && index < BUCKETS && count > 0) {
+                histogram.counts[index] += count;
+                histogram.count += count;
+            }
+        }
+        if (histogram.count != 0) {
+            histogram.sum = proto.getSum();
+            histogram.min = proto.getMin();
+            histogram.max = proto.getMax();
+        }
+        return histogram;
+    }
+
+    private static int indexOf(double value) {
+        long v = Math.min(Math.max(Math.round(value * RESOLUTION), 0), MAX_VALUE);
+        int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(v)) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (v >>> shift);
+    }
+
+    private static long lowestValue(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long mantissa = index - ((long) shift << SUB_BUCKET_BITS);
+        return mantissa << shift;
+    }
+
+    private static long highestValue(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+
+}
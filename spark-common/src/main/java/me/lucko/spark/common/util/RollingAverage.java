@@ -22,74 +22,137 @@ package me.lucko.spark.common.util;
 
 import me.lucko.spark.api.statistic.misc.DoubleAverageInfo;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.ArrayDeque;
-import java.util.Arrays;
-import java.util.Queue;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * A rolling window of double samples.
+ *
+ * <p>Samples are held in a ring buffer, with a running compensated sum for the mean. The slots of
+ * the ring buffer are also linked into an order-statistic treap (ordered by value, then slot), so
+ * the min, max and percentiles can be found in O(log n) time. Nothing is allocated once the
+ * average has been created.</p>
+ *
+ * <p>Reads are optimistic - they don't block the writer, and are only retried under a read lock
+ * if a sample was added while they were running.</p>
+ */
 public class RollingAverage implements DoubleAverageInfo {
 
-    private final Queue<BigDecimal> samples;
+    private static final int NIL = -1;
+
     private final int windowSize;
-    private BigDecimal total = BigDecimal.ZERO;
+    private final StampedLock lock = new StampedLock();
+
+    /** The ring buffer of samples */
+    private final double[] samples;
+    /** The slot the next sample will be written to */
+    private int head = 0;
+    /** The number of samples in the window */
+    private int count = 0;
+
+    /** The sum of the samples, and the compensation for the error accumulated in it */
+    private double sum = 0;
+    private double compensation = 0;
+
+    /** The treap - the children, subtree size & heap priority of each slot */
+    private final int[] left;
+    private final int[] right;
+    private final int[] size;
+    private final int[] priority;
+    private int root = NIL;
+    private int seed = 0x9E3779B9;
 
     public RollingAverage(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
         this.windowSize = windowSize;
-        this.samples = new ArrayDeque<>(this.windowSize + 1);
+        this.samples = new double[windowSize];
+        this.left = new int[windowSize];
+        this.right = new int[windowSize];
+        this.size = new int[windowSize];
+        this.priority = new int[windowSize];
     }
 
     public int getSamples() {
-        synchronized (this) {
-            return this.samples.size();
+        long stamp = this.lock.tryOptimisticRead();
+        int count = this.count;
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                count = this.count;
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
         }
+        return count;
     }
 
-    public void add(BigDecimal num) {
-        synchronized (this) {
-            this.total = this.total.add(num);
-            this.samples.add(num);
-            if (this.samples.size() > this.windowSize) {
-                this.total = this.total.subtract(this.samples.remove());
+    public void add(double num) {
+        long stamp = this.lock.writeLock();
+        try {
+            int slot = this.head;
+            if (this.count == this.windowSize) {
+                // evict the oldest sample, which is in the slot about to be overwritten
+                this.root = delete(this.root, slot);
+                accumulate(-this.samples[slot]);
+            } else {
+                this.count++;
             }
+
+            this.samples[slot] = num;
+            this.priority[slot] = nextPriority();
+            this.root = insert(this.root, slot);
+            accumulate(num);
+
+            this.head = slot + 1 == this.windowSize ? 0 : slot + 1;
+        } finally {
+            this.lock.unlockWrite(stamp);
         }
     }
 
     @Override
     public double mean() {
-        synchronized (this) {
-            if (this.samples.isEmpty()) {
-                return 0;
+        long stamp = this.lock.tryOptimisticRead();
+        double mean = readMean();
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                mean = readMean();
+            } finally {
+                this.lock.unlockRead(stamp);
             }
-            BigDecimal divisor = BigDecimal.valueOf(this.samples.size());
-            return this.total.divide(divisor, 30, RoundingMode.HALF_UP).doubleValue();
         }
+        return mean;
     }
 
     @Override
     public double max() {
-        synchronized (this) {
-            BigDecimal max = null;
-            for (BigDecimal sample : this.samples) {
-                if (max == null || sample.compareTo(max) > 0) {
-                    max = sample;
-                }
+        long stamp = this.lock.tryOptimisticRead();
+        double max = readRank(Integer.MAX_VALUE);
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                max = readRank(Integer.MAX_VALUE);
+            } finally {
+                this.lock.unlockRead(stamp);
             }
-            return max == null ? 0 : max.doubleValue();
         }
+        return max;
     }
 
     @Override
     public double min() {
-        synchronized (this) {
-            BigDecimal min = null;
-            for (BigDecimal sample : this.samples) {
-                if (min == null || sample.compareTo(min) < 0) {
-                    min = sample;
-                }
+        long stamp = this.lock.tryOptimisticRead();
+        double min = readRank(0);
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                min = readRank(0);
+            } finally {
+                this.lock.unlockRead(stamp);
             }
-            return min == null ? 0 : min.doubleValue();
         }
+        return min;
     }
 
     @Override
@@ -98,17 +161,173 @@ public class RollingAverage implements DoubleAverageInfo {
             throw new IllegalArgumentException("Invalid percentile " + percentile);
         }
 
-        BigDecimal[] sortedSamples;
-        synchronized (this) {
-            if (this.samples.isEmpty()) {
-                return 0;
+        long stamp = this.lock.tryOptimisticRead();
+        double value = readPercentile(percentile);
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                value = readPercentile(percentile);
+            } finally {
+                this.lock.unlockRead(stamp);
             }
-            sortedSamples = this.samples.toArray(new BigDecimal[0]);
         }
-        Arrays.sort(sortedSamples);
+        return value;
+    }
+
+    // The read methods below may run concurrently with a write, in which case their result is
+    // discarded - so they must not loop forever or index out of bounds on a torn state.
+
+    private double readMean() {
+        int count = this.count;
+        return count == 0 ? 0 : (this.sum + this.compensation) / count;
+    }
+
+    private double readPercentile(double percentile) {
+        int count = this.count;
+        if (count == 0) {
+            return 0;
+        }
+        return readRank((int) Math.ceil(percentile * (count - 1)));
+    }
+
+    /**
+     * Gets the sample with the given rank.
+     *
+     * @param rank the rank, clamped to the number of samples
+     * @return the sample, or 0 if there are no samples
+     */
+    private double readRank(int rank) {
+        int count = this.count;
+        if (count == 0) {
+            return 0;
+        }
+        rank = Math.min(rank, count - 1);
+
+        int node = this.root;
+        for (int depth = 0; node != NIL && depth < this.windowSize; depth++) {
+            int leftNode = this.left[node];
+            int leftSize = leftNode == NIL ? 0 : this.size[leftNode];
+            if (rank < leftSize) {
+                node = leftNode;
+            } else if (rank == leftSize) {
+                return this.samples[node];
+            } else {
+                rank -= leftSize + 1;
+                node = this.right[node];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a value to the sum, using Neumaier's variant of Kahan summation so that samples can
+     * be subtracted again without the error building up.
+     *
+     * @param value the value
+     */
+    private void accumulate(double value) {
+        double total = this.sum + value;
+        if (Math.abs(this.sum) >= Math.abs(value)) {
+            this.compensation += (this.sum - total) + value;
+        } else {
+            this.compensation += (value - total) + this.sum;
+        }
+        this.sum = total;
+    }
+
+    private int nextPriority() {
+        // xorshift
+        int x = this.seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        this.seed = x;
+        return x;
+    }
+
+    private boolean less(int a, int b) {
+        int cmp = Double.compare(this.samples[a], this.samples[b]);
+        return cmp < 0 || (cmp == 0 && a < b);
+    }
+
+    private void update(int node) {
+        int leftNode = this.left[node];
+        int rightNode = this.right[node];
+        this.size[node] = 1 + (leftNode == NIL ? 0 : this.size[leftNode]) + (rightNode == NIL ? 0 : this.size[rightNode]);
+    }
+
+    private int insert(int node, int slot) {
+        if (node == NIL) {
+            this.left[slot] = NIL;
+            this.right[slot] = NIL;
+            this.size[slot] = 1;
+            return slot;
+        }
+
+        if (less(slot, node)) {
+            this.left[node] = insert(this.left[node], slot);
+            if (this.priority[this.left[node]] > this.priority[node]) {
+                return rotateRight(node);
+            }
+        } else {
+            this.right[node] = insert(this.right[node], slot);
+            if (this.priority[this.right[node]] > this.priority[node]) {
+                return rotateLeft(node);
+            }
+        }
+        update(node);
+        return node;
+    }
+
+    private int delete(int node, int slot) {
+        if (node == slot) {
+            return merge(this.left[node], this.right[node]);
+        }
+
+        if (less(slot, node)) {
+            this.left[node] = delete(this.left[node], slot);
+        } else {
+            this.right[node] = delete(this.right[node], slot);
+        }
+        update(node);
+        return node;
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) {
+            return b;
+        }
+        if (b == NIL) {
+            return a;
+        }
+
+        if (this.priority[a] > this.priority[b]) {
+            this.right[a] = merge(this.right[a], b);
+            update(a);
+            return a;
+        } else {
+            this.left[b] = merge(a, this.left[b]);
+            update(b);
+            return b;
+        }
+    }
+
+    private int rotateRight(int node) {
+        int pivot = this.left[node];
+        this.left[node] = this.right[pivot];
+        this.right[pivot] = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
 
-        int rank = (int) Math.ceil(percentile * (sortedSamples.length - 1));
-        return sortedSamples[rank].doubleValue();
+    private int rotateLeft(int node) {
+        int pivot = this.right[node];
+        this.right[node] = this.left[pivot];
+        this.left[pivot] = node;
+        update(node);
+        update(pivot);
+        return pivot;
     }
 
 }
@@ -0,0 +1,94 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link LogLinearHistogram} of the values recorded over a rolling window of time.
+ *
+ * <p>The window is split into a fixed number of slots, each with its own histogram. Values are
+ * recorded into the current slot, and the oldest slot is cleared and reused once the current one
+ * is full - so memory use doesn't depend on the length of the window, or on the number of values
+ * recorded in it. A snapshot covers at least the requested window, and at most one slot more.</p>
+ */
+public class RollingHistogram {
+
+    /** The slots, used as a ring */
+    private final LogLinearHistogram[] slots;
+    /** The duration of each slot in nanoseconds */
+    private final long slotDuration;
+
+    /** The index of the current slot */
+    private int current = 0;
+    /** The time the current slot started */
+    private long currentStart;
+
+    /**
+     * Creates a new rolling histogram.
+     *
+     * @param window the length of the window
+     * @param slotDuration the duration of each slot, which should divide the window
+     * @param unit the unit of the window & slot duration
+     */
+    public RollingHistogram(long window, long slotDuration, TimeUnit unit) {
+        int slots = (int) (window / slotDuration) + 1;
+        this.slots = new LogLinearHistogram[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new LogLinearHistogram();
+        }
+        this.slotDuration = unit.toNanos(slotDuration);
+        this.currentStart = System.nanoTime();
+    }
+
+    public synchronized void record(double value) {
+        advance(System.nanoTime());
+        this.slots[this.current].record(value);
+    }
+
+    /**
+     * Takes a snapshot of the values currently in the window.
+     *
+     * @return the snapshot
+     */
+    public synchronized LogLinearHistogram snapshot() {
+        advance(System.nanoTime());
+        LogLinearHistogram snapshot = new LogLinearHistogram();
+        for (LogLinearHistogram slot : this.slots) {
+            snapshot.add(slot);
+        }
+        return snapshot;
+    }
+
+    private void advance(long now) {
+        long elapsed = (now - this.currentStart) / this.slotDuration;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        for (long i = 0; i < Math.min(elapsed, this.slots.length); i++) {
+            this.current = (this.current + 1) % this.slots.length;
+            this.slots[this.current].reset();
+        }
+        this.currentStart += elapsed * this.slotDuration;
+    }
+
+}
@@ -69,6 +69,20 @@ public enum StatisticFormatter {
                 .build();
     }
 
+    public static TextComponent formatTickDurationPercentiles(LogLinearHistogram histogram) {
+        return text()
+                .append(formatTickDuration(histogram.percentile(0.5)))
+                .append(text('/', GRAY))
+                .append(formatTickDuration(histogram.percentile(0.9)))
+                .append(text('/', GRAY))
+                .append(formatTickDuration(histogram.percentile(0.99)))
+                .append(text('/', GRAY))
+                .append(formatTickDuration(histogram.percentile(0.999)))
+                .append(text('/', GRAY))
+                .append(formatTickDuration(histogram.max()))
+                .build();
+    }
+
     public static TextComponent formatTickDuration(double duration) {
         TextColor color;
         if (duration >= 50d) {
@@ -0,0 +1,152 @@
+/*
+ * This file is part of spark.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package me.lucko.spark.common.monitor.tick;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link SparkTickStatistics.TpsRollingAverage} gives exactly the same results as
+ * the BigDecimal implementation it replaced.
+ */
+public class TpsRollingAverageTest {
+    private static final long SEC_IN_NANO = TimeUnit.SECONDS.toNanos(1);
+    private static final int[] SIZES = {5, 10, 60, 60 * 5, 60 * 15};
+
+    @Test
+    public void testInitialAverage() {
+        for (int size : SIZES) {
+            assertGolden(size, new long[0]);
+        }
+    }
+
+    @Test
+    public void testEdgeCases() {
+        long[] diffs = {
+                1, // the smallest possible sample
+                SEC_IN_NANO, // exactly 20 tps
+                SEC_IN_NANO - 1,
+                SEC_IN_NANO + 1,
+                TimeUnit.MILLISECONDS.toNanos(50), // ticks taking no time at all
+                TimeUnit.SECONDS.toNanos(30), // a long lag spike
+                TimeUnit.HOURS.toNanos(1), // the server was suspended
+                Integer.MAX_VALUE,
+                3, 7, 999_999_937L // primes
+        };
+        for (int size : SIZES) {
+            assertGolden(size, diffs);
+        }
+    }
+
+    @Test
+    public void testRandomSamples() {
+        Random random = new Random(0);
+        for (int size : SIZES) {
+            long[] diffs = new long[size * 20];
+            for (int i = 0; i < diffs.length; i++) {
+                switch (random.nextInt(4)) {
+                    case 0: // close to 20 tps
+                        diffs[i] = SEC_IN_NANO + (long) (random.nextGaussian() * TimeUnit.MILLISECONDS.toNanos(20));
+                        break;
+                    case 1: // lagging
+                        diffs[i] = SEC_IN_NANO + (long) (random.nextDouble() * TimeUnit.SECONDS.toNanos(10));
+                        break;
+                    case 2: // any time up to a minute
+                        diffs[i] = 1 + (long) (random.nextDouble() * TimeUnit.MINUTES.toNanos(1));
+                        break;
+                    default: // very short
+                        diffs[i] = 1 + random.nextInt(1000);
+                        break;
+                }
+            }
+            assertGolden(size, diffs);
+        }
+    }
+
+    private static void assertGolden(int size, long[] diffs) {
+        SparkTickStatistics.TpsRollingAverage average = new SparkTickStatistics.TpsRollingAverage(size);
+        BigDecimalTpsRollingAverage golden = new BigDecimalTpsRollingAverage(size);
+        assertEquals(golden.getAverage(), average.getAverage(), 0);
+
+        for (int i = 0; i < diffs.length; i++) {
+            average.add(diffs[i]);
+            golden.add(diffs[i]);
+            assertEquals("size " + size + ", sample " + i, golden.getAverage(), average.getAverage(), 0);
+        }
+    }
+
+    /**
+     * The previous implementation, taken from PaperMC/Paper (licensed under MIT), along with the
+     * calculation of each sample that was done in {@link SparkTickStatistics#onTick(int)}.
+     */
+    private static final class BigDecimalTpsRollingAverage {
+        private static final int TPS = 20;
+        private static final int TPS_SAMPLE_INTERVAL = 20;
+        private static final BigDecimal TPS_BASE = new BigDecimal(SEC_IN_NANO).multiply(new BigDecimal(TPS_SAMPLE_INTERVAL));
+
+        private final int size;
+        private long time;
+        private BigDecimal total;
+        private int index = 0;
+        private final BigDecimal[] samples;
+        private final long[] times;
+
+        BigDecimalTpsRollingAverage(int size) {
+            this.size = size;
+            this.time = size * SEC_IN_NANO;
+            this.total = new BigDecimal(TPS).multiply(new BigDecimal(SEC_IN_NANO)).multiply(new BigDecimal(size));
+            this.samples = new BigDecimal[size];
+            this.times = new long[size];
+            for (int i = 0; i < size; i++) {
+                this.samples[i] = new BigDecimal(TPS);
+                this.times[i] = SEC_IN_NANO;
+            }
+        }
+
+        void add(long diff) {
+            BigDecimal currentTps = TPS_BASE.divide(new BigDecimal(diff), 30, RoundingMode.HALF_UP);
+            BigDecimal total = currentTps.multiply(new BigDecimal(diff));
+            add(currentTps, diff, total);
+        }
+
+        private void add(BigDecimal x, long t, BigDecimal total) {
+            this.time -= this.times[this.index];
+            this.total = this.total.subtract(this.samples[this.index].multiply(new BigDecimal(this.times[this.index])));
+            this.samples[this.index] = x;
+            this.times[this.index] = t;
+            this.time += t;
+            this.total = this.total.add(total);
+            if (++this.index == this.size) {
+                this.index = 0;
+            }
+        }
+
+        double getAverage() {
+            return this.total.divide(new BigDecimal(this.time), 30, RoundingMode.HALF_UP).doubleValue();
+        }
+    }
+}
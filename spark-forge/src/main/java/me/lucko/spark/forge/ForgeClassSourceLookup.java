@@ -24,19 +24,54 @@
 
 package me.lucko.spark.forge;
 
+import com.google.common.collect.ImmutableMap;
+
 import me.lucko.spark.common.sampler.source.ClassSourceLookup;
 
-public class ForgeClassSourceLookup implements ClassSourceLookup {
+import net.minecraftforge.fml.common.Loader;
+import net.minecraftforge.fml.common.ModContainer;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ForgeClassSourceLookup extends ClassSourceLookup.ByCodeSource {
+
+    /** Mod ids which are part of the platform itself, and so should not be identified as a source */
+    private static final String[] PLATFORM_MOD_IDS = {"minecraft", "mcp", "FML", "forge"};
+
+    /** A map of mod source (jar or directory) paths to the id of the mod loaded from them */
+    private final Map<Path, String> modSources;
+
+    public ForgeClassSourceLookup() {
+        Map<Path, String> sources = new HashMap<>();
+        for (ModContainer mod : Loader.instance().getActiveModList()) {
+            if (isPlatformMod(mod.getModId())) {
+                continue;
+            }
+
+            File source = mod.getSource();
+            if (source != null) {
+                // several mods may share a jar - the first one loaded takes the credit
+                sources.putIfAbsent(source.toPath().toAbsolutePath().normalize(), mod.getModId());
+            }
+        }
+        this.modSources = ImmutableMap.copyOf(sources);
+    }
 
-    //TODO: figure out solution for this
     @Override
-    public String identify(Class<?> clazz) {
-        /*
-        if (clazz.getClassLoader() instanceof TransformingClassLoader) {
-            String name = clazz.getModule().getName();
-            return name.equals("forge") || name.equals("minecraft") ? null : name;
+    public String identifyFile(Path path) {
+        // classes loaded from the minecraft/forge jars (or any non-mod jar) are not attributed
+        return this.modSources.get(path);
+    }
+
+    private static boolean isPlatformMod(String modId) {
+        for (String id : PLATFORM_MOD_IDS) {
+            if (id.equals(modId)) {
+                return true;
+            }
         }
-        */
-        return null;
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -51,6 +51,8 @@ public class ForgeLoadingSamplerModule {
     private static final String OPTION_THREAD_DUMPER = "loadingProfiler_Option_AllThread";
     private static final String OPTION_ALLOC = "loadingProfiler_Option_MemAlloc";
     private static final String OPTION_ALLOC_INTERVAL = "loadingProfiler_Option_MemAllocInterval";
+    private static final String OPTION_FORMAT = "loadingProfiler_Option_Format";
+    private static final String OPTION_EXCLUDE_GC_PAUSES = "loadingProfiler_Option_ExcludeGcPauses";
 
     //Realistically there shouldn't be any more than 2 running at one time
     private static final Map<StateEnum, Sampler> activeSamplers = new HashMap<>();
@@ -93,7 +95,9 @@ public class ForgeLoadingSamplerModule {
             if(interval <= 0) interval = mode.defaultInterval();
             interval = (int)(mode == SamplerMode.EXECUTION ? interval * 1000d : interval);
 
-            SamplerSettings settings = new SamplerSettings(interval, threadDumper, threadGrouper, -1, false);
+            boolean excludeGcPauses = platform.getConfiguration().getOrSaveBoolean(OPTION_EXCLUDE_GC_PAUSES, false);
+
+            SamplerSettings settings = new SamplerSettings(interval, threadDumper, threadGrouper, -1, false, platform.getFrameFolder(), 0, excludeGcPauses);
             Sampler sampler;
             try {
                 if(mode == SamplerMode.ALLOCATION) {
@@ -162,7 +166,8 @@ public class ForgeLoadingSamplerModule {
                                     return MergeMode.sameMethod(methodDisambiguator);
                                 })
                                 .classSourceLookup(() -> ClassSourceLookup.create(platform)),
-                        "forgeloading_" + state.getValue() + "_" + (FMLLaunchHandler.side() == Side.CLIENT ? "client" : "server") + (sampler.getMode() == SamplerMode.ALLOCATION ? "_memalloc" : "")
+                        "forgeloading_" + state.getValue() + "_" + (FMLLaunchHandler.side() == Side.CLIENT ? "client" : "server") + (sampler.getMode() == SamplerMode.ALLOCATION ? "_memalloc" : ""),
+                        platform.getConfiguration().getOrSaveString(OPTION_FORMAT, "proto")
                 );
             });
         }